@@ -0,0 +1,415 @@
+package chatRoomProject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.nio.file.Paths;
+import java.io.IOException;
+
+/*******************************************************************************
+ * This class is a tool for replaying captured traffic (see TrafficCapture)
+ * against a server of the Chat-Room App (whose main method and full
+ * description can be found in ChatRoomClient.java), for benchmarking it with
+ * realistic load shapes.
+ * Every captured session is played by a ChatClient, which joins, sends its
+ * text and direct messages, changes its presence state and leaves at the
+ * captured times - as they were, or sped up by a factor. Acks and resend
+ * requests are not replayed (each ChatClient makes its own), and neither are
+ * file transfers (the files are not in the capture).
+ * When the replay ends, the tool reports the throughput (messages sent, and
+ * room messages delivered to all sessions), and the latency of text messages
+ * (from sending one until the server broadcasts it back to its sender).
+ * The classe's static main method runs the tool:
+ *   CaptureReplay FILE [--server=HOST[:PORT]] [--speed=X] [--tls]
+ * where X is the speed-up factor (default: 1; 0 replays as fast as possible),
+ * and --tls connects the sessions over TLS.
+ *
+ * @author Nadav Kahlon
+ */
+public class CaptureReplay
+{
+    /***************************************************************************
+     * Constants used by the class
+     */
+
+    // a usage message describing the tool's arguments
+    private static final String USAGE =
+            "Usage: CaptureReplay FILE [--server=HOST[:PORT]] [--speed=X] [--tls]";
+
+    // the time (in milliseconds) the tool waits for the last messages to be
+    // delivered after the replay ends
+    private static final long DRAIN_TIMEOUT = 10000;
+
+    // the time (in milliseconds) without deliveries after which the last
+    // messages are considered delivered
+    private static final long IDLE_TIME = 1000;
+
+    // format for the report of the replay (see 'report')
+    private static final String REPORT_MSG =
+            "Replayed %d record(s) of %d session(s) (%d skipped) in %.1f s.%n"
+            + "Sent %d message(s) (%.0f/s), delivered %d room message(s) "
+            + "(%.0f/s), %d session(s) failed.%n"
+            + "Text latency (ms): p50=%.1f, p90=%.1f, p99=%.1f, max=%.1f.";
+
+    /***************************************************************************
+     * Attributes of a replay
+     */
+
+    // the name of the server replayed against, and its port
+    private final String host;
+    private final int port;
+
+    // a boolean stating whether the sessions connect over TLS
+    private final boolean secure;
+
+    // the speed-up factor (0 for as fast as possible)
+    private final double speed;
+
+    // the replayed sessions, by their number in the capture (used only by the
+    // replaying thread)
+    private final Map<Integer, ReplaySession> sessions;
+
+    // the number of replayed sessions, of records, and of skipped records
+    // (used only by the replaying thread)
+    private int sessionCount;
+    private long recordCount;
+    private long skipped;
+
+    // the number of messages sent, of room messages delivered, and of failed
+    // sessions
+    private final AtomicLong sent;
+    private final AtomicLong delivered;
+    private final AtomicLong failed;
+
+    // the time (in nanoseconds) the last room message was delivered
+    private volatile long lastDelivery;
+
+    // the latencies (in nanoseconds) of the text messages
+    private final List<Long> latencies;
+
+    /***************************************************************************
+     * Constructor: creates a new replay.
+     *
+     * @param host the name of the server to replay against.
+     * @param port the port the server listens on.
+     * @param secure a boolean stating whether the sessions connect over TLS.
+     * @param speed the speed-up factor (0 for as fast as possible).
+     */
+    public CaptureReplay(String host, int port, boolean secure, double speed)
+    {
+        this.host = host;
+        this.port = port;
+        this.secure = secure;
+        this.speed = speed;
+        this.sessions = new HashMap<>();
+        this.sessionCount = 0;
+        this.recordCount = 0;
+        this.skipped = 0;
+        this.sent = new AtomicLong();
+        this.delivered = new AtomicLong();
+        this.failed = new AtomicLong();
+        this.lastDelivery = 0;
+        this.latencies = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    /***************************************************************************
+     * Replays a capture, and prints a report when done.
+     *
+     * @param capture the capture (opened for reading).
+     * @throws IOException if reading the capture failed.
+     */
+    public void replay(TrafficCapture capture) throws IOException
+    {
+        long start = System.nanoTime();
+        TrafficCapture.Record record;
+        while ((record = capture.next()) != null) {
+            // wait until the record is due (at the replay's speed)
+            if (speed > 0) {
+                long due = start + (long) (record.getTime() * 1000 / speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(wait);
+            }
+            recordCount++;
+            dispatch(record);
+        }
+
+        // wait for the sessions to finish sending, and for the last messages
+        // to be delivered
+        List<CompletableFuture<?>> pending = new ArrayList<>();
+        for (ReplaySession session : sessions.values()) pending.add(session.last);
+        try {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+                    .get(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException | InterruptedException e) {
+            // report what was done so far
+        }
+        catch (Exception e) {
+            // failed sessions are counted by themselves
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT);
+        while (System.nanoTime() < deadline && System.nanoTime() - lastDelivery
+                < TimeUnit.MILLISECONDS.toNanos(IDLE_TIME))
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(IDLE_TIME) / 10);
+        long end = Math.max(lastDelivery, start);
+
+        for (ReplaySession session : sessions.values()) session.client.close();
+        System.out.println(report((end - start) / 1e9));
+    }
+
+    /***************************************************************************
+     * Replays a single record: a join starts a new session, and other
+     * messages are sent through the session they were captured from (after
+     * all that session sent before).
+     *
+     * @param record the record.
+     */
+    private void dispatch(TrafficCapture.Record record)
+    {
+        Message msg = record.getMessage();
+        if (msg.getType() == Message.Type.JOIN) {
+            ReplaySession session = new ReplaySession(msg.getUsername());
+            sessions.put(record.getSession(), session);
+            sessionCount++;
+            return;
+        }
+
+        ReplaySession session = sessions.get(record.getSession());
+        if (session == null) {
+            skipped++;
+            return;
+        }
+        ChatClient client = session.client;
+        switch (msg.getType()) {
+            case TEXT:
+                String text = decodeText(msg.getData());
+                session.then(() -> {
+                    session.sendTimes.add(System.nanoTime());
+                    return client.sendText(text); });
+                break;
+            case DIRECT:
+                DirectText direct = (DirectText) msg.getData();
+                String directText = decodeText(direct.getText());
+                session.then(() -> {
+                    // (don't wait for the server's ack - the client doesn't)
+                    client.sendDirect(direct.getRecipient(), directText);
+                    return CompletableFuture.completedFuture(null); });
+                break;
+            case PRESENCE:
+                PresenceState state = (PresenceState) msg.getData();
+                session.then(() -> {
+                    client.setPresence(state);
+                    return CompletableFuture.completedFuture(null); });
+                break;
+            case LEAVE:
+                session.then(() -> client.leave());
+                sessions.remove(record.getSession());
+                break;
+            default:
+                // acks, resend requests and file transfers are not replayed
+                skipped++;
+                break;
+        }
+    }
+
+    /***************************************************************************
+     * Decodes a captured text.
+     *
+     * @param data the text: a String or a CompressedText.
+     * @return the text, inflated if it was compressed (the sessions compress
+     * it again by themselves).
+     */
+    private static String decodeText(Object data)
+    {
+        if (!(data instanceof CompressedText)) return (String) data;
+        try {
+            return ((CompressedText) data).inflate();
+        }
+        catch (IOException e) {
+            return "";
+        }
+    }
+
+    /***************************************************************************
+     * Builds the report of the replay.
+     *
+     * @param seconds the duration of the replay (in seconds).
+     * @return the report.
+     */
+    private String report(double seconds)
+    {
+        List<Long> sorted;
+        synchronized (latencies) {
+            sorted = new ArrayList<>(latencies);
+        }
+        Collections.sort(sorted);
+        double duration = Math.max(seconds, 1e-3);
+        return String.format(REPORT_MSG, recordCount, sessionCount, skipped,
+                seconds, sent.get(), sent.get() / duration, delivered.get(),
+                delivered.get() / duration, failed.get(), percentile(sorted, 50),
+                percentile(sorted, 90), percentile(sorted, 99),
+                percentile(sorted, 100));
+    }
+
+    /***************************************************************************
+     * Gets a percentile of sorted latencies.
+     *
+     * @param sorted the latencies (in nanoseconds), sorted.
+     * @param percent the percentile.
+     * @return the percentile (in milliseconds), or 0 if there are no latencies.
+     */
+    private static double percentile(List<Long> sorted, int percent)
+    {
+        if (sorted.isEmpty()) return 0;
+        int index = (int) Math.ceil(percent / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(index, 0)) / 1e6;
+    }
+
+    /***************************************************************************
+     * This class represents a replayed session: a ChatClient joining under the
+     * captured username, whose operations are chained one after the other.
+     */
+    private class ReplaySession implements ChatClient.Listener
+    {
+        // the username the session joins with
+        private final String username;
+
+        // the client playing the session
+        private final ChatClient client;
+
+        // the last operation of the session (the next one starts after it)
+        private CompletableFuture<?> last;
+
+        // the times (in nanoseconds) the session's text messages were sent,
+        // which haven't been delivered back yet
+        private final Queue<Long> sendTimes;
+
+        /***********************************************************************
+         * Constructor: creates a new session, and starts joining.
+         *
+         * @param username the username to join with.
+         */
+        ReplaySession(String username)
+        {
+            this.username = username;
+            this.client = new ChatClient(host, port, secure, this);
+            this.sendTimes = new ConcurrentLinkedQueue<>();
+            this.last = client.connect().thenCompose((r) -> client.join(username))
+                    .thenAccept((usernames) -> {
+                        if (usernames == null)
+                            throw new IllegalStateException("Username taken");
+                    });
+            this.last.exceptionally((e) -> {
+                failed.incrementAndGet();
+                return null;
+            });
+        }
+
+        /***********************************************************************
+         * Chains an operation after the session's previous ones (it is
+         * skipped if joining failed). The messages a session sends are written
+         * in order anyway, so an operation only has to wait for the previous
+         * one to be submitted - not for its message to be acked.
+         *
+         * @param operation the operation, returning a future completed when
+         * it is done.
+         */
+        void then(Supplier<CompletableFuture<?>> operation)
+        {
+            last = last.thenCompose((r) -> {
+                sent.incrementAndGet();
+                return operation.get();
+            });
+        }
+
+        @Override public void textReceived(String sender, String text)
+        {
+            long now = System.nanoTime();
+            delivered.incrementAndGet();
+            lastDelivery = now;
+            if (sender.equals(username)) {
+                Long sendTime = sendTimes.poll();
+                if (sendTime != null) latencies.add(now - sendTime);
+            }
+        }
+
+        @Override public void userJoined(String joiningUser)
+        {
+            delivered.incrementAndGet();
+            lastDelivery = System.nanoTime();
+        }
+
+        @Override public void userLeft(String leavingUser)
+        {
+            delivered.incrementAndGet();
+            lastDelivery = System.nanoTime();
+        }
+
+        @Override public void disconnected(Exception cause)
+        {
+            failed.incrementAndGet();
+        }
+    }
+
+    /***************************************************************************
+     * The main program of the tool (see the class documentation above).
+     *
+     * @param args the arguments of the tool.
+     */
+    public static void main(String[] args)
+    {
+        String file = null;
+        String host = "localhost";
+        int port = ChatRoomServer.PORT;
+        double speed = 1;
+        boolean secure = false;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--server=")) {
+                    host = arg.substring("--server=".length());
+                    int colon = host.lastIndexOf(':');
+                    if (colon > 0) {
+                        port = Integer.parseInt(host.substring(colon + 1));
+                        host = host.substring(0, colon);
+                    }
+                }
+                else if (arg.startsWith("--speed=")) {
+                    speed = Double.parseDouble(arg.substring("--speed=".length()));
+                    if (!(speed >= 0)) throw new NumberFormatException();
+                }
+                else if (arg.equals("--tls")) {
+                    secure = true;
+                }
+                else if (!arg.startsWith("--") && file == null) {
+                    file = arg;
+                }
+                else {
+                    throw new IllegalArgumentException();
+                }
+            }
+            if (file == null) throw new IllegalArgumentException();
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        try (TrafficCapture capture = TrafficCapture.open(Paths.get(file))) {
+            new CaptureReplay(host, port, secure, speed).replay(capture);
+        }
+        catch (IOException e) {
+            System.out.println("Replaying the capture failed: " + e);
+        }
+    }
+}
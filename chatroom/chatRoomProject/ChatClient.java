@@ -0,0 +1,1315 @@
+package chatRoomProject;
+
+import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.HashMap;
+import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.IOException;
+
+/*******************************************************************************
+ * This class is a UI-free client session in the Chat-Room App (whose main
+ * method and full description can be found in ChatRoomClient.java).
+ * It handles the networking and the protocol of a single session with a
+ * server: connecting, joining a chat-room, sending text messages (to the
+ * whole chat-room, or directly to a single user), transferring files between
+ * users, and leaving. All operations are asynchronous and return
+ * CompletableFutures, and incoming messages are reported to a Listener.
+ * Files are sent in chunks, at most FileAck.WINDOW bytes ahead of what the
+ * receiver acked. The receiver keeps what it got so far in a partial file
+ * (under PARTIAL_DIR), so when the same file is offered again after a broken
+ * transfer - e.g. after reconnecting - only the rest of it is sent.
+ * Room messages are numbered by the server. The session acks them every once
+ * in a while, drops duplicates, and asks the server to send again the
+ * messages that seem to have been skipped (a gap in the numbers that remains
+ * for a while - a short-lived gap is expected, since the server lets urgent
+ * messages overtake others).
+ * When the server shuts down, it tells the session when to come back; a new
+ * session can then resume the old one (keeping its place in the chat-room)
+ * with the token the server gave on joining.
+ * Changes in the user's presence state (e.g. typing) are sent at most once
+ * per PRESENCE_INTERVAL, however often they happen - only the latest state is
+ * sent.
+ * A session may connect over TLS, trusting the certificates the JVM trusts
+ * (see the javax.net.ssl.trustStore system property); all sessions share the
+ * JVM's default TLS context, so reconnecting to the same server resumes the
+ * previous TLS session instead of making a full handshake.
+ * All sessions in the JVM share a single pool of daemon I/O threads, so the
+ * class can be used for bots, bridges and load testing as well as by the GUI
+ * client (note that while a session is in a chat-room, its blocking reads
+ * occupy one of the pooled threads).
+ *
+ * @author Nadav Kahlon
+ */
+public class ChatClient
+{
+    /***************************************************************************
+     * An interface for objects that get notified about a session's incoming
+     * messages. Its methods are called on a shared I/O thread, in the order
+     * the messages arrived, so they should return quickly (and marshal any GUI
+     * work to the GUI thread).
+     */
+    public interface Listener
+    {
+        /***********************************************************************
+         * Called when the session joins (or resumes) the chat-room, before any
+         * of the room's later messages is reported (does nothing by default).
+         * The same list completes the future returned by 'join' or 'resume',
+         * but only this call is ordered with the other calls of the listener.
+         *
+         * @param usernames the usernames of all clients participating in the
+         * chat-room.
+         */
+        default void joined(List<String> usernames) {}
+
+        /***********************************************************************
+         * Called when a text message is received.
+         *
+         * @param sender the name of the sending user.
+         * @param text the text of the message (already inflated if it was
+         * compressed).
+         */
+        void textReceived(String sender, String text);
+
+        /***********************************************************************
+         * Called when a user joins the chat-room.
+         *
+         * @param username the name of the joining user.
+         */
+        void userJoined(String username);
+
+        /***********************************************************************
+         * Called when a user leaves the chat-room.
+         *
+         * @param username the name of the leaving user.
+         */
+        void userLeft(String username);
+
+        /***********************************************************************
+         * Called when a direct message is received (does nothing by default).
+         *
+         * @param sender the name of the sending user.
+         * @param text the text of the message (already inflated if it was
+         * compressed).
+         */
+        default void directReceived(String sender, String text) {}
+
+        /***********************************************************************
+         * Called when the server acks a direct message sent by this session,
+         * after the future returned by 'sendDirect' was already completed
+         * (i.e. when a queued message is finally delivered). Does nothing by
+         * default.
+         *
+         * @param ack the server's ack.
+         */
+        default void directAcknowledged(DirectAck ack) {}
+
+        /***********************************************************************
+         * Called when another user offers this session a file. The offer
+         * should be answered by calling 'acceptFile' or 'declineFile' (it is
+         * ignored by default, which leaves the sender waiting).
+         *
+         * @param sender the name of the offering user.
+         * @param offer the offer.
+         */
+        default void fileOffered(String sender, FileOffer offer) {}
+
+        /***********************************************************************
+         * Called when room messages were skipped, and the server no longer
+         * keeps them for sending again (does nothing by default).
+         *
+         * @param count the number of skipped room messages.
+         */
+        default void messagesMissed(long count) {}
+
+        /***********************************************************************
+         * Called when the presence states of other users change (does nothing
+         * by default). Users not mentioned in any change are ACTIVE.
+         *
+         * @param changes the users whose states changed, and their new states.
+         */
+        default void presenceChanged(Map<String, PresenceState> changes) {}
+
+        /***********************************************************************
+         * Called when the server says it shuts down (does nothing by default).
+         * The session is disconnected right after; a new session may resume it
+         * (see 'resume') once the server is back.
+         *
+         * @param retryAfter the time (in milliseconds) the server asks the
+         * client to wait before trying to resume the session.
+         */
+        default void serverShuttingDown(long retryAfter) {}
+
+        /***********************************************************************
+         * Called once, when a session that joined a chat-room is disconnected
+         * for any reason other than calling 'leave' or 'close'.
+         *
+         * @param cause the reason: an EOFException if the server closed the
+         * connection, a ClassCastException or ClassNotFoundException if the
+         * server sent an unexpected object, or another exception if reading
+         * from the server failed.
+         */
+        void disconnected(Exception cause);
+    }
+
+    /***************************************************************************
+     * Constants used by the class
+     */
+
+    // a text reported instead of a compressed text message which could not
+    // be decompressed
+    private static final String CORRUPTED_TEXT_MSG =
+            "[a compressed message could not be decompressed]";
+
+    // the session acks the room messages it got once every this many of them
+    private static final int ACK_INTERVAL = 32;
+
+    // the time (in milliseconds) a gap in the sequence numbers of the room
+    // messages may last before the session asks the server to send them again
+    private static final long GAP_TIMEOUT = 3000;
+
+    // the minimal time (in milliseconds) between two presence messages sent
+    // by a session
+    public static final long PRESENCE_INTERVAL = 1000;
+
+    // the directory in which partially received files are kept, named after
+    // their transfers' identifiers
+    public static final Path PARTIAL_DIR =
+            Paths.get(System.getProperty("java.io.tmpdir"), "chatroom-partial");
+
+    // the I/O threads shared by all sessions (daemon threads, so they never
+    // keep the JVM alive)
+    private static final ExecutorService IO_THREADS =
+            Executors.newCachedThreadPool((r) -> {
+                Thread thread = new Thread(r, "chat-client-io");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // a daemon thread running delayed tasks for all sessions
+    private static final ScheduledExecutorService TIMER =
+            Executors.newSingleThreadScheduledExecutor((r) -> {
+                Thread thread = new Thread(r, "chat-client-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /***************************************************************************
+     * Attributes of a session
+     */
+
+    // the name identifying the server, and the port it listens on
+    private final String serverName;
+    private final int port;
+
+    // a boolean stating whether the session connects over TLS
+    private final boolean secure;
+
+    // the listener notified about incoming messages
+    private final Listener listener;
+
+    // the TCP socket used for communicating with the server
+    private final Socket socket;
+
+    // input and output streams attached to the socket
+    private ObjectInputStream inStream;
+    private ObjectOutputStream outStream;
+
+    // the username the session joined the chat-room with (null until then)
+    private volatile String username;
+
+    // a boolean stating whether compression of large text messages was
+    // negotiated with the server
+    private volatile boolean compressionEnabled;
+
+    // a boolean stating whether the session was closed on purpose (by 'leave'
+    // or 'close')
+    private volatile boolean closed;
+
+    // a boolean stating whether the session is telling the server it leaves
+    // (the server may close the connection before 'leave' closes the session)
+    private volatile boolean leaving;
+
+    // a boolean stating whether acking room messages was negotiated with the
+    // server
+    private volatile boolean sequenceEnabled;
+
+    // a boolean stating whether presence messages were negotiated with the
+    // server
+    private volatile boolean presenceEnabled;
+
+    // the token with which the session may be resumed after the server
+    // restarts (null if the server gave none)
+    private volatile String resumeToken;
+
+    // the presence state last set, the one last sent, the time (in
+    // milliseconds) it was sent, and whether sending a later one is already
+    // scheduled; guarded by 'this'
+    private PresenceState presence;
+    private PresenceState sentPresence;
+    private long presenceSentTime;
+    private boolean presenceScheduled;
+
+    // the following are changed only by the thread reading messages (the
+    // room messages got, and the current gap, are also checked by the timer -
+    // see 'checkGap' - so they are changed holding the lock of 'aheadSeqs'):
+
+    // the sequence number of the last room message got (with no gaps before
+    // it), and of the last one acked
+    private volatile long lastSeq;
+    private long lastAckedSeq;
+
+    // the sequence numbers of the room messages got after a gap
+    private final TreeSet<Long> aheadSeqs;
+
+    // the time (in milliseconds) the current gap was first noticed, or was
+    // last asked about (0 if there is no gap), and whether checking it is
+    // already scheduled; guarded by 'aheadSeqs'
+    private long gapSince;
+    private boolean gapCheckScheduled;
+
+    // the identifier of the next direct message sent by the session
+    private final AtomicLong nextDirectId;
+
+    // futures of direct messages waiting for the server's ack, by identifier
+    private final Map<Long, CompletableFuture<DirectAck.Status>> pendingDirects;
+
+    // the files being sent and received by the session, by transfer identifier
+    private final Map<String, OutgoingFile> outgoingFiles;
+    private final Map<String, IncomingFile> incomingFiles;
+
+    // the last write submitted to the I/O threads (writes of a session are
+    // chained, so they reach the server in the order they were submitted);
+    // guarded by 'this'
+    private CompletableFuture<Void> lastWrite;
+
+    /***************************************************************************
+     * Constructor: creates a new session, which is not connected yet.
+     *
+     * @param serverName the name identifying the server.
+     * @param port the port the server listens on.
+     * @param listener the listener to notify about incoming messages.
+     */
+    public ChatClient(String serverName, int port, Listener listener)
+    {
+        this(serverName, port, false, listener);
+    }
+
+    /***************************************************************************
+     * Constructor: creates a new session, which is not connected yet.
+     *
+     * @param serverName the name identifying the server.
+     * @param port the port the server listens on.
+     * @param secure a boolean stating whether to connect over TLS.
+     * @param listener the listener to notify about incoming messages.
+     */
+    public ChatClient(String serverName, int port, boolean secure, Listener listener)
+    {
+        this.serverName = serverName;
+        this.port = port;
+        this.secure = secure;
+        this.listener = listener;
+        this.socket = new Socket();
+        this.username = null;
+        this.compressionEnabled = false;
+        this.closed = false;
+        this.leaving = false;
+        this.sequenceEnabled = false;
+        this.presenceEnabled = false;
+        this.resumeToken = null;
+        this.presence = this.sentPresence = PresenceState.ACTIVE;
+        this.presenceSentTime = 0;
+        this.presenceScheduled = false;
+        this.lastSeq = 0;
+        this.lastAckedSeq = 0;
+        this.aheadSeqs = new TreeSet<>();
+        this.gapSince = 0;
+        this.gapCheckScheduled = false;
+        this.nextDirectId = new AtomicLong();
+        this.pendingDirects = new ConcurrentHashMap<>();
+        this.outgoingFiles = new ConcurrentHashMap<>();
+        this.incomingFiles = new ConcurrentHashMap<>();
+        this.lastWrite = CompletableFuture.completedFuture(null);
+    }
+
+    /***************************************************************************
+     * Constructor: creates a new session with a server listening on the
+     * default port (ChatRoomServer.PORT), which is not connected yet.
+     *
+     * @param serverName the name identifying the server.
+     * @param listener the listener to notify about incoming messages.
+     */
+    public ChatClient(String serverName, Listener listener)
+    {
+        this(serverName, ChatRoomServer.PORT, listener);
+    }
+
+    /***************************************************************************
+     * Constructor: creates a new session with the same server as a previous
+     * session (e.g. for resuming it), which is not connected yet.
+     *
+     * @param previous the previous session.
+     * @param listener the listener to notify about incoming messages.
+     */
+    public ChatClient(ChatClient previous, Listener listener)
+    {
+        this(previous.serverName, previous.port, previous.secure, listener);
+    }
+
+    /***************************************************************************
+     * Connects to the server and opens I/O streams on the connection.
+     *
+     * @return a future completed when connected, or completed exceptionally
+     * with an UnknownHostException if the server's IP could not be found, or
+     * another IOException if connecting failed (e.g. an SSLHandshakeException
+     * if the server's certificate is not trusted).
+     */
+    public CompletableFuture<Void> connect()
+    {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        IO_THREADS.execute(() -> {
+            try {
+                // try connecting the socket to the server
+                InetAddress serverAddress = InetAddress.getByName(serverName);
+                socket.connect(new InetSocketAddress(serverAddress, port));
+
+                // over TLS - layer a TLS socket on it, and handshake (the
+                // server's name and port identify the TLS session to resume,
+                // and the name must match the server's certificate)
+                Socket transport = socket;
+                if (secure) {
+                    SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory)
+                            SSLSocketFactory.getDefault()).createSocket(
+                                    socket, serverName, port, true);
+                    SSLParameters parameters = sslSocket.getSSLParameters();
+                    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    sslSocket.setSSLParameters(parameters);
+                    sslSocket.startHandshake();
+                    transport = sslSocket;
+                }
+
+                // open input/output streams on it to transfer messages
+                outStream = new ObjectOutputStream(transport.getOutputStream());
+                outStream.flush();
+                inStream = new ObjectInputStream(transport.getInputStream());
+                result.complete(null);
+            }
+            catch (IOException e) {
+                close();
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /***************************************************************************
+     * Asks the server to join its chat-room (the session must be connected).
+     * If the request is confirmed, the session starts listening for incoming
+     * messages.
+     *
+     * @param newUsername the username to join with.
+     * @return a future completed with a list of the usernames of all clients
+     * participating in the chat-room if the request was confirmed, or with
+     * null if it was denied due to the username being occupied (in which case
+     * the session is closed); it is completed exceptionally with an
+     * IOException if communicating with the server failed (in which case the
+     * session is closed as well).
+     */
+    public CompletableFuture<List<String>> join(String newUsername)
+    {
+        return join(newUsername, null, 0);
+    }
+
+    /***************************************************************************
+     * Asks the server to let this session resume a previous one, which was
+     * disconnected when the server shut down (this session must be connected).
+     * A server that restarted with a snapshot of its chat-room lets the session
+     * back in without announcing it as a newly joined user; otherwise - it is
+     * joined anew, under the previous session's username.
+     *
+     * @param previous the previous session.
+     * @return a future completed like the one returned by 'join' (the listener
+     * is told about the room messages sent while the session was away, which
+     * can't be sent again).
+     */
+    public CompletableFuture<List<String>> resume(ChatClient previous)
+    {
+        return join(previous.username, previous.resumeToken, previous.lastSeq);
+    }
+
+    /***************************************************************************
+     * Asks the server to join its chat-room (see 'join' and 'resume').
+     *
+     * @param newUsername the username to join with.
+     * @param token the token of the resumed session (null if joining anew).
+     * @param knownSeq the sequence number of the last room message the resumed
+     * session got (0 if joining anew).
+     * @return a future completed as described in 'join'.
+     */
+    private CompletableFuture<List<String>> join(String newUsername,
+            String token, long knownSeq)
+    {
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        IO_THREADS.execute(() -> {
+            try {
+                List<String> usernames = tryJoiningAs(newUsername, token);
+                if (usernames == null) {
+                    close();
+                }
+                else {
+                    username = newUsername;
+                    listener.joined(usernames);
+                    if (knownSeq > 0 && lastSeq > knownSeq)
+                        listener.messagesMissed(lastSeq - knownSeq);
+                    IO_THREADS.execute(() -> { listenToMsgs(); });
+                }
+                result.complete(usernames);
+            }
+            catch (IOException e) {
+                close();
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /***************************************************************************
+     * Sends a text message to the chat-room (the session must have joined it).
+     * Large texts are compressed if compression was negotiated.
+     *
+     * @param text the text to send.
+     * @return a future completed when the message was written, or completed
+     * exceptionally with an IOException if writing failed.
+     */
+    public CompletableFuture<Void> sendText(String text)
+    {
+        CompressedText compressed =
+                compressionEnabled ? CompressedText.compress(text) : null;
+        return write(new Message(Message.Type.TEXT, username,
+                compressed != null ? compressed : text));
+    }
+
+    /***************************************************************************
+     * Sends a text message directly to a single user in the chat-room (the
+     * session must have joined it). Large texts are compressed if compression
+     * was negotiated.
+     *
+     * @param recipient the username of the recipient.
+     * @param text the text to send.
+     * @return a future completed with the status of the server's first ack of
+     * the message (later acks are reported to the listener), or completed
+     * exceptionally with an IOException if writing failed or the session got
+     * disconnected before the ack arrived.
+     */
+    public CompletableFuture<DirectAck.Status> sendDirect(String recipient, String text)
+    {
+        CompressedText compressed =
+                compressionEnabled ? CompressedText.compress(text) : null;
+        long id = nextDirectId.getAndIncrement();
+        CompletableFuture<DirectAck.Status> result = new CompletableFuture<>();
+        pendingDirects.put(id, result);
+
+        // if writing fails, the ack will never arrive
+        write(new Message(Message.Type.DIRECT, username, new DirectText(recipient,
+                id, compressed != null ? compressed : text)))
+                .whenComplete((r, e) -> {
+                    if (e != null && pendingDirects.remove(id) != null)
+                        result.completeExceptionally(e);
+                });
+        return result;
+    }
+
+    /***************************************************************************
+     * Sets the user's presence state, and tells the server about it - right
+     * away, or once PRESENCE_INTERVAL has passed since the last time (whichever
+     * state is set by then is sent). Does nothing if presence messages weren't
+     * negotiated with the server.
+     *
+     * @param state the user's new presence state.
+     */
+    public synchronized void setPresence(PresenceState state)
+    {
+        if (!presenceEnabled) return;
+        presence = state;
+        if (presenceScheduled) return; // (it will send the new state)
+        long wait = presenceSentTime + PRESENCE_INTERVAL - System.currentTimeMillis();
+        if (wait <= 0) {
+            sendPresence();
+        }
+        else {
+            presenceScheduled = true;
+            TIMER.schedule(() -> { sendPresence(); }, wait, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /***************************************************************************
+     * Offers a file to a single user in the chat-room (the session must have
+     * joined it), and sends it if the user accepts. Offering a file which was
+     * partially sent to the same user before resumes the transfer (as long as
+     * the file wasn't modified meanwhile).
+     *
+     * @param recipient the username of the recipient.
+     * @param path the path of the file.
+     * @return a future completed with true once the recipient stored the whole
+     * file, or with false if the recipient declined it; it is completed
+     * exceptionally with an IOException if the file couldn't be read, the
+     * transfer was cancelled, or the session got disconnected.
+     */
+    public CompletableFuture<Boolean> sendFile(String recipient, Path path)
+    {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        IO_THREADS.execute(() -> {
+            try {
+                // the transfer's identifier depends on the recipient and on the
+                // file's identity, so offering the same file again resumes it
+                long size = Files.size(path);
+                String key = recipient + '\0' + path.toAbsolutePath() + '\0' + size
+                        + '\0' + Files.getLastModifiedTime(path).toMillis();
+                String transferId = UUID.nameUUIDFromBytes(
+                        key.getBytes(StandardCharsets.UTF_8)).toString();
+
+                FileOffer offer = new FileOffer(recipient, transferId,
+                        path.getFileName().toString(), size);
+                OutgoingFile outgoing = new OutgoingFile(offer,
+                        FileChannel.open(path, StandardOpenOption.READ), result);
+                if (outgoingFiles.putIfAbsent(transferId, outgoing) != null) {
+                    outgoing.channel.close();
+                    throw new IOException("The file is already being sent.");
+                }
+                write(new Message(Message.Type.FILE_OFFER, username, offer))
+                        .whenComplete((r, e) -> {
+                            if (e != null) endOutgoing(outgoing, null, e);
+                        });
+            }
+            catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /***************************************************************************
+     * Accepts a file offered to this session, and receives it. If a part of
+     * the file was received before, only the rest of it is requested.
+     *
+     * @param sender the name of the offering user.
+     * @param offer the offer (as reported to the listener).
+     * @param target the path to store the file at, once it's fully received
+     * (an existing file is replaced).
+     * @return a future completed with 'target' once the whole file is stored
+     * there, or completed exceptionally with an IOException if storing it
+     * failed, the transfer was cancelled, or the session got disconnected (in
+     * which cases the part received so far is kept for resuming).
+     */
+    public CompletableFuture<Path> acceptFile(String sender, FileOffer offer, Path target)
+    {
+        CompletableFuture<Path> result = new CompletableFuture<>();
+        IO_THREADS.execute(() -> {
+            try {
+                // the identifier names the partial file, so it must be a UUID
+                // (and not a path of the sender's choosing)
+                String transferId =
+                        UUID.fromString(offer.getTransferId()).toString();
+                Files.createDirectories(PARTIAL_DIR);
+                Path part = PARTIAL_DIR.resolve(transferId + ".part");
+                FileChannel channel = FileChannel.open(part,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                IncomingFile incoming = new IncomingFile(sender, offer, part,
+                        target, channel, result);
+                if (incomingFiles.putIfAbsent(offer.getTransferId(), incoming) != null) {
+                    channel.close();
+                    throw new IOException("The file is already being received.");
+                }
+
+                // resume from whatever was stored before
+                synchronized (incoming) {
+                    incoming.stored = Math.min(channel.size(), offer.getSize());
+                    channel.truncate(incoming.stored);
+                    write(new Message(Message.Type.FILE_ACK, username, new FileAck(
+                            sender, offer.getTransferId(), incoming.stored)));
+                    if (incoming.stored == offer.getSize())
+                        endIncoming(incoming, null);
+                }
+            }
+            catch (IOException | IllegalArgumentException e) {
+                // the sender shouldn't wait for a file we can't store
+                declineFile(sender, offer);
+                result.completeExceptionally(e instanceof IOException ? e :
+                        new IOException("Invalid transfer identifier.", e));
+            }
+        });
+        return result;
+    }
+
+    /***************************************************************************
+     * Declines a file offered to this session.
+     *
+     * @param sender the name of the offering user.
+     * @param offer the offer (as reported to the listener).
+     * @return a future completed when the sender was told, or completed
+     * exceptionally with an IOException if telling it failed.
+     */
+    public CompletableFuture<Void> declineFile(String sender, FileOffer offer)
+    {
+        return write(new Message(Message.Type.FILE_ACK, username, new FileAck(
+                sender, offer.getTransferId(), FileAck.DECLINED)));
+    }
+
+    /***************************************************************************
+     * Leaves the chat-room (the session must have joined it), and closes the
+     * session.
+     *
+     * @return a future completed when the server was told about leaving, or
+     * completed exceptionally with an IOException if telling it failed (the
+     * session remains open in such case).
+     */
+    public CompletableFuture<Void> leave()
+    {
+        leaving = true;
+        return write(new Message(Message.Type.LEAVE, username))
+                .whenComplete((r, e) -> {
+                    if (e == null) close();
+                    else leaving = false; });
+    }
+
+    /***************************************************************************
+     * Closes the session (and its networking resources) without telling the
+     * server. Does nothing if it is already closed.
+     */
+    public void close()
+    {
+        closed = true;
+        try {
+            // closing the socket closes its streams as well
+            socket.close();
+        }
+        catch (IOException e) {
+            // there's nothing more we can do to release the socket
+        }
+        failPendingDirects();
+        IOException closedError = new IOException("Session closed.");
+        for (OutgoingFile outgoing : outgoingFiles.values())
+            endOutgoing(outgoing, null, closedError);
+        for (IncomingFile incoming : incomingFiles.values())
+            endIncoming(incoming, closedError);
+    }
+
+    /***************************************************************************
+     * Gets the username the session joined the chat-room with.
+     *
+     * @return the username, or null if the session hasn't joined yet.
+     */
+    public String getUsername()
+    {
+        return username;
+    }
+
+    /***************************************************************************
+     * Gets the sequence number of the last room message the session got (with
+     * no gaps before it).
+     *
+     * @return the sequence number.
+     */
+    public long getLastSeq()
+    {
+        return lastSeq;
+    }
+
+    /***************************************************************************
+     * Gets the address of the server the session is connected to.
+     *
+     * @return the server's address, or null if not connected.
+     */
+    public InetAddress getServerAddress()
+    {
+        return socket.getInetAddress();
+    }
+
+    /***************************************************************************
+     * Submits a message to be written to the server, after all messages
+     * submitted before it.
+     *
+     * @param msg the message to write.
+     * @return a future completed when the message was written, or completed
+     * exceptionally with an IOException if writing failed.
+     */
+    private synchronized CompletableFuture<Void> write(Message msg)
+    {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        // chain the write after the previous one, whether it failed or not
+        lastWrite = lastWrite.handleAsync((r, e) -> {
+            try {
+                outStream.writeObject(msg);
+                outStream.flush();
+                // (file chunks are big, so they are never kept in the
+                // stream's table of written objects)
+                if (msg.getType() == Message.Type.FILE_CHUNK) outStream.reset();
+                result.complete(null);
+            }
+            catch (IOException ex) {
+                result.completeExceptionally(ex);
+            }
+            return null;
+        }, IO_THREADS);
+        return result;
+    }
+
+    /***************************************************************************
+     * Sends a join request and waits for the server's response (assumes the
+     * session is already connected to a server).
+     *
+     * @param newUsername the username we wish to join with.
+     * @param token the token of the resumed session (null if joining anew).
+     * @return Null if the request was denied due to the username being occupied,
+     * or a list of the usernames of all clients participating in the chat if
+     * the request was confirmed and we entered the chat-room.
+     * @throws IOException if an error occured in the connection between the
+     * client and the server.
+     */
+    @SuppressWarnings({"unchecked"}) // (for unchecked cast of generic type -
+                                     // which isn't present in older java versions)
+    private List<String> tryJoiningAs(String newUsername, String token)
+            throws IOException
+    {
+        // send a joining request message, with the new username, the features
+        // the client supports, and the token of the resumed session (if any)
+        outStream.writeObject(new Message(Message.Type.JOIN, newUsername,
+                new JoinRequest(EnumSet.of(JoinRequest.Feature.COMPRESSION,
+                        JoinRequest.Feature.SEQUENCE, JoinRequest.Feature.PRESENCE),
+                        token)));
+        outStream.flush();
+
+        try {
+            // collect the server's response
+            Message response = (Message) inStream.readObject();
+
+            if (response.getType() == Message.Type.CONFIRM_JOIN) {
+                // if the server confirmed and we've joined the room - record the
+                // enabled features and return the users list attached to the
+                // confirmation message (older servers attach the bare list)
+                if (response.getData() instanceof JoinConfirmation) {
+                    JoinConfirmation confirmation =
+                            (JoinConfirmation) response.getData();
+                    compressionEnabled = confirmation.isEnabled(
+                            JoinRequest.Feature.COMPRESSION);
+                    sequenceEnabled = confirmation.isEnabled(
+                            JoinRequest.Feature.SEQUENCE);
+                    presenceEnabled = confirmation.isEnabled(
+                            JoinRequest.Feature.PRESENCE);
+                    lastSeq = lastAckedSeq = confirmation.getLastSeq();
+                    resumeToken = confirmation.getResumeToken();
+                    return confirmation.getUsernames();
+                }
+                compressionEnabled = false;
+                return (List<String>) response.getData();
+            }
+            else if (response.getType() == Message.Type.REJECT) {
+                // the server is overloaded, and rejected the connection right
+                // away (attaching the reason)
+                throw new JoinRejectedException((String) response.getData());
+            }
+            else if (response.getType() != Message.Type.DENY_JOIN) {
+                // in case the message type is not a join response at all -
+                // something went wrong with the server
+                throw new IOException(
+                    "Got a message of unexpected type from server.");
+            }
+            else {
+                // if we reached here - the server denied the request, which can
+                // only mean that the username is already in use
+                return null;
+            }
+        }
+        catch (ClassNotFoundException | ClassCastException e) {
+            // this will happen if the server didn't send a Message object, or
+            // attached unexpected data to its confirmation; we relate to this
+            // as a communication error
+            throw new IOException("Got a cofirmation message with unexpected "
+                    + "data type from server.", e);
+        }
+    }
+
+    /***************************************************************************
+     * Processes a message read from the server, and notifies the listener.
+     * If the message is of type CONFIRM_JOIN or DENY_JOIN - does nothing.
+     *
+     * @param message the collected message
+     */
+    private void processMessage(Message message)
+    {
+        // drop a room message we already got
+        if (message.getSeq() > 0 && !admitSeq(message.getSeq())) return;
+
+        // collect the sender
+        String sendingUser = message.getUsername();
+
+        // act according to the message type
+        switch (message.getType()) {
+            case TEXT:
+                listener.textReceived(sendingUser, decodeText(message.getData()));
+                break;
+            case JOIN:
+                listener.userJoined(sendingUser);
+                break;
+            case LEAVE:
+                listener.userLeft(sendingUser);
+                break;
+            case DIRECT:
+                DirectText direct = (DirectText) message.getData();
+                listener.directReceived(sendingUser, decodeText(direct.getText()));
+                break;
+            case DIRECT_ACK:
+                // complete the sender's future, or report a later ack
+                DirectAck ack = (DirectAck) message.getData();
+                CompletableFuture<DirectAck.Status> pending =
+                        pendingDirects.remove(ack.getId());
+                if (pending != null)
+                    pending.complete(ack.getStatus());
+                else
+                    listener.directAcknowledged(ack);
+                break;
+            case FILE_OFFER:
+                listener.fileOffered(sendingUser, (FileOffer) message.getData());
+                break;
+            case FILE_CHUNK:
+                processFileChunk(sendingUser, (FileChunk) message.getData());
+                break;
+            case FILE_ACK:
+                processFileAck(sendingUser, (FileAck) message.getData());
+                break;
+            case RESEND:
+                skipMissedSeqs((Long) message.getData());
+                break;
+            case PRESENCE:
+                listener.presenceChanged(
+                        castPresenceChanges(message.getData()));
+                break;
+            case SHUTDOWN:
+                listener.serverShuttingDown((Long) message.getData());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /***************************************************************************
+     * Decodes the text carried by a text or direct message.
+     *
+     * @param data the text: a String or a CompressedText.
+     * @return the text, inflated if it was compressed.
+     */
+    private static String decodeText(Object data)
+    {
+        if (data instanceof CompressedText) {
+            try {
+                return ((CompressedText) data).inflate();
+            }
+            catch (IOException e) {
+                return CORRUPTED_TEXT_MSG;
+            }
+        }
+        return data.toString();
+    }
+
+    /***************************************************************************
+     * Sends the presence state last set, if it differs from the one last sent.
+     */
+    private synchronized void sendPresence()
+    {
+        presenceScheduled = false;
+        if (closed || presence == sentPresence) return;
+        write(new Message(Message.Type.PRESENCE, username, presence));
+        sentPresence = presence;
+        presenceSentTime = System.currentTimeMillis();
+    }
+
+    /***************************************************************************
+     * Casts the data of a presence message from the server.
+     *
+     * @param data the data: a HashMap from usernames to PresenceStates.
+     * @return the data, as a map.
+     */
+    @SuppressWarnings({"unchecked"}) // (for unchecked cast of generic type)
+    private static Map<String, PresenceState> castPresenceChanges(Object data)
+    {
+        return (HashMap<String, PresenceState>) data;
+    }
+
+    /***************************************************************************
+     * Records the sequence number of a room message, acks the room messages
+     * got so far once every ACK_INTERVAL of them, and asks the server to send
+     * again the room messages of a gap that lasted too long.
+     *
+     * @param seq the sequence number of the room message.
+     * @return A boolean stating whether the message is new (rather than a
+     * duplicate of a message already got).
+     */
+    private boolean admitSeq(long seq)
+    {
+        synchronized (aheadSeqs) {
+            if (seq <= lastSeq || !aheadSeqs.add(seq)) return false;
+            advanceSeq();
+
+            // (a gap is asked about by the timer, so a gap at the end of a
+            // burst is asked about even if no room message follows it)
+            if (aheadSeqs.isEmpty()) {
+                gapSince = 0;
+            }
+            else if (gapSince == 0) {
+                gapSince = System.currentTimeMillis();
+                if (!gapCheckScheduled) {
+                    gapCheckScheduled = true;
+                    TIMER.schedule(() -> { checkGap(); }, GAP_TIMEOUT,
+                            TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        if (sequenceEnabled && lastSeq - lastAckedSeq >= ACK_INTERVAL) {
+            write(new Message(Message.Type.ACK, username, lastSeq));
+            lastAckedSeq = lastSeq;
+        }
+        return true;
+    }
+
+    /***************************************************************************
+     * Processes the server's answer to a resend request: the room messages
+     * before the first one it sends again, which weren't got, are skipped.
+     *
+     * @param first the sequence number of the first room message the server
+     * sends again.
+     */
+    private void skipMissedSeqs(long first)
+    {
+        long missed;
+        synchronized (aheadSeqs) {
+            if (first <= lastSeq + 1) return;
+            missed = first - lastSeq - 1
+                    - aheadSeqs.headSet(first).size(); // (the ones got are not missed)
+            aheadSeqs.headSet(first).clear();
+            lastSeq = first - 1;
+            advanceSeq();
+            if (aheadSeqs.isEmpty()) gapSince = 0;
+        }
+        listener.messagesMissed(missed);
+    }
+
+    /***************************************************************************
+     * Asks the server to send again the room messages of a gap that lasted
+     * GAP_TIMEOUT since it was noticed or last asked about, and checks it
+     * again later while it lasts (runs on the timer).
+     */
+    private void checkGap()
+    {
+        synchronized (aheadSeqs) {
+            gapCheckScheduled = false;
+            if (closed || leaving || gapSince == 0) return;
+            long wait = gapSince + GAP_TIMEOUT - System.currentTimeMillis();
+            if (wait <= 0) {
+                write(new Message(Message.Type.RESEND, username, lastSeq));
+                gapSince = System.currentTimeMillis();
+                wait = GAP_TIMEOUT;
+            }
+            gapCheckScheduled = true;
+            TIMER.schedule(() -> { checkGap(); }, wait, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /***************************************************************************
+     * Advances the sequence number of the last room message got over the room
+     * messages got after it with no gaps. Must be called holding the lock of
+     * 'aheadSeqs'.
+     */
+    private void advanceSeq()
+    {
+        while (aheadSeqs.remove(lastSeq + 1)) lastSeq++;
+    }
+
+    /***************************************************************************
+     * Processes an ack of a file transfer: answers to this session's offers
+     * and credit for its transfers, or cancellations of files it receives.
+     *
+     * @param sendingUser the user the ack came from (or on behalf of).
+     * @param ack the ack.
+     */
+    private void processFileAck(String sendingUser, FileAck ack)
+    {
+        OutgoingFile outgoing = outgoingFiles.get(ack.getTransferId());
+        if (outgoing != null && outgoing.offer.getRecipient().equals(sendingUser)) {
+            long size = outgoing.offer.getSize();
+            if (ack.getOffset() == FileAck.DECLINED)
+                endOutgoing(outgoing, false, null);
+            else if (ack.getOffset() < 0 || ack.getOffset() > size)
+                endOutgoing(outgoing, null, new IOException("Transfer cancelled."));
+            else if (ack.getOffset() == size)
+                endOutgoing(outgoing, true, null);
+            else {
+                synchronized (outgoing) {
+                    // the first ack tells where to start from
+                    if (outgoing.acked < 0) outgoing.sent = ack.getOffset();
+                    outgoing.acked = Math.max(outgoing.acked, ack.getOffset());
+                }
+                sendChunks(outgoing);
+            }
+            return;
+        }
+
+        // otherwise - it may be the sender of a file we receive giving up
+        IncomingFile incoming = incomingFiles.get(ack.getTransferId());
+        if (incoming != null && incoming.sender.equals(sendingUser)
+                && ack.getOffset() == FileAck.CANCELLED)
+            endIncoming(incoming, new IOException("Transfer cancelled."));
+    }
+
+    /***************************************************************************
+     * Sends the chunks of an outgoing file that its window allows.
+     *
+     * @param outgoing the outgoing file.
+     */
+    private void sendChunks(OutgoingFile outgoing)
+    {
+        long size = outgoing.offer.getSize();
+        try {
+            synchronized (outgoing) {
+                while (outgoing.sent < size
+                        && outgoing.sent - outgoing.acked < FileAck.WINDOW) {
+                    // read the next chunk
+                    ByteBuffer buffer = ByteBuffer.allocate(
+                            (int) Math.min(FileChunk.SIZE, size - outgoing.sent));
+                    while (buffer.hasRemaining())
+                        if (outgoing.channel.read(buffer,
+                                outgoing.sent + buffer.position()) < 0)
+                            throw new IOException("The file was truncated.");
+
+                    // and send it
+                    write(new Message(Message.Type.FILE_CHUNK, username,
+                            new FileChunk(outgoing.offer.getRecipient(),
+                                    outgoing.offer.getTransferId(), outgoing.sent,
+                                    buffer.array()))).whenComplete((r, e) -> {
+                                        if (e != null) endOutgoing(outgoing, null, e);
+                                    });
+                    outgoing.sent += buffer.capacity();
+                }
+            }
+        }
+        catch (IOException e) {
+            // tell the recipient we give up
+            write(new Message(Message.Type.FILE_ACK, username, new FileAck(
+                    outgoing.offer.getRecipient(), outgoing.offer.getTransferId(),
+                    FileAck.CANCELLED)));
+            endOutgoing(outgoing, null, e);
+        }
+    }
+
+    /***************************************************************************
+     * Ends an outgoing file transfer: closes the file and completes the
+     * transfer's future. Does nothing if the transfer already ended.
+     *
+     * @param outgoing the outgoing file.
+     * @param delivered the value to complete the future with (if 'error' is
+     * null).
+     * @param error the exception to complete the future with, or null.
+     */
+    private void endOutgoing(OutgoingFile outgoing, Boolean delivered, Throwable error)
+    {
+        if (!outgoingFiles.remove(outgoing.offer.getTransferId(), outgoing)) return;
+        try {
+            outgoing.channel.close();
+        }
+        catch (IOException e) {
+            // the file was only read, so nothing is lost
+        }
+        if (error != null)
+            outgoing.result.completeExceptionally(error);
+        else
+            outgoing.result.complete(delivered);
+    }
+
+    /***************************************************************************
+     * Processes a chunk of a file this session receives: stores it, and acks
+     * it.
+     *
+     * @param sendingUser the user the chunk came from.
+     * @param chunk the chunk.
+     */
+    private void processFileChunk(String sendingUser, FileChunk chunk)
+    {
+        IncomingFile incoming = incomingFiles.get(chunk.getTransferId());
+        if (incoming == null || !incoming.sender.equals(sendingUser)) return;
+        try {
+            synchronized (incoming) {
+                // a chunk from before the transfer was resumed is ignored
+                if (chunk.getOffset() != incoming.stored) return;
+                if (incoming.stored + chunk.getBytes().length > incoming.offer.getSize())
+                    throw new IOException("The file is larger than offered.");
+                ByteBuffer buffer = ByteBuffer.wrap(chunk.getBytes());
+                while (buffer.hasRemaining())
+                    incoming.channel.write(buffer, incoming.stored + buffer.position());
+                incoming.stored += chunk.getBytes().length;
+
+                write(new Message(Message.Type.FILE_ACK, username, new FileAck(
+                        sendingUser, chunk.getTransferId(), incoming.stored)));
+                if (incoming.stored == incoming.offer.getSize())
+                    endIncoming(incoming, null);
+            }
+        }
+        catch (IOException e) {
+            // tell the sender we give up
+            write(new Message(Message.Type.FILE_ACK, username, new FileAck(
+                    sendingUser, chunk.getTransferId(), FileAck.CANCELLED)));
+            endIncoming(incoming, e);
+        }
+    }
+
+    /***************************************************************************
+     * Ends an incoming file transfer: closes the partial file, moves it to its
+     * target if the whole file was received, and completes the transfer's
+     * future. Does nothing if the transfer already ended.
+     *
+     * @param incoming the incoming file.
+     * @param error the exception to complete the future with, or null if the
+     * whole file was received.
+     */
+    private void endIncoming(IncomingFile incoming, Throwable error)
+    {
+        if (!incomingFiles.remove(incoming.offer.getTransferId(), incoming)) return;
+        try {
+            incoming.channel.close();
+            if (error == null) {
+                Files.move(incoming.part, incoming.target,
+                        StandardCopyOption.REPLACE_EXISTING);
+                incoming.result.complete(incoming.target);
+                return;
+            }
+        }
+        catch (IOException e) {
+            if (error == null) error = e;
+        }
+        incoming.result.completeExceptionally(error);
+    }
+
+    /***************************************************************************
+     * Completes the futures of all direct messages waiting for an ack
+     * exceptionally, since the acks will never arrive.
+     */
+    private void failPendingDirects()
+    {
+        for (Long id : pendingDirects.keySet()) {
+            CompletableFuture<DirectAck.Status> pending = pendingDirects.remove(id);
+            if (pending != null)
+                pending.completeExceptionally(
+                        new IOException("Session closed before the server acked."));
+        }
+    }
+
+    /***************************************************************************
+     * Continuously waits for messages from the server, and processes them.
+     * This is the main method of the session's reading task.
+     */
+    private void listenToMsgs()
+    {
+        try {
+            // keep reading until an exception interrupts us
+            while (true) {
+                Message message = (Message) inStream.readObject();
+                processMessage(message);
+            }
+        }
+        catch (IOException | ClassNotFoundException | ClassCastException e) {
+            // if the session was closed on purpose, this is how reading ends;
+            // otherwise - close the session and tell the listener why
+            if (!closed && !leaving) {
+                close();
+                listener.disconnected(e);
+            }
+        }
+    }
+
+    /***************************************************************************
+     * This class represents a file being sent by the session.
+     */
+    private static class OutgoingFile
+    {
+        // the offer of the file
+        final FileOffer offer;
+
+        // the file, opened for reading
+        final FileChannel channel;
+
+        // the future of the transfer
+        final CompletableFuture<Boolean> result;
+
+        // the offset of the next chunk to send, and the number of bytes the
+        // recipient acked (-1 until it accepts); guarded by the object
+        long sent = 0;
+        long acked = -1;
+
+        OutgoingFile(FileOffer offer, FileChannel channel,
+                CompletableFuture<Boolean> result)
+        {
+            this.offer = offer;
+            this.channel = channel;
+            this.result = result;
+        }
+    }
+
+    /***************************************************************************
+     * This class represents a file being received by the session.
+     */
+    private static class IncomingFile
+    {
+        // the name of the sending user, and its offer of the file
+        final String sender;
+        final FileOffer offer;
+
+        // the path of the partial file, and the path to store the file at once
+        // it's fully received
+        final Path part;
+        final Path target;
+
+        // the partial file, opened for writing
+        final FileChannel channel;
+
+        // the future of the transfer
+        final CompletableFuture<Path> result;
+
+        // the number of bytes stored so far; guarded by the object
+        long stored = 0;
+
+        IncomingFile(String sender, FileOffer offer, Path part, Path target,
+                FileChannel channel, CompletableFuture<Path> result)
+        {
+            this.sender = sender;
+            this.offer = offer;
+            this.part = part;
+            this.target = target;
+            this.channel = channel;
+            this.result = result;
+        }
+    }
+}
@@ -3,9 +3,32 @@ package chatRoomProject;
 import java.net.Socket;
 import java.net.ServerSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -15,9 +38,14 @@ import java.io.ObjectOutputStream;
  * The Chat-Room App is a client-server application that enables users to join
  * a public chat-room hosted on a remote server, and interact with it using an
  * easy-to-understand graphical user interface.
- * The classe's static main method creates and fires such a server.
+ * The classe's static main method creates and fires such a server, configured
+ * by its command-line arguments (see ServerConfig).
  * The server notifies the server manager about its acitivity to the standard
  * output.
+ * If configured to, the server periodically writes a snapshot of the
+ * chat-room's membership (see RoomSnapshot), so after a restart the members
+ * can resume their sessions without joining anew. When shutting down, it
+ * tells each client when to come back.
  * 
  * @author Nadav Kahlon
  */
@@ -27,10 +55,81 @@ public class ChatRoomServer
      * Constants used by the program
      */
     
-    // the port on which servers listen for clients (this constant is public so
-    // clients can read it and know to which port they should connect)
+    // the default port on which servers listen for clients (this constant is
+    // public so clients can read it and know to which port they should connect)
     public static final int PORT = 8888;
     
+    // the time (in milliseconds) a newly accepted client has for sending its
+    // join message, before the server gives up on it
+    private static final int HANDSHAKE_TIMEOUT = 10000;
+    
+    // the time (in milliseconds) a rejected connection is kept open after the
+    // rejection is written, so the client gets to read it before the
+    // connection is reset
+    private static final int REJECT_LINGER = 1000;
+    
+    // the reasons given to clients whose connections are rejected since too
+    // many handshakes are pending, since the server has too many sessions, or
+    // since there are too many connections from their address (respectively)
+    private static final String BUSY_REASON =
+            "The server is busy - try again in a few seconds.";
+    private static final String FULL_REASON = "The chat-room is full.";
+    private static final String PER_IP_REASON =
+            "Too many connections from your address.";
+    
+    // format for the server's metrics, displayed periodically on the standard
+    // output (the first "%s" is where the metrics are, and the "%d"s are where
+    // the numbers of sessions and of pending handshakes are)
+    private static final String METRICS_MSG =
+            "Metrics: %s, sessions=%d, handshaking=%d.";
+    
+    // the time (in milliseconds) the server waits while shutting down, so the
+    // sessions get to write the shutdown notices
+    private static final int SHUTDOWN_GRACE = 500;
+    
+    // format for a message displayed on the standard output when a snapshot
+    // was loaded (the "%d"s are where the numbers of members and of the last
+    // room message are)
+    private static final String SNAPSHOT_LOADED_MSG =
+            "Loaded a snapshot of %d member(s) (last room message: %d).";
+    
+    // format for a message displayed on the standard output when reading or
+    // writing the snapshot failed (the "%s" is where the error is)
+    private static final String SNAPSHOT_READ_FAILED_MSG =
+            "Reading the snapshot failed (%s) - starting an empty chat-room.";
+    private static final String SNAPSHOT_WRITE_FAILED_MSG =
+            "Writing the snapshot failed (%s).";
+    
+    // format for a message displayed on the standard output when recording
+    // the traffic failed, and capturing stopped (the "%s" is where the error is)
+    private static final String CAPTURE_FAILED_MSG =
+            "Capturing the traffic failed (%s) - the capture is stopped.";
+    
+    // format for a message displayed on the standard output when the server
+    // shuts down (the "%d" is where the number of notified clients is)
+    private static final String SHUTDOWN_MSG =
+            "Shutting down - telling %d client(s) to come back later.";
+    
+    // the number of TLS sessions the server keeps for resumption, and the time
+    // (in seconds) it keeps them (a client resuming a session skips most of
+    // the TLS handshake)
+    private static final int TLS_SESSION_CACHE_SIZE = 20000;
+    private static final int TLS_SESSION_TIMEOUT = 24 * 60 * 60;
+    
+    // the room messages acked by all clients are released from the room's
+    // history once every this many room messages
+    private static final int RELEASE_INTERVAL = 64;
+    
+    // the optional protocol features the server supports (see JoinRequest)
+    private static final EnumSet<JoinRequest.Feature> SUPPORTED_FEATURES =
+            EnumSet.of(JoinRequest.Feature.COMPRESSION, JoinRequest.Feature.SEQUENCE,
+                    JoinRequest.Feature.PRESENCE);
+    
+    // format for a message displayed on the standard output when accepting a
+    // connection failed (the "%s" is where the error is)
+    private static final String ACCEPT_FAILED_MSG =
+            "Accepting a connection failed (%s) - still accepting.";
+    
     // format for a message displayed on the standard output right after the
     // server accepted the first signal from a new client ("%s" is where the
     // client's InetAddress is)
@@ -51,6 +150,13 @@ public class ChatRoomServer
             "Client at %s tried to join with the already used username \"%s\" "
             + "- its request is denied.";
     
+    // format for a message displayed on the standard output when a client tries
+    // to join the chatroom without a username, or with an empty one ("%s" is
+    // where the client's InetAddress is)
+    private static final String USERNAME_INVALID_MSG =
+            "Client at %s tried to join without a username - its request is "
+            + "denied.";
+    
     // format for a message displayed on the standard output when the server fails
     // to open I/O streams on a client's socket ("%s" is where the client's
     // InetAddress is)
@@ -104,6 +210,18 @@ public class ChatRoomServer
             "Sending a message to client at %s under username \"%s\" failed, "
             + "disconnecting.";
     
+    // format for a message displayed on the standard output after a direct
+    // message was handled (the first "%s" is where the sender's username is,
+    // the second "%s" is the recipient's username, and the third is the status)
+    private static final String DIRECT_MSG =
+            "Direct message from user \"%s\" to user \"%s\": %s.";
+    
+    // format for a message displayed on the standard output when a file is
+    // offered (the first "%s" is where the sender's username is, the second
+    // "%s" is the recipient's username, and then come the file's name and size)
+    private static final String FILE_OFFER_MSG =
+            "User \"%s\" offers user \"%s\" the file \"%s\" (%d bytes).";
+    
     // format for a message displayed on the standard output after a client joining
     // the chat-room failed, but the server fails in closing its resources ("%s"
     // is where the client's InetAddress is)
@@ -112,41 +230,134 @@ public class ChatRoomServer
             + "client failed to join chat-room. Some resources may remain open "
             + "(and the server can't do enything about it).";
     
+    // a text relayed (instead of the original one) to clients that can't
+    // inflate compressed texts, when a compressed text turns out corrupted
+    private static final String CORRUPTED_TEXT_MSG =
+            "[a compressed message could not be decompressed]";
+    
     /***************************************************************************
      * Attributes of the server.
      */
     
-    // the server-socket associated with the server
-    private final ServerSocket serverSocket;
+    // the configuration of the server
+    private final ServerConfig config;
+    
+    // the TLS context the server-sockets are created by (null if the server
+    // accepts plain connections)
+    private final SSLContext sslContext;
     
-    // a thread listening for new clients wishing to connect to the server
-    private Thread acceptListener;
+    // the server-sockets associated with the server (a single one, or one per
+    // acceptor thread if the platform supports SO_REUSEPORT)
+    private final List<ServerSocket> serverSockets;
     
-    // a mapping between usernames and the socket associated with them
-    private final Map<String, Socket> socketMap;
+    // the threads listening for new clients wishing to connect to the server
+    private final List<Thread> acceptListeners;
     
-    // a mapping between usernames and the input/output streams associated with
-    // them
-    private final Map<String, ObjectInputStream> inStreamMap;
-    private final Map<String, ObjectOutputStream> outStreamMap;
+    // the I/O workers handshaking with newly accepted clients
+    private final ExecutorService ioWorkers;
     
-    // a mapping between usernames and the threads associated with them
-    // (listening for messages)
-    private final Map<String, Thread> threadMap;
+    // a lock held while checking a joining client's username and recording
+    // it, so that concurrent handshakes can't take the same username
+    private final Object joinLock;
+    
+    // a mapping between usernames and the sessions of the clients associated
+    // with them (it is accessed by the threads of all clients, so it is a
+    // concurrent map)
+    private final Map<String, ClientSession> sessions;
+    
+    // direct messages waiting for temporarily disconnected users
+    private final OfflineMessageStore offlineStore;
+    
+    // the recent room messages, kept for sending again (its lock is held while
+    // a room message is stamped and queued for all clients, so every client
+    // gets the room messages in the order of their sequence numbers)
+    private final RoomHistory history;
+    
+    // the users' presence states which are not ACTIVE
+    private final Map<String, PresenceState> presence;
+    
+    // the changes in the users' presence states since the last presence frame
+    // was broadcast (the last change of each user); guarded by itself
+    private final HashMap<String, PresenceState> presenceChanges;
+    
+    // the thread running the server's periodic tasks
+    private final ScheduledExecutorService timer;
+    
+    // the members from the snapshot who haven't resumed their sessions yet,
+    // mapped to their resume tokens (their usernames stay taken until they
+    // resume, or until the resume window ends)
+    private final Map<String, String> resumable;
+    
+    // a boolean stating whether the server is shutting down
+    private volatile boolean shuttingDown;
+    
+    // the capture the traffic from the clients is recorded into (null if not
+    // capturing, or if capturing failed)
+    private volatile TrafficCapture capture;
+    
+    // the counters the server keeps about its activity
+    private final ServerMetrics metrics;
+    
+    // the number of accepted connections still handshaking
+    private final AtomicInteger pendingHandshakes;
+    
+    // the number of connections (handshaking or in the chat-room) from each
+    // address
+    private final Map<InetAddress, Integer> connectionsPerIp;
+    
+    // the rejections written to rejected connections (serialized in advance,
+    // so rejecting costs next to nothing)
+    private final byte[] busyRejection;
+    private final byte[] fullRejection;
+    private final byte[] perIpRejection;
     
     /***************************************************************************
-     * Constructor: creates a new server.
+     * Constructor: creates a new server with the default configuration.
      * 
      * @throws IOException in case the server-socket could not be opened.
      */
     public ChatRoomServer() throws IOException
     {
-        // create a server-socket and a the different maps associated with it
-        serverSocket = new ServerSocket(PORT);
-        socketMap = new HashMap<>();
-        inStreamMap = new HashMap<>();
-        outStreamMap = new HashMap<>();
-        threadMap = new HashMap<>();
+        this(new ServerConfig());
+    }
+    
+    /***************************************************************************
+     * Constructor: creates a new server.
+     * 
+     * @param config the configuration of the server.
+     * @throws IOException in case the server-sockets could not be opened.
+     */
+    public ChatRoomServer(ServerConfig config) throws IOException
+    {
+        // create the server-sockets, and the different maps associated with them
+        this.config = config;
+        sslContext = config.isSecure() ? createSslContext() : null;
+        serverSockets = openServerSockets();
+        acceptListeners = new ArrayList<>();
+        AtomicInteger workerCount = new AtomicInteger();
+        ioWorkers = Executors.newFixedThreadPool(config.getIoWorkers(), (r) ->
+                new Thread(r, "io-worker-" + workerCount.incrementAndGet()));
+        joinLock = new Object();
+        sessions = new ConcurrentHashMap<>();
+        offlineStore = new OfflineMessageStore();
+        resumable = new ConcurrentHashMap<>();
+        shuttingDown = false;
+        capture = config.getCapture() == null ?
+                null : TrafficCapture.create(config.getCapture());
+        RoomSnapshot snapshot = loadSnapshot();
+        if (snapshot != null) resumable.putAll(snapshot.getTokens());
+        history = new RoomHistory(config.getHistory(),
+                snapshot == null ? 0 : snapshot.getLastSeq());
+        presence = new ConcurrentHashMap<>();
+        presenceChanges = new HashMap<>();
+        timer = Executors.newSingleThreadScheduledExecutor((r) ->
+                new Thread(r, "timer"));
+        metrics = new ServerMetrics();
+        pendingHandshakes = new AtomicInteger();
+        connectionsPerIp = new ConcurrentHashMap<>();
+        busyRejection = serializeRejection(BUSY_REASON);
+        fullRejection = serializeRejection(FULL_REASON);
+        perIpRejection = serializeRejection(PER_IP_REASON);
     }
     
     /***************************************************************************
@@ -167,7 +378,7 @@ public class ChatRoomServer
             ObjectOutputStream clientOutStream, Message joinMsg)
             throws IOException
     {
-        if (joinMsg.getType() != Message.Type.JOIN) {
+        if (joinMsg == null || joinMsg.getType() != Message.Type.JOIN) {
             // in case first message is not of type JOIN - inform the manager and
             // ignore client
             clientOutStream.close(); clientInStream.close(); clientSocket.close();
@@ -176,9 +387,26 @@ public class ChatRoomServer
             return null;
         }
         
-        // get sending user's name
+        // get sending user's name (a missing or empty one is denied before
+        // it gets near the maps, which don't take null keys)
         String username = joinMsg.getUsername();
-        if (socketMap.keySet().contains(username)) {
+        if (username == null || username.isEmpty()) {
+            clientOutStream.writeObject(
+                    new Message(Message.Type.DENY_JOIN, null));
+            clientOutStream.close(); clientInStream.close(); clientSocket.close();
+            System.out.println(String.format(USERNAME_INVALID_MSG,
+                    clientSocket.getInetAddress()));
+            return null;
+        }
+        
+        // see whether it resumes a session from the snapshot (with the right
+        // token)
+        JoinRequest request = joinMsg.getData() instanceof JoinRequest ?
+                (JoinRequest) joinMsg.getData() : null;
+        boolean resumed = request != null && request.getResumeToken() != null
+                && resumable.remove(username, request.getResumeToken());
+        if (sessions.containsKey(username)
+                || (!resumed && resumable.containsKey(username))) {
             // if the username already exists - deny client and inform the manager
             clientOutStream.writeObject(
                     new Message(Message.Type.DENY_JOIN, null));
@@ -189,131 +417,397 @@ public class ChatRoomServer
             return null;
         }
         
-        // otherwise - confirm request, send user list, and record new user client
-        clientOutStream.writeObject(new Message(Message.Type.CONFIRM_JOIN, null,
-                        new ArrayList<>(socketMap.keySet())));
-        socketMap.put(username, clientSocket);
-        inStreamMap.put(username, clientInStream);
-        outStreamMap.put(username, clientOutStream);
+        // otherwise - open a session for the new user, confirm its request and
+        // send it the user list (queued before the session is recorded, so it is
+        // the first message the client gets); clients that sent a JoinRequest get
+        // the features enabled for them (those the server supports), while
+        // older clients get the bare list (the list includes the members who
+        // may still resume their sessions)
+        ArrayList<String> usernames = new ArrayList<>(sessions.keySet());
+        usernames.addAll(resumable.keySet());
+        EnumSet<JoinRequest.Feature> features = EnumSet.noneOf(JoinRequest.Feature.class);
+        if (request != null) {
+            features = request.getFeatures();
+            features.retainAll(SUPPORTED_FEATURES);
+        }
+        String resumeToken = resumed ?
+                request.getResumeToken() : UUID.randomUUID().toString();
+        ClientSession session = new ClientSession(username, clientSocket,
+                clientInStream, clientOutStream, features, resumeToken,
+                this::sessionFailed);
+        synchronized (history) {
+            // (no room message may be stamped between telling the client the
+            // last sequence number and recording it)
+            long lastSeq = history.getLastSeq();
+            session.acknowledge(lastSeq);
+            if (request != null)
+                session.send(new Message(Message.Type.CONFIRM_JOIN, null,
+                        new JoinConfirmation(usernames, features, lastSeq,
+                                resumeToken)));
+            else
+                session.send(new Message(Message.Type.CONFIRM_JOIN, null, usernames));
+            sessions.put(username, session);
+        }
             
-        // create, store, and fire a thread dealing with the
-        // client's messages
-        Thread clientThread = new Thread(
-                () -> { listenForClientMsgs(username); });
-        threadMap.put(username, clientThread);
-        clientThread.start();
+        // create and fire a thread dealing with the client's messages (the
+        // join is captured first, as it starts the session in the capture)
+        captureMsg(joinMsg);
+        new Thread(() -> { listenForClientMsgs(session); },
+                "reader-" + username).start();
             
-        // broadcast the client's join message to all users
-        broadcastMsg(joinMsg);
+        // broadcast the client's join message to all users (without the join
+        // request attached to it, which concerns the server only); a resumed
+        // member never left as far as the others know, so this is skipped
+        if (!resumed) broadcastMsg(new Message(Message.Type.JOIN, username));
+        
+        // tell it about the users who are not just ACTIVE (later changes will
+        // come in the presence frames)
+        if (session.hasFeature(JoinRequest.Feature.PRESENCE) && !presence.isEmpty())
+            session.send(new Message(Message.Type.PRESENCE, null,
+                    new HashMap<>(presence)));
+        
+        // deliver the direct messages queued while the user was disconnected,
+        // and tell their senders
+        for (Message queued : offlineStore.take(username)) {
+            DirectText direct = (DirectText) queued.getData();
+            if (sendTo(username, adaptDirectMsg(queued, username)))
+                sendTo(queued.getUsername(), new Message(Message.Type.DIRECT_ACK,
+                        null, new DirectAck(username, direct.getId(),
+                                DirectAck.Status.DELIVERED)));
+        }
         return username;
     }
     
+    /***************************************************************************
+     * Creates the TLS context of the server, out of the keystore named in the
+     * configuration. The context keeps the TLS sessions of its clients for a
+     * while, so reconnecting clients may resume them.
+     * 
+     * @return the context.
+     * @throws IOException if the keystore could not be read, or the context
+     * could not be created out of it.
+     */
+    private SSLContext createSslContext() throws IOException
+    {
+        char[] password = config.getKeystorePassword();
+        try (InputStream in = Files.newInputStream(config.getKeystore())) {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(in, password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(
+                    KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            context.getServerSessionContext().setSessionCacheSize(
+                    TLS_SESSION_CACHE_SIZE);
+            context.getServerSessionContext().setSessionTimeout(
+                    TLS_SESSION_TIMEOUT);
+            return context;
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("Could not use the keystore: " + e.getMessage(), e);
+        }
+        finally {
+            Arrays.fill(password, '\0');
+        }
+    }
+    
+    /***************************************************************************
+     * Opens the server-sockets, according to the configuration: one per
+     * acceptor thread if there are several of them and the platform supports
+     * SO_REUSEPORT (so the kernel balances incoming connections between them),
+     * or a single one otherwise.
+     * 
+     * @return the opened server-sockets.
+     * @throws IOException in case a server-socket could not be opened.
+     */
+    private List<ServerSocket> openServerSockets() throws IOException
+    {
+        boolean reusePort = false;
+        if (config.getAcceptors() > 1) {
+            try (ServerSocket probe = new ServerSocket()) {
+                reusePort = probe.supportedOptions().contains(
+                        StandardSocketOptions.SO_REUSEPORT);
+            }
+        }
+        int count = reusePort ? config.getAcceptors() : 1;
+        
+        List<ServerSocket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                ServerSocket socket = sslContext == null ? new ServerSocket()
+                        : sslContext.getServerSocketFactory().createServerSocket();
+                sockets.add(socket);
+                socket.setReuseAddress(true);
+                if (reusePort)
+                    socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                socket.bind(new InetSocketAddress(config.getBindAddress(),
+                        config.getPort()), config.getBacklog());
+            }
+        }
+        catch (IOException e) {
+            // close the sockets opened so far before giving up
+            for (ServerSocket socket : sockets) socket.close();
+            throw e;
+        }
+        return sockets;
+    }
+    
     /***************************************************************************
      * Continuously tries to accept new clients that wish to connect to the
-     * this server.
+     * this server through a certain server-socket, and hands them to the I/O
+     * workers. Several acceptor threads may run this method at the same time
+     * (on the same server-socket, or on different ones).
      * 
-     * @throws IOException in case an I/O error occured while trying to connect
-     * to a client.
+     * @param serverSocket the server-socket to accept clients from.
      */
-    private void listenForAccepts()
+    private void listenForAccepts(ServerSocket serverSocket)
     {
         while (true) {
             // try to accept new client
-            Socket clientSocket = null;
-            InetAddress clientAdds = null;
+            Socket clientSocket;
             try {
                 clientSocket = serverSocket.accept();
-                clientAdds = clientSocket.getInetAddress();
             }
             catch (IOException e) {
-                // an error here is fatal - exit
-                e.printStackTrace();
-                System.exit(1);
+                // if the server-socket was closed there's nothing to accept;
+                // otherwise the error may be transient (e.g. running out of
+                // file descriptors during a reconnect storm) - keep accepting
+                if (serverSocket.isClosed()) return;
+                System.out.println(String.format(ACCEPT_FAILED_MSG, e.getMessage()));
+                continue;
             }
-            System.out.println(String.format(NEW_CLIENT_CON_MSG, clientAdds));
-                
-            // try opening I/O streams on it
-            ObjectInputStream clientInStream = null;
-            ObjectOutputStream clientOutStream = null;
-            try { clientInStream = new ObjectInputStream(
-                    clientSocket.getInputStream()); }
-            catch (IOException e) {
-                // if connecting failed - inform the manager and ignore client
-                System.out.println(String.format(OPEN_IO_FAILED_MSG, clientAdds));
-                try { clientSocket.close(); }
-                catch (IOException e1) {
-                    // an error here is problematic - inform the manager but don't crush
-                    System.out.println(String.format(FAILED_JOIN_CLOSE_MSG, clientAdds));
-                }
+            
+            // admit it only if the server can afford it (otherwise - reject it
+            // right away, before anything is allocated for it)
+            byte[] rejection = admit(clientSocket.getInetAddress());
+            if (rejection != null) {
+                reject(clientSocket, rejection);
                 continue;
             }
-            try {
-                clientOutStream = new ObjectOutputStream(
-                    clientSocket.getOutputStream());
-                clientOutStream.flush();
+            metrics.accepted.incrementAndGet();
+            
+            // the rest of the handshake may block, so it's up to the workers
+            ioWorkers.execute(() -> {
+                boolean joined = false;
+                try {
+                    joined = handshake(clientSocket);
+                }
+                finally {
+                    pendingHandshakes.decrementAndGet();
+                    if (!joined) releaseAddress(clientSocket.getInetAddress());
+                }
+            });
+        }
+    }
+    
+    /***************************************************************************
+     * Decides whether to admit a newly accepted connection, according to the
+     * limits in the configuration. If it is admitted, it is counted as a
+     * pending handshake and as a connection from its address.
+     * 
+     * @param address the address the connection came from.
+     * @return null if the connection is admitted, or the rejection to write
+     * to it otherwise.
+     */
+    private byte[] admit(InetAddress address)
+    {
+        if (pendingHandshakes.incrementAndGet() > config.getMaxHandshakes()) {
+            pendingHandshakes.decrementAndGet();
+            metrics.rejectedBusy.incrementAndGet();
+            return busyRejection;
+        }
+        if (sessions.size() + pendingHandshakes.get() > config.getMaxSessions()) {
+            pendingHandshakes.decrementAndGet();
+            metrics.rejectedFull.incrementAndGet();
+            return fullRejection;
+        }
+        if (connectionsPerIp.merge(address, 1, Integer::sum) > config.getMaxPerIp()) {
+            releaseAddress(address);
+            pendingHandshakes.decrementAndGet();
+            metrics.rejectedPerIp.incrementAndGet();
+            return perIpRejection;
+        }
+        return null;
+    }
+    
+    /***************************************************************************
+     * Stops counting a connection from a certain address.
+     * 
+     * @param address the address.
+     */
+    private void releaseAddress(InetAddress address)
+    {
+        connectionsPerIp.computeIfPresent(address, (a, n) -> n == 1 ? null : n - 1);
+    }
+    
+    /***************************************************************************
+     * Rejects a newly accepted connection: writes a rejection to it, and
+     * closes it a little later (so the client gets to read the rejection).
+     * 
+     * @param clientSocket the socket of the rejected connection.
+     * @param rejection the serialized rejection.
+     */
+    private void reject(Socket clientSocket, byte[] rejection)
+    {
+        // (over TLS, writing the rejection would mean handshaking right here,
+        // on the acceptor thread - so the client just sees the connection
+        // closed)
+        if (clientSocket instanceof SSLSocket) {
+            try { clientSocket.close(); }
+            catch (IOException e) {
+                // there's nothing more we can do to release the socket
             }
+            return;
+        }
+        try {
+            clientSocket.getOutputStream().write(rejection);
+            clientSocket.shutdownOutput();
+        }
+        catch (IOException e) {
+            // the client is gone anyway
+        }
+        timer.schedule(() -> {
+            try { clientSocket.close(); }
             catch (IOException e) {
-                // connecting failed - inform the manager and ignore client
-                System.out.println(String.format(OPEN_IO_FAILED_MSG, clientAdds));
-                try { clientInStream.close(); clientSocket.close(); }
-                catch (IOException e1) {
-                    // an error here is problematic - inform the manager but don't crush
-                    System.out.println(String.format(FAILED_JOIN_CLOSE_MSG, clientAdds));
-                }
-                continue;
+                // there's nothing more we can do to release the socket
             }
-            
-            // try to read a join message from it, and continue processing its
-            // request ONLY if the connection with it is correct (otherwise -
-            // ignore it)
-            Message joinMsg = null;
-            try {
-                joinMsg = (Message) clientInStream.readObject();
+        }, REJECT_LINGER, TimeUnit.MILLISECONDS);
+    }
+    
+    /***************************************************************************
+     * Serializes a rejection: an object stream holding a REJECT message.
+     * 
+     * @param reason the reason given in the rejection.
+     * @return the serialized rejection.
+     * @throws IOException if serializing failed.
+     */
+    private static byte[] serializeRejection(String reason) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new Message(Message.Type.REJECT, null, reason));
+        }
+        return bytes.toByteArray();
+    }
+    
+    /***************************************************************************
+     * Handshakes with a newly accepted client: opens I/O streams on its socket,
+     * reads its join message, and processes it.
+     * This is the task the I/O workers run for each accepted client.
+     * 
+     * @param clientSocket the socket of the accepted client.
+     * @return A boolean stating whether the client joined the chat-room.
+     */
+    private boolean handshake(Socket clientSocket)
+    {
+        InetAddress clientAdds = clientSocket.getInetAddress();
+        System.out.println(String.format(NEW_CLIENT_CON_MSG, clientAdds));
+        
+        // try opening I/O streams on it (a client that doesn't send its stream
+        // header and join message in time is given up on)
+        ObjectInputStream clientInStream = null;
+        ObjectOutputStream clientOutStream = null;
+        try {
+            clientSocket.setSoTimeout(HANDSHAKE_TIMEOUT);
+            // (over TLS, handshake right away - on this worker, and within
+            // the timeout - rather than on the first read)
+            if (clientSocket instanceof SSLSocket)
+                ((SSLSocket) clientSocket).startHandshake();
+            clientInStream = new ObjectInputStream(clientSocket.getInputStream());
+        }
+        catch (IOException e) {
+            // if connecting failed - inform the manager and ignore client
+            System.out.println(String.format(OPEN_IO_FAILED_MSG, clientAdds));
+            try { clientSocket.close(); }
+            catch (IOException e1) {
+                // an error here is problematic - inform the manager but don't crush
+                System.out.println(String.format(FAILED_JOIN_CLOSE_MSG, clientAdds));
             }
-            catch (Exception e2) {
-                // reading failed - inform the manager and ignore cloent
-                System.out.println(String.format(FIRST_READ_FAILED_MSG, clientAdds));
-                try { clientOutStream.close(); clientInStream.close(); clientSocket.close(); }
-                catch (IOException e1) {
-                    // an error here is problematic - inform the manager but don't crush
-                    System.out.println(String.format(FAILED_JOIN_CLOSE_MSG, clientAdds));
-                }
-                continue;
+            return false;
+        }
+        try {
+            // (buffered - the client's session flushes it whenever it runs
+            // out of messages to write)
+            clientOutStream = new ObjectOutputStream(new BufferedOutputStream(
+                clientSocket.getOutputStream()));
+            clientOutStream.flush();
+        }
+        catch (IOException e) {
+            // connecting failed - inform the manager and ignore client
+            System.out.println(String.format(OPEN_IO_FAILED_MSG, clientAdds));
+            try { clientInStream.close(); clientSocket.close(); }
+            catch (IOException e1) {
+                // an error here is problematic - inform the manager but don't crush
+                System.out.println(String.format(FAILED_JOIN_CLOSE_MSG, clientAdds));
             }
-            
-            String username;
-            try {
-                // process the joining message
+            return false;
+        }
+        
+        // try to read a join message from it, and continue processing its
+        // request ONLY if the connection with it is correct (otherwise -
+        // ignore it)
+        Message joinMsg = null;
+        try {
+            joinMsg = (Message) clientInStream.readObject();
+            clientSocket.setSoTimeout(0);
+        }
+        catch (Exception e2) {
+            // reading failed - inform the manager and ignore cloent
+            System.out.println(String.format(FIRST_READ_FAILED_MSG, clientAdds));
+            try { clientOutStream.close(); clientInStream.close(); clientSocket.close(); }
+            catch (IOException e1) {
+                // an error here is problematic - inform the manager but don't crush
+                System.out.println(String.format(FAILED_JOIN_CLOSE_MSG, clientAdds));
+            }
+            return false;
+        }
+        
+        String username;
+        try {
+            // process the joining message
+            synchronized (joinLock) {
                 username = processJoinMsg(clientSocket, clientInStream,
                         clientOutStream, joinMsg);
-            } catch (IOException e) {
-                // infrom the manager if an error occured
-                System.out.println(String.format(JOIN_COM_ERROR_MSG, clientAdds));
-                continue;
             }
-            
-            // if we reached here and the returned username is not null - a new user
-            // has successfuly joined
-            if (username != null)
-                System.out.println(
-                        String.format(NEW_USER_MSG, clientAdds, username));
+        } catch (IOException e) {
+            // infrom the manager if an error occured
+            System.out.println(String.format(JOIN_COM_ERROR_MSG, clientAdds));
+            return false;
         }
+        
+        // if we reached here and the returned username is not null - a new user
+        // has successfuly joined
+        if (username == null) return false;
+        metrics.joined.incrementAndGet();
+        System.out.println(String.format(NEW_USER_MSG, clientAdds, username));
+        return true;
     }
     
     /***************************************************************************
-     * Disconnects the server from a certain client (closes and discards the
-     * associated networking and I/O resources, and broadcasts a leaving message
-     * associated with the user).
+     * Disconnects the server from a certain client (closes its session, and
+     * broadcasts a leaving message associated with the user). Does nothing if
+     * the client is already disconnected.
      * 
-     * @param username the name of the client to disconnect.
+     * @param session the session of the client to disconnect.
+     * @param abrupt a boolean stating whether the client's connection broke
+     * (rather than the client leaving on purpose); if so - a mailbox is opened
+     * for the user, in case it comes back soon.
      */
-    private void disconnectClient(String username)
+    private void disconnectClient(ClientSession session, boolean abrupt)
     {
+        // remove the session first, so that only one thread disconnects the
+        // client (and a newer session under the same username isn't touched)
+        String username = session.getUsername();
+        if (!sessions.remove(username, session)) return;
+        releaseAddress(session.getInetAddress());
+        metrics.disconnected.incrementAndGet();
+        TrafficCapture currentCapture = capture;
+        if (currentCapture != null) currentCapture.endSession(username);
+        
         try {
-            // start by closing resources associted with it
-            inStreamMap.get(username).close();
-            outStreamMap.get(username).close();
-            socketMap.get(username).close();
+            // close the resources associated with it
+            session.close();
         }
         catch (IOException e) {
             // if for some reason we couldn't close a resource, this is a real
@@ -321,50 +815,113 @@ public class ChatRoomServer
             System.out.println(String.format(COULDNT_DISCONNECT_MSG, username));
         }
         
-        // remove the relevant entries from the server's tables
-        inStreamMap.remove(username);
-        outStreamMap.remove(username);
-        socketMap.remove(username);
+        // while shutting down, the client stays a member (the snapshot was
+        // already written), so the others aren't told it left
+        if (shuttingDown) return;
+        if (abrupt) offlineStore.open(username);
+        
+        // forget its presence state (the leave message implies it)
+        presence.remove(username);
+        synchronized (presenceChanges) {
+            presenceChanges.remove(username);
+        }
         
         // broadcast a leave message associated with the user
         broadcastMsg(new Message(Message.Type.LEAVE, username));
     }
     
+    /***************************************************************************
+     * Handles a session whose client couldn't be written to, or fell too far
+     * behind: informs the manager and disconnects the client.
+     * This is the failure handler of all sessions.
+     * 
+     * @param session the failed session.
+     */
+    private void sessionFailed(ClientSession session)
+    {
+        System.out.println(String.format(CLIENT_WRITE_FAILED_MSG, 
+                session.getInetAddress(), session.getUsername()));
+        disconnectClient(session, true);
+    }
+    
     /***************************************************************************
      * Continuously listening for a certain client's messages, assuming that
      * it is already associated with a user in the server's tables.
      * 
-     * @param username the username associated with the client.
+     * @param session the session of the client.
      */
-    private void listenForClientMsgs(String username)
+    private void listenForClientMsgs(ClientSession session)
     {
         // get client's input stream
-        ObjectInputStream inStream = inStreamMap.get(username);
-        InetAddress clientAdds = socketMap.get(username).getInetAddress();
+        String username = session.getUsername();
+        ObjectInputStream inStream = session.getInStream();
+        InetAddress clientAdds = session.getInetAddress();
         
         // Continuously collect messages
         try {
             while (true) {
                 Message msg = (Message) inStream.readObject();
                 Message.Type msgType = msg.getType();
+                captureMsg(msg);
 
-                // make sure it's of type TEXT or LEAVE
-                if (msgType != Message.Type.TEXT && msgType != Message.Type.LEAVE)
+                // make sure it's of type TEXT, DIRECT, LEAVE, ACK, RESEND,
+                // PRESENCE, or one of the file-transfer types
+                if (msgType != Message.Type.TEXT && msgType != Message.Type.DIRECT
+                        && msgType != Message.Type.LEAVE && msgType != Message.Type.ACK
+                        && msgType != Message.Type.RESEND
+                        && msgType != Message.Type.PRESENCE && !isFileMsgType(msgType))
                     throw new IOException("Got message of invalid type from client");
                 // make sure it's from the correct user
                 if (! username.equals(msg.getUsername()))
                     throw new IOException("Got message from incorrect user name");
-                
+                // make sure a text message carries a String, or a CompressedText
+                // if the client negotiated compression
+                if (msgType == Message.Type.TEXT && !isValidText(session, msg.getData()))
+                    throw new IOException("Got text message with invalid data");
+                // make sure a direct message carries a DirectText with such text
+                if (msgType == Message.Type.DIRECT && !(msg.getData() instanceof
+                        DirectText && isValidText(session,
+                                ((DirectText) msg.getData()).getText())))
+                    throw new IOException("Got direct message with invalid data");
+                // make sure a file-transfer message carries the matching data
+                if (isFileMsgType(msgType) && !isValidFileData(msgType, msg.getData()))
+                    throw new IOException("Got file-transfer message with invalid data");
+                // make sure an ack or a resend request carries a sequence number
+                if ((msgType == Message.Type.ACK || msgType == Message.Type.RESEND)
+                        && !(msg.getData() instanceof Long))
+                    throw new IOException("Got message with invalid sequence number");
+                // make sure a presence message carries a presence state
+                if (msgType == Message.Type.PRESENCE
+                        && !(msg.getData() instanceof PresenceState))
+                    throw new IOException("Got presence message with invalid data");
                 
                 // broadcast it for the rest of the users if it's text
                 if (msgType == Message.Type.TEXT)
                     broadcastMsg(msg);
                 
+                // pass it to its recipient only if it's a direct message
+                if (msgType == Message.Type.DIRECT)
+                    relayDirectMsg(msg);
+                
+                // stream file-transfer messages straight to their recipient
+                if (isFileMsgType(msgType))
+                    relayFileMsg(msg);
+                
+                // record acks, and answer resend requests
+                if (msgType == Message.Type.ACK)
+                    session.acknowledge((Long) msg.getData());
+                if (msgType == Message.Type.RESEND)
+                    resendRoomMsgs(session, (Long) msg.getData());
+                
+                // record presence changes, for the next presence frame
+                if (msgType == Message.Type.PRESENCE)
+                    changePresence(username, (PresenceState) msg.getData());
+                
                 // if it's a leave message - disconnect the client
                 if (msgType == Message.Type.LEAVE) {
                     System.out.println(String.format(USER_LEFT_MSG, 
-                            socketMap.get(username).getInetAddress(), username));
-                    disconnectClient(username);
+                            clientAdds, username));
+                    disconnectClient(session, false);
                     break;
                 }
             }
@@ -374,12 +931,16 @@ public class ChatRoomServer
             // and try to disconnect the failing client
             System.out.println(String.format(USER_READ_MSG_ERROR, 
                     clientAdds, username));
-            disconnectClient(username);
+            disconnectClient(session, true);
         }
     }
     
     /***************************************************************************
-     * Sends a certain message to all clients participating in the chat-room.
+     * Sends a certain message to all clients participating in the chat-room,
+     * stamped with the room's next sequence number (and kept in the room's
+     * history).
+     * A compressed text message is relayed as it is to clients that negotiated
+     * compression, and inflated (once) for the rest of them.
      * 
      * @param msg the message to broadcast.
      */
@@ -388,19 +949,408 @@ public class ChatRoomServer
         System.out.printf("Broadcasting message of type %s from user \"%s\".%n",
                 msg.getType(), msg.getUsername());
         
-        // check all participating users
-        for (String username : socketMap.keySet()) {
-            try {
-                // try to send the message to it
-                outStreamMap.get(username).writeObject(msg);
+        synchronized (history) {
+            Message stamped = history.append(msg);
+            
+            // the inflated version of 'stamped', created when first needed
+            Message plainMsg = msg.getData() instanceof CompressedText ? null : stamped;
+            
+            // check all participating users
+            for (ClientSession session : sessions.values()) {
+                Message toSend = stamped;
+                if (plainMsg != stamped
+                        && !session.hasFeature(JoinRequest.Feature.COMPRESSION)) {
+                    if (plainMsg == null)
+                        plainMsg = inflateMsg(stamped);
+                    toSend = plainMsg;
+                }
+                // queue the message for it
+                session.send(toSend);
             }
+            
+            // every once in a while - release what all clients acked
+            if (stamped.getSeq() % RELEASE_INTERVAL == 0)
+                releaseAckedMsgs();
+        }
+    }
+    
+    /***************************************************************************
+     * Releases the room messages which all clients acked from the room's
+     * history (clients that don't ack are not taken into account).
+     */
+    private void releaseAckedMsgs()
+    {
+        long ackedByAll = history.getLastSeq();
+        for (ClientSession session : sessions.values())
+            if (session.hasFeature(JoinRequest.Feature.SEQUENCE))
+                ackedByAll = Math.min(ackedByAll, session.getAcked());
+        history.release(ackedByAll);
+    }
+    
+    /***************************************************************************
+     * Records a change in a user's presence state, to be broadcast in the next
+     * presence frame.
+     * 
+     * @param username the name of the user.
+     * @param state the user's new presence state.
+     */
+    private void changePresence(String username, PresenceState state)
+    {
+        if (state == PresenceState.ACTIVE)
+            presence.remove(username);
+        else
+            presence.put(username, state);
+        synchronized (presenceChanges) {
+            presenceChanges.put(username, state);
+        }
+    }
+    
+    /***************************************************************************
+     * Broadcasts the changes in the users' presence states since the last time
+     * (if there are any) in a single frame, to the clients which understand
+     * presence messages. However many changes there are, there is at most one
+     * frame per presence interval.
+     * This is a periodic task of the server.
+     */
+    private void broadcastPresence()
+    {
+        // take the changes gathered so far
+        HashMap<String, PresenceState> changes;
+        synchronized (presenceChanges) {
+            if (presenceChanges.isEmpty()) return;
+            changes = new HashMap<>(presenceChanges);
+            presenceChanges.clear();
+        }
+        
+        // (changes of users who left meanwhile are dropped)
+        changes.keySet().removeIf((username) -> !sessions.containsKey(username));
+        if (changes.isEmpty()) return;
+        Message frame = new Message(Message.Type.PRESENCE, null, changes);
+        for (ClientSession session : sessions.values())
+            if (session.hasFeature(JoinRequest.Feature.PRESENCE))
+                session.send(frame);
+    }
+    
+    /***************************************************************************
+     * Answers a client's resend request: tells it the sequence number of the
+     * first room message sent again, and sends all kept room messages following
+     * the requested one.
+     * 
+     * @param session the session of the requesting client.
+     * @param seq the sequence number of the last room message the client got
+     * (without gaps before it).
+     */
+    private void resendRoomMsgs(ClientSession session, long seq)
+    {
+        synchronized (history) {
+            List<Message> kept = history.since(seq);
+            long first = kept.isEmpty() ? history.getLastSeq() + 1 : kept.get(0).getSeq();
+            session.send(new Message(Message.Type.RESEND, null, first));
+            for (Message msg : kept) {
+                if (msg.getData() instanceof CompressedText
+                        && !session.hasFeature(JoinRequest.Feature.COMPRESSION))
+                    msg = inflateMsg(msg);
+                session.send(msg);
+            }
+        }
+    }
+    
+    /***************************************************************************
+     * Sends a message to a single client (through its session's lanes; if
+     * writing fails later on - the session's failure handler disconnects it).
+     * 
+     * @param username the name of the client.
+     * @param msg the message to send.
+     * @return A boolean stating whether the message was queued for the
+     * client's connection.
+     */
+    private boolean sendTo(String username, Message msg)
+    {
+        ClientSession session = sessions.get(username);
+        return session != null && session.send(msg);
+    }
+    
+    /***************************************************************************
+     * Passes a direct message to its recipient only - or queues it, if the
+     * recipient is temporarily disconnected - and acks the sender.
+     * 
+     * @param msg the direct message (whose data is a DirectText).
+     */
+    private void relayDirectMsg(Message msg)
+    {
+        DirectText direct = (DirectText) msg.getData();
+        String recipient = direct.getRecipient();
+        
+        // a direct lookup of the recipient's session; if it's not there (or
+        // it's closed) - try the recipient's mailbox
+        DirectAck.Status status;
+        if (sendTo(recipient, adaptDirectMsg(msg, recipient)))
+            status = DirectAck.Status.DELIVERED;
+        else
+            status = offlineStore.offer(recipient, msg);
+        
+        System.out.println(String.format(DIRECT_MSG, msg.getUsername(),
+                recipient, status));
+        sendTo(msg.getUsername(), new Message(Message.Type.DIRECT_ACK, null,
+                new DirectAck(recipient, direct.getId(), status)));
+    }
+    
+    /***************************************************************************
+     * Passes a file-transfer message to the user it is meant for, as it is
+     * (nothing but the message itself is held, so files are streamed through
+     * the server). If it can't be passed on - the sender is told the transfer
+     * is cancelled.
+     * 
+     * @param msg the file-transfer message (whose data is a FileTransferData).
+     */
+    private void relayFileMsg(Message msg)
+    {
+        FileTransferData data = (FileTransferData) msg.getData();
+        if (msg.getType() == Message.Type.FILE_OFFER) {
+            FileOffer offer = (FileOffer) data;
+            System.out.println(String.format(FILE_OFFER_MSG, msg.getUsername(),
+                    offer.getRecipient(), offer.getFileName(), offer.getSize()));
+        }
+        
+        // acks are not answered, even if they can't be passed on (the sender
+        // of the file finds out when its chunks can't be passed on)
+        if (!sendTo(data.getRecipient(), msg) && msg.getType() != Message.Type.FILE_ACK)
+            sendTo(msg.getUsername(), new Message(Message.Type.FILE_ACK,
+                    data.getRecipient(), new FileAck(msg.getUsername(),
+                            data.getTransferId(), FileAck.CANCELLED)));
+    }
+    
+    /***************************************************************************
+     * Adapts a direct message to its recipient: a compressed text is inflated
+     * if the recipient didn't negotiate compression.
+     * 
+     * @param msg the direct message (whose data is a DirectText).
+     * @param recipient the name of the recipient.
+     * @return the message to send to the recipient.
+     */
+    private Message adaptDirectMsg(Message msg, String recipient)
+    {
+        DirectText direct = (DirectText) msg.getData();
+        ClientSession session = sessions.get(recipient);
+        if (!(direct.getText() instanceof CompressedText) || session == null
+                || session.hasFeature(JoinRequest.Feature.COMPRESSION))
+            return msg;
+        String text = (String) inflateMsg(new Message(Message.Type.TEXT,
+                msg.getUsername(), (CompressedText) direct.getText())).getData();
+        return new Message(Message.Type.DIRECT, msg.getUsername(),
+                new DirectText(recipient, direct.getId(), text));
+    }
+    
+    /***************************************************************************
+     * Checks whether an object is valid text for a client to send.
+     * 
+     * @param session the session of the sending client.
+     * @param text the object in question.
+     * @return A boolean stating whether 'text' is a String, or a CompressedText
+     * and the client negotiated compression.
+     */
+    private static boolean isValidText(ClientSession session, Object text)
+    {
+        return text instanceof String || (text instanceof CompressedText &&
+                session.hasFeature(JoinRequest.Feature.COMPRESSION));
+    }
+    
+    /***************************************************************************
+     * Checks whether a message type is one of the file-transfer types.
+     * 
+     * @param type the type in question.
+     * @return A boolean stating whether it is FILE_OFFER, FILE_CHUNK or FILE_ACK.
+     */
+    private static boolean isFileMsgType(Message.Type type)
+    {
+        return type == Message.Type.FILE_OFFER || type == Message.Type.FILE_CHUNK
+                || type == Message.Type.FILE_ACK;
+    }
+    
+    /***************************************************************************
+     * Checks whether an object is valid data for a client's file-transfer
+     * message.
+     * 
+     * @param type the type of the message.
+     * @param data the object in question.
+     * @return A boolean stating whether 'data' is of the class matching the
+     * type, names a recipient and a transfer, and (for a chunk) isn't too big.
+     */
+    private static boolean isValidFileData(Message.Type type, Object data)
+    {
+        if (!(data instanceof FileTransferData)
+                || ((FileTransferData) data).getRecipient() == null
+                || ((FileTransferData) data).getTransferId() == null)
+            return false;
+        switch (type) {
+            case FILE_OFFER:
+                return data instanceof FileOffer
+                        && ((FileOffer) data).getFileName() != null;
+            case FILE_CHUNK:
+                return data instanceof FileChunk
+                        && ((FileChunk) data).getBytes() != null
+                        && ((FileChunk) data).getBytes().length <= FileChunk.MAX_SIZE;
+            default:
+                return data instanceof FileAck;
+        }
+    }
+    
+    /***************************************************************************
+     * Creates a plain version of a compressed text message.
+     * 
+     * @param msg a text message whose data is a CompressedText.
+     * @return an equivalent text message (with the same sequence number) whose
+     * data is a String (if the payload can't be inflated, the String is a
+     * notice saying so).
+     */
+    private static Message inflateMsg(Message msg)
+    {
+        String text;
+        try {
+            text = ((CompressedText) msg.getData()).inflate();
+        }
+        catch (IOException e) {
+            text = CORRUPTED_TEXT_MSG;
+        }
+        return new Message(Message.Type.TEXT, msg.getUsername(), text, msg.getSeq());
+    }
+    
+    /***************************************************************************
+     * Records a message read from a client in the capture (if capturing).
+     * 
+     * @param msg the message.
+     */
+    private void captureMsg(Message msg)
+    {
+        TrafficCapture currentCapture = capture;
+        if (currentCapture == null) return;
+        try {
+            currentCapture.record(msg);
+        }
+        catch (IOException e) {
+            stopCapture(e);
+        }
+    }
+    
+    /***************************************************************************
+     * Flushes the capture (if capturing), so the records written so far reach
+     * the file.
+     */
+    private void flushCapture()
+    {
+        TrafficCapture currentCapture = capture;
+        if (currentCapture == null) return;
+        try {
+            currentCapture.flush();
+        }
+        catch (IOException e) {
+            stopCapture(e);
+        }
+    }
+    
+    /***************************************************************************
+     * Stops capturing, and closes the capture (only the first caller does).
+     * 
+     * @param error the error that stopped the capture, or null if the server
+     * shuts down.
+     */
+    private synchronized void stopCapture(IOException error)
+    {
+        if (capture == null) return;
+        if (error != null)
+            System.out.println(String.format(CAPTURE_FAILED_MSG, error));
+        try {
+            capture.close();
+        }
+        catch (IOException e) {
+            // the capture is stopped anyway
+        }
+        capture = null;
+    }
+    
+    /***************************************************************************
+     * Loads the snapshot named in the configuration, if there is one.
+     * 
+     * @return the snapshot, or null if there is none (or it can't be read).
+     */
+    private RoomSnapshot loadSnapshot()
+    {
+        if (config.getSnapshot() == null) return null;
+        try {
+            RoomSnapshot snapshot = RoomSnapshot.read(config.getSnapshot());
+            if (snapshot != null)
+                System.out.println(String.format(SNAPSHOT_LOADED_MSG,
+                        snapshot.getTokens().size(), snapshot.getLastSeq()));
+            return snapshot;
+        }
+        catch (IOException e) {
+            System.out.println(String.format(SNAPSHOT_READ_FAILED_MSG, e));
+            return null;
+        }
+    }
+    
+    /***************************************************************************
+     * Writes a snapshot of the chat-room to the file named in the
+     * configuration: its members (including those who may still resume their
+     * sessions) with their resume tokens, and the last sequence number.
+     * Synchronized, since both the timer and the shutdown hook write it.
+     */
+    private synchronized void saveSnapshot()
+    {
+        Map<String, String> tokens = new LinkedHashMap<>(resumable);
+        for (ClientSession session : sessions.values())
+            tokens.put(session.getUsername(), session.getResumeToken());
+        try {
+            new RoomSnapshot(history.getLastSeq(), tokens)
+                    .write(config.getSnapshot());
+        }
+        catch (IOException e) {
+            System.out.println(String.format(SNAPSHOT_WRITE_FAILED_MSG, e));
+        }
+    }
+    
+    /***************************************************************************
+     * Ends the resume window: the members from the snapshot who didn't resume
+     * their sessions are considered gone, and a leaving message is broadcast
+     * for each of them.
+     */
+    private void expireResumable()
+    {
+        for (String username : new ArrayList<>(resumable.keySet()))
+            if (resumable.remove(username) != null)
+                broadcastMsg(new Message(Message.Type.LEAVE, username));
+    }
+    
+    /***************************************************************************
+     * Shuts the server down: stops accepting clients, writes a last snapshot,
+     * and tells every client when to try resuming its session - a random delay
+     * within the configured range, so they don't all come back at once.
+     * This is the server's shutdown hook.
+     */
+    private void shutDown()
+    {
+        shuttingDown = true;
+        for (ServerSocket serverSocket : serverSockets) {
+            try { serverSocket.close(); }
             catch (IOException e) {
-                // if an error occured - tell the manager and disconnect the client
-                System.out.println(String.format(CLIENT_WRITE_FAILED_MSG, 
-                        socketMap.get(username).getInetAddress(), username));
-                disconnectClient(username);
+                // the process is exiting anyway
             }
         }
+        if (config.getSnapshot() != null) saveSnapshot();
+        stopCapture(null);
+        
+        System.out.println(String.format(SHUTDOWN_MSG, sessions.size()));
+        for (ClientSession session : sessions.values()) {
+            long retryAfter = config.getRetryAfter()
+                    + ThreadLocalRandom.current().nextInt(config.getRetryJitter() + 1);
+            session.send(new Message(Message.Type.SHUTDOWN, null, retryAfter));
+        }
+        try {
+            Thread.sleep(SHUTDOWN_GRACE);
+        }
+        catch (InterruptedException e) {
+            // exit right away, then
+        }
     }
     
     /***************************************************************************
@@ -408,29 +1358,75 @@ public class ChatRoomServer
      */
     public void start()
     {
-        // the only thing necessary is to initiate a thread accepting clients
-        acceptListener = new Thread(() -> { listenForAccepts(); });
-        acceptListener.start();
+        // initiate the threads accepting clients (spread evenly over the
+        // server-sockets)
+        for (int i = 0; i < config.getAcceptors(); i++) {
+            ServerSocket serverSocket = serverSockets.get(i % serverSockets.size());
+            Thread acceptListener = new Thread(
+                    () -> { listenForAccepts(serverSocket); }, "acceptor-" + i);
+            acceptListeners.add(acceptListener);
+            acceptListener.start();
+        }
+        
+        // and schedule the periodic tasks
+        timer.scheduleAtFixedRate(() -> { broadcastPresence(); },
+                config.getPresenceInterval(), config.getPresenceInterval(),
+                TimeUnit.MILLISECONDS);
+        if (config.getMetricsInterval() > 0)
+            timer.scheduleAtFixedRate(() -> {
+                System.out.println(String.format(METRICS_MSG, metrics,
+                        sessions.size(), pendingHandshakes.get())); },
+                    config.getMetricsInterval(), config.getMetricsInterval(),
+                    TimeUnit.SECONDS);
+        if (config.getSnapshot() != null)
+            timer.scheduleAtFixedRate(() -> {
+                if (!shuttingDown) saveSnapshot(); },
+                    config.getSnapshotInterval(), config.getSnapshotInterval(),
+                    TimeUnit.SECONDS);
+        if (capture != null)
+            timer.scheduleAtFixedRate(() -> { flushCapture(); }, 1, 1,
+                    TimeUnit.SECONDS);
+        if (!resumable.isEmpty())
+            timer.schedule(() -> { expireResumable(); },
+                    config.getResumeWindow(), TimeUnit.SECONDS);
+        
+        // tell the clients when the server shuts down
+        Runtime.getRuntime().addShutdownHook(
+                new Thread(() -> { shutDown(); }, "shutdown"));
     }
     
     /***************************************************************************
      * The main server program.
      * Runs an instance of a server in the Chat-Room App described above.
      * 
-     * @param args arguments for the program (ignored).
+     * @param args arguments for the program (see ServerConfig).
      */
     public static void main(String[] args)
     {
+        ServerConfig config;
+        try {
+            // parse the configuration
+            config = ServerConfig.parse(args);
+        }
+        catch (IllegalArgumentException e) {
+            // if the arguments are invalid - tell the manager how to use them
+            System.out.println(e.getMessage());
+            System.out.println(ServerConfig.USAGE);
+            return;
+        }
+        
         ChatRoomServer server;
         try {
             // create server and start it
-            server = new ChatRoomServer();
-            System.out.println("Server created successfuly.");
+            server = new ChatRoomServer(config);
+            System.out.println("Server created successfuly (" + config + ", "
+                    + server.serverSockets.size() + " server-socket(s)).");
             server.start();
         }
         catch (IOException e) {
             // if creating the server's socket failed - notify the manager
-            System.out.println("Failed to open a server-socket for the new server.");
+            System.out.println("Failed to open a server-socket for the new server ("
+                    + e.getMessage() + ").");
         }
     }
 }
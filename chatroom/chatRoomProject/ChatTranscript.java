@@ -0,0 +1,360 @@
+package chatRoomProject;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.io.IOException;
+import javafx.application.Platform;
+import javafx.scene.Node;
+import javafx.scene.text.Font;
+import javafx.scene.text.FontWeight;
+import javafx.scene.text.Text;
+import javafx.scene.text.TextFlow;
+
+/*******************************************************************************
+ * This class renders the transcript of a chat-room onto a TextFlow, as part of
+ * the GUI of the client in the Chat-Room App (whose main method and full
+ * description can be found in ChatRoomClient.java).
+ * Every transcript line is made of exactly two pre-styled Text nodes: a bold
+ * head (the sender's name, or a notice such as "x joined.") and a regular
+ * body (the text itself, possibly empty). The nodes are created once and then
+ * reused: when the transcript exceeds its maximal number of lines, the oldest
+ * line's nodes are recycled for the newest line, and nodes of a cleared
+ * transcript are kept in a pool for the next chat-room.
+ * Lines may be appended from any thread; they are queued and rendered in
+ * batches on the JavaFX application thread.
+ * A transcript may be attached to a local log (see TranscriptLog): every line
+ * appended is then also written to the log, the last lines of the log are
+ * rendered as soon as it is attached (before the chat-room sends anything),
+ * and older lines are read from the log page by page, when asked for (see
+ * loadOlder).
+ *
+ * @author Nadav Kahlon
+ */
+public class ChatTranscript
+{
+    /***************************************************************************
+     * Constants used by the transcript
+     */
+
+    // the maximal number of lines kept on the TextFlow (more lines are kept
+    // once older lines are loaded from the log, up to MAX_HISTORY_LINES)
+    public static final int MAX_LINES = 500;
+    public static final int MAX_HISTORY_LINES = 5000;
+
+    // the number of lines read from the log at once
+    public static final int PAGE_LINES = 100;
+
+    // font for the head of a line
+    private static final Font BOLD_FONT = Font.font(null, FontWeight.BOLD, 12);
+
+    // font for the body of a line
+    private static final Font REGULAR_FONT = Font.font(null, 12);
+
+    /***************************************************************************
+     * Attributes of the transcript
+     */
+
+    // the TextFlow the transcript is rendered onto
+    private final TextFlow textFlow;
+
+    // pre-styled nodes which are not displayed, ready to be reused (heads and
+    // bodies are pooled separately, so their fonts never need to be reset)
+    private final ArrayDeque<Text> freeHeads;
+    private final ArrayDeque<Text> freeBodies;
+
+    // the heads and bodies of lines waiting to be rendered (a null body stands
+    // for an empty one); guarded by 'this'
+    private ArrayDeque<String> pendingHeads;
+    private ArrayDeque<String> pendingBodies;
+
+    // empty queues that take the place of the pending ones when they are
+    // flushed, so flushing allocates no new queues (used on the JavaFX thread
+    // only)
+    private ArrayDeque<String> spareHeads;
+    private ArrayDeque<String> spareBodies;
+
+    // a boolean stating whether a flush of the pending lines is already
+    // scheduled on the JavaFX thread; guarded by 'this'
+    private boolean flushScheduled;
+
+    // the log the lines are written to (or null if there's none); guarded by
+    // 'this'
+    private TranscriptLog log;
+
+    // the number (in the log) of the oldest line on the TextFlow, valid while
+    // there's a log (used on the JavaFX thread only)
+    private long topLine;
+
+    /***************************************************************************
+     * Constructor: creates a new empty transcript rendered on a given TextFlow.
+     *
+     * @param textFlow the TextFlow to render on (its contents are owned by the
+     * transcript from now on).
+     */
+    public ChatTranscript(TextFlow textFlow)
+    {
+        this.textFlow = textFlow;
+        this.freeHeads = new ArrayDeque<>();
+        this.freeBodies = new ArrayDeque<>();
+        this.pendingHeads = new ArrayDeque<>();
+        this.pendingBodies = new ArrayDeque<>();
+        this.spareHeads = new ArrayDeque<>();
+        this.spareBodies = new ArrayDeque<>();
+        this.flushScheduled = false;
+        this.log = null;
+        this.topLine = 0;
+    }
+
+    /***************************************************************************
+     * Appends a text message to the transcript (may be called from any thread).
+     *
+     * @param sender the name of the sending user.
+     * @param text the text of the message.
+     */
+    public void appendText(String sender, String text)
+    {
+        append(sender + ": ", text + '\n');
+    }
+
+    /***************************************************************************
+     * Appends a bold notice line to the transcript (may be called from any
+     * thread).
+     *
+     * @param notice the notice (without a trailing line break).
+     */
+    public void appendNotice(String notice)
+    {
+        append(notice + '\n', null);
+    }
+
+    /***************************************************************************
+     * Attaches a log to the transcript, replacing its lines with the last lines
+     * of the log. Must be called on the JavaFX thread.
+     *
+     * @param log the log (owned by the transcript from now on - it is closed
+     * when the transcript is cleared).
+     * @throws IOException if reading the log failed (the log is closed).
+     */
+    public void attachLog(TranscriptLog log) throws IOException
+    {
+        clear();
+        long size = log.size();
+        List<TranscriptLog.Line> lines;
+        try {
+            lines = log.read(Math.max(0, size - PAGE_LINES), size);
+        }
+        catch (IOException e) {
+            closeLog(log);
+            throw e;
+        }
+        synchronized (this) {
+            this.log = log;
+        }
+        topLine = size - lines.size();
+        textFlow.getChildren().addAll(render(lines));
+    }
+
+    /***************************************************************************
+     * Loads a page of lines older than the oldest line on the TextFlow from
+     * the log (if there's one), and renders them on top. Must be called on the
+     * JavaFX thread.
+     *
+     * @return the number of lines loaded (0 if there are no older lines, or
+     * the transcript holds MAX_HISTORY_LINES already).
+     */
+    public int loadOlder()
+    {
+        TranscriptLog log;
+        synchronized (this) {
+            log = this.log;
+        }
+        int room = MAX_HISTORY_LINES - textFlow.getChildren().size() / 2;
+        if (log == null || topLine == 0 || room <= 0) return 0;
+
+        List<TranscriptLog.Line> lines;
+        try {
+            lines = log.read(Math.max(0, topLine - Math.min(PAGE_LINES, room)), topLine);
+        }
+        catch (IOException e) {
+            detachLog(log);
+            return 0;
+        }
+        if (lines.isEmpty()) return 0; // (the older lines were dropped from the log)
+        topLine -= lines.size();
+        textFlow.getChildren().addAll(0, Arrays.asList(render(lines)));
+        return lines.size();
+    }
+
+    /***************************************************************************
+     * Removes all lines from the transcript, keeping their nodes for later use,
+     * and closes its log (if there's one). Must be called on the JavaFX thread;
+     * lines appended before the call but not rendered yet are discarded.
+     */
+    public void clear()
+    {
+        TranscriptLog log;
+        synchronized (this) {
+            pendingHeads.clear();
+            pendingBodies.clear();
+            log = this.log;
+        }
+        if (log != null) detachLog(log);
+
+        // move all nodes back to the pools (children alternate head, body)
+        List<Node> children = textFlow.getChildren();
+        for (int i = 0; i + 1 < children.size(); i += 2) {
+            freeHeads.push((Text) children.get(i));
+            freeBodies.push((Text) children.get(i + 1));
+        }
+        children.clear();
+    }
+
+    /***************************************************************************
+     * Queues a line for rendering, and schedules a flush on the JavaFX thread
+     * if none is scheduled yet.
+     *
+     * @param head the text of the line's bold head.
+     * @param body the text of the line's regular body (or null if empty).
+     */
+    private void append(String head, String body)
+    {
+        if (body == null) body = "";
+        synchronized (this) {
+            // (writing under the lock keeps the log in the order of the lines)
+            if (log != null) {
+                try {
+                    log.append(head, body);
+                }
+                catch (IOException e) {
+                    closeLog(log);
+                    log = null;
+                }
+            }
+            pendingHeads.add(head);
+            pendingBodies.add(body);
+            if (flushScheduled) return;
+            flushScheduled = true;
+        }
+        Platform.runLater(() -> { flush(); });
+    }
+
+    /***************************************************************************
+     * Renders all pending lines (runs on the JavaFX thread).
+     */
+    private void flush()
+    {
+        // take the pending lines
+        ArrayDeque<String> heads, bodies;
+        synchronized (this) {
+            heads = pendingHeads;
+            bodies = pendingBodies;
+            pendingHeads = spareHeads;
+            pendingBodies = spareBodies;
+            flushScheduled = false;
+        }
+
+        // the transcript keeps MAX_LINES lines, or as many lines as it has if
+        // more were loaded from the log; only the last lines of the batch
+        // that fit can survive it
+        List<Node> children = textFlow.getChildren();
+        int limit = Math.max(MAX_LINES, children.size() / 2);
+        int dropped = 0;
+        while (heads.size() > limit) {
+            heads.poll();
+            bodies.poll();
+            dropped++;
+        }
+
+        // recycle the oldest lines that the batch pushes out of the transcript
+        int overflow = children.size() / 2 + heads.size() - limit;
+        if (overflow > 0) {
+            for (int i = 0; i < 2 * overflow; i += 2) {
+                freeHeads.push((Text) children.get(i));
+                freeBodies.push((Text) children.get(i + 1));
+            }
+            textFlow.getChildren().remove(0, 2 * overflow);
+            topLine += overflow;
+        }
+        topLine += dropped;
+
+        // fill nodes with the new lines, and add them all at once
+        Text[] nodes = new Text[2 * heads.size()];
+        for (int i = 0; i < nodes.length; i += 2) {
+            nodes[i] = obtain(freeHeads, BOLD_FONT);
+            nodes[i].setText(heads.poll());
+            nodes[i + 1] = obtain(freeBodies, REGULAR_FONT);
+            nodes[i + 1].setText(bodies.poll());
+        }
+        textFlow.getChildren().addAll(nodes);
+
+        // the taken queues are empty now - keep them for the next flush
+        spareHeads = heads;
+        spareBodies = bodies;
+    }
+
+    /***************************************************************************
+     * Fills nodes with lines read from the log (runs on the JavaFX thread).
+     *
+     * @param lines the lines.
+     * @return the nodes (alternating head, body), ready to be displayed.
+     */
+    private Text[] render(List<TranscriptLog.Line> lines)
+    {
+        Text[] nodes = new Text[2 * lines.size()];
+        for (int i = 0; i < nodes.length; i += 2) {
+            nodes[i] = obtain(freeHeads, BOLD_FONT);
+            nodes[i].setText(lines.get(i / 2).getHead());
+            nodes[i + 1] = obtain(freeBodies, REGULAR_FONT);
+            nodes[i + 1].setText(lines.get(i / 2).getBody());
+        }
+        return nodes;
+    }
+
+    /***************************************************************************
+     * Detaches a log from the transcript (if it is still attached) and closes
+     * it.
+     *
+     * @param log the log.
+     */
+    private void detachLog(TranscriptLog log)
+    {
+        synchronized (this) {
+            if (this.log == log) this.log = null;
+        }
+        closeLog(log);
+    }
+
+    /***************************************************************************
+     * Closes a log, ignoring failures (the transcript goes on without it).
+     *
+     * @param log the log.
+     */
+    private static void closeLog(TranscriptLog log)
+    {
+        try {
+            log.close();
+        }
+        catch (IOException e) {
+            // nothing else to do with a broken log
+        }
+    }
+
+    /***************************************************************************
+     * Takes a node from a pool, or creates a new pre-styled one if the pool is
+     * empty.
+     *
+     * @param pool the pool to take the node from.
+     * @param font the font of the nodes in this pool.
+     * @return a Text node which is not displayed.
+     */
+    private static Text obtain(ArrayDeque<Text> pool, Font font)
+    {
+        Text node = pool.poll();
+        if (node == null) {
+            node = new Text();
+            node.setFont(font);
+        }
+        return node;
+    }
+}
@@ -1,12 +1,11 @@
 package chatRoomProject;
 
-import java.net.Socket;
-import java.net.InetSocketAddress;
-import java.net.SocketAddress;
-import java.net.InetAddress;
 import java.util.List;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.Optional;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionException;
+import java.io.File;
 import java.io.IOException;
 import java.io.EOFException;
 import java.net.UnknownHostException;
@@ -14,28 +13,28 @@ import javafx.fxml.FXML;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollPane;
 import javafx.scene.control.TextArea;
 import javafx.scene.text.TextFlow;
-import javafx.scene.text.Text;
-import javafx.scene.text.Font;
-import javafx.scene.text.FontWeight;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
+import javafx.scene.control.ButtonType;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.beans.property.StringProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.BooleanProperty;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
 import javafx.fxml.FXMLLoader;
 import javafx.application.Platform;
+import javafx.animation.PauseTransition;
+import javafx.util.Duration;
 
 /*******************************************************************************
  * This class is the controller for the GUI of the client in the Chat-Room App
  * (whose main method and full description can be found in ChatRoomClient.java).
- * It handles GUI activity and networking.
+ * It handles GUI activity, and uses a ChatClient for networking.
  *
  * @author Nadav Kahlon
  */
@@ -124,11 +123,109 @@ public class ClientMainGUIController {
             "Cannot join chat-box hosted on server %s, since username %s "
             + "is already used by another user participating in it.";
     
-    // font for bolded text objects
-    private static final Font BOLD_FONT = Font.font(null, FontWeight.BOLD, 12);
-    
-    // font for regular text objects
-    private static final Font REGULAR_FONT = Font.font(null, 12);
+    // format for a message displayed in an error dialog box when a server
+    // rejects the connection since it is overloaded (the first "%s" is where
+    // the server name is, and the second one is where the server's reason is)
+    private static final String REJECTED_MSG =
+            "Server %s cannot take you in right now: %s";
+    
+    // the command prefix of a direct message typed in the message TextArea
+    // (the command is followed by the recipient's username and the text)
+    private static final String DIRECT_COMMAND = "/msg ";
+    
+    // format for a message displayed in an error dialog box when a direct
+    // message command is malformed ("%s" is where the command is)
+    private static final String DIRECT_USAGE_MSG =
+            "To send a direct message, type: %s<username> <message>";
+    
+    // format for the head of a direct message line in the transcript ("%s" is
+    // where the sender's username is)
+    private static final String DIRECT_FROM_HEAD = "%s (direct)";
+    
+    // format for the head of a line in the transcript showing a direct message
+    // sent by this client ("%s" is where the recipient's username is)
+    private static final String DIRECT_TO_HEAD = "You -> %s";
+    
+    // formats for notices in the transcript about the fate of direct messages
+    // sent by this client ("%s" is where the recipient's username is)
+    private static final String DIRECT_QUEUED_NOTICE =
+            "%s is temporarily disconnected - your message will be delivered "
+            + "if it comes back soon.";
+    private static final String DIRECT_DELIVERED_NOTICE =
+            "Your queued message to %s was delivered.";
+    private static final String DIRECT_QUEUE_FULL_NOTICE =
+            "Too many messages are waiting for %s - your message was dropped.";
+    private static final String DIRECT_UNKNOWN_USER_NOTICE =
+            "There is no user named %s in the chat-room.";
+    
+    // format for a notice in the transcript telling that room messages were
+    // missed, and can't be recovered ("%d" is where their number is)
+    private static final String MISSED_MSGS_NOTICE =
+            "%d message(s) were missed, and can no longer be recovered.";
+    
+    // format for a notice in the transcript telling that the server shuts down
+    // ("%d" is where the number of seconds until resuming is)
+    private static final String SERVER_RESTART_NOTICE =
+            "The server is shutting down - trying to get back in %d second(s).";
+    
+    // a notice in the transcript telling that the session was resumed
+    private static final String RESUMED_NOTICE = "Back in the chat-room.";
+    
+    // a message displayed in an error dialog box when the session could not
+    // be resumed after the server shut down
+    private static final String RESUME_FAILED_MSG =
+            "Could not get back into the chat-room after the server shut down.";
+    
+    // the number of times the client tries resuming its session after the
+    // server shut down (the delay between attempts doubles each time)
+    private static final int RESUME_ATTEMPTS = 5;
+    
+    // the time the user may pause typing before it's no longer considered as
+    // typing
+    private static final Duration TYPING_TIMEOUT = Duration.seconds(3);
+    
+    // formats for the label telling who is typing (the "%s"s are where the
+    // usernames are, and the "%d" is where the number of users is)
+    private static final String ONE_TYPING_MSG = "%s is typing...";
+    private static final String TWO_TYPING_MSG = "%s and %s are typing...";
+    private static final String MANY_TYPING_MSG = "%d people are typing...";
+    
+    // a message displayed in an error dialog box when the user tries to send
+    // a file without selecting a recipient
+    private static final String NO_FILE_RECIPIENT_MSG =
+            "Select a user in the participants list to send a file to.";
+    
+    // the titles of the dialogs for choosing a file to send, and for choosing
+    // where to save a received file
+    private static final String SEND_FILE_TITLE = "Send File";
+    private static final String SAVE_FILE_TITLE = "Save File";
+    
+    // format for a question displayed in a confirmation dialog box when a file
+    // is offered (the first "%s" is where the sender is, the second is where the
+    // file's name is, and the "%d" is where its size is)
+    private static final String FILE_OFFER_PROMPT =
+            "%s offers you the file \"%s\" (%d bytes). Accept it?";
+    
+    // formats for notices in the transcript about files sent by this client
+    // (the first "%s" is where the recipient is, and the second is where the
+    // file's name is)
+    private static final String FILE_OFFERED_NOTICE =
+            "Offering %s the file \"%s\"...";
+    private static final String FILE_SENT_NOTICE =
+            "%s received the file \"%s\".";
+    private static final String FILE_DECLINED_NOTICE =
+            "%s declined the file \"%s\".";
+    private static final String FILE_SEND_FAILED_NOTICE =
+            "Sending %s the file \"%s\" failed - send it again to resume.";
+    
+    // formats for notices in the transcript about files received by this
+    // client (the first "%s" is where the sender is, the second is where the
+    // file's name is, and the third - if any - is where the file was saved)
+    private static final String FILE_RECEIVED_NOTICE =
+            "The file \"%2$s\" from %1$s was saved to %3$s.";
+    private static final String FILE_RECEIVE_FAILED_NOTICE =
+            "Receiving the file \"%2$s\" from %1$s failed - accept it again "
+            + "when offered to resume.";
     
     /***************************************************************************
      * Attributes of the controller.
@@ -141,14 +238,22 @@ public class ClientMainGUIController {
     // the label in which the title of the users ListView is written
     @FXML private Label participantsLabel;
 
-    // the TextFlow element in which the chat messages are displayed
+    // the TextFlow element in which the chat messages are displayed, and the
+    // ScrollPane it is scrolled in
     @FXML private TextFlow chatTextFlow;
+    @FXML private ScrollPane chatScrollPane;
+    
+    // the label telling which users are typing
+    @FXML private Label typingLabel;
 
     // the TextArea element in which the user enters messages to the chat
     @FXML private TextArea msgTextArea;
 
     // the "Send Message" button for sending the entered message
     @FXML private Button sendButton;
+    
+    // the "Send File..." button for sending a file to the selected user
+    @FXML private Button sendFileButton;
 
     // the "Join Room" button for joining a chat-room
     @FXML private Button joinButton;
@@ -169,15 +274,26 @@ public class ClientMainGUIController {
     // a boolean stating whether the user is connected to a chatroom
     private BooleanProperty connected;
     
-    // the TCP socket used for communicating with the server
-    private Socket socket;
+    // the session with the server hosting the current chat-room (null when
+    // not in a chat-room)
+    private ChatClient client;
+    
+    // a boolean stating whether 'client' was disconnected by a server shutting
+    // down, and is about to be resumed
+    private boolean resuming;
+    
+    // a model of the usernames in the current chat-room
+    private UsersListModel usersList;
     
-    // input and output streams attached to the socket
-    private ObjectInputStream inStream;
-    private ObjectOutputStream outStream;
+    // the transcript of the current chat-room (rendered on 'chatTextFlow')
+    private ChatTranscript transcript;
     
-    // a list of the usernames in the current chat-room
-    private ObservableList<String> usersList;
+    // the names of the other users who are typing
+    private TreeSet<String> typingUsers;
+    
+    // a timer ending the user's TYPING state once it pauses typing for long
+    // enough
+    private PauseTransition typingTimer;
     
     /***************************************************************************
      * Initializes the controller.
@@ -188,16 +304,30 @@ public class ClientMainGUIController {
         // start by creating non-fxml attributes from scratch
         username = new SimpleStringProperty();
         connected = new SimpleBooleanProperty();
-        socket = new Socket();
-        usersList = FXCollections.observableArrayList();
+        client = null;
+        resuming = false;
+        usersList = new UsersListModel();
+        transcript = new ChatTranscript(chatTextFlow);
+        typingUsers = new TreeSet<>();
+        typingTimer = new PauseTransition(TYPING_TIMEOUT);
+        typingTimer.setOnFinished((e) -> { userTyped(""); });
         
-        // bind 'usersListView' to 'usersList'
-        usersListView.setItems(usersList);
+        // bind 'usersListView' to the sorted view of 'usersList'
+        usersListView.setItems(usersList.getSortedView());
         
         // bind listeners to the various buttons
         joinButton.setOnAction((e) -> { openJoinWindow(); });
         leaveButton.setOnAction((e) -> { tryLeavingRoom(); });
         sendButton.setOnAction((e) -> { trySendTextMsg(); });
+        sendFileButton.setOnAction((e) -> { trySendFile(); });
+        
+        // bind a listener to the message TextArea, telling others we type
+        msgTextArea.textProperty().addListener((ob, ov, nv) -> { userTyped(nv); });
+        
+        // bind a listener to the transcript's scroll position, loading older
+        // lines from the local log when the top is reached
+        chatScrollPane.vvalueProperty().addListener((ob, ov, nv) -> {
+            if (nv.doubleValue() <= chatScrollPane.getVmin()) loadOlderLines(); });
         
         // bind a listener to the 'username' and 'connected' properties
         username.addListener((ob, ov, nv) -> { updateUsernameLabel(); });
@@ -219,16 +349,18 @@ public class ClientMainGUIController {
         
         // update the message on 'serverLabel' accordingly
         if (isInRoom)
-            serverLabel.setText(String.format(SERVER_MSG, socket.getInetAddress()));
+            serverLabel.setText(String.format(SERVER_MSG, client.getServerAddress()));
         else 
             serverLabel.setText(NO_SERVER_MSG);
         
         if (!isInRoom) {
             // if client is no longer in a chat-room - clear elements associated
             // with chatting
-            chatTextFlow.getChildren().clear();
+            transcript.clear();
             msgTextArea.clear();
             usersList.clear();
+            typingUsers.clear();
+            updateTypingLabel();
         }
         
         // enable / disable elements required to be enabled only inside a room
@@ -237,6 +369,7 @@ public class ClientMainGUIController {
         chatTextFlow.disableProperty().set(!isInRoom);
         msgTextArea.disableProperty().set(!isInRoom);
         sendButton.disableProperty().set(!isInRoom);
+        sendFileButton.disableProperty().set(!isInRoom);
         leaveButton.disableProperty().set(!isInRoom);
         
         // enable / disable elements required to be enabled only outside a room
@@ -260,170 +393,245 @@ public class ClientMainGUIController {
     }
     
     /***************************************************************************
-     * Tries to connect to a server via the socket, and open I/O streams on it.
-     *
-     * @param serverName the name idetifying the server
-     * @throws UnknownHostException if the server's IP could not be found.
-     * @throws IOException if an error happenned when trying to connect to the
-     * server.
+     * Updates the user's presence state after the message TextArea changed:
+     * the user is TYPING while there is a message, until it pauses typing for
+     * TYPING_TIMEOUT (the session throttles what it tells the server).
+     * 
+     * @param text the text in the message TextArea ("" for no message).
      */
-    private void tryConnecting(String serverName)
-            throws UnknownHostException, IOException
+    private void userTyped(String text)
     {
-        // try connecting the socket to the server
-        InetAddress serverAddress = InetAddress.getByName(serverName);
-        SocketAddress socketAddress =
-                new InetSocketAddress(serverAddress, ChatRoomServer.PORT);
-        socket.connect(socketAddress);
-        
-        // open input/output streams on it to transfer messages
-        outStream = new ObjectOutputStream(socket.getOutputStream());
-        inStream = new ObjectInputStream(socket.getInputStream());
-        outStream.flush();
+        if (client == null) return;
+        if (text.isEmpty()) {
+            typingTimer.stop();
+            client.setPresence(PresenceState.ACTIVE);
+        }
+        else {
+            typingTimer.playFromStart();
+            client.setPresence(PresenceState.TYPING);
+        }
     }
     
     /***************************************************************************
-     * Tries to join a chatroom by requesting the server (assumes the client is
-     * already connected to a server, and has already opened 'inStream' and
-     * 'outStream').
-     * 
-     * @param newUsername the username we wish to join with.
-     * @return Null if the request was denied due to the username being occupied,
-     * or a list of the usernames of all clients participating in the chat if
-     * the request was confirmed and we entered the chat-room.
-     * @throws IOException if an error occured in the connection between the
-     * client and the server.
+     * Updates 'typingLabel' based on the users who are typing.
      */
-    @SuppressWarnings({"unchecked"}) // (for unchecked cast of generic type -
-                                     // which isn't present in older java versions)
-    private List<String> tryJoiningAs(String newUsername)
-            throws IOException
+    private void updateTypingLabel()
     {
-        // send a joining request message, with the new username as data
-        outStream.writeObject(new Message(Message.Type.JOIN, newUsername));
-        
-        try {
-            // collect the server's response
-            Message response = (Message) inStream.readObject();
-        
-            if (response.getType() == Message.Type.CONFIRM_JOIN) {
-                // if the server confirmed and we've joined the room - return
-                // the users list attached to the confirmation message
-                return (List<String>) response.getData();
-            }
-            else if (response.getType() != Message.Type.DENY_JOIN) {
-                // in case the message type is not a join response at all -
-                // something went wrong with the server
-                throw new IOException(
-                    "Got a message of unexpected type from server.");
-            }
-            else {
-                // if we reached here - the server denied the request, which can
-                // only mean that the username is already in use
-                return null;
-            }
-        }
-        catch (ClassNotFoundException e) {
-            // this will never happen, as long as the 'Message' class can be
-            // found in the controller's package; if it does happen - report
-            // the error and exit
-            e.printStackTrace();
-            System.exit(1);
-        }
-        catch (ClassCastException e) {
-            // this will happen if the server sent a confirmation message but
-            // didn't attach a list of usernames to it, or didn't sent a Message
-            // object at all; we relate to this as a communication error
-            throw new IOException("Got a cofirmation message with unexpected "
-                    + "data type from server.");
-        }
-        return null; // this will never be reached
+        if (typingUsers.isEmpty())
+            typingLabel.setText("");
+        else if (typingUsers.size() == 1)
+            typingLabel.setText(String.format(ONE_TYPING_MSG, typingUsers.first()));
+        else if (typingUsers.size() == 2)
+            typingLabel.setText(String.format(TWO_TYPING_MSG, typingUsers.first(),
+                    typingUsers.last()));
+        else
+            typingLabel.setText(String.format(MANY_TYPING_MSG, typingUsers.size()));
     }
     
     /***************************************************************************
-     * Disconnects from the current server (while closing all data streams).
+     * Disconnects from the current server (while closing the session).
      */
     private void disconnect()
     {
-        try {
-            // close I/O strems
-            inStream.close();
-            outStream.close();
-            // disconnect the socket
-            socket.close();
-            socket = new Socket();
-            // set 'connected' and 'username' as wer'e no longer connected
-            connected.set(false);
-            username.set("");
-        }
-        catch (IOException e) {
-            // an exception trying to disconnect is fatal - exit the client
-            e.printStackTrace();
-            System.exit(1);
-        }
+        // close the session (does nothing if it's already closed)
+        client.close();
+        client = null;
+        resuming = false;
+        // set 'connected' and 'username' as wer'e no longer connected
+        connected.set(false);
+        username.set("");
     }
     
     /***************************************************************************
      * Processes the operatiion of joining a chat-room (tries to connect to the
      * server, requests joining to its chat-room, updates the client's state,
      * and displays the relevant error messages).
+     * The networking is done in the background; the "Join Room" button is
+     * disabled until it completes.
      * 
      * @param serverName the name of the server hosting the chat-room.
      * @param newUsername the username identifying the joining client.
+     * @param secure a boolean stating whether to connect over TLS.
      */
-    private void processJoin(String serverName, String newUsername)
+    private void processJoin(String serverName, String newUsername, boolean secure)
     {
-        try {
-            // try connecting to the server
-            tryConnecting(serverName);
-        }
-        catch (UnknownHostException e) {
-            // if the host could not be found - notify the user and end
-            new Alert(Alert.AlertType.ERROR,
-                    String.format(UNKNOWN_SERVER_MSG, serverName))
-                    .showAndWait();
-            return;
-        }
-        catch (IOException e) {
-            // if an error occured - notify the user and end
-            new Alert(Alert.AlertType.ERROR,
-                    String.format(CONNECT_FAILED_MSG, serverName))
-                    .showAndWait();
-            return;
+        // the server name may end with ":port" if the server doesn't listen
+        // on the default port
+        String host = serverName;
+        int port = ChatRoomServer.PORT;
+        int colon = serverName.lastIndexOf(':');
+        if (colon > 0 && serverName.indexOf(':') == colon) {
+            try {
+                port = Integer.parseInt(serverName.substring(colon + 1));
+                host = serverName.substring(0, colon);
+            }
+            catch (NumberFormatException e) {
+                // not a port - treat the whole name as the host's name
+            }
         }
         
-        // try joining the chatroom
-        List<String> chatUsers;
-        try {
-            chatUsers = tryJoiningAs(newUsername);
+        ChatClient newClient = new ChatClient(host, port, secure,
+                new SessionListener());
+        joinButton.disableProperty().set(true);
+        openTranscriptLog(serverName, newUsername);
+        
+        // try connecting to the server, and then joining the chatroom
+        newClient.connect().whenComplete((r, e) -> Platform.runLater(() -> {
+            if (e != null) {
+                // if connecting failed - notify the user and end
+                joinButton.disableProperty().set(false);
+                transcript.clear();
+                String format = unwrap(e) instanceof UnknownHostException ?
+                        UNKNOWN_SERVER_MSG : CONNECT_FAILED_MSG;
+                new Alert(Alert.AlertType.ERROR, String.format(format, serverName))
+                        .showAndWait();
+                return;
+            }
+            newClient.join(newUsername).whenComplete((chatUsers, e1) ->
+                    Platform.runLater(() -> {
+                        joinCompleted(newClient, serverName, newUsername,
+                                chatUsers, e1); }));
+        }));
+    }
+    
+    /***************************************************************************
+     * Completes the operation of joining a chat-room, after the server
+     * responded to the join request (runs on the JavaFX thread).
+     * 
+     * @param newClient the session that requested joining.
+     * @param serverName the name of the server hosting the chat-room.
+     * @param newUsername the username identifying the joining client.
+     * @param chatUsers the users list returned by the session, or null if
+     * the username is already used.
+     * @param error the exception thrown while joining, or null if there was
+     * none.
+     */
+    private void joinCompleted(ChatClient newClient, String serverName,
+            String newUsername, List<String> chatUsers, Throwable error)
+    {
+        joinButton.disableProperty().set(false);
+        if (chatUsers == null) transcript.clear(); // (drop the cached lines)
+        if (unwrap(error) instanceof JoinRejectedException) {
+            // if the server is overloaded - tell the user why it rejected us
+            new Alert(Alert.AlertType.ERROR, String.format(REJECTED_MSG,
+                    serverName, unwrap(error).getMessage()))
+                    .showAndWait();
         }
-        catch (IOException e1) {
-            // if an error occured - notify the user, disconnect, and end
+        else if (error != null) {
+            // if an error occured - notify the user and end (the session
+            // closed itself)
             new Alert(Alert.AlertType.ERROR,
                     String.format(FAILED_SERVER_COM, serverName))
                     .showAndWait();
-            disconnect();
-            return;
         }
-        
-        if (chatUsers != null) {
-            // if we reached here - we successfuly joined the room; set 'connected',
-            // 'username', and usersList
+        else if (chatUsers != null) {
+            // if we reached here - we successfuly joined the room; set 'client',
+            // 'connected' and 'username' (usersList was already given the
+            // users, in order with the room's messages - see SessionListener)
+            client = newClient;
             connected.set(true);
             username.set(newUsername);
-            usersList.addAll(chatUsers);
-            // fire a message listening thread
-            fireMsgListener();
         }
         else {
-            // if 'tryJoiningAs' returned null - username is already used
+            // if the session returned null - username is already used
             new Alert(Alert.AlertType.ERROR,
-                    String.format(USED_USERNAME_MSG, serverName, username.get()))
+                    String.format(USED_USERNAME_MSG, serverName, newUsername))
                     .showAndWait();
-            disconnect();
         }
     }
     
+    /***************************************************************************
+     * Tries to resume the current session after the server shut down, once
+     * the delay it asked for passes (runs on the JavaFX thread). If the server
+     * is not back yet, the client tries again, waiting twice as long.
+     * 
+     * @param delay the time (in milliseconds) to wait before trying.
+     * @param attempts the number of attempts left.
+     */
+    private void resumeSession(long delay, int attempts)
+    {
+        ChatClient previous = client;
+        PauseTransition wait = new PauseTransition(Duration.millis(delay));
+        wait.setOnFinished((e) -> {
+            if (client != previous) return; // (the user left meanwhile)
+            ChatClient newClient = new ChatClient(previous, new SessionListener());
+            newClient.connect().thenCompose((r) -> newClient.resume(previous))
+                    .whenComplete((chatUsers, error) -> Platform.runLater(() -> {
+                if (client != previous) {
+                    // (the user left meanwhile - drop the users the session
+                    // may have reported)
+                    newClient.close();
+                    if (client == null) usersList.clear();
+                }
+                else if (chatUsers != null) {
+                    // we're back - the chat-room may have changed meanwhile
+                    // (usersList was already given its users)
+                    client = newClient;
+                    resuming = false;
+                    transcript.appendNotice(RESUMED_NOTICE);
+                }
+                else if (error != null && attempts > 1) {
+                    resumeSession(delay * 2, attempts - 1);
+                }
+                else {
+                    new Alert(Alert.AlertType.ERROR, RESUME_FAILED_MSG)
+                            .showAndWait();
+                    disconnect();
+                } }));
+        });
+        wait.play();
+    }
+    
+    /***************************************************************************
+     * Opens the local log of the chat-room's transcript the user sees on a
+     * server and attaches it to the transcript, so its last lines are shown
+     * right away and the lines received from now on are kept. The chat works
+     * as usual (without a log) if the log can't be opened - e.g. if another
+     * client on this machine uses it.
+     * 
+     * @param serverName the name of the server hosting the chat-room.
+     * @param username the username the user joins with.
+     */
+    private void openTranscriptLog(String serverName, String username)
+    {
+        try {
+            transcript.attachLog(TranscriptLog.open(serverName, username));
+        }
+        catch (IOException e) {
+            // no log this time - the transcript starts empty
+        }
+    }
+    
+    /***************************************************************************
+     * Loads older lines of the transcript from its local log (if there are
+     * any), keeping the lines the user was looking at in place.
+     */
+    private void loadOlderLines()
+    {
+        double oldHeight = chatTextFlow.getHeight();
+        if (transcript.loadOlder() == 0) return;
+        
+        // lay the new lines out right away, and scroll down by their height
+        chatScrollPane.layout();
+        double newHeight = chatTextFlow.getHeight();
+        double viewport = chatScrollPane.getViewportBounds().getHeight();
+        if (newHeight > viewport)
+            chatScrollPane.setVvalue((newHeight - oldHeight) / (newHeight - viewport));
+    }
+    
+    /***************************************************************************
+     * Gets the exception a CompletableFuture was completed with.
+     * 
+     * @param e the exception passed to a completion handler.
+     * @return the exception itself, or its cause if it is a wrapping
+     * CompletionException.
+     */
+    private static Throwable unwrap(Throwable e)
+    {
+        return e instanceof CompletionException && e.getCause() != null ?
+                e.getCause() : e;
+    }
+    
     /***************************************************************************
      * A static method for determining whether a username is valid in a
      * chat-room.
@@ -477,7 +685,7 @@ public class ClientMainGUIController {
             // verify the user name
             if (isValidUsername(newUsername)) {
                 // process the joining request
-                processJoin(serverName, newUsername);
+                processJoin(serverName, newUsername, joinWindowCtrl.isSecure());
             }
             else {
                 // if it's not valid - notify the user.
@@ -490,19 +698,25 @@ public class ClientMainGUIController {
     
     /***************************************************************************
      * Tries to leave the currently associated chat-room (only if the client is
-     * not connected to any server).
+     * connected to a server).
      * Displays appropriate error message if the operation failed.
      */
     private void tryLeavingRoom()
     {
+        // while waiting to resume the session there's no server to tell
+        if (resuming) {
+            disconnect();
+            return;
+        }
+        
         // leaving is relevant only when connected
         if (connected.get()) {
             try {
-                // send a "leave" message to the server
-                outStream.writeObject(new Message(Message.Type.LEAVE,
-                        username.get()));
+                // send a "leave" message to the server, and wait for it to be
+                // written (it is tiny, and the window may be closing)
+                client.leave().join();
             }
-            catch (IOException e) {
+            catch (CompletionException e) {
                 // if an error occured - notify the user and end
                 new Alert(Alert.AlertType.ERROR, LEAVE_ERROR_MSG).showAndWait();
                 return;
@@ -525,17 +739,20 @@ public class ClientMainGUIController {
     {
         // sending text message is relevant only when connected
         if (connected.get()) {
-            try {
-                // try sending the message through the socket
-                outStream.writeObject(new Message(
-                        Message.Type.TEXT,
-                        username.get(),
-                        msgTextArea.getText()));
+            String text = msgTextArea.getText();
+            if (text.startsWith(DIRECT_COMMAND)) {
+                // a direct message command - send it to its recipient only
+                if (!trySendDirectMsg(text.substring(DIRECT_COMMAND.length())))
+                    return;
             }
-            catch (IOException e) {
-                // if an error occured - notify the user and end
-                new Alert(Alert.AlertType.ERROR, FAILED_SEND_TEXT_MSG).showAndWait();
-                return;
+            else {
+                // try sending the message in the background, and notify the
+                // user if an error occured
+                client.sendText(text).whenComplete((r, e) -> {
+                    if (e != null)
+                        Platform.runLater(() -> { new Alert(Alert.AlertType.ERROR,
+                                FAILED_SEND_TEXT_MSG).showAndWait(); });
+                });
             }
             
             // clear the message field
@@ -544,115 +761,240 @@ public class ClientMainGUIController {
     }
     
     /***************************************************************************
-     * Processes a message read from the server (which may indicate that a new
-     * user is joining the chatroom, a new user is leaving the chatroom, or
-     * some user sent a text message).
-     * If the message is of type CONFIRM_JOIN or DENY_JOIN - does nothing.
-     *
-     * @param message the collected message
+     * Tries to send a direct message, and displays it (or what became of it)
+     * in the transcript once the server acks it.
+     * 
+     * @param command the direct message command, without its prefix: the
+     * recipient's username, a space, and the text.
+     * @return A boolean stating whether the command was well formed (if not -
+     * an error message was displayed, and nothing was sent).
      */
-    private void processMessage(Message message)
+    private boolean trySendDirectMsg(String command)
     {
-        // collect the sender
-        String sendingUser = message.getUsername();
-        
-        // act according to the message type
-        switch (message.getType()) {
-            case TEXT:
-                // for a text message - simply print out the message
-                Text sender = new Text(message.getUsername() + ": ");
-                sender.setFont(BOLD_FONT);
-                Text text = new Text(message.getData().toString() + '\n');
-                text.setFont(REGULAR_FONT);
-                Platform.runLater(() -> 
-                    { chatTextFlow.getChildren().addAll(sender, text);} );
-                break;
-            case JOIN:
-                // for a join message - add the user and print out a message
-                Text joinText = new Text(sendingUser + " joined.\n");
-                joinText.setFont(BOLD_FONT);
-                Platform.runLater(() -> {
-                    chatTextFlow.getChildren().add(joinText);
-                    usersList.add(sendingUser); });
-                break;
-            case LEAVE:
-                // for a leave message - remove the user and print out a message
-                Text leaveText = new Text(sendingUser + " left.\n");
-                leaveText.setFont(BOLD_FONT);
-                Platform.runLater(() -> {
-                    chatTextFlow.getChildren().add(leaveText);
-                    usersList.remove(sendingUser); });
-                break;
-            default:
-                break;
+        // split the recipient from the text
+        int space = command.indexOf(' ');
+        if (space <= 0) {
+            new Alert(Alert.AlertType.ERROR,
+                    String.format(DIRECT_USAGE_MSG, DIRECT_COMMAND)).showAndWait();
+            return false;
         }
+        String recipient = command.substring(0, space);
+        String text = command.substring(space + 1);
+        
+        // send it in the background, and report the server's ack
+        client.sendDirect(recipient, text).whenComplete((status, e) -> {
+            if (e != null) {
+                Platform.runLater(() -> { new Alert(Alert.AlertType.ERROR,
+                        FAILED_SEND_TEXT_MSG).showAndWait(); });
+                return;
+            }
+            switch (status) {
+                case DELIVERED:
+                    transcript.appendText(String.format(DIRECT_TO_HEAD, recipient), text);
+                    break;
+                case QUEUED:
+                    transcript.appendText(String.format(DIRECT_TO_HEAD, recipient), text);
+                    transcript.appendNotice(String.format(DIRECT_QUEUED_NOTICE, recipient));
+                    break;
+                case QUEUE_FULL:
+                    transcript.appendNotice(String.format(DIRECT_QUEUE_FULL_NOTICE, recipient));
+                    break;
+                default:
+                    transcript.appendNotice(String.format(DIRECT_UNKNOWN_USER_NOTICE, recipient));
+                    break;
+            }
+        });
+        return true;
     }
     
     /***************************************************************************
-     * continuously waits for messages from the server, and processes them.
-     * This is the main method of the message processing thread.
+     * Tries to send a file (chosen by the user) to the user selected in the
+     * participants list, and reports what became of it in the transcript.
+     * Displays appropriate error message if no user is selected.
      */
-    private void listenToMsgs()
+    private void trySendFile()
     {
-        // a boolean stating whether we should continue reading
-        boolean keepReading = true;
+        // sending a file is relevant only when connected
+        if (!connected.get()) return;
+        String recipient = usersListView.getSelectionModel().getSelectedItem();
+        if (recipient == null || recipient.equals(username.get())) {
+            new Alert(Alert.AlertType.ERROR, NO_FILE_RECIPIENT_MSG).showAndWait();
+            return;
+        }
         
-        // keep reading until an interruption
-        while (keepReading) {
-            try {
-                // try to read a message, and process it
-                Message message = (Message) inStream.readObject();
-                processMessage(message);
-            }
-            catch (EOFException e) {
-                // in case the server closed - tell the user, disconnect and end
-                Platform.runLater(() -> { new Alert(Alert.AlertType.ERROR,
-                        SERVER_EOF_MSG).showAndWait();
-                        disconnect(); });
-                keepReading = false;
-            }
-            catch (IOException e1) {
-                // in case of an error occured
-                if (connected.get()) {
-                    // if we are connected to a server and an I\O error occured -
-                    // tell the user and disconnect
-                    Platform.runLater(() -> { new Alert(Alert.AlertType.ERROR,
-                            FAILED_CONNECTED_READ).showAndWait();
-                            disconnect(); });
-                    keepReading = false;
-                }
-                else {
-                    // otherwise - it means that 'Leave Room' was pressed, so
-                    // just terminate the message reading thread
-                    keepReading = false;
-                }
-            }
-            catch (ClassNotFoundException e2) {
-                // we reach here in case the Message class is not in the same
-                // package as this controller class - this is fatal, terminate
-                // the client
-                e2.printStackTrace();
-                System.exit(1);
-            }
-            catch (ClassCastException e2) {
-                // we reach here if the server sent an object which is not
-                // a Message; we relate to this as a communication error
-                Platform.runLater(() -> { new Alert(Alert.AlertType.ERROR,
-                        UNEXPECTED_OBJECT_MSG).showAndWait();
-                        disconnect(); });
-                keepReading = false;
-            }
+        // let the user choose the file
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle(SEND_FILE_TITLE);
+        File file = chooser.showOpenDialog(sendFileButton.getScene().getWindow());
+        if (file == null) return; // (cancelled)
+        
+        // send it in the background (the transfer is interleaved with the
+        // chat), and report the outcome
+        String fileName = file.getName();
+        transcript.appendNotice(String.format(FILE_OFFERED_NOTICE, recipient, fileName));
+        client.sendFile(recipient, file.toPath()).whenComplete((delivered, e) -> {
+            String format = e != null ? FILE_SEND_FAILED_NOTICE :
+                    delivered ? FILE_SENT_NOTICE : FILE_DECLINED_NOTICE;
+            transcript.appendNotice(String.format(format, recipient, fileName));
+        });
+    }
+    
+    /***************************************************************************
+     * Asks the user whether to accept a file offered by another user, and
+     * where to save it; then receives it (or declines it), and reports what
+     * became of it in the transcript.
+     * 
+     * @param offeringClient the session the file was offered to.
+     * @param sender the name of the offering user.
+     * @param offer the offer.
+     */
+    private void answerFileOffer(ChatClient offeringClient, String sender, FileOffer offer)
+    {
+        // the offer is ignored if the session ended meanwhile
+        if (offeringClient == null) return;
+        
+        Optional<ButtonType> answer = new Alert(Alert.AlertType.CONFIRMATION,
+                String.format(FILE_OFFER_PROMPT, sender, offer.getFileName(),
+                        offer.getSize()), ButtonType.YES, ButtonType.NO).showAndWait();
+        File file = null;
+        if (answer.isPresent() && answer.get() == ButtonType.YES) {
+            FileChooser chooser = new FileChooser();
+            chooser.setTitle(SAVE_FILE_TITLE);
+            chooser.setInitialFileName(offer.getFileName());
+            file = chooser.showSaveDialog(sendFileButton.getScene().getWindow());
+        }
+        if (file == null) {
+            offeringClient.declineFile(sender, offer);
+            return;
         }
+        
+        offeringClient.acceptFile(sender, offer, file.toPath()).whenComplete((path, e) -> {
+            if (e != null)
+                transcript.appendNotice(String.format(FILE_RECEIVE_FAILED_NOTICE,
+                        sender, offer.getFileName()));
+            else
+                transcript.appendNotice(String.format(FILE_RECEIVED_NOTICE,
+                        sender, offer.getFileName(), path));
+        });
     }
     
     /***************************************************************************
-     * Fires a message-reading thread associated with this client (it
-     * automatically stops when necessary).
+     * This class listens to the messages of a session on behalf of the
+     * controller. Its methods run on the session's I/O thread; the transcript
+     * and the users list are safe to update from there, and everything else
+     * is marshalled to the JavaFX thread.
      */
-    private void fireMsgListener()
+    private class SessionListener implements ChatClient.Listener
     {
-        // create and fire a new thread that runs 'listenToMsgs'
-        new Thread(() -> { listenToMsgs(); }).start();
+        // the time (in milliseconds) the server asked to wait before resuming
+        // the session (-1 if it didn't shut down)
+        private volatile long retryAfter = -1;
+        
+        @Override public void textReceived(String sender, String text)
+        {
+            // for a text message - simply print out the message
+            transcript.appendText(sender, text);
+        }
+        
+        @Override public void joined(List<String> chatUsers)
+        {
+            // (reported here rather than when the join completes, so that the
+            // users joining and leaving right after it are not lost)
+            usersList.reset(chatUsers);
+        }
+        
+        @Override public void userJoined(String joiningUser)
+        {
+            // for a join message - add the user and print out a message
+            transcript.appendNotice(joiningUser + " joined.");
+            usersList.add(joiningUser); // (batched by the model itself)
+        }
+        
+        @Override public void userLeft(String leavingUser)
+        {
+            // for a leave message - remove the user and print out a message
+            transcript.appendNotice(leavingUser + " left.");
+            usersList.remove(leavingUser); // (batched by the model itself)
+            Platform.runLater(() -> {
+                if (typingUsers.remove(leavingUser)) updateTypingLabel(); });
+        }
+        
+        @Override public void directReceived(String sender, String text)
+        {
+            // for a direct message - print it out, marked as such
+            transcript.appendText(String.format(DIRECT_FROM_HEAD, sender), text);
+        }
+        
+        @Override public void directAcknowledged(DirectAck ack)
+        {
+            // a later ack can only tell that a queued message was delivered
+            if (ack.getStatus() == DirectAck.Status.DELIVERED)
+                transcript.appendNotice(String.format(DIRECT_DELIVERED_NOTICE,
+                        ack.getRecipient()));
+        }
+        
+        @Override public void messagesMissed(long count)
+        {
+            // the transcript has a gap - tell the user
+            transcript.appendNotice(String.format(MISSED_MSGS_NOTICE, count));
+        }
+        
+        @Override public void presenceChanged(Map<String, PresenceState> changes)
+        {
+            // update the users who are typing (on the JavaFX thread)
+            Platform.runLater(() -> {
+                for (Map.Entry<String, PresenceState> change : changes.entrySet()) {
+                    if (change.getValue() == PresenceState.TYPING)
+                        typingUsers.add(change.getKey());
+                    else
+                        typingUsers.remove(change.getKey());
+                }
+                typingUsers.remove(username.get()); // (we know we're typing)
+                updateTypingLabel(); });
+        }
+        
+        @Override public void fileOffered(String sender, FileOffer offer)
+        {
+            // ask the user (on the JavaFX thread)
+            Platform.runLater(() -> { answerFileOffer(client, sender, offer); });
+        }
+        
+        @Override public void serverShuttingDown(long retryAfter)
+        {
+            // remember when to try resuming (the disconnection comes next)
+            this.retryAfter = retryAfter;
+            transcript.appendNotice(String.format(SERVER_RESTART_NOTICE,
+                    (retryAfter + 999) / 1000));
+        }
+        
+        @Override public void disconnected(Exception cause)
+        {
+            // if the server shut down, and said when it'll be back - resume
+            // the session then
+            if (cause instanceof EOFException && retryAfter >= 0) {
+                Platform.runLater(() -> {
+                    if (!connected.get()) return;
+                    resuming = true;
+                    resumeSession(retryAfter, RESUME_ATTEMPTS); });
+                return;
+            }
+            
+
+            // pick a message according to the reason: the server closed the
+            // connection, sent an unexpected object, or reading failed
+            String msg;
+            if (cause instanceof EOFException)
+                msg = SERVER_EOF_MSG;
+            else if (cause instanceof IOException)
+                msg = FAILED_CONNECTED_READ;
+            else
+                msg = UNEXPECTED_OBJECT_MSG;
+            
+            // tell the user and disconnect
+            Platform.runLater(() -> {
+                new Alert(Alert.AlertType.ERROR, msg).showAndWait();
+                if (connected.get()) disconnect(); });
+        }
     }
     
     /***************************************************************************
@@ -0,0 +1,323 @@
+package chatRoomProject;
+
+import java.net.Socket;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/*******************************************************************************
+ * This class represents the server's end of a session with a client that
+ * joined the chat-room, as part of the Chat-Room App (whose main method and
+ * full description can be found in ChatRoomClient.java).
+ * A session owns the client's socket and I/O streams. Messages are sent to the
+ * client through prioritized outbound lanes, drained by a dedicated writer
+ * thread: control messages (joins, leaves, join responses and acks) always
+ * jump ahead of queued chat messages, which in turn jump ahead of queued file
+ * chunks, while the messages of each lane keep their relative order. This way
+ * a flood of text doesn't delay membership updates, a file transfer doesn't
+ * delay the chat, and a slow client doesn't slow down the threads that send to
+ * it.
+ *
+ * @author Nadav Kahlon
+ */
+public class ClientSession
+{
+    /***************************************************************************
+     * An enum representing the outbound lanes, from the most urgent one to the
+     * least urgent one:
+     * - CONTROL: JOIN, LEAVE, CONFIRM_JOIN, DENY_JOIN, DIRECT_ACK, FILE_ACK and
+     *   the other control messages (e.g. SHUTDOWN).
+     * - TEXT: TEXT, DIRECT and FILE_OFFER messages.
+     * - BULK: FILE_CHUNK messages.
+     */
+    public enum Lane {CONTROL, TEXT, BULK};
+
+    /***************************************************************************
+     * An interface for objects that get notified when writing to a session's
+     * client fails (the session is already closed by then).
+     */
+    public interface FailureHandler
+    {
+        /***********************************************************************
+         * Called once, when writing to the session's client failed, or when
+         * the client fell too far behind.
+         *
+         * @param session the failed session.
+         */
+        void writeFailed(ClientSession session);
+    }
+
+    /***************************************************************************
+     * Constants used by the class
+     */
+
+    // the maximal number of messages queued in the TEXT lane; a client that
+    // falls this far behind is considered failed
+    public static final int MAX_QUEUED_TEXT = 10000;
+
+    // the maximal number of messages queued in the BULK lane; chunks beyond it
+    // are refused (their transfers are flow-controlled, so only a sender that
+    // ignores the flow control gets here)
+    public static final int MAX_QUEUED_BULK = 256;
+
+    // the object-output-stream's table of written objects is reset after this
+    // many messages, so it doesn't grow for as long as the session lives
+    private static final int RESET_INTERVAL = 256;
+
+    /***************************************************************************
+     * Attributes of a session
+     */
+
+    // the client's username
+    private final String username;
+
+    // the client's socket, and the I/O streams opened on it
+    private final Socket socket;
+    private final ObjectInputStream inStream;
+    private final ObjectOutputStream outStream;
+
+    // the optional protocol features enabled for the client (see JoinRequest)
+    private final EnumSet<JoinRequest.Feature> features;
+
+    // the token with which the client may resume the session after a restart
+    private final String resumeToken;
+
+    // the handler to notify if writing fails
+    private final FailureHandler failureHandler;
+
+    // the sequence number up to which the client acked the room messages
+    private volatile long acked;
+
+    // the queued messages of each lane (indexed by Lane.ordinal()); guarded
+    // by 'this'
+    private final ArrayDeque<Message>[] lanes;
+
+    // a boolean stating whether the session was closed; guarded by 'this'
+    private boolean closed;
+
+    // the thread writing the queued messages to the client
+    private final Thread writer;
+
+    /***************************************************************************
+     * Constructor: creates a new session, and starts its writer thread.
+     *
+     * @param username the client's username.
+     * @param socket the client's socket.
+     * @param inStream the object-input-stream opened on the socket.
+     * @param outStream the object-output-stream opened on the socket (the
+     * session flushes it whenever it runs out of queued messages, so it may be
+     * buffered).
+     * @param features the optional protocol features enabled for the client.
+     * @param resumeToken the token with which the client may resume the
+     * session after a restart.
+     * @param failureHandler the handler to notify if writing fails.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"}) // (for the generic array)
+    public ClientSession(String username, Socket socket, ObjectInputStream inStream,
+            ObjectOutputStream outStream, EnumSet<JoinRequest.Feature> features,
+            String resumeToken, FailureHandler failureHandler)
+    {
+        this.username = username;
+        this.socket = socket;
+        this.inStream = inStream;
+        this.outStream = outStream;
+        this.features = EnumSet.copyOf(features);
+        this.resumeToken = resumeToken;
+        this.failureHandler = failureHandler;
+        this.acked = 0;
+        this.lanes = new ArrayDeque[Lane.values().length];
+        for (int i = 0; i < lanes.length; i++) lanes[i] = new ArrayDeque<>();
+        this.closed = false;
+        this.writer = new Thread(() -> { writeQueuedMsgs(); },
+                "writer-" + username);
+        this.writer.start();
+    }
+
+    /***************************************************************************
+     * Gets the lane through which a certain type of messages is sent.
+     *
+     * @param type the type of the message.
+     * @return the lane of the message.
+     */
+    public static Lane laneOf(Message.Type type)
+    {
+        switch (type) {
+            case TEXT:
+            case DIRECT:
+            case FILE_OFFER:
+                return Lane.TEXT;
+            case FILE_CHUNK:
+                return Lane.BULK;
+            default:
+                return Lane.CONTROL;
+        }
+    }
+
+    /***************************************************************************
+     * Queues a message to be sent to the client, through its lane.
+     *
+     * @param msg the message to send.
+     * @return A boolean stating whether the message was queued (it isn't if the
+     * session is closed, if the BULK lane is full, or if the client fell too
+     * far behind on the TEXT lane - in which case the session is closed and the
+     * failure handler is notified).
+     */
+    public boolean send(Message msg)
+    {
+        Lane lane = laneOf(msg.getType());
+        synchronized (this) {
+            if (closed) return false;
+            ArrayDeque<Message> queue = lanes[lane.ordinal()];
+            if (lane == Lane.BULK && queue.size() >= MAX_QUEUED_BULK) return false;
+            if (lane != Lane.TEXT || queue.size() < MAX_QUEUED_TEXT) {
+                queue.add(msg);
+                notifyAll();
+                return true;
+            }
+        }
+        // the client fell too far behind
+        fail();
+        return false;
+    }
+
+    /***************************************************************************
+     * Closes the session: closes the client's socket and streams, and stops
+     * the writer thread (messages which are still queued are dropped). Does
+     * nothing if the session is already closed.
+     *
+     * @throws IOException if closing the socket failed.
+     */
+    public void close() throws IOException
+    {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        // closing the socket closes its streams as well, and interrupts a
+        // writer blocked on them
+        socket.close();
+    }
+
+    /***************************************************************************
+     * Getters for the session's attributes
+     */
+
+    public String getUsername() { return username; }
+    public String getResumeToken() { return resumeToken; }
+    public InetAddress getInetAddress() { return socket.getInetAddress(); }
+    public ObjectInputStream getInStream() { return inStream; }
+
+    /***************************************************************************
+     * Checks whether an optional protocol feature is enabled for the client.
+     *
+     * @param feature the feature in question.
+     * @return A boolean stating whether the feature is enabled.
+     */
+    public boolean hasFeature(JoinRequest.Feature feature)
+    {
+        return features.contains(feature);
+    }
+
+    /***************************************************************************
+     * Records a cumulative ack of room messages from the client (acks never
+     * move backwards).
+     *
+     * @param seq the sequence number up to which the client acked.
+     */
+    public synchronized void acknowledge(long seq)
+    {
+        if (seq > acked) acked = seq;
+    }
+
+    /***************************************************************************
+     * Gets the sequence number up to which the client acked the room messages.
+     *
+     * @return the sequence number.
+     */
+    public long getAcked()
+    {
+        return acked;
+    }
+
+    /***************************************************************************
+     * Takes the next message to write: the oldest message of the most urgent
+     * non-empty lane. Waits while all lanes are empty.
+     *
+     * @param flushFirst a boolean stating whether the output stream should be
+     * flushed before waiting (i.e. messages were written since the last flush).
+     * @return the message, or null if the session was closed.
+     * @throws IOException if flushing failed.
+     * @throws InterruptedException if the writer was interrupted while waiting.
+     */
+    private Message takeNext(boolean flushFirst)
+            throws IOException, InterruptedException
+    {
+        while (true) {
+            synchronized (this) {
+                if (closed) return null;
+                for (ArrayDeque<Message> lane : lanes)
+                    if (!lane.isEmpty()) return lane.poll();
+                if (!flushFirst) {
+                    wait();
+                    continue;
+                }
+            }
+            // nothing to write - flush what was written so far, and look again
+            // (the flush is done without holding the lock, so that threads
+            // sending to a slow client never wait on its socket)
+            outStream.flush();
+            flushFirst = false;
+        }
+    }
+
+    /***************************************************************************
+     * Continuously writes the queued messages to the client, until the session
+     * is closed or writing fails.
+     * This is the main method of the session's writer thread.
+     */
+    private void writeQueuedMsgs()
+    {
+        try {
+            int sinceReset = 0;
+            boolean unflushed = false;
+            Message msg;
+            while ((msg = takeNext(unflushed)) != null) {
+                outStream.writeObject(msg);
+                unflushed = true;
+                // (file chunks are big, so they are never kept in the table)
+                if (++sinceReset == RESET_INTERVAL
+                        || msg.getType() == Message.Type.FILE_CHUNK) {
+                    outStream.reset();
+                    sinceReset = 0;
+                }
+            }
+        }
+        catch (IOException | InterruptedException e) {
+            fail();
+        }
+    }
+
+    /***************************************************************************
+     * Closes the session after a failure, and notifies the failure handler
+     * (unless the session was already closed).
+     */
+    private void fail()
+    {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            // the failure handler deals with the client either way
+        }
+        failureHandler.writeFailed(this);
+    }
+}
@@ -0,0 +1,152 @@
+package chatRoomProject;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.DataFormatException;
+
+/*******************************************************************************
+ * This class represents the deflated payload of a large TEXT message, as part
+ * of the Chat-Room App (whose main method and full description can be found in
+ * ChatRoomClient.java).
+ * Clients that negotiated the COMPRESSION feature (see JoinRequest) send texts
+ * of at least THRESHOLD characters as CompressedText objects instead of
+ * Strings. The server relays such payloads to other clients that negotiated
+ * the feature without touching them, and inflates them (once per message)
+ * only for clients that didn't.
+ * CompressedText objects are IMMUTABLE.
+ *
+ * @author Nadav Kahlon
+ */
+public class CompressedText implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    
+    /***************************************************************************
+     * Constants used by the class
+     */
+
+    // texts shorter than this number of characters are never compressed
+    public static final int THRESHOLD = 1024;
+
+    // the maximal size (in UTF-8 bytes) of an inflated text; larger payloads
+    // are rejected when inflating, so a small payload can't blow up the heap
+    public static final int MAX_INFLATED_SIZE = 16 * 1024 * 1024;
+
+    /***************************************************************************
+     * Attributes of a compressed text
+     */
+
+    // the deflated UTF-8 bytes of the text
+    private final byte[] deflated;
+
+    // the number of UTF-8 bytes of the inflated text
+    private final int inflatedSize;
+
+    /***************************************************************************
+     * Constructor: creates a new compressed text out of its deflated bytes.
+     *
+     * @param deflated the deflated UTF-8 bytes (not copied).
+     * @param inflatedSize the number of UTF-8 bytes of the inflated text.
+     */
+    private CompressedText(byte[] deflated, int inflatedSize)
+    {
+        this.deflated = deflated;
+        this.inflatedSize = inflatedSize;
+    }
+
+    /***************************************************************************
+     * Compresses a text, if it is worth it.
+     *
+     * @param text the text to compress.
+     * @return the compressed text, or null if the text is shorter than
+     * THRESHOLD, longer than MAX_INFLATED_SIZE, or doesn't get any smaller
+     * by compressing it.
+     */
+    public static CompressedText compress(String text)
+    {
+        if (text.length() < THRESHOLD) return null;
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        if (raw.length > MAX_INFLATED_SIZE) return null;
+
+        // deflate the raw bytes into a buffer as large as the raw text (if it
+        // doesn't fit - compressing doesn't pay off)
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] buffer = new byte[raw.length];
+            int size = deflater.deflate(buffer);
+            if (!deflater.finished()) return null;
+            return new CompressedText(Arrays.copyOf(buffer, size), raw.length);
+        }
+        finally {
+            // release the deflater's native memory right away
+            deflater.end();
+        }
+    }
+
+    /***************************************************************************
+     * Inflates the text.
+     *
+     * @return the original text.
+     * @throws IOException if the payload is corrupted or too large.
+     */
+    public String inflate() throws IOException
+    {
+        if (inflatedSize < 0 || inflatedSize > MAX_INFLATED_SIZE)
+            throw new IOException("Compressed text is too large.");
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            byte[] raw = new byte[inflatedSize];
+            int size = 0;
+            while (!inflater.finished()) {
+                // once 'raw' is full, inflating may only consume the trailer
+                int n = size < raw.length ?
+                        inflater.inflate(raw, size, raw.length - size) :
+                        inflater.inflate(new byte[1]);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Compressed text is truncated.");
+                size += n;
+                // the payload must not inflate beyond the declared size
+                if (size > raw.length)
+                    throw new IOException("Compressed text is corrupted.");
+            }
+            if (size != raw.length)
+                throw new IOException("Compressed text is corrupted.");
+            return new String(raw, StandardCharsets.UTF_8);
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Compressed text is corrupted.", e);
+        }
+        finally {
+            // release the inflater's native memory right away
+            inflater.end();
+        }
+    }
+
+    /***************************************************************************
+     * Gets the size of the compressed payload.
+     *
+     * @return the number of deflated bytes.
+     */
+    public int getCompressedSize()
+    {
+        return deflated.length;
+    }
+
+    /***************************************************************************
+     * Gets the size of the original text.
+     *
+     * @return the number of UTF-8 bytes of the inflated text.
+     */
+    public int getInflatedSize()
+    {
+        return inflatedSize;
+    }
+}
@@ -0,0 +1,172 @@
+package chatRoomProject;
+
+import java.util.Random;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/*******************************************************************************
+ * This program measures what compressing large texts (see CompressedText)
+ * saves and costs, as part of the Chat-Room App (whose main method and full
+ * description can be found in ChatRoomClient.java).
+ * For texts of a few kinds (pasted logs, prose, and random characters, which
+ * hardly compress) and sizes, it prints:
+ * - the size of a serialized TEXT message carrying the text as it is, and
+ *   carrying it compressed;
+ * - the time it takes to compress the text, and to inflate it back (the best
+ *   of a few rounds);
+ * - the break-even bandwidth: the speed of a link below which sending the
+ *   compressed text (compressing and inflating included) is faster than
+ *   sending it as it is.
+ *
+ * @author Nadav Kahlon
+ */
+public class CompressionBenchmark
+{
+    /***************************************************************************
+     * Constants used by the program
+     */
+
+    // the sizes (in characters) of the texts measured
+    private static final int[] SIZES = { 1024, 16 * 1024, 256 * 1024, 1024 * 1024 };
+
+    // the number of rounds of each measurement (the best one is printed)
+    private static final int ROUNDS = 5;
+
+    // the minimal time (in nanoseconds) of a round; short operations are
+    // repeated until a round takes at least this long
+    private static final long ROUND_TIME = 50_000_000;
+
+    // the words prose texts are made of
+    private static final String[] WORDS = { "the", "server", "client", "room",
+            "message", "would", "could", "join", "leave", "send", "text", "and",
+            "we", "it", "is", "was", "not", "a", "to", "of", "in", "that",
+            "please", "thanks", "yes", "no", "maybe", "later", "today", "file" };
+
+    // the levels of the lines of log texts
+    private static final String[] LEVELS = { "INFO", "INFO", "INFO", "DEBUG",
+            "WARN", "ERROR" };
+
+    /***************************************************************************
+     * The main program.
+     *
+     * @param args unused.
+     * @throws IOException if serializing or inflating a text failed.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        System.out.printf("%8s %8s %10s %10s %6s %12s %12s %12s%n", "kind",
+                "chars", "raw (B)", "comp (B)", "ratio", "deflate (us)",
+                "inflate (us)", "even (MB/s)");
+        for (String kind : new String[] {"log", "prose", "random"}) {
+            for (int size : SIZES) {
+                String text = randomText(kind, size, new Random(size));
+                CompressedText compressed = CompressedText.compress(text);
+
+                long rawSize = wireSize(text);
+                if (compressed == null) {
+                    // compressing didn't pay off, so the text is sent as it is
+                    System.out.printf("%8s %8d %10d %10s%n", kind, size,
+                            rawSize, "-");
+                    continue;
+                }
+                long compressedSize = wireSize(compressed);
+                double deflate = best(() -> { CompressedText.compress(text); });
+                double inflate = best(() -> { compressed.inflate(); });
+
+                // (bytes saved per microsecond spent is megabytes per second)
+                double breakEven = (rawSize - compressedSize) / (deflate + inflate);
+                System.out.printf("%8s %8d %10d %10d %6.2f %12.1f %12.1f %12.1f%n",
+                        kind, size, rawSize, compressedSize,
+                        (double) compressedSize / rawSize, deflate, inflate,
+                        breakEven);
+            }
+        }
+    }
+
+    /***************************************************************************
+     * An operation on a text.
+     */
+    private interface TextOperation
+    {
+        void run() throws IOException;
+    }
+
+    /***************************************************************************
+     * Runs an operation a few rounds, each repeating it for at least
+     * ROUND_TIME.
+     *
+     * @param operation the operation.
+     * @return the time (in microseconds) of a single run, in the fastest round.
+     * @throws IOException if the operation failed.
+     */
+    private static double best(TextOperation operation) throws IOException
+    {
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            long elapsed;
+            int runs = 0;
+            do {
+                operation.run();
+                runs++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < ROUND_TIME);
+            best = Math.min(best, elapsed / 1000.0 / runs);
+        }
+        return best;
+    }
+
+    /***************************************************************************
+     * Gets the size of a TEXT message carrying certain data, as written to a
+     * client's stream.
+     *
+     * @param data the data of the message.
+     * @return the number of bytes of the serialized message.
+     * @throws IOException if serializing failed.
+     */
+    private static long wireSize(Serializable data) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new Message(Message.Type.TEXT, "user", data));
+        }
+        return bytes.size();
+    }
+
+    /***************************************************************************
+     * Creates a random text of a certain kind.
+     *
+     * @param kind the kind of the text: "log", "prose" or "random".
+     * @param size the number of characters of the text.
+     * @param random the random generator.
+     * @return the text.
+     */
+    private static String randomText(String kind, int size, Random random)
+    {
+        StringBuilder text = new StringBuilder(size + 128);
+        while (text.length() < size) {
+            switch (kind) {
+                case "log":
+                    text.append(String.format(
+                            "2026-10-18 12:%02d:%02d.%03d %-5s [worker-%d] "
+                            + "Request %d handled in %d ms%n",
+                            random.nextInt(60), random.nextInt(60),
+                            random.nextInt(1000),
+                            LEVELS[random.nextInt(LEVELS.length)],
+                            random.nextInt(8), random.nextInt(1_000_000),
+                            random.nextInt(500)));
+                    break;
+                case "prose":
+                    text.append(WORDS[random.nextInt(WORDS.length)]);
+                    text.append(random.nextInt(12) == 0 ? ". " : " ");
+                    break;
+                default:
+                    text.append((char)(' ' + 1 + random.nextInt(94)));
+            }
+        }
+        text.setLength(size);
+        return text.toString();
+    }
+}
@@ -0,0 +1,88 @@
+package chatRoomProject;
+
+import java.io.Serializable;
+
+/*******************************************************************************
+ * This class represents the data attached to a DIRECT_ACK message, as part of
+ * the Chat-Room App (whose main method and full description can be found in
+ * ChatRoomClient.java).
+ * The server sends a direct-ack to the sender of a direct message, telling
+ * what became of it. A message queued for an offline recipient is acked twice:
+ * once as QUEUED, and once more as DELIVERED when the recipient comes back
+ * (if the sender is still in the chat-room by then).
+ * DirectAck objects are IMMUTABLE.
+ *
+ * @author Nadav Kahlon
+ */
+public class DirectAck implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    
+    /***************************************************************************
+     * An enum representing the fate of a direct message:
+     * - DELIVERED: the message was handed to the recipient's connection.
+     * - QUEUED: the recipient is temporarily disconnected; the message will be
+     *   delivered if it comes back soon enough.
+     * - QUEUE_FULL: the recipient is temporarily disconnected, and too many
+     *   messages are already queued for it; the message was dropped.
+     * - UNKNOWN_USER: no such user is in the chat-room; the message was dropped.
+     */
+    public enum Status {DELIVERED, QUEUED, QUEUE_FULL, UNKNOWN_USER};
+
+    /***************************************************************************
+     * Attributes of a direct-ack
+     */
+
+    // the username of the direct message's recipient
+    private final String recipient;
+
+    // the identifier of the direct message
+    private final long id;
+
+    // the fate of the direct message
+    private final Status status;
+
+    /***************************************************************************
+     * Constructor: creates a new direct-ack.
+     *
+     * @param recipient the username of the direct message's recipient.
+     * @param id the identifier of the direct message.
+     * @param status the fate of the direct message.
+     */
+    public DirectAck(String recipient, long id, Status status)
+    {
+        this.recipient = recipient;
+        this.id = id;
+        this.status = status;
+    }
+
+    /***************************************************************************
+     * Gets the username of the direct message's recipient.
+     *
+     * @return the recipient's username.
+     */
+    public String getRecipient()
+    {
+        return recipient;
+    }
+
+    /***************************************************************************
+     * Gets the identifier of the direct message.
+     *
+     * @return the identifier.
+     */
+    public long getId()
+    {
+        return id;
+    }
+
+    /***************************************************************************
+     * Gets the fate of the direct message.
+     *
+     * @return the status.
+     */
+    public Status getStatus()
+    {
+        return status;
+    }
+}
@@ -0,0 +1,77 @@
+package chatRoomProject;
+
+import java.io.Serializable;
+
+/*******************************************************************************
+ * This class represents the data attached to a DIRECT message, as part of the
+ * Chat-Room App (whose main method and full description can be found in
+ * ChatRoomClient.java).
+ * A direct message is a text sent by one user to a single other user: it
+ * contains the recipient's username, an identifier chosen by the sending
+ * client (which the server echoes in its DirectAck), and the text itself - a
+ * String, or a CompressedText if compression was negotiated.
+ * DirectText objects are IMMUTABLE.
+ *
+ * @author Nadav Kahlon
+ */
+public class DirectText implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    
+    /***************************************************************************
+     * Attributes of a direct text
+     */
+
+    // the username of the recipient
+    private final String recipient;
+
+    // the identifier of the message (unique among the sender's messages)
+    private final long id;
+
+    // the text (a String or a CompressedText)
+    private final Serializable text;
+
+    /***************************************************************************
+     * Constructor: creates a new direct text.
+     *
+     * @param recipient the username of the recipient.
+     * @param id the identifier of the message.
+     * @param text the text (a String or a CompressedText).
+     */
+    public DirectText(String recipient, long id, Serializable text)
+    {
+        this.recipient = recipient;
+        this.id = id;
+        this.text = text;
+    }
+
+    /***************************************************************************
+     * Gets the username of the recipient.
+     *
+     * @return the recipient's username.
+     */
+    public String getRecipient()
+    {
+        return recipient;
+    }
+
+    /***************************************************************************
+     * Gets the identifier of the message.
+     *
+     * @return the identifier.
+     */
+    public long getId()
+    {
+        return id;
+    }
+
+    /***************************************************************************
+     * Gets the text of the message.
+     *
+     * @return the text: a String or a CompressedText.
+     */
+    public Object getText()
+    {
+        return text;
+    }
+}
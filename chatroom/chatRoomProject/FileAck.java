@@ -0,0 +1,65 @@
+package chatRoomProject;
+
+/*******************************************************************************
+ * This class represents the data attached to a FILE_ACK message, as part of
+ * the Chat-Room App (whose main method and full description can be found in
+ * ChatRoomClient.java).
+ * The receiver of a file acks the number of bytes it has stored so far: its
+ * first ack answers the offer (and tells the sender where to start from), and
+ * further acks grant the sender credit - the sender never has more than
+ * WINDOW bytes sent but not acked. This flow control is per transfer, so a
+ * slow receiver only slows down its own transfers.
+ * Two special offsets end a transfer early: DECLINED (sent by the receiver
+ * when it doesn't want the file), and CANCELLED (sent by the server when a
+ * transfer message couldn't be relayed, or by either side when it gives up).
+ * FileAck objects are IMMUTABLE.
+ *
+ * @author Nadav Kahlon
+ */
+public class FileAck extends FileTransferData
+{
+    private static final long serialVersionUID = 1L;
+    
+    /***************************************************************************
+     * Constants used by the class
+     */
+
+    // the maximal number of bytes a sender may have sent but not acked
+    public static final int WINDOW = 8 * FileChunk.SIZE;
+
+    // the special offsets ending a transfer early
+    public static final long DECLINED = -1;
+    public static final long CANCELLED = -2;
+
+    /***************************************************************************
+     * Attributes of a file ack
+     */
+
+    // the number of bytes the receiver has stored, or a special offset
+    private final long offset;
+
+    /***************************************************************************
+     * Constructor: creates a new file ack.
+     *
+     * @param recipient the username of the user the ack is meant for.
+     * @param transferId the identifier of the transfer.
+     * @param offset the number of bytes the receiver has stored, or DECLINED,
+     * or CANCELLED.
+     */
+    public FileAck(String recipient, String transferId, long offset)
+    {
+        super(recipient, transferId);
+        this.offset = offset;
+    }
+
+    /***************************************************************************
+     * Gets the acked offset.
+     *
+     * @return the number of bytes the receiver has stored, or DECLINED, or
+     * CANCELLED.
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+}
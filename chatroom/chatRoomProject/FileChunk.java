@@ -0,0 +1,73 @@
+package chatRoomProject;
+
+/*******************************************************************************
+ * This class represents the data attached to a FILE_CHUNK message, as part of
+ * the Chat-Room App (whose main method and full description can be found in
+ * ChatRoomClient.java).
+ * A chunk carries a piece of a file (at most MAX_SIZE bytes), and its offset
+ * in the file. Chunks are small, so the server can interleave them with chat
+ * messages without holding anyone up.
+ * FileChunk objects are IMMUTABLE (note that the class does not copy the
+ * bytes it is given, to save time - they must not be modified afterwards).
+ *
+ * @author Nadav Kahlon
+ */
+public class FileChunk extends FileTransferData
+{
+    private static final long serialVersionUID = 1L;
+    
+    /***************************************************************************
+     * Constants used by the class
+     */
+
+    // the size of the chunks clients split files into
+    public static final int SIZE = 32 * 1024;
+
+    // the maximal size of a chunk the server relays
+    public static final int MAX_SIZE = 64 * 1024;
+
+    /***************************************************************************
+     * Attributes of a file chunk
+     */
+
+    // the offset of the chunk in the file
+    private final long offset;
+
+    // the bytes of the chunk
+    private final byte[] bytes;
+
+    /***************************************************************************
+     * Constructor: creates a new file chunk.
+     *
+     * @param recipient the username of the user receiving the file.
+     * @param transferId the identifier of the transfer.
+     * @param offset the offset of the chunk in the file.
+     * @param bytes the bytes of the chunk (not copied).
+     */
+    public FileChunk(String recipient, String transferId, long offset, byte[] bytes)
+    {
+        super(recipient, transferId);
+        this.offset = offset;
+        this.bytes = bytes;
+    }
+
+    /***************************************************************************
+     * Gets the offset of the chunk in the file.
+     *
+     * @return the offset.
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    /***************************************************************************
+     * Gets the bytes of the chunk.
+     *
+     * @return the bytes (which must not be modified).
+     */
+    public byte[] getBytes()
+    {
+        return bytes;
+    }
+}
@@ -0,0 +1,62 @@
+package chatRoomProject;
+
+/*******************************************************************************
+ * This class represents the data attached to a FILE_OFFER message, as part of
+ * the Chat-Room App (whose main method and full description can be found in
+ * ChatRoomClient.java).
+ * A user offers a file to another user by telling it the file's name and
+ * size; the recipient answers with a FileAck - accepting the file from a
+ * certain offset (non-zero when resuming a partial transfer), or declining it.
+ * FileOffer objects are IMMUTABLE.
+ *
+ * @author Nadav Kahlon
+ */
+public class FileOffer extends FileTransferData
+{
+    private static final long serialVersionUID = 1L;
+    
+    /***************************************************************************
+     * Attributes of a file offer
+     */
+
+    // the name of the file (without any directories)
+    private final String fileName;
+
+    // the size of the file, in bytes
+    private final long size;
+
+    /***************************************************************************
+     * Constructor: creates a new file offer.
+     *
+     * @param recipient the username of the user the file is offered to.
+     * @param transferId the identifier of the transfer.
+     * @param fileName the name of the file (without any directories).
+     * @param size the size of the file, in bytes.
+     */
+    public FileOffer(String recipient, String transferId, String fileName, long size)
+    {
+        super(recipient, transferId);
+        this.fileName = fileName;
+        this.size = size;
+    }
+
+    /***************************************************************************
+     * Gets the name of the file.
+     *
+     * @return the file's name (without any directories).
+     */
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    /***************************************************************************
+     * Gets the size of the file.
+     *
+     * @return the size, in bytes.
+     */
+    public long getSize()
+    {
+        return size;
+    }
+}
@@ -0,0 +1,65 @@
+package chatRoomProject;
+
+import java.io.Serializable;
+
+/*******************************************************************************
+ * This class is the base of the data attached to file-transfer messages
+ * (FILE_OFFER, FILE_CHUNK and FILE_ACK), as part of the Chat-Room App (whose
+ * main method and full description can be found in ChatRoomClient.java).
+ * Every file-transfer message names the user it is meant for, and the transfer
+ * it belongs to. The server only looks at the recipient: it relays each
+ * message, as it is, to the recipient's connection - so whole files are never
+ * held by the server.
+ * A transfer's identifier is chosen by the sending client, and stays the same
+ * when the same file is offered again to the same user - which is how an
+ * interrupted transfer is resumed.
+ * FileTransferData objects are IMMUTABLE.
+ *
+ * @author Nadav Kahlon
+ */
+public abstract class FileTransferData implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    
+    /***************************************************************************
+     * Attributes of file-transfer data
+     */
+
+    // the username of the user the message is meant for
+    private final String recipient;
+
+    // the identifier of the transfer
+    private final String transferId;
+
+    /***************************************************************************
+     * Constructor: creates new file-transfer data.
+     *
+     * @param recipient the username of the user the message is meant for.
+     * @param transferId the identifier of the transfer.
+     */
+    protected FileTransferData(String recipient, String transferId)
+    {
+        this.recipient = recipient;
+        this.transferId = transferId;
+    }
+
+    /***************************************************************************
+     * Gets the username of the user the message is meant for.
+     *
+     * @return the recipient's username.
+     */
+    public String getRecipient()
+    {
+        return recipient;
+    }
+
+    /***************************************************************************
+     * Gets the identifier of the transfer.
+     *
+     * @return the identifier.
+     */
+    public String getTransferId()
+    {
+        return transferId;
+    }
+}
@@ -0,0 +1,107 @@
+package chatRoomProject;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.EnumSet;
+import java.util.Set;
+
+/*******************************************************************************
+ * This class represents the data attached to a CONFIRM_JOIN message, as part
+ * of the Chat-Room App (whose main method and full description can be found in
+ * ChatRoomClient.java).
+ * It contains the usernames of all clients participating in the chat-room,
+ * the optional protocol features (out of those the client asked for in its
+ * JoinRequest) which are enabled for the session, the sequence number of
+ * the last room message sent before the client joined, and the token with
+ * which the client may resume the session after the server restarts.
+ * JoinConfirmation objects are IMMUTABLE.
+ *
+ * @author Nadav Kahlon
+ */
+public class JoinConfirmation implements Serializable
+{
+    // (the value from before the sequence number was added)
+    private static final long serialVersionUID = -4103252431558701921L;
+
+    /***************************************************************************
+     * Attributes of a join confirmation
+     */
+
+    // the usernames of the participants in the chat-room
+    private final ArrayList<String> usernames;
+
+    // the features enabled for the session
+    private final EnumSet<JoinRequest.Feature> features;
+
+    // the sequence number of the last room message sent before the client
+    // joined
+    private final long lastSeq;
+    
+    // the token with which the session may be resumed (null from servers
+    // that don't give any)
+    private final String resumeToken;
+
+    /***************************************************************************
+     * Constructor: creates a new join confirmation.
+     *
+     * @param usernames the usernames of the participants in the chat-room.
+     * @param features the features enabled for the session.
+     * @param lastSeq the sequence number of the last room message sent before
+     * the client joined.
+     * @param resumeToken the token with which the session may be resumed.
+     */
+    public JoinConfirmation(List<String> usernames, Set<JoinRequest.Feature> features,
+            long lastSeq, String resumeToken)
+    {
+        // copy the collections, as the caller may change them later
+        this.usernames = new ArrayList<>(usernames);
+        this.features = features.isEmpty() ?
+                EnumSet.noneOf(JoinRequest.Feature.class) : EnumSet.copyOf(features);
+        this.lastSeq = lastSeq;
+        this.resumeToken = resumeToken;
+    }
+
+    /***************************************************************************
+     * Gets the usernames of the participants in the chat-room.
+     *
+     * @return a copy of the list of usernames.
+     */
+    public List<String> getUsernames()
+    {
+        return new ArrayList<>(usernames);
+    }
+
+    /***************************************************************************
+     * Checks whether a feature is enabled for the session.
+     *
+     * @param feature the feature in question.
+     * @return A boolean stating whether the feature is enabled.
+     */
+    public boolean isEnabled(JoinRequest.Feature feature)
+    {
+        return features.contains(feature);
+    }
+
+    /***************************************************************************
+     * Gets the sequence number of the last room message sent before the client
+     * joined (the room messages the client gets continue from it).
+     *
+     * @return the sequence number.
+     */
+    public long getLastSeq()
+    {
+        return lastSeq;
+    }
+    
+    /***************************************************************************
+     * Gets the token with which the session may be resumed after the server
+     * restarts.
+     *
+     * @return the token, or null if the server gave none.
+     */
+    public String getResumeToken()
+    {
+        return resumeToken;
+    }
+}
@@ -0,0 +1,388 @@
+package chatRoomProject;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/*******************************************************************************
+ * This program measures how long joining a server of the Chat-Room App (whose
+ * main method and full description can be found in ChatRoomClient.java) takes
+ * while its room is flooded with text.
+ * It joins a number of users to the room one after the other - first in a
+ * quiet room, and then while a few senders flood the room with text (as fast
+ * as the server lets them, or at a given rate) - and reports two latencies of
+ * each phase:
+ * - confirm: from sending the JOIN message until the CONFIRM_JOIN response
+ *   is read.
+ * - notice: from sending the JOIN message until an observer that is already
+ *   in the room reads the JOIN message the server broadcasts.
+ * Along with them, it reports the rate at which the observer got texts during
+ * the phase (servers that let the senders get further ahead flood the room
+ * more heavily, so servers are best compared at a given rate).
+ * The program speaks the basic protocol only (plain JOIN, TEXT and LEAVE
+ * messages, without a JoinRequest), which every version of the server
+ * understands; so the figures of a server may be compared with those of a
+ * server built from an older version of the app.
+ * The classe's static main method runs the program:
+ *   JoinLatencyBenchmark [--server=HOST[:PORT]] [--senders=N] [--joins=N]
+ *       [--rate=N]
+ * where N of --rate is the number of texts each sender sends per second
+ * (default: 0, which floods as fast as possible).
+ *
+ * @author Nadav Kahlon
+ */
+public class JoinLatencyBenchmark
+{
+    /***************************************************************************
+     * Constants used by the program
+     */
+
+    // a usage message describing the program's arguments
+    private static final String USAGE = "Usage: JoinLatencyBenchmark "
+            + "[--server=HOST[:PORT]] [--senders=N] [--joins=N] [--rate=N]";
+
+    // the length (in characters) of the flooding texts
+    private static final int TEXT_LENGTH = 200;
+
+    // the time (in milliseconds) the senders flood the room before the first
+    // join of the flooded phase
+    private static final long WARM_UP = 1000;
+
+    // the time (in milliseconds) between two joins
+    private static final long JOIN_INTERVAL = 100;
+
+    // the time (in milliseconds) the observer is waited for to notice a join
+    private static final long NOTICE_TIMEOUT = 10000;
+
+    /***************************************************************************
+     * Attributes of a benchmark
+     */
+
+    // the name of the server measured, and its port
+    private final String host;
+    private final int port;
+
+    // the times (in System.nanoTime terms) at which the observer read the
+    // JOIN messages of the joining users, by their usernames
+    private final Map<String, Long> noticed;
+
+    // the number of TEXT messages the observer read
+    private final AtomicLong texts;
+
+    /***************************************************************************
+     * Constructor: creates a new benchmark.
+     *
+     * @param host the name of the server measured.
+     * @param port the port of the server measured.
+     */
+    private JoinLatencyBenchmark(String host, int port)
+    {
+        this.host = host;
+        this.port = port;
+        this.noticed = new ConcurrentHashMap<>();
+        this.texts = new AtomicLong();
+    }
+
+    /***************************************************************************
+     * A connection to the server, speaking the basic protocol.
+     */
+    private class Connection implements AutoCloseable
+    {
+        private final String username;
+        private final Socket socket;
+        private final ObjectOutputStream outStream;
+        private final ObjectInputStream inStream;
+
+        /***********************************************************************
+         * Constructor: connects to the server, and sends a JOIN message.
+         *
+         * @param username the username to join under.
+         * @throws IOException if connecting failed.
+         */
+        Connection(String username) throws IOException
+        {
+            this.username = username;
+            this.socket = new Socket(host, port);
+            this.socket.setTcpNoDelay(true);
+            this.outStream = new ObjectOutputStream(new BufferedOutputStream(
+                    socket.getOutputStream()));
+            this.outStream.flush();
+            this.inStream = new ObjectInputStream(socket.getInputStream());
+            send(new Message(Message.Type.JOIN, username));
+        }
+
+        /***********************************************************************
+         * Reads the server's response to the JOIN message.
+         *
+         * @throws IOException if reading failed, or the join was not
+         * confirmed.
+         */
+        void awaitConfirmation() throws IOException
+        {
+            Message response = read();
+            if (response.getType() != Message.Type.CONFIRM_JOIN)
+                throw new IOException("Joining as \"" + username + "\" failed ("
+                        + response.getType() + ").");
+        }
+
+        /***********************************************************************
+         * Sends a message to the server.
+         *
+         * @param msg the message.
+         * @throws IOException if writing failed.
+         */
+        synchronized void send(Message msg) throws IOException
+        {
+            outStream.writeObject(msg);
+            outStream.reset();
+            outStream.flush();
+        }
+
+        /***********************************************************************
+         * Reads a message from the server.
+         *
+         * @return the message.
+         * @throws IOException if reading failed.
+         */
+        Message read() throws IOException
+        {
+            try {
+                return (Message) inStream.readObject();
+            }
+            catch (ClassNotFoundException | ClassCastException e) {
+                throw new IOException("Got an unexpected object from server.", e);
+            }
+        }
+
+        /***********************************************************************
+         * Leaves the room, and closes the connection.
+         */
+        @Override public void close()
+        {
+            try {
+                send(new Message(Message.Type.LEAVE, username));
+            }
+            catch (IOException e) {
+                // the connection is closed either way
+            }
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // there's nothing more we can do to release the socket
+            }
+        }
+    }
+
+    /***************************************************************************
+     * Starts a daemon thread.
+     *
+     * @param name the name of the thread.
+     * @param task the task of the thread.
+     */
+    private static void startDaemon(String name, Runnable task)
+    {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /***************************************************************************
+     * Runs the benchmark: measures a quiet phase and a flooded phase, and
+     * prints their figures.
+     *
+     * @param senders the number of users flooding the room.
+     * @param joins the number of joins measured in each phase.
+     * @param rate the number of texts each sender sends per second (0 for as
+     * many as possible).
+     * @throws IOException if communicating with the server failed.
+     * @throws InterruptedException if the benchmark was interrupted.
+     */
+    private void run(int senders, int joins, int rate)
+            throws IOException, InterruptedException
+    {
+        // the observer records when it reads each JOIN message
+        Connection observer = new Connection("bench-observer");
+        observer.awaitConfirmation();
+        startDaemon("observer", () -> {
+            try {
+                while (true) {
+                    Message msg = observer.read();
+                    if (msg.getType() == Message.Type.JOIN)
+                        noticed.put(msg.getUsername(), System.nanoTime());
+                    else if (msg.getType() == Message.Type.TEXT)
+                        texts.incrementAndGet();
+                }
+            }
+            catch (IOException e) {
+                // the observer was closed
+            }
+        });
+
+        System.out.printf("%8s %7s %9s %9s %9s %9s %9s %9s %9s%n", "phase",
+                "joins", "texts/s", "conf p50", "conf p90", "conf max",
+                "note p50", "note p90", "note max");
+        measure("quiet", joins);
+
+        // each sender floods the room, and drains what the server sends it
+        // (so that the server doesn't give up on it)
+        List<Connection> flooders = new ArrayList<>();
+        char[] filler = new char[TEXT_LENGTH];
+        Arrays.fill(filler, 'x');
+        String text = new String(filler);
+        for (int i = 0; i < senders; i++) {
+            Connection sender = new Connection("bench-sender-" + i);
+            sender.awaitConfirmation();
+            flooders.add(sender);
+            startDaemon("drain-" + i, () -> {
+                try { while (true) sender.read(); }
+                catch (IOException e) {
+                    // the sender was closed
+                }
+            });
+            startDaemon("flood-" + i, () -> {
+                try {
+                    Message msg = new Message(Message.Type.TEXT,
+                            sender.username, text);
+                    long interval = rate > 0 ? 1_000_000_000L / rate : 0;
+                    long next = System.nanoTime();
+                    while (true) {
+                        sender.send(msg);
+                        next += interval;
+                        long delay = next - System.nanoTime();
+                        if (delay > 0) LockSupport.parkNanos(delay);
+                    }
+                }
+                catch (IOException e) {
+                    // the sender was closed
+                }
+            });
+        }
+        Thread.sleep(WARM_UP);
+        measure("flooded", joins);
+
+        for (Connection sender : flooders) sender.close();
+        observer.close();
+    }
+
+    /***************************************************************************
+     * Measures a phase: joins users to the room one after the other, and
+     * prints the latencies of their joins.
+     *
+     * @param phase the name of the phase.
+     * @param joins the number of joins.
+     * @throws IOException if communicating with the server failed.
+     * @throws InterruptedException if the benchmark was interrupted.
+     */
+    private void measure(String phase, int joins)
+            throws IOException, InterruptedException
+    {
+        long[] confirm = new long[joins];
+        long[] notice = new long[joins];
+        long phaseStart = System.nanoTime();
+        long textsBefore = texts.get();
+        for (int i = 0; i < joins; i++) {
+            String username = "bench-" + phase + "-" + i;
+            long start = System.nanoTime();
+            try (Connection joiner = new Connection(username)) {
+                joiner.awaitConfirmation();
+                confirm[i] = System.nanoTime() - start;
+                long deadline = System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(NOTICE_TIMEOUT);
+                Long noticeTime;
+                while ((noticeTime = noticed.get(username)) == null) {
+                    if (System.nanoTime() > deadline)
+                        throw new IOException("The observer never noticed \""
+                                + username + "\" joining.");
+                    Thread.sleep(1);
+                }
+                notice[i] = noticeTime - start;
+            }
+            Thread.sleep(JOIN_INTERVAL);
+        }
+        double rate = (texts.get() - textsBefore) * 1e9
+                / (System.nanoTime() - phaseStart);
+        Arrays.sort(confirm);
+        Arrays.sort(notice);
+        System.out.printf("%8s %7d %9.0f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+                phase, joins, rate, percentile(confirm, 50),
+                percentile(confirm, 90), percentile(confirm, 100),
+                percentile(notice, 50), percentile(notice, 90),
+                percentile(notice, 100));
+    }
+
+    /***************************************************************************
+     * Gets a percentile of sorted latencies.
+     *
+     * @param sorted the latencies (in nanoseconds), sorted.
+     * @param percent the percentile.
+     * @return the latency (in milliseconds) at the percentile.
+     */
+    private static double percentile(long[] sorted, int percent)
+    {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1_000_000.0;
+    }
+
+    /***************************************************************************
+     * The main program (see the class documentation above).
+     *
+     * @param args the arguments of the program.
+     */
+    public static void main(String[] args)
+    {
+        String host = "localhost";
+        int port = ChatRoomServer.PORT;
+        int senders = 8;
+        int joins = 50;
+        int rate = 0;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--server=")) {
+                    host = arg.substring("--server=".length());
+                    int colon = host.lastIndexOf(':');
+                    if (colon > 0) {
+                        port = Integer.parseInt(host.substring(colon + 1));
+                        host = host.substring(0, colon);
+                    }
+                }
+                else if (arg.startsWith("--senders=")) {
+                    senders = Integer.parseInt(arg.substring("--senders=".length()));
+                    if (senders < 1) throw new NumberFormatException();
+                }
+                else if (arg.startsWith("--joins=")) {
+                    joins = Integer.parseInt(arg.substring("--joins=".length()));
+                    if (joins < 1) throw new NumberFormatException();
+                }
+                else if (arg.startsWith("--rate=")) {
+                    rate = Integer.parseInt(arg.substring("--rate=".length()));
+                    if (rate < 0) throw new NumberFormatException();
+                }
+                else {
+                    throw new IllegalArgumentException();
+                }
+            }
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        try {
+            new JoinLatencyBenchmark(host, port).run(senders, joins, rate);
+        }
+        catch (IOException | InterruptedException e) {
+            System.out.println("The benchmark failed: " + e);
+        }
+    }
+}
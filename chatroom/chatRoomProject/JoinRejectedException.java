@@ -0,0 +1,26 @@
+package chatRoomProject;
+
+import java.io.IOException;
+
+/*******************************************************************************
+ * This class represents the exception a ChatClient reports when a server
+ * rejects a connection right away since it is overloaded, as part of the
+ * Chat-Room App (whose main method and full description can be found in
+ * ChatRoomClient.java). Its message is the reason the server gave.
+ *
+ * @author Nadav Kahlon
+ */
+public class JoinRejectedException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+    
+    /***************************************************************************
+     * Constructor: creates a new exception.
+     *
+     * @param reason the reason the server gave for the rejection.
+     */
+    public JoinRejectedException(String reason)
+    {
+        super(reason);
+    }
+}
@@ -0,0 +1,94 @@
+package chatRoomProject;
+
+import java.io.Serializable;
+import java.util.EnumSet;
+import java.util.Set;
+
+/*******************************************************************************
+ * This class represents the data attached to a JOIN message, as part of the
+ * Chat-Room App (whose main method and full description can be found in
+ * ChatRoomClient.java).
+ * Besides the username (which is carried by the message itself), a joining
+ * client tells the server which optional protocol features it supports. The
+ * server answers with a JoinConfirmation stating which of them are enabled
+ * for the session. A JOIN message with no data at all comes from a client
+ * that supports no optional features.
+ * A client coming back after the server restarted may also present the resume
+ * token it was given when it joined, so the server lets it back in without
+ * announcing it as a newly joined user.
+ * JoinRequest objects are IMMUTABLE.
+ *
+ * @author Nadav Kahlon
+ */
+public class JoinRequest implements Serializable
+{
+    // (the value from before the resume token was added, so clients and
+    // servers that don't know about it can still exchange join requests)
+    private static final long serialVersionUID = -1343600571685938994L;
+    
+    /***************************************************************************
+     * An enum representing the optional protocol features:
+     * - COMPRESSION: large TEXT payloads may be sent as CompressedText objects
+     *   instead of Strings (in both directions).
+     * - SEQUENCE: the client acks the room messages it gets, so the server
+     *   keeps the messages it hasn't acked yet for sending them again.
+     * - PRESENCE: the client understands PRESENCE messages from the server.
+     */
+    public enum Feature {COMPRESSION, SEQUENCE, PRESENCE};
+
+    /***************************************************************************
+     * Attributes of a join request
+     */
+
+    // the features supported by the joining client
+    private final EnumSet<Feature> features;
+    
+    // the token of the session the client resumes (null if it joins anew)
+    private final String resumeToken;
+
+    /***************************************************************************
+     * Constructor: creates a new join request.
+     *
+     * @param features the features supported by the joining client.
+     */
+    public JoinRequest(Set<Feature> features)
+    {
+        this(features, null);
+    }
+    
+    /***************************************************************************
+     * Constructor: creates a new join request, resuming a previous session.
+     *
+     * @param features the features supported by the joining client.
+     * @param resumeToken the token of the session the client resumes (null if
+     * it joins anew).
+     */
+    public JoinRequest(Set<Feature> features, String resumeToken)
+    {
+        // copy the set, as the caller may change it later
+        this.features = features.isEmpty() ?
+                EnumSet.noneOf(Feature.class) : EnumSet.copyOf(features);
+        this.resumeToken = resumeToken;
+    }
+
+    /***************************************************************************
+     * Gets the features supported by the joining client.
+     *
+     * @return a copy of the set of supported features.
+     */
+    public EnumSet<Feature> getFeatures()
+    {
+        // copy the set, since EnumSets are mutable
+        return EnumSet.copyOf(features);
+    }
+    
+    /***************************************************************************
+     * Gets the token of the session the client resumes.
+     *
+     * @return the token, or null if the client joins anew.
+     */
+    public String getResumeToken()
+    {
+        return resumeToken;
+    }
+}
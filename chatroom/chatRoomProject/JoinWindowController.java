@@ -2,6 +2,7 @@ package chatRoomProject;
 
 import javafx.fxml.FXML;
 import javafx.scene.control.TextField;
+import javafx.scene.control.CheckBox;
 import javafx.event.ActionEvent;
 import javafx.scene.Node;
 import javafx.stage.Stage;
@@ -11,7 +12,8 @@ import javafx.stage.Stage;
  * of the GUI of the client in the Chat-Room App (whose main method and full
  * description can be found in ChatRoomClient.java).
  * The "Join Chat-Room" window is a dialog window in which the user enters his
- * username and the hosting server's name, before joining a chat-room hosted on
+ * username and the hosting server's name (and whether to connect to it over
+ * TLS), before joining a chat-room hosted on
  * a remote server. This information is then accessed by the main GUI controller,
  * which uses it to enter a chat-room.
  * 
@@ -27,6 +29,9 @@ public class JoinWindowController {
 
     // the text-field in which the user enters the hosting server's name
     @FXML private TextField serverTextField;
+
+    // the check-box in which the user chooses to connect over TLS
+    @FXML private CheckBox secureCheckBox;
     
     // a boolean stating whether the operation completed successfully (i.e. the
     // user pressed "Join") - initialized to false
@@ -100,4 +105,14 @@ public class JoinWindowController {
         // to do this, we return the String entered in the server TextField
         return serverTextField.getText();
     }
+    
+    /***************************************************************************
+     * Gets whether the user chose to connect to the server over TLS.
+     * 
+     * @return A boolean stating whether to connect over TLS.
+     */
+    public boolean isSecure()
+    {
+        return secureCheckBox.isSelected();
+    }
 }
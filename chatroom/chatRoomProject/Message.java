@@ -23,17 +23,62 @@ import java.io.Serializable;
  * - DENY_JOIN messages: these are special messages sent by hosting servers to
  *   client back-ends, indicating that a server rejects a client's request to
  *   join a chatroom, since a client with the same identifying username already
- *   participates in the chat-room.
+ *   participates in the chat-room (or since the request carries no username,
+ *   or an empty one).
+ * - DIRECT messages: these are text messages sent by one user to a single
+ *   other user (through the server, which writes them only to the recipient's
+ *   connection). The data they contain is a DirectText object.
+ * - DIRECT_ACK messages: these are special messages sent by hosting servers to
+ *   the senders of DIRECT messages, telling what became of them. The data they
+ *   contain is a DirectAck object.
+ * - FILE_OFFER, FILE_CHUNK and FILE_ACK messages: these are the messages of
+ *   a file transfer between two users - an offer of a file, a piece of it, and
+ *   the receiver's answer to the offer or acknowledgement of the pieces stored
+ *   so far. The server writes them only to the connection of the user they
+ *   are meant for. The data they contain is a FileOffer, FileChunk or FileAck
+ *   object (respectively).
+ * - ACK messages: these are special messages sent by client back-ends to
+ *   hosting servers, acknowledging that the client got all room messages up
+ *   to a certain sequence number (see below). The data they contain is that
+ *   sequence number (a Long).
+ * - RESEND messages: when sent by a client back-end, these ask the server to
+ *   send again the room messages following a certain sequence number (a Long,
+ *   which is the data they contain). The server answers with a RESEND message
+ *   of its own, whose data is the sequence number of the first message it
+ *   sends again (the ones before it are no longer kept), followed by the
+ *   messages themselves.
+ * - PRESENCE messages: when sent by a client back-end, these tell the server
+ *   about a change in the user's presence state (e.g. that it started typing).
+ *   The data they contain is a PresenceState. Servers gather these changes,
+ *   and broadcast them periodically in PRESENCE messages of their own, whose
+ *   data is a HashMap from usernames to their new PresenceStates.
+ * - REJECT messages: these are special messages sent by overloaded hosting
+ *   servers to client back-ends right after their connection is accepted,
+ *   before closing it. The data they contain is the reason (a String).
+ * - SHUTDOWN messages: these are special messages sent by hosting servers to
+ *   client back-ends when the server shuts down. The data they contain is the
+ *   time (in milliseconds - a Long) the client should wait before trying to
+ *   resume its session.
+ * 
+ * Room messages (the TEXT, JOIN and LEAVE messages a server broadcasts) are
+ * stamped by the server with a sequence number, increasing by one with each
+ * of them; other messages have a sequence number of 0.
  * 
  * @author Nadav Kahlon
  */
 public class Message implements Serializable
 {
+    // (the value from before the sequence number was added, so clients and
+    // servers that don't know about it can still exchange messages)
+    private static final long serialVersionUID = -6649142131913606225L;
+    
     /***************************************************************************
      * An enum representing the different messages types (described in detail
      * above).
      */
-    public enum Type {TEXT, JOIN, LEAVE, CONFIRM_JOIN, DENY_JOIN};
+    public enum Type {TEXT, JOIN, LEAVE, CONFIRM_JOIN, DENY_JOIN, DIRECT,
+            DIRECT_ACK, FILE_OFFER, FILE_CHUNK, FILE_ACK, ACK, RESEND, PRESENCE,
+            REJECT, SHUTDOWN};
     
     /***************************************************************************
      * Attributes of a message
@@ -48,6 +93,9 @@ public class Message implements Serializable
     // the data sent in the message
     private final Serializable data;
     
+    // the sequence number of a room message (0 for other messages)
+    private final long seq;
+    
     /***************************************************************************
      * Constructor: creates a new message.
      * 
@@ -59,11 +107,25 @@ public class Message implements Serializable
      * is).
      */
     public Message(Type type, String username, Serializable data)
+    {
+        this(type, username, data, 0);
+    }
+    
+    /***************************************************************************
+     * Constructor: creates a new room message, stamped with a sequence number.
+     * 
+     * @param type the type of the message.
+     * @param username the name of the user sending the message.
+     * @param data the data sent in the message (not copied - see above).
+     * @param seq the sequence number of the message.
+     */
+    public Message(Type type, String username, Serializable data, long seq)
     {
         // simply set the messages's attributes
         this.type = type;
         this.username = username;
         this.data = data;
+        this.seq = seq;
     }
     
     /***************************************************************************
@@ -99,6 +161,16 @@ public class Message implements Serializable
         return username;
     }
     
+    /***************************************************************************
+     * Gets the sequence number of the message.
+     * 
+     * @return the sequence number of a room message, or 0.
+     */
+    public long getSeq()
+    {
+        return seq;
+    }
+    
     /***************************************************************************
      * Gets the data sent with the message.
      * 
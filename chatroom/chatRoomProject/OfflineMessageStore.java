@@ -0,0 +1,140 @@
+package chatRoomProject;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/*******************************************************************************
+ * This class stores direct messages for temporarily disconnected users, as
+ * part of the server in the Chat-Room App (whose main method and full
+ * description can be found in ChatRoomClient.java).
+ * When a user's connection breaks without it leaving the chat-room, the
+ * server opens a mailbox for it. Direct messages sent to the user while the
+ * mailbox is open are queued in it (up to MAX_MESSAGES_PER_USER of them), and
+ * handed back to the server when the user joins again. A mailbox that isn't
+ * claimed within GRACE_PERIOD milliseconds expires, and at most MAX_MAILBOXES
+ * mailboxes are kept (the oldest ones are dropped first).
+ * All methods are thread-safe.
+ *
+ * @author Nadav Kahlon
+ */
+public class OfflineMessageStore
+{
+    /***************************************************************************
+     * Constants used by the store
+     */
+
+    // the maximal number of messages queued for a single user
+    public static final int MAX_MESSAGES_PER_USER = 100;
+
+    // the maximal number of open mailboxes
+    public static final int MAX_MAILBOXES = 1000;
+
+    // the time (in milliseconds) a mailbox stays open after its user
+    // disconnected
+    public static final long GRACE_PERIOD = 5 * 60 * 1000;
+
+    /***************************************************************************
+     * This class represents the mailbox of a single disconnected user.
+     */
+    private static class Mailbox
+    {
+        // the time (as in System.currentTimeMillis) in which the mailbox expires
+        final long deadline;
+
+        // the queued messages, oldest first
+        final ArrayDeque<Message> messages = new ArrayDeque<>();
+
+        Mailbox(long deadline) { this.deadline = deadline; }
+    }
+
+    /***************************************************************************
+     * Attributes of the store
+     */
+
+    // the open mailboxes by username, in the order they were opened (which is
+    // also the order in which they expire)
+    private final LinkedHashMap<String, Mailbox> mailboxes;
+
+    /***************************************************************************
+     * Constructor: creates a new store with no open mailboxes.
+     */
+    public OfflineMessageStore()
+    {
+        mailboxes = new LinkedHashMap<>();
+    }
+
+    /***************************************************************************
+     * Opens a mailbox for a user that got disconnected (replacing any mailbox
+     * it already has).
+     *
+     * @param username the name of the disconnected user.
+     */
+    public synchronized void open(String username)
+    {
+        long now = System.currentTimeMillis();
+        purgeExpired(now);
+
+        // re-insert the mailbox so that it's the newest one, and make room
+        // for it by dropping the oldest one if necessary
+        mailboxes.remove(username);
+        if (mailboxes.size() >= MAX_MAILBOXES) {
+            Iterator<String> oldest = mailboxes.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        mailboxes.put(username, new Mailbox(now + GRACE_PERIOD));
+    }
+
+    /***************************************************************************
+     * Tries to queue a direct message for a disconnected user.
+     *
+     * @param recipient the name of the disconnected user.
+     * @param msg the direct message.
+     * @return QUEUED if the message was queued, QUEUE_FULL if the user's
+     * mailbox is full, or UNKNOWN_USER if the user has no open mailbox.
+     */
+    public synchronized DirectAck.Status offer(String recipient, Message msg)
+    {
+        purgeExpired(System.currentTimeMillis());
+        Mailbox mailbox = mailboxes.get(recipient);
+        if (mailbox == null)
+            return DirectAck.Status.UNKNOWN_USER;
+        if (mailbox.messages.size() >= MAX_MESSAGES_PER_USER)
+            return DirectAck.Status.QUEUE_FULL;
+        mailbox.messages.add(msg);
+        return DirectAck.Status.QUEUED;
+    }
+
+    /***************************************************************************
+     * Closes the mailbox of a user (if it has an open one), and returns the
+     * messages queued in it.
+     *
+     * @param username the name of the user.
+     * @return the queued messages, oldest first (an empty list if there are
+     * none).
+     */
+    public synchronized List<Message> take(String username)
+    {
+        purgeExpired(System.currentTimeMillis());
+        Mailbox mailbox = mailboxes.remove(username);
+        return mailbox == null ?
+                new ArrayList<>() : new ArrayList<>(mailbox.messages);
+    }
+
+    /***************************************************************************
+     * Drops the expired mailboxes.
+     *
+     * @param now the current time (as in System.currentTimeMillis).
+     */
+    private void purgeExpired(long now)
+    {
+        // mailboxes expire in the order they were opened, so we can stop at
+        // the first one which didn't expire
+        Iterator<Mailbox> it = mailboxes.values().iterator();
+        while (it.hasNext() && it.next().deadline <= now)
+            it.remove();
+    }
+}
@@ -0,0 +1,14 @@
+package chatRoomProject;
+
+/*******************************************************************************
+ * This enum represents the presence state of a user in a chat-room, as part of
+ * the Chat-Room App (whose main method and full description can be found in
+ * ChatRoomClient.java):
+ * - ACTIVE: the user is in the chat-room (the state of a user that never said
+ *   otherwise).
+ * - TYPING: the user is typing a message.
+ * - AWAY: the user is in the chat-room, but not paying attention to it.
+ *
+ * @author Nadav Kahlon
+ */
+public enum PresenceState {ACTIVE, TYPING, AWAY};
@@ -0,0 +1,129 @@
+package chatRoomProject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.io.Serializable;
+
+/*******************************************************************************
+ * This class represents the recent history of a chat-room, as part of the
+ * Chat-Room App (whose main method and full description can be found in
+ * ChatRoomClient.java).
+ * It stamps room messages with increasing sequence numbers, and keeps the
+ * stamped messages which some clients haven't acked yet in a ring buffer, so
+ * they can be sent again on request. Messages acked by all clients are
+ * released when the server says so; if clients fall more than the buffer's
+ * capacity behind, the oldest messages are overwritten anyway (so the
+ * history's memory is bounded by its capacity).
+ * RoomHistory objects are thread-safe: all methods synchronize on the object
+ * (so a caller may hold its lock across several calls, to keep them atomic).
+ *
+ * @author Nadav Kahlon
+ */
+public class RoomHistory
+{
+    /***************************************************************************
+     * Attributes of a room history
+     */
+
+    // the ring buffer of kept messages: the message stamped 'seq' is at index
+    // (seq % ring.length)
+    private final Message[] ring;
+
+    // the sequence number of the last stamped message (0 if none was stamped)
+    private long lastSeq;
+
+    // the sequence number of the oldest kept message (lastSeq + 1 when no
+    // message is kept)
+    private long firstSeq;
+
+    /***************************************************************************
+     * Constructor: creates a new, empty room history.
+     *
+     * @param capacity the maximal number of messages kept.
+     * @param lastSeq the sequence number to continue from (0 for a new room).
+     */
+    public RoomHistory(int capacity, long lastSeq)
+    {
+        this.ring = new Message[capacity];
+        this.lastSeq = lastSeq;
+        this.firstSeq = lastSeq + 1;
+    }
+
+    /***************************************************************************
+     * Stamps a room message with the next sequence number, and keeps it.
+     *
+     * @param msg the message (its own sequence number is ignored).
+     * @return the stamped message.
+     */
+    public synchronized Message append(Message msg)
+    {
+        Message stamped = new Message(msg.getType(), msg.getUsername(),
+                (Serializable) msg.getData(), ++lastSeq);
+        // if the ring is full - overwrite the oldest message
+        if (lastSeq - firstSeq == ring.length) firstSeq++;
+        ring[index(lastSeq)] = stamped;
+        return stamped;
+    }
+
+    /***************************************************************************
+     * Releases the messages which all clients have acked.
+     *
+     * @param ackedByAll the sequence number up to which all clients acked.
+     */
+    public synchronized void release(long ackedByAll)
+    {
+        long upTo = Math.min(ackedByAll, lastSeq);
+        while (firstSeq <= upTo) {
+            ring[index(firstSeq)] = null;
+            firstSeq++;
+        }
+    }
+
+    /***************************************************************************
+     * Gets the kept messages following a certain sequence number.
+     *
+     * @param seq the sequence number.
+     * @return the kept messages stamped after 'seq', in order (the list is
+     * missing the messages no longer kept).
+     */
+    public synchronized List<Message> since(long seq)
+    {
+        List<Message> messages = new ArrayList<>();
+        for (long i = Math.max(seq + 1, firstSeq); i <= lastSeq; i++)
+            messages.add(ring[index(i)]);
+        return messages;
+    }
+
+    /***************************************************************************
+     * Gets the sequence number of the last stamped message.
+     *
+     * @return the sequence number (0 if no message was stamped).
+     */
+    public synchronized long getLastSeq()
+    {
+        return lastSeq;
+    }
+
+    /***************************************************************************
+     * Gets the sequence number of the oldest kept message.
+     *
+     * @return the sequence number (the next one to be stamped if no message is
+     * kept).
+     */
+    public synchronized long getFirstSeq()
+    {
+        return firstSeq;
+    }
+
+    /***************************************************************************
+     * Gets the index in the ring of the message stamped with a certain sequence
+     * number.
+     *
+     * @param seq the sequence number.
+     * @return the index.
+     */
+    private int index(long seq)
+    {
+        return (int) (seq % ring.length);
+    }
+}
@@ -0,0 +1,136 @@
+package chatRoomProject;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/*******************************************************************************
+ * This class represents a snapshot of a chat-room's state, as part of the
+ * Chat-Room App (whose main method and full description can be found in
+ * ChatRoomClient.java).
+ * A snapshot holds the chat-room's members along with the resume tokens they
+ * were given, and the sequence number of the last room message, so a
+ * restarted server can let the members resume their sessions and continue
+ * numbering the room messages where it left off.
+ * Snapshots are stored in a compact binary format: a header (magic number and
+ * version), the sequence number, the number of members, and then the username
+ * and resume token of each member (in modified UTF-8). They are written to a
+ * temporary file which then replaces the previous snapshot, so a crash while
+ * writing never leaves a broken snapshot behind.
+ * RoomSnapshot objects are IMMUTABLE.
+ *
+ * @author Nadav Kahlon
+ */
+public class RoomSnapshot
+{
+    /***************************************************************************
+     * Constants used by the class
+     */
+
+    // the first bytes of a snapshot file ("CRSS")
+    private static final int MAGIC = 0x43525353;
+
+    // the version of the snapshot format
+    private static final int VERSION = 1;
+
+    /***************************************************************************
+     * Attributes of a snapshot
+     */
+
+    // the sequence number of the last room message
+    private final long lastSeq;
+
+    // the resume tokens of the members, by username
+    private final Map<String, String> tokens;
+
+    /***************************************************************************
+     * Constructor: creates a new snapshot.
+     *
+     * @param lastSeq the sequence number of the last room message.
+     * @param tokens the resume tokens of the members, by username.
+     */
+    public RoomSnapshot(long lastSeq, Map<String, String> tokens)
+    {
+        // copy the map, as the caller may change it later
+        this.lastSeq = lastSeq;
+        this.tokens = Collections.unmodifiableMap(new LinkedHashMap<>(tokens));
+    }
+
+    /***************************************************************************
+     * Reads a snapshot from a file.
+     *
+     * @param path the path of the file.
+     * @return the snapshot, or null if there is no such file.
+     * @throws IOException if reading failed, or the file is not a snapshot.
+     */
+    public static RoomSnapshot read(Path path) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a snapshot file: " + path);
+            long lastSeq = in.readLong();
+            int count = in.readInt();
+            Map<String, String> tokens = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++)
+                tokens.put(in.readUTF(), in.readUTF());
+            return new RoomSnapshot(lastSeq, tokens);
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /***************************************************************************
+     * Writes the snapshot to a file (replacing the previous one atomically).
+     *
+     * @param path the path of the file.
+     * @throws IOException if writing failed.
+     */
+    public void write(Path path) throws IOException
+    {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(lastSeq);
+            out.writeInt(tokens.size());
+            for (Map.Entry<String, String> member : tokens.entrySet()) {
+                out.writeUTF(member.getKey());
+                out.writeUTF(member.getValue());
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /***************************************************************************
+     * Gets the sequence number of the last room message.
+     *
+     * @return the sequence number.
+     */
+    public long getLastSeq()
+    {
+        return lastSeq;
+    }
+
+    /***************************************************************************
+     * Gets the resume tokens of the members.
+     *
+     * @return an unmodifiable map from usernames to resume tokens.
+     */
+    public Map<String, String> getTokens()
+    {
+        return tokens;
+    }
+}
@@ -0,0 +1,287 @@
+package chatRoomProject;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/*******************************************************************************
+ * This class represents the configuration of a server in the Chat-Room App
+ * (whose main method and full description can be found in ChatRoomClient.java).
+ * A configuration is parsed from the server program's command-line arguments,
+ * each of the form "--name=value"; options which are not specified keep their
+ * default values. The supported options are:
+ * --bind=ADDRESS       the local address to listen on (default: all).
+ * --port=N             the port to listen on (default: ChatRoomServer.PORT).
+ * --backlog=N          the length of the queue of incoming connections
+ *                      waiting to be accepted (default: 200).
+ * --acceptors=N        the number of threads accepting connections; where the
+ *                      platform supports SO_REUSEPORT, each of them listens on
+ *                      its own server-socket (default: 1).
+ * --io-workers=N       the number of threads handshaking with newly accepted
+ *                      clients (default: twice the number of processors).
+ * --history=N          the maximal number of recent room messages kept for
+ *                      sending again to clients that missed them (default:
+ *                      1024).
+ * --presence-interval=MS   the interval (in milliseconds) between the frames
+ *                      in which the server broadcasts changes in the users'
+ *                      presence states (default: 500).
+ * --max-sessions=N     the maximal number of clients in the chat-room,
+ *                      including those still handshaking (default: 10000).
+ * --max-handshakes=N   the maximal number of connections handshaking at once
+ *                      (default: 256).
+ * --max-per-ip=N       the maximal number of connections from a single
+ *                      address (default: 64).
+ * --metrics-interval=S the interval (in seconds) between printouts of the
+ *                      server's metrics; 0 disables them (default: 60).
+ * --snapshot=FILE      the file in which the server keeps a snapshot of the
+ *                      chat-room's membership, so clients can resume their
+ *                      sessions after a restart (default: none).
+ * --snapshot-interval=S    the interval (in seconds) between snapshots
+ *                      (default: 10).
+ * --resume-window=S    the time (in seconds) after a restart during which
+ *                      clients from the snapshot may resume their sessions
+ *                      (default: 30).
+ * --retry-after=MS     the minimal delay (in milliseconds) clients are told
+ *                      to wait before reconnecting when the server shuts down
+ *                      (default: 1000).
+ * --retry-jitter=MS    the range of the random delay added to it for each
+ *                      client, so they don't all reconnect at once
+ *                      (default: 4000).
+ * --capture=FILE       the file in which the server records the traffic it
+ *                      gets from its clients, for replaying it later (see
+ *                      CaptureReplay); default: none (no capture).
+ * --keystore=FILE      a PKCS12 keystore holding the server's key and
+ *                      certificate; if given, clients connect over TLS
+ *                      (default: none - plain connections).
+ * --keystore-password=PASS the keystore's password (required with
+ *                      --keystore).
+ * Connections beyond the limits are rejected as soon as they're accepted
+ * (over TLS, they are just closed - telling the client why would take a TLS
+ * handshake, which is the very cost the limits guard against).
+ * ServerConfig objects are IMMUTABLE once parsed.
+ *
+ * @author Nadav Kahlon
+ */
+public class ServerConfig
+{
+    /***************************************************************************
+     * Constants used by the class
+     */
+
+    // a usage message describing the supported options
+    public static final String USAGE =
+            "Options: [--bind=ADDRESS] [--port=N] [--backlog=N] [--acceptors=N] "
+            + "[--io-workers=N] [--history=N] [--presence-interval=MS] "
+            + "[--max-sessions=N] [--max-handshakes=N] [--max-per-ip=N] "
+            + "[--metrics-interval=S] [--snapshot=FILE] [--snapshot-interval=S] "
+            + "[--resume-window=S] [--retry-after=MS] [--retry-jitter=MS] "
+            + "[--capture=FILE] [--keystore=FILE --keystore-password=PASS]";
+
+    /***************************************************************************
+     * Attributes of a configuration (see the class documentation above)
+     */
+
+    private InetAddress bindAddress = null; // (null stands for all addresses)
+    private int port = ChatRoomServer.PORT;
+    private int backlog = 200;
+    private int acceptors = 1;
+    private int ioWorkers = 2 * Runtime.getRuntime().availableProcessors();
+    private int history = 1024;
+    private int presenceInterval = 500;
+    private int maxSessions = 10000;
+    private int maxHandshakes = 256;
+    private int maxPerIp = 64;
+    private int metricsInterval = 60;
+    private Path snapshot = null; // (null stands for no snapshot)
+    private int snapshotInterval = 10;
+    private int resumeWindow = 30;
+    private int retryAfter = 1000;
+    private int retryJitter = 4000;
+    private Path capture = null; // (null stands for no capture)
+    private Path keystore = null; // (null stands for plain connections)
+    private char[] keystorePassword = null;
+
+    /***************************************************************************
+     * Constructor: creates a configuration in which all options have their
+     * default values.
+     */
+    public ServerConfig()
+    {
+    }
+
+    /***************************************************************************
+     * Parses a configuration out of command-line arguments.
+     *
+     * @param args the arguments (see the class documentation above).
+     * @return the parsed configuration.
+     * @throws IllegalArgumentException if an argument is malformed, names an
+     * unknown option, or has an invalid value.
+     */
+    public static ServerConfig parse(String[] args)
+    {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            // split the argument to an option name and a value
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0)
+                throw new IllegalArgumentException("Malformed argument: " + arg);
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+
+            switch (name) {
+                case "bind":
+                    try {
+                        config.bindAddress = InetAddress.getByName(value);
+                    }
+                    catch (UnknownHostException e) {
+                        throw new IllegalArgumentException(
+                                "Unknown bind address: " + value);
+                    }
+                    break;
+                case "port":
+                    config.port = parseInt(name, value, 0, 65535);
+                    break;
+                case "backlog":
+                    config.backlog = parseInt(name, value, 1, Integer.MAX_VALUE);
+                    break;
+                case "acceptors":
+                    config.acceptors = parseInt(name, value, 1, 1024);
+                    break;
+                case "io-workers":
+                    config.ioWorkers = parseInt(name, value, 1, 4096);
+                    break;
+                case "history":
+                    config.history = parseInt(name, value, 16, 1 << 24);
+                    break;
+                case "presence-interval":
+                    config.presenceInterval = parseInt(name, value, 10, 60000);
+                    break;
+                case "max-sessions":
+                    config.maxSessions = parseInt(name, value, 1, Integer.MAX_VALUE);
+                    break;
+                case "max-handshakes":
+                    config.maxHandshakes = parseInt(name, value, 1, Integer.MAX_VALUE);
+                    break;
+                case "max-per-ip":
+                    config.maxPerIp = parseInt(name, value, 1, Integer.MAX_VALUE);
+                    break;
+                case "metrics-interval":
+                    config.metricsInterval = parseInt(name, value, 0, 86400);
+                    break;
+                case "snapshot":
+                    config.snapshot = Paths.get(value);
+                    break;
+                case "snapshot-interval":
+                    config.snapshotInterval = parseInt(name, value, 1, 3600);
+                    break;
+                case "resume-window":
+                    config.resumeWindow = parseInt(name, value, 1, 3600);
+                    break;
+                case "retry-after":
+                    config.retryAfter = parseInt(name, value, 0, 600000);
+                    break;
+                case "retry-jitter":
+                    config.retryJitter = parseInt(name, value, 0, 600000);
+                    break;
+                case "capture":
+                    config.capture = Paths.get(value);
+                    break;
+                case "keystore":
+                    config.keystore = Paths.get(value);
+                    break;
+                case "keystore-password":
+                    config.keystorePassword = value.toCharArray();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        if (config.keystore != null && config.keystorePassword == null)
+            throw new IllegalArgumentException(
+                    "--keystore-password is required with --keystore");
+        return config;
+    }
+
+    /***************************************************************************
+     * Parses the integer value of an option.
+     *
+     * @param name the name of the option.
+     * @param value the value to parse.
+     * @param min the minimal valid value.
+     * @param max the maximal valid value.
+     * @return the parsed value.
+     * @throws IllegalArgumentException if the value is not an integer within
+     * the valid range.
+     */
+    private static int parseInt(String name, String value, int min, int max)
+    {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed >= min && parsed <= max) return parsed;
+        }
+        catch (NumberFormatException e) {
+            // handled below, like any other invalid value
+        }
+        throw new IllegalArgumentException(
+                String.format("Invalid value for --%s: %s", name, value));
+    }
+
+    /***************************************************************************
+     * Getters for the options (see the class documentation above)
+     */
+
+    public InetAddress getBindAddress() { return bindAddress; }
+    public int getPort() { return port; }
+    public int getBacklog() { return backlog; }
+    public int getAcceptors() { return acceptors; }
+    public int getIoWorkers() { return ioWorkers; }
+    public int getHistory() { return history; }
+    public int getPresenceInterval() { return presenceInterval; }
+    public int getMaxSessions() { return maxSessions; }
+    public int getMaxHandshakes() { return maxHandshakes; }
+    public int getMaxPerIp() { return maxPerIp; }
+    public int getMetricsInterval() { return metricsInterval; }
+    public Path getSnapshot() { return snapshot; }
+    public int getSnapshotInterval() { return snapshotInterval; }
+    public int getResumeWindow() { return resumeWindow; }
+    public int getRetryAfter() { return retryAfter; }
+    public int getRetryJitter() { return retryJitter; }
+    public Path getCapture() { return capture; }
+    public Path getKeystore() { return keystore; }
+    public boolean isSecure() { return keystore != null; }
+
+    /***************************************************************************
+     * Gets the keystore's password.
+     *
+     * @return a copy of the password (the caller should clear it when done),
+     * or null if there is none.
+     */
+    public char[] getKeystorePassword()
+    {
+        return keystorePassword == null ? null : keystorePassword.clone();
+    }
+
+    /***************************************************************************
+     * Gets a String representation of the configuration (for the server
+     * manager).
+     *
+     * @return a description of all options and their values.
+     */
+    @Override public String toString()
+    {
+        return String.format("bind=%s, port=%d, backlog=%d, acceptors=%d, "
+                + "io-workers=%d, history=%d, presence-interval=%d, "
+                + "max-sessions=%d, max-handshakes=%d, max-per-ip=%d, "
+                + "metrics-interval=%d, snapshot=%s, snapshot-interval=%d, "
+                + "resume-window=%d, retry-after=%d, retry-jitter=%d, capture=%s, "
+                + "tls=%s",
+                bindAddress == null ? "*" : bindAddress, port, backlog,
+                acceptors, ioWorkers, history, presenceInterval, maxSessions,
+                maxHandshakes, maxPerIp, metricsInterval,
+                snapshot == null ? "none" : snapshot, snapshotInterval,
+                resumeWindow, retryAfter, retryJitter,
+                capture == null ? "none" : capture,
+                keystore == null ? "off" : keystore);
+    }
+}
@@ -0,0 +1,58 @@
+package chatRoomProject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*******************************************************************************
+ * This class holds the counters a server keeps about its activity, as part of
+ * the Chat-Room App (whose main method and full description can be found in
+ * ChatRoomClient.java). The server prints them to the standard output
+ * periodically, for the server manager.
+ * All counters are cumulative since the server started, and may be updated
+ * by any thread.
+ *
+ * @author Nadav Kahlon
+ */
+public class ServerMetrics
+{
+    /***************************************************************************
+     * Attributes of the metrics
+     */
+
+    // the number of connections accepted and handed to the I/O workers
+    public final AtomicLong accepted = new AtomicLong();
+
+    // the number of connections rejected right away since too many handshakes
+    // were pending, since the server had too many sessions, or since there were
+    // too many connections from the client's address (respectively)
+    public final AtomicLong rejectedBusy = new AtomicLong();
+    public final AtomicLong rejectedFull = new AtomicLong();
+    public final AtomicLong rejectedPerIp = new AtomicLong();
+
+    // the number of clients that joined the chat-room, and that got
+    // disconnected from it
+    public final AtomicLong joined = new AtomicLong();
+    public final AtomicLong disconnected = new AtomicLong();
+
+    /***************************************************************************
+     * Gets the total number of rejected connections.
+     *
+     * @return the number of rejections, for any reason.
+     */
+    public long getRejected()
+    {
+        return rejectedBusy.get() + rejectedFull.get() + rejectedPerIp.get();
+    }
+
+    /***************************************************************************
+     * Gets a String representation of the metrics (for the server manager).
+     *
+     * @return a description of all counters and their values.
+     */
+    @Override public String toString()
+    {
+        return String.format("accepted=%d, rejected=%d (busy=%d, full=%d, "
+                + "per-ip=%d), joined=%d, disconnected=%d", accepted.get(),
+                getRejected(), rejectedBusy.get(), rejectedFull.get(),
+                rejectedPerIp.get(), joined.get(), disconnected.get());
+    }
+}
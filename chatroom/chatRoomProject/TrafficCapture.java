@@ -0,0 +1,328 @@
+package chatRoomProject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/*******************************************************************************
+ * This class represents a capture of the traffic a server gets from its
+ * clients, as part of the Chat-Room App (whose main method and full
+ * description can be found in ChatRoomClient.java).
+ * A server in capture mode records every message it reads from a client, with
+ * the time it was read and the session it was read from, so the traffic can
+ * later be replayed against another server (see CaptureReplay).
+ * Captures are stored in a compact binary format: a header (magic number and
+ * version), followed by a record per message - the time (in microseconds
+ * since the capture started), the session's number, the message type, the
+ * username (for JOIN messages only - a session is named once, when it joins),
+ * and the data. Strings and sequence numbers (which most messages carry) are
+ * written as they are; other data is serialized.
+ * Recording is thread-safe, and buffered - the capture should be flushed
+ * periodically, and closed when the server shuts down.
+ *
+ * @author Nadav Kahlon
+ */
+public class TrafficCapture implements Closeable
+{
+    /***************************************************************************
+     * A record of a single captured message.
+     * Record objects are IMMUTABLE.
+     */
+    public static class Record
+    {
+        // the time (in microseconds since the capture started) the message
+        // was read
+        private final long time;
+
+        // the number of the session the message was read from
+        private final int session;
+
+        // the captured message
+        private final Message message;
+
+        /***********************************************************************
+         * Constructor: creates a new record.
+         *
+         * @param time the time (in microseconds since the capture started).
+         * @param session the number of the session.
+         * @param message the captured message.
+         */
+        public Record(long time, int session, Message message)
+        {
+            this.time = time;
+            this.session = session;
+            this.message = message;
+        }
+
+        /***********************************************************************
+         * Getters for the record's attributes
+         */
+
+        public long getTime() { return time; }
+        public int getSession() { return session; }
+        public Message getMessage() { return message; }
+    }
+
+    /***************************************************************************
+     * Constants used by the class
+     */
+
+    // the first bytes of a capture file ("CRTC")
+    private static final int MAGIC = 0x43525443;
+
+    // the version of the capture format
+    private static final int VERSION = 1;
+
+    // the tags preceding the data of a record: no data, a String, a Long, or
+    // another serialized object
+    private static final int NO_DATA = 0;
+    private static final int STRING_DATA = 1;
+    private static final int LONG_DATA = 2;
+    private static final int OBJECT_DATA = 3;
+
+    /***************************************************************************
+     * Attributes of a capture
+     */
+
+    // the stream the records are written to (null when reading); guarded by
+    // 'this'
+    private final DataOutputStream out;
+
+    // the stream the records are read from (null when writing)
+    private final DataInputStream in;
+
+    // the time (in nanoseconds - see System.nanoTime) the capture started
+    private final long startTime;
+
+    // the numbers of the sessions being captured, by username (a username may
+    // be reused by a later session, which gets a new number)
+    private final Map<String, Integer> sessions;
+
+    // the number of the next session; guarded by 'this'
+    private int nextSession;
+
+    /***************************************************************************
+     * Constructor: creates a capture, either for writing or for reading.
+     *
+     * @param out the stream to write records to (or null).
+     * @param in the stream to read records from (or null).
+     */
+    private TrafficCapture(DataOutputStream out, DataInputStream in)
+    {
+        this.out = out;
+        this.in = in;
+        this.startTime = System.nanoTime();
+        this.sessions = new ConcurrentHashMap<>();
+        this.nextSession = 0;
+    }
+
+    /***************************************************************************
+     * Creates a new capture file, to record traffic into (an existing file is
+     * overwritten).
+     *
+     * @param path the path of the file.
+     * @return the capture.
+     * @throws IOException if the file could not be created.
+     */
+    public static TrafficCapture create(Path path) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        return new TrafficCapture(out, null);
+    }
+
+    /***************************************************************************
+     * Opens an existing capture file, to read its records.
+     *
+     * @param path the path of the file.
+     * @return the capture.
+     * @throws IOException if the file could not be opened, or is not a capture.
+     */
+    public static TrafficCapture open(Path path) throws IOException
+    {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path)));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            in.close();
+            throw new IOException("Not a capture file: " + path);
+        }
+        return new TrafficCapture(null, in);
+    }
+
+    /***************************************************************************
+     * Records a message read from a client. A JOIN message starts a new
+     * session under its username; other messages are attributed to the
+     * session of the user who sent them (and are dropped if there's none).
+     *
+     * @param message the message.
+     * @throws IOException if writing the record failed.
+     */
+    public synchronized void record(Message message) throws IOException
+    {
+        long time = (System.nanoTime() - startTime) / 1000;
+        String username = message.getUsername();
+        Integer session;
+        if (message.getType() == Message.Type.JOIN) {
+            session = nextSession++;
+            sessions.put(username, session);
+        }
+        else if ((session = sessions.get(username)) == null) {
+            return;
+        }
+
+        out.writeLong(time);
+        out.writeInt(session);
+        out.writeByte(message.getType().ordinal());
+        if (message.getType() == Message.Type.JOIN) out.writeUTF(username);
+        writeData(message.getData());
+    }
+
+    /***************************************************************************
+     * Ends the capture of a session (its username may be reused by a later
+     * session).
+     *
+     * @param username the username of the session.
+     */
+    public void endSession(String username)
+    {
+        sessions.remove(username);
+    }
+
+    /***************************************************************************
+     * Flushes the records written so far to the file.
+     *
+     * @throws IOException if flushing failed.
+     */
+    public synchronized void flush() throws IOException
+    {
+        out.flush();
+    }
+
+    /***************************************************************************
+     * Reads the next record from a capture opened for reading.
+     *
+     * @return the record, or null at the end of the capture.
+     * @throws IOException if reading failed, or the file is corrupted.
+     */
+    public Record next() throws IOException
+    {
+        long time;
+        try {
+            time = in.readLong();
+        }
+        catch (EOFException e) {
+            return null;
+        }
+        int session = in.readInt();
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= Message.Type.values().length)
+            throw new IOException("Corrupted capture: unknown message type");
+        Message.Type type = Message.Type.values()[ordinal];
+        String username = type == Message.Type.JOIN ? in.readUTF() : null;
+        return new Record(time, session, new Message(type, username, readData()));
+    }
+
+    /***************************************************************************
+     * Closes the capture (flushing the records written so far).
+     *
+     * @throws IOException if closing failed.
+     */
+    @Override public synchronized void close() throws IOException
+    {
+        if (out != null) out.close();
+        if (in != null) in.close();
+    }
+
+    /***************************************************************************
+     * Writes the data of a message: a tag telling its kind, followed by the
+     * data itself.
+     *
+     * @param data the data.
+     * @throws IOException if writing failed.
+     */
+    private void writeData(Object data) throws IOException
+    {
+        if (data == null) {
+            out.writeByte(NO_DATA);
+        }
+        else if (data instanceof String) {
+            byte[] bytes = ((String) data).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(STRING_DATA);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        else if (data instanceof Long) {
+            out.writeByte(LONG_DATA);
+            out.writeLong((Long) data);
+        }
+        else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectOut = new ObjectOutputStream(bytes)) {
+                objectOut.writeObject(data);
+            }
+            out.writeByte(OBJECT_DATA);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+    }
+
+    /***************************************************************************
+     * Reads the data of a message (see writeData).
+     *
+     * @return the data.
+     * @throws IOException if reading failed, or the data is corrupted.
+     */
+    private Serializable readData() throws IOException
+    {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case NO_DATA:
+                return null;
+            case STRING_DATA:
+                return new String(readBytes(), StandardCharsets.UTF_8);
+            case LONG_DATA:
+                return in.readLong();
+            case OBJECT_DATA:
+                try (ObjectInputStream objectIn = new ObjectInputStream(
+                        new ByteArrayInputStream(readBytes()))) {
+                    return (Serializable) objectIn.readObject();
+                }
+                catch (ClassNotFoundException | ClassCastException e) {
+                    throw new IOException("Corrupted capture: unknown data", e);
+                }
+            default:
+                throw new IOException("Corrupted capture: unknown data tag");
+        }
+    }
+
+    /***************************************************************************
+     * Reads a length-prefixed array of bytes.
+     *
+     * @return the bytes.
+     * @throws IOException if reading failed, or the length is corrupted.
+     */
+    private byte[] readBytes() throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0) throw new IOException("Corrupted capture: bad length");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,217 @@
+package chatRoomProject;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+import javafx.scene.text.Font;
+import javafx.scene.text.FontWeight;
+import javafx.scene.text.Text;
+import javafx.scene.text.TextFlow;
+import javafx.stage.Stage;
+
+/*******************************************************************************
+ * This program measures how much memory rendering chat lines allocates, as
+ * part of the client of the Chat-Room App (whose main method and full
+ * description can be found in ChatRoomClient.java).
+ * It renders messages onto a TextFlow in two ways, and prints the number of
+ * bytes allocated per message (by the thread appending the messages and by
+ * the JavaFX application thread together):
+ * - fresh: the way the client used to render them - two new Text nodes per
+ *   message, styled one by one, and added on the JavaFX thread (the oldest
+ *   lines are removed beyond ChatTranscript.MAX_LINES, so the transcript
+ *   doesn't grow).
+ * - pooled: through a ChatTranscript, which reuses the nodes of its lines.
+ * - moved: the nodes of the oldest line are moved to the end and given new
+ *   texts, right on the JavaFX thread. This is what the TextFlow itself
+ *   allocates (mostly for reporting the changes of its children), so it is
+ *   the floor for any path that reuses nodes.
+ * Each message is rendered before the next one is appended (as in a room that
+ * is busy, but not busy enough for lines to be rendered in batches), and the
+ * cost of waiting for the JavaFX thread is measured separately and subtracted.
+ * The TextFlow is not displayed, so layout and CSS costs are not included.
+ *
+ * @author Nadav Kahlon
+ */
+public class TranscriptBenchmark extends Application
+{
+    /***************************************************************************
+     * Constants used by the program
+     */
+
+    // the number of messages rendered before measuring (filling the transcript
+    // and warming up the code)
+    private static final int WARM_UP = 20_000;
+
+    // the number of messages measured
+    private static final int MESSAGES = 20_000;
+
+    // the text of the messages
+    private static final String TEXT = "Hello everyone, how is it going today?";
+
+    // the fonts of the nodes created by the benchmark (as in ChatTranscript)
+    private static final Font BOLD_FONT = Font.font(null, FontWeight.BOLD, 12);
+    private static final Font REGULAR_FONT = Font.font(null, 12);
+
+    /***************************************************************************
+     * Attributes of the program
+     */
+
+    // the identifier of the JavaFX application thread
+    private long fxThreadId;
+
+    @Override public void start(Stage stage)
+    {
+        fxThreadId = Thread.currentThread().getId();
+        Thread benchmark = new Thread(() -> {
+            try {
+                runBenchmark();
+            }
+            catch (InterruptedException e) {
+                System.out.println("The benchmark was interrupted.");
+            }
+            finally {
+                Platform.exit();
+            }
+        }, "benchmark");
+        benchmark.setDaemon(true);
+        benchmark.start();
+    }
+
+    /***************************************************************************
+     * Runs the benchmark, and prints its results.
+     *
+     * @throws InterruptedException if the benchmark was interrupted.
+     */
+    private void runBenchmark() throws InterruptedException
+    {
+        // the allocations of waiting for the JavaFX thread alone
+        double roundTrip = measure(() -> {});
+
+        TextFlow freshFlow = new TextFlow();
+        double fresh = measure(() -> { appendFresh(freshFlow, "user"); });
+
+        ChatTranscript transcript = new ChatTranscript(new TextFlow());
+        double pooled = measure(() -> { transcript.appendText("user", TEXT); });
+
+        TextFlow movedFlow = new TextFlow();
+        double moved = measure(() -> { appendMoved(movedFlow, "user"); });
+
+        System.out.printf("%8s %16s%n", "path", "bytes/message");
+        System.out.printf("%8s %16.1f%n", "fresh", fresh - roundTrip);
+        System.out.printf("%8s %16.1f%n", "pooled", pooled - roundTrip);
+        System.out.printf("%8s %16.1f%n", "moved", moved - roundTrip);
+    }
+
+    /***************************************************************************
+     * Appends a message the way the client used to: creates and styles two
+     * new nodes, and adds them on the JavaFX thread (removing the oldest line
+     * beyond ChatTranscript.MAX_LINES).
+     *
+     * @param textFlow the TextFlow to append to.
+     * @param sender the name of the sending user.
+     */
+    private static void appendFresh(TextFlow textFlow, String sender)
+    {
+        Text head = new Text(sender + ": ");
+        head.setFont(BOLD_FONT);
+        Text body = new Text(TEXT + '\n');
+        body.setFont(REGULAR_FONT);
+        Platform.runLater(() -> {
+            ObservableList<Node> children = textFlow.getChildren();
+            children.addAll(head, body);
+            if (children.size() > 2 * ChatTranscript.MAX_LINES)
+                children.remove(0, 2);
+        });
+    }
+
+    /***************************************************************************
+     * Appends a message by moving the nodes of the oldest line to the end, on
+     * the JavaFX thread (until there are ChatTranscript.MAX_LINES lines, new
+     * nodes are added instead).
+     *
+     * @param textFlow the TextFlow to append to.
+     * @param sender the name of the sending user.
+     */
+    private static void appendMoved(TextFlow textFlow, String sender)
+    {
+        Platform.runLater(() -> {
+            ObservableList<Node> children = textFlow.getChildren();
+            if (children.size() < 2 * ChatTranscript.MAX_LINES) {
+                Text head = new Text();
+                head.setFont(BOLD_FONT);
+                Text body = new Text();
+                body.setFont(REGULAR_FONT);
+                children.addAll(head, body);
+            }
+            Text head = (Text) children.get(0);
+            Text body = (Text) children.get(1);
+            children.remove(0, 2);
+            head.setText(sender + ": ");
+            body.setText(TEXT + '\n');
+            children.addAll(head, body);
+        });
+    }
+
+    /***************************************************************************
+     * Measures the allocations of appending messages: appends WARM_UP messages,
+     * and then MESSAGES more, waiting for the JavaFX thread to render each of
+     * them before appending the next.
+     *
+     * @param append appends a single message.
+     * @return the number of bytes allocated per measured message.
+     * @throws InterruptedException if the benchmark was interrupted.
+     */
+    private double measure(Runnable append) throws InterruptedException
+    {
+        for (int i = 0; i < WARM_UP; i++) {
+            append.run();
+            awaitFxThread();
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < MESSAGES; i++) {
+            append.run();
+            awaitFxThread();
+        }
+        return (double) (allocatedBytes() - before) / MESSAGES;
+    }
+
+    /***************************************************************************
+     * Waits for the JavaFX thread to run everything posted to it so far.
+     *
+     * @throws InterruptedException if the benchmark was interrupted.
+     */
+    private static void awaitFxThread() throws InterruptedException
+    {
+        CountDownLatch done = new CountDownLatch(1);
+        Platform.runLater(done::countDown);
+        done.await();
+    }
+
+    /***************************************************************************
+     * Gets the number of bytes allocated so far by the benchmark's thread and
+     * the JavaFX thread.
+     *
+     * @return the number of bytes.
+     */
+    private long allocatedBytes()
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+        long[] bytes = threads.getThreadAllocatedBytes(
+                new long[] {Thread.currentThread().getId(), fxThreadId});
+        return bytes[0] + bytes[1];
+    }
+
+    /***************************************************************************
+     * The main program.
+     *
+     * @param args arguments for the program (ignored).
+     */
+    public static void main(String[] args)
+    {
+        launch(args);
+    }
+}
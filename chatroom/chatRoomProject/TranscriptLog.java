@@ -0,0 +1,533 @@
+package chatRoomProject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.io.Closeable;
+import java.io.IOException;
+
+/*******************************************************************************
+ * This class represents a local, on-disk log of the transcript a certain user
+ * sees in the chat-rooms hosted on a certain server, as part of the GUI of the
+ * client in the Chat-Room App (whose main method and full description can be
+ * found in ChatRoomClient.java).
+ * Every transcript line is appended to a log file (as its head and body, in
+ * UTF-8, each preceded by its length), and the line's offset in the log file
+ * is appended to an index file - so any range of lines can be read with two
+ * positional reads, however long the log is. A line is indexed only after it
+ * is fully written, and lines left half-written (e.g. by a crash) are dropped
+ * when the log is opened again.
+ * The log is kept in two generations, each a log file and an index file (the
+ * index starting with the number of the generation's first line): lines are
+ * appended to the newer generation, and once its log file reaches
+ * GENERATION_SIZE, the older generation is emptied and becomes the newer one
+ * - so the log never grows beyond twice that size, and keeps the most recent
+ * lines. Lines are numbered from the first line ever logged, so the numbers
+ * of the lines kept don't change when the oldest ones are dropped.
+ * Only one client may use a log at a time: the log is locked while open (see
+ * 'open'), and a client which can't lock it runs without a log.
+ * All methods are synchronized, so lines may be appended from any thread.
+ *
+ * @author Nadav Kahlon
+ */
+public class TranscriptLog implements Closeable
+{
+    /***************************************************************************
+     * A single line of the transcript.
+     * Line objects are IMMUTABLE.
+     */
+    public static class Line
+    {
+        // the line's bold head, and its regular body
+        private final String head;
+        private final String body;
+
+        /***********************************************************************
+         * Constructor: creates a new line.
+         *
+         * @param head the text of the line's head.
+         * @param body the text of the line's body.
+         */
+        public Line(String head, String body)
+        {
+            this.head = head;
+            this.body = body;
+        }
+
+        /***********************************************************************
+         * Getters for the line's attributes
+         */
+
+        public String getHead() { return head; }
+        public String getBody() { return body; }
+    }
+
+    /***************************************************************************
+     * Constants used by the class
+     */
+
+    // the directory in which the logs are kept, named after their servers and
+    // users
+    public static final Path LOG_DIR =
+            Paths.get(System.getProperty("user.home"), ".chatroom", "transcripts");
+
+    // the size (in bytes) a generation's log file may reach before lines are
+    // appended to the other generation
+    public static final long GENERATION_SIZE = 8L << 20;
+
+    // the size (in bytes) of a line's header in the log file (the lengths of
+    // its head and body), of the header of an index file (the number of its
+    // first line), and of an entry in an index file
+    private static final int HEADER_SIZE = 8;
+    private static final int INDEX_HEADER_SIZE = 8;
+    private static final int ENTRY_SIZE = 8;
+
+    // the names of the logs open in this process (guarded by itself) - a log
+    // open here is not even opened again, as closing any channel of a file
+    // releases the process's lock of it on some systems
+    private static final Set<String> OPEN = new HashSet<>();
+
+    /***************************************************************************
+     * Attributes of a log
+     */
+
+    // the name of the log
+    private final String name;
+
+    // the two generations, and the position of the newer one among them
+    private final Generation[] generations;
+    private int newer;
+
+    // the lock of the log (held as long as it is open)
+    private final FileLock lock;
+
+    /***************************************************************************
+     * Constructor: opens a log on already opened and locked files (see
+     * 'open').
+     *
+     * @param name the name of the log.
+     * @param generations the generations of the log.
+     * @param lock the lock of the log.
+     * @throws IOException if reading the files failed.
+     */
+    private TranscriptLog(String name, Generation[] generations, FileLock lock)
+            throws IOException
+    {
+        this.name = name;
+        this.generations = generations;
+        this.lock = lock;
+        recover();
+    }
+
+    /***************************************************************************
+     * Opens the log of a certain user on a certain server (creating it if
+     * there's none), and locks it.
+     *
+     * @param serverName the name of the server, as the user entered it.
+     * @param username the username the user joins with.
+     * @return the log.
+     * @throws IOException if the log could not be opened, or is locked by
+     * another client.
+     */
+    public static TranscriptLog open(String serverName, String username)
+            throws IOException
+    {
+        // (name the files after the server and the user, with only safe
+        // characters - '@' separates the two)
+        String name = safeName(serverName) + "@" + safeName(username);
+        synchronized (OPEN) {
+            if (!OPEN.add(name))
+                throw new IOException("The transcript log is in use by another client");
+        }
+        Generation[] generations = new Generation[2];
+        try {
+            Files.createDirectories(LOG_DIR);
+            for (int i = 0; i < generations.length; i++)
+                generations[i] = new Generation(LOG_DIR.resolve(name + "." + i));
+
+            // (the first index file holds the lock of the whole log)
+            FileLock lock;
+            try {
+                lock = generations[0].index.tryLock();
+            }
+            catch (OverlappingFileLockException e) {
+                lock = null; // (locked by another window of this client)
+            }
+            if (lock == null)
+                throw new IOException("The transcript log is in use by another client");
+            return new TranscriptLog(name, generations, lock);
+        }
+        catch (IOException e) {
+            for (Generation generation : generations)
+                if (generation != null) generation.close();
+            synchronized (OPEN) {
+                OPEN.remove(name);
+            }
+            throw e;
+        }
+    }
+
+    /***************************************************************************
+     * Appends a line to the log.
+     *
+     * @param head the text of the line's head.
+     * @param body the text of the line's body.
+     * @throws IOException if writing failed.
+     */
+    public synchronized void append(String head, String body) throws IOException
+    {
+        byte[] headBytes = head.getBytes(StandardCharsets.UTF_8);
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(
+                HEADER_SIZE + headBytes.length + bodyBytes.length);
+        record.putInt(headBytes.length).putInt(bodyBytes.length)
+                .put(headBytes).put(bodyBytes).flip();
+
+        // move on to the other generation once this one is full
+        Generation current = generations[newer];
+        if (current.count > 0 && current.logSize + record.limit() > GENERATION_SIZE) {
+            Generation other = generations[1 - newer];
+            other.reset(current.end());
+            newer = 1 - newer;
+            current = other;
+        }
+        current.append(record);
+    }
+
+    /***************************************************************************
+     * Gets the number of lines ever logged (the number of the next line).
+     *
+     * @return the number of lines.
+     */
+    public synchronized long size()
+    {
+        return generations[newer].end();
+    }
+
+    /***************************************************************************
+     * Reads a range of lines from the log (lines that were dropped from the
+     * log are skipped).
+     *
+     * @param from the number of the first line (0 for the oldest).
+     * @param to the number of the line after the last one.
+     * @return the lines, oldest first (the last ones of the range, if older
+     * lines were dropped).
+     * @throws IOException if reading failed, or the log is corrupted.
+     */
+    public synchronized List<Line> read(long from, long to) throws IOException
+    {
+        Generation older = generations[1 - newer];
+        Generation current = generations[newer];
+        List<Line> lines = new ArrayList<>();
+        if (older.count > 0)
+            older.read(Math.max(from, older.base), Math.min(to, current.base), lines);
+        current.read(Math.max(from, current.base), Math.min(to, current.end()), lines);
+        return lines;
+    }
+
+    /***************************************************************************
+     * Closes the log's files (releasing its lock).
+     *
+     * @throws IOException if closing failed.
+     */
+    @Override public synchronized void close() throws IOException
+    {
+        try {
+            lock.release();
+        }
+        finally {
+            try {
+                generations[1].close();
+            }
+            finally {
+                generations[0].close();
+                synchronized (OPEN) {
+                    OPEN.remove(name);
+                }
+            }
+        }
+    }
+
+    /***************************************************************************
+     * Recovers both generations (see Generation.recover), finds the newer one
+     * (the one whose lines start later), and empties the older one if its
+     * lines don't lead up to those of the newer one.
+     *
+     * @throws IOException if reading or writing the files failed.
+     */
+    private void recover() throws IOException
+    {
+        for (Generation generation : generations) generation.recover();
+        newer = generations[1].base > generations[0].base ? 1 : 0;
+        Generation older = generations[1 - newer];
+        if (older.count > 0 && older.end() != generations[newer].base)
+            older.reset(generations[newer].base);
+    }
+
+    /***************************************************************************
+     * Turns a name into one that is safe to use in a file name.
+     *
+     * @param name the name.
+     * @return the safe name.
+     */
+    private static String safeName(String name)
+    {
+        return name.trim().toLowerCase().replaceAll("[^a-z0-9.-]", "_");
+    }
+
+    /***************************************************************************
+     * A generation of the log: a log file, and an index file of its lines.
+     */
+    private static class Generation implements Closeable
+    {
+        // the log file and the index file
+        private final FileChannel log;
+        private final FileChannel index;
+
+        // the number of the first line, the number of lines, and the size (in
+        // bytes) of the log file
+        private long base;
+        private long count;
+        private long logSize;
+
+        /***********************************************************************
+         * Constructor: opens the files of a generation (creating them if they
+         * don't exist). The generation is ready for use once recovered (see
+         * 'recover').
+         *
+         * @param prefix the path of the files, without their extensions.
+         * @throws IOException if the files could not be opened.
+         */
+        private Generation(Path prefix) throws IOException
+        {
+            this.log = FileChannel.open(
+                    prefix.resolveSibling(prefix.getFileName() + ".log"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                this.index = FileChannel.open(
+                        prefix.resolveSibling(prefix.getFileName() + ".idx"),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+            }
+            catch (IOException e) {
+                log.close();
+                throw e;
+            }
+        }
+
+        /***********************************************************************
+         * Gets the number of the line after the last one of the generation.
+         *
+         * @return the number of the line.
+         */
+        private long end()
+        {
+            return base + count;
+        }
+
+        /***********************************************************************
+         * Appends a line to the generation.
+         *
+         * @param record the line, as written to the log file.
+         * @throws IOException if writing failed.
+         */
+        private void append(ByteBuffer record) throws IOException
+        {
+            int length = record.remaining();
+            writeFully(log, record, logSize);
+
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+            entry.putLong(logSize).flip();
+            writeFully(index, entry, INDEX_HEADER_SIZE + count * ENTRY_SIZE);
+
+            logSize += length;
+            count++;
+        }
+
+        /***********************************************************************
+         * Reads a range of lines from the generation.
+         *
+         * @param from the number of the first line (at least 'base').
+         * @param to the number of the line after the last one (at most the
+         * end of the generation).
+         * @param lines the list to add the lines to.
+         * @throws IOException if reading failed, or the generation is
+         * corrupted.
+         */
+        private void read(long from, long to, List<Line> lines) throws IOException
+        {
+            if (from >= to) return;
+
+            // find where the range starts and ends in the log file
+            long start = offsetOf(from - base);
+            long end = to == end() ? logSize : offsetOf(to - base);
+            if (start > end || end > logSize || end - start > Integer.MAX_VALUE)
+                throw new IOException("Corrupted transcript index");
+
+            // read the range at once, and split it to lines
+            ByteBuffer range = ByteBuffer.allocate((int) (end - start));
+            readFully(log, range, start);
+            range.flip();
+            while (range.remaining() >= HEADER_SIZE) {
+                int headLength = range.getInt();
+                int bodyLength = range.getInt();
+                if (headLength < 0 || bodyLength < 0
+                        || headLength + bodyLength > range.remaining())
+                    throw new IOException("Corrupted transcript log");
+                lines.add(new Line(decode(range, headLength), decode(range, bodyLength)));
+            }
+        }
+
+        /***********************************************************************
+         * Empties the generation, to hold the lines from a certain number on.
+         * The lines are dropped before the new number is written, so if this
+         * is interrupted (e.g. by a crash), the generation is found empty.
+         *
+         * @param newBase the number of the next line.
+         * @throws IOException if writing failed.
+         */
+        private void reset(long newBase) throws IOException
+        {
+            count = 0;
+            logSize = 0;
+            index.truncate(INDEX_HEADER_SIZE);
+            log.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+            header.putLong(newBase).flip();
+            writeFully(index, header, 0);
+            base = newBase;
+        }
+
+        /***********************************************************************
+         * Finds the lines that were fully written and indexed, and drops
+         * whatever comes after them in both files.
+         *
+         * @throws IOException if reading or truncating the files failed.
+         */
+        private void recover() throws IOException
+        {
+            if (index.size() < INDEX_HEADER_SIZE) {
+                // (a new generation, or one whose header was never written)
+                reset(0);
+                return;
+            }
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+            readFully(index, header, 0);
+            header.flip();
+            base = header.getLong();
+            if (base < 0) {
+                reset(0);
+                return;
+            }
+
+            count = (index.size() - INDEX_HEADER_SIZE) / ENTRY_SIZE;
+            logSize = 0;
+            while (count > 0) {
+                // the last indexed line is kept if it is complete
+                long offset = offsetOf(count - 1);
+                if (offset >= 0 && offset + HEADER_SIZE <= log.size()) {
+                    ByteBuffer lineHeader = ByteBuffer.allocate(HEADER_SIZE);
+                    readFully(log, lineHeader, offset);
+                    lineHeader.flip();
+                    long end = offset + HEADER_SIZE + lineHeader.getInt()
+                            + lineHeader.getInt();
+                    if (end >= offset + HEADER_SIZE && end <= log.size()) {
+                        logSize = end;
+                        break;
+                    }
+                }
+                count--;
+            }
+            index.truncate(INDEX_HEADER_SIZE + count * ENTRY_SIZE);
+            log.truncate(logSize);
+        }
+
+        /***********************************************************************
+         * Gets the offset of a line in the log file.
+         *
+         * @param line the position of the line in the generation.
+         * @return the offset (in bytes).
+         * @throws IOException if reading the index failed.
+         */
+        private long offsetOf(long line) throws IOException
+        {
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+            readFully(index, entry, INDEX_HEADER_SIZE + line * ENTRY_SIZE);
+            entry.flip();
+            return entry.getLong();
+        }
+
+        /***********************************************************************
+         * Closes the generation's files.
+         *
+         * @throws IOException if closing failed.
+         */
+        @Override public void close() throws IOException
+        {
+            try {
+                log.close();
+            }
+            finally {
+                index.close();
+            }
+        }
+    }
+
+    /***************************************************************************
+     * Decodes a UTF-8 string out of a buffer.
+     *
+     * @param buffer the buffer (positioned at the string).
+     * @param length the length of the string (in bytes).
+     * @return the string.
+     */
+    private static String decode(ByteBuffer buffer, int length)
+    {
+        String text = new String(buffer.array(), buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return text;
+    }
+
+    /***************************************************************************
+     * Reads bytes from a file until a buffer is full.
+     *
+     * @param file the file.
+     * @param buffer the buffer.
+     * @param position the position in the file to read from.
+     * @throws IOException if reading failed, or the file ended too soon.
+     */
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of transcript file");
+            position += read;
+        }
+    }
+
+    /***************************************************************************
+     * Writes all the bytes of a buffer to a file.
+     *
+     * @param file the file.
+     * @param buffer the buffer.
+     * @param position the position in the file to write at.
+     * @throws IOException if writing failed.
+     */
+    private static void writeFully(FileChannel file, ByteBuffer buffer, long position)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) position += file.write(buffer, position);
+    }
+}
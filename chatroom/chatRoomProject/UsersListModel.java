@@ -0,0 +1,300 @@
+package chatRoomProject;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+/*******************************************************************************
+ * This class is the model behind the participants list of the client in the
+ * Chat-Room App (whose main method and full description can be found in
+ * ChatRoomClient.java).
+ * It keeps the usernames of the participants in a hash index (so membership
+ * checks are O(1)), and exposes a sorted observable view of them to be bound
+ * to a ListView.
+ * Joins and leaves may be reported from any thread: they are recorded as
+ * pending operations, and applied to the sorted view in batches on the JavaFX
+ * application thread, so that storms of JOIN/LEAVE messages don't stall the
+ * GUI: a large batch is published with a single change notification, while
+ * each user of a small batch (up to SMALL_BATCH_SIZE users) is inserted or
+ * removed in place - one notification per user - so the ListView keeps its
+ * selection and scroll position through the occasional join or leave. A full list of users (such as the
+ * one a CONFIRM_JOIN message carries) may be reported the same way, in order
+ * with the joins and leaves around it.
+ *
+ * @author Nadav Kahlon
+ */
+public class UsersListModel
+{
+    /***************************************************************************
+     * Constants used by the model
+     */
+
+    // the order in which usernames are displayed (case-insensitive, with the
+    // natural order breaking ties between names differing only in case)
+    private static final Comparator<String> USERNAME_ORDER =
+            String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+    // batches up to this size are applied by binary-search insertions and
+    // removals; larger batches are merged into the view in a single pass
+    private static final int SMALL_BATCH_SIZE = 8;
+
+    /***************************************************************************
+     * Attributes of the model
+     */
+
+    // the sorted view of the usernames (modified only on the JavaFX thread)
+    private final ObservableList<String> sortedView;
+
+    // a hash index of the usernames currently in 'sortedView' (modified only
+    // on the JavaFX thread)
+    private final Set<String> index;
+
+    // operations waiting to be applied to the view: maps a username to true
+    // if it should be added, or to false if it should be removed (only the
+    // last operation reported for a user matters); guarded by 'this'
+    private Map<String, Boolean> pendingOps;
+
+    // a full list of users waiting to replace the view before 'pendingOps' is
+    // applied (or null if there's none); guarded by 'this'
+    private Collection<String> pendingUsers;
+
+    // a boolean stating whether a flush of 'pendingOps' is already scheduled
+    // on the JavaFX thread; guarded by 'this'
+    private boolean flushScheduled;
+
+    /***************************************************************************
+     * Constructor: creates a new empty model.
+     */
+    public UsersListModel()
+    {
+        sortedView = FXCollections.observableArrayList();
+        index = new HashSet<>();
+        pendingOps = new LinkedHashMap<>();
+        pendingUsers = null;
+        flushScheduled = false;
+    }
+
+    /***************************************************************************
+     * Gets the sorted view of the usernames (to be bound to a ListView).
+     *
+     * @return an unmodifiable observable list of the usernames, sorted.
+     */
+    public ObservableList<String> getSortedView()
+    {
+        return FXCollections.unmodifiableObservableList(sortedView);
+    }
+
+    /***************************************************************************
+     * Records that a user joined the chat-room (may be called from any thread).
+     *
+     * @param username the name of the joining user.
+     */
+    public void add(String username)
+    {
+        record(username, true);
+    }
+
+    /***************************************************************************
+     * Records that a user left the chat-room (may be called from any thread).
+     *
+     * @param username the name of the leaving user.
+     */
+    public void remove(String username)
+    {
+        record(username, false);
+    }
+
+    /***************************************************************************
+     * Records that the entire list of users is replaced by a given collection
+     * (may be called from any thread). This is meant for the list attached to
+     * a CONFIRM_JOIN message: operations reported before the call are
+     * discarded, while those reported after it are applied on top of the new
+     * list.
+     *
+     * @param usernames the usernames of all participants (not copied - it must
+     * not be modified afterwards).
+     */
+    public void reset(Collection<String> usernames)
+    {
+        synchronized (this) {
+            pendingOps = new LinkedHashMap<>();
+            pendingUsers = usernames;
+            if (flushScheduled) return;
+            flushScheduled = true;
+        }
+        Platform.runLater(() -> { flush(); });
+    }
+
+    /***************************************************************************
+     * Replaces the entire list of users by a given collection. Must be called
+     * on the JavaFX thread; pending operations reported before the call are
+     * discarded.
+     *
+     * @param usernames the usernames of all participants.
+     */
+    public void setAll(Collection<String> usernames)
+    {
+        synchronized (this) {
+            pendingOps = new LinkedHashMap<>();
+            pendingUsers = null;
+        }
+        replaceView(usernames, Collections.emptyMap());
+    }
+
+    /***************************************************************************
+     * Removes all users from the model. Must be called on the JavaFX thread;
+     * pending operations reported before the call are discarded.
+     */
+    public void clear()
+    {
+        setAll(Collections.emptyList());
+    }
+
+    /***************************************************************************
+     * Checks whether a user participates in the chat-room (as far as the
+     * view is concerned). Must be called on the JavaFX thread.
+     *
+     * @param username the username in question.
+     * @return A boolean stating whether the user is in the view.
+     */
+    public boolean contains(String username)
+    {
+        return index.contains(username);
+    }
+
+    /***************************************************************************
+     * Records a pending operation, and schedules a flush on the JavaFX thread
+     * if none is scheduled yet.
+     *
+     * @param username the user the operation refers to.
+     * @param isAdd true for adding the user, false for removing it.
+     */
+    private void record(String username, boolean isAdd)
+    {
+        synchronized (this) {
+            // a later operation on the same user overrides an earlier one, so
+            // re-insert it to keep the operations in arrival order
+            pendingOps.remove(username);
+            pendingOps.put(username, isAdd);
+            if (flushScheduled) return;
+            flushScheduled = true;
+        }
+        Platform.runLater(() -> { flush(); });
+    }
+
+    /***************************************************************************
+     * Applies all pending operations to the view (runs on the JavaFX thread).
+     */
+    private void flush()
+    {
+        // take the pending batch
+        Map<String, Boolean> batch;
+        Collection<String> users;
+        synchronized (this) {
+            batch = pendingOps;
+            users = pendingUsers;
+            pendingOps = new LinkedHashMap<>();
+            pendingUsers = null;
+            flushScheduled = false;
+        }
+        if (users != null) {
+            replaceView(users, batch);
+            return;
+        }
+
+        // use the index to drop operations that don't change anything
+        List<String> toAdd = new ArrayList<>();
+        Set<String> toRemove = new HashSet<>();
+        for (Map.Entry<String, Boolean> op : batch.entrySet()) {
+            if (op.getValue()) {
+                if (index.add(op.getKey())) toAdd.add(op.getKey());
+            }
+            else {
+                if (index.remove(op.getKey())) toRemove.add(op.getKey());
+            }
+        }
+        if (toAdd.isEmpty() && toRemove.isEmpty()) return;
+
+        if (toAdd.size() + toRemove.size() <= SMALL_BATCH_SIZE)
+            applySmallBatch(toAdd, toRemove);
+        else
+            applyLargeBatch(toAdd, toRemove);
+    }
+
+    /***************************************************************************
+     * Replaces the view (and the index) by a full list of users, with a batch
+     * of operations applied on top of it, publishing the result at once.
+     *
+     * @param usernames the usernames of all participants.
+     * @param batch the operations to apply (see 'pendingOps').
+     */
+    private void replaceView(Collection<String> usernames, Map<String, Boolean> batch)
+    {
+        // rebuild the index, and sort a copy of it for the view
+        index.clear();
+        index.addAll(usernames);
+        for (Map.Entry<String, Boolean> op : batch.entrySet()) {
+            if (op.getValue()) index.add(op.getKey());
+            else index.remove(op.getKey());
+        }
+        List<String> sorted = new ArrayList<>(index);
+        sorted.sort(USERNAME_ORDER);
+        sortedView.setAll(sorted);
+    }
+
+    /***************************************************************************
+     * Applies a small batch of operations to the view, locating each user by a
+     * binary search (each insertion and removal notifies the view's listeners
+     * on its own).
+     *
+     * @param toAdd the users to add (not present in the view).
+     * @param toRemove the users to remove (present in the view).
+     */
+    private void applySmallBatch(List<String> toAdd, Set<String> toRemove)
+    {
+        for (String username : toRemove) {
+            int idx = Collections.binarySearch(sortedView, username, USERNAME_ORDER);
+            if (idx >= 0) sortedView.remove(idx);
+        }
+        for (String username : toAdd) {
+            int idx = Collections.binarySearch(sortedView, username, USERNAME_ORDER);
+            if (idx < 0) sortedView.add(-idx - 1, username);
+        }
+    }
+
+    /***************************************************************************
+     * Applies a large batch of operations to the view by merging the sorted
+     * additions into the surviving users, and publishing the result at once.
+     *
+     * @param toAdd the users to add (not present in the view).
+     * @param toRemove the users to remove (present in the view).
+     */
+    private void applyLargeBatch(List<String> toAdd, Set<String> toRemove)
+    {
+        toAdd.sort(USERNAME_ORDER);
+        List<String> merged = new ArrayList<>(sortedView.size() + toAdd.size());
+
+        // merge the two sorted sequences, skipping removed users
+        int i = 0, j = 0;
+        while (i < sortedView.size() || j < toAdd.size()) {
+            if (j == toAdd.size() || (i < sortedView.size() &&
+                    USERNAME_ORDER.compare(sortedView.get(i), toAdd.get(j)) < 0)) {
+                String username = sortedView.get(i++);
+                if (!toRemove.contains(username)) merged.add(username);
+            }
+            else {
+                merged.add(toAdd.get(j++));
+            }
+        }
+        sortedView.setAll(merged);
+    }
+}
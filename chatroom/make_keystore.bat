@@ -0,0 +1,4 @@
+keytool -genkeypair -alias chatroom -keyalg EC -groupname secp256r1 -validity 365 -dname "CN=localhost" -ext "SAN=dns:localhost,ip:127.0.0.1" -keystore chatroom.p12 -storetype PKCS12 -storepass changeit
+keytool -exportcert -alias chatroom -keystore chatroom.p12 -storepass changeit -file chatroom.cer
+keytool -importcert -noprompt -alias chatroom -file chatroom.cer -keystore chatroom-trust.p12 -storetype PKCS12 -storepass changeit
+pause
\ No newline at end of file
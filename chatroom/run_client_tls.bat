@@ -0,0 +1,2 @@
+java -Djavax.net.ssl.trustStore=chatroom-trust.p12 -Djavax.net.ssl.trustStorePassword=changeit chatRoomProject.ChatRoomClient
+pause
\ No newline at end of file
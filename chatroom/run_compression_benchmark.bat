@@ -0,0 +1,2 @@
+java chatRoomProject.CompressionBenchmark
+pause
\ No newline at end of file
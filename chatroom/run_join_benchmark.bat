@@ -0,0 +1,2 @@
+java chatRoomProject.JoinLatencyBenchmark %*
+pause
\ No newline at end of file
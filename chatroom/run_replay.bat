@@ -0,0 +1,2 @@
+java chatRoomProject.CaptureReplay %*
+pause
\ No newline at end of file
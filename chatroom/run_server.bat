@@ -1,2 +1,2 @@
-java chatRoomProject.ChatRoomServer
+java chatRoomProject.ChatRoomServer %*
 pause
\ No newline at end of file
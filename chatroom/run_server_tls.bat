@@ -0,0 +1,2 @@
+java chatRoomProject.ChatRoomServer --keystore=chatroom.p12 --keystore-password=changeit %*
+pause
\ No newline at end of file
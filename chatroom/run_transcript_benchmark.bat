@@ -0,0 +1,2 @@
+java chatRoomProject.TranscriptBenchmark
+pause
\ No newline at end of file
@@ -0,0 +1,436 @@
+package dictionaryProject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/*******************************************************************************
+ * This class represents an inverted index over the definitions of the entries
+ * in a dictionary, as part of the Dictionary App (whose main program can be
+ * found in DictionaryApp.java).
+ * Definitions are split into words (maximal runs of letters and digits, with
+ * their letter cases folded - see DictionaryEntry.foldCase), and every word
+ * maps to a posting list of the entries whose definitions contain it. Every
+ * entry is given a number when it is added (numbers only grow, so adding an
+ * entry appends to the end of its words' lists), and a posting list keeps the
+ * gaps between successive numbers, along with the number of times the word
+ * appears in the definition, as variable-length integers.
+ * Removed entries are only marked as such; once they outnumber the live
+ * entries, the index is rebuilt without them.
+ * Queries match the entries containing all of their words, or - if the
+ * query contains the word OR - any of them. Matches are ranked by the sum of
+ * the frequencies of the query's words in their definitions, each weighted by
+ * how rare the word is (tf-idf).
+ * The index is not thread-safe (see Dictionary for the locking around it).
+ * 
+ * @author Nadav Kahlon
+ */
+public class DefinitionIndex
+{
+    /***************************************************************************
+     * A parsed query.
+     * Query objects are IMMUTABLE.
+     */
+    public static class Query
+    {
+        // the distinct case-folded words of the query
+        private final String[] words;
+        
+        // a boolean stating whether an entry matches by containing any word
+        // (and not all of them)
+        private final boolean any;
+        
+        /***********************************************************************
+         * Constructor: creates a new query.
+         * 
+         * @param words the distinct case-folded words.
+         * @param any true if containing any word is enough.
+         */
+        private Query(String[] words, boolean any)
+        {
+            this.words = words;
+            this.any = any;
+        }
+        
+        /***********************************************************************
+         * Parses a query typed by the user: its words, where the word OR
+         * (in upper case) makes the query match any of the other words.
+         * 
+         * @param text the text of the query.
+         * @return the query, or null if it has no words.
+         */
+        public static Query parse(String text)
+        {
+            boolean any = false;
+            ArrayList<String> words = new ArrayList<>();
+            for (String word : text.trim().split("\\s+")) {
+                if (word.equals("OR")) any = true;
+                else for (String token : tokenize(word).keySet())
+                    if (!words.contains(token)) words.add(token);
+            }
+            return words.isEmpty() ? null :
+                    new Query(words.toArray(new String[0]), any);
+        }
+        
+        /***********************************************************************
+         * Checks whether a definition matches the query (without the index).
+         * 
+         * @param definition the definition.
+         * @return A boolean stating whether it matches.
+         */
+        public boolean matches(String definition)
+        {
+            Map<String, Integer> tokens = tokenize(definition);
+            for (String word : words) {
+                if (tokens.containsKey(word) == any) return any;
+            }
+            return !any;
+        }
+    }
+    
+    /***************************************************************************
+     * A list of the entries containing a word, with the number of times they
+     * contain it, kept as variable-length gaps between the entries' numbers.
+     */
+    private static class PostingList
+    {
+        // the encoded list, and the number of bytes used in it
+        private byte[] data = new byte[8];
+        private int length = 0;
+        
+        // the number of entries in the list, and the number of the last one
+        private int count = 0;
+        private int last = 0;
+        
+        /***********************************************************************
+         * Appends an entry to the list.
+         * 
+         * @param id the number of the entry (greater than those in the list).
+         * @param frequency the number of times the entry contains the word.
+         */
+        private void add(int id, int frequency)
+        {
+            if (length + 10 > data.length)
+                data = Arrays.copyOf(data, data.length * 2);
+            writeVarInt(id - last);
+            writeVarInt(frequency);
+            last = id;
+            count++;
+        }
+        
+        /***********************************************************************
+         * Writes a variable-length integer (7 bits per byte, with the top bit
+         * telling that more bytes follow).
+         * 
+         * @param value the integer (non-negative).
+         */
+        private void writeVarInt(int value)
+        {
+            while ((value & ~0x7F) != 0) {
+                data[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+    }
+    
+    /***************************************************************************
+     * A cursor over a posting list.
+     */
+    private static class Cursor
+    {
+        // the list, and the position of the next entry in it
+        private final PostingList list;
+        private int position = 0;
+        
+        // the current entry and its frequency (valid once 'started' is set)
+        private int id = 0;
+        private int frequency = 0;
+        private boolean started = false;
+        
+        // the weight of the list's word in the ranking (its rarity)
+        private final double weight;
+        
+        /***********************************************************************
+         * Constructor: creates a cursor before the first entry of a list.
+         * 
+         * @param list the list.
+         * @param weight the weight of the list's word.
+         */
+        private Cursor(PostingList list, double weight)
+        {
+            this.list = list;
+            this.weight = weight;
+        }
+        
+        /***********************************************************************
+         * Moves to the next entry.
+         * 
+         * @return A boolean stating whether there is one.
+         */
+        private boolean next()
+        {
+            if (position >= list.length) return false;
+            id += readVarInt();
+            frequency = readVarInt();
+            started = true;
+            return true;
+        }
+        
+        /***********************************************************************
+         * Moves to the first entry whose number is not less than a given one.
+         * 
+         * @param target the number.
+         * @return A boolean stating whether there is one.
+         */
+        private boolean advanceTo(int target)
+        {
+            while (!started || id < target) {
+                if (!next()) return false;
+            }
+            return true;
+        }
+        
+        /***********************************************************************
+         * Reads a variable-length integer (see PostingList.writeVarInt).
+         * 
+         * @return the integer.
+         */
+        private int readVarInt()
+        {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = list.data[position++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+        }
+    }
+    
+    /***************************************************************************
+     * Constants used by the class
+     */
+    
+    // the minimal number of removed entries before the index is rebuilt
+    private static final int MIN_COMPACTION = 1024;
+    
+    /***************************************************************************
+     * Attributes of an index
+     */
+    
+    // the posting lists, by case-folded word
+    private final HashMap<String, PostingList> postings;
+    
+    // the entries by their numbers (null for removed ones)
+    private final ArrayList<DictionaryEntry> entries;
+    
+    // the numbers of the entries, by their case-folded terms
+    private final HashMap<String, Integer> ids;
+    
+    // the number of removed entries still in the posting lists
+    private int removed;
+    
+    /***************************************************************************
+     * Constructor: creates a new empty index.
+     */
+    public DefinitionIndex()
+    {
+        this.postings = new HashMap<>();
+        this.entries = new ArrayList<>();
+        this.ids = new HashMap<>();
+        this.removed = 0;
+    }
+    
+    /***************************************************************************
+     * Adds an entry to the index.
+     * 
+     * @param entry the entry (whose term is not in the index).
+     */
+    public void add(DictionaryEntry entry)
+    {
+        int id = entries.size();
+        entries.add(entry);
+        ids.put(DictionaryEntry.foldCase(entry.getTerm()), id);
+        for (Map.Entry<String, Integer> word : tokenize(entry.getDefinition()).entrySet())
+            postings.computeIfAbsent(word.getKey(), (k) -> new PostingList())
+                    .add(id, word.getValue());
+    }
+    
+    /***************************************************************************
+     * Removes an entry from the index.
+     * 
+     * @param entry the entry (actually removes the entry of the same term).
+     */
+    public void remove(DictionaryEntry entry)
+    {
+        Integer id = ids.remove(DictionaryEntry.foldCase(entry.getTerm()));
+        if (id == null) return;
+        entries.set(id, null);
+        if (++removed >= MIN_COMPACTION && removed > ids.size()) compact();
+    }
+    
+    /***************************************************************************
+     * Removes all entries from the index.
+     */
+    public void clear()
+    {
+        postings.clear();
+        entries.clear();
+        ids.clear();
+        removed = 0;
+    }
+    
+    /***************************************************************************
+     * Finds the entries matching a query, ranked.
+     * 
+     * @param query the query.
+     * @return the matching entries, best first (or null if the searching
+     * thread was interrupted).
+     */
+    public List<DictionaryEntry> search(Query query)
+    {
+        // get a cursor over the list of each word, weighted by its rarity
+        ArrayList<Cursor> cursors = new ArrayList<>();
+        for (String word : query.words) {
+            PostingList list = postings.get(word);
+            if (list != null)
+                cursors.add(new Cursor(list, Math.log(1 + (double) ids.size() / list.count)));
+            else if (!query.any)
+                return new ArrayList<>(); // (no entry contains all the words)
+        }
+        
+        // find the matches with their scores, packed so that sorting them
+        // ranks them: the negated score on top, and the number below
+        long[] matches = query.any ? union(cursors) : intersection(cursors);
+        if (matches == null) return null;
+        Arrays.sort(matches);
+        ArrayList<DictionaryEntry> ranked = new ArrayList<>(matches.length);
+        for (long match : matches) {
+            DictionaryEntry entry = entries.get((int) match);
+            if (entry != null) ranked.add(entry);
+        }
+        return ranked;
+    }
+    
+    /***************************************************************************
+     * Finds the entries contained in all of the given lists.
+     * 
+     * @param cursors cursors over the lists.
+     * @return the packed matches (see 'search'), or null if interrupted.
+     */
+    private long[] intersection(ArrayList<Cursor> cursors)
+    {
+        // walk the shortest list, and look for each of its entries in the rest
+        cursors.sort((a, b) -> Integer.compare(a.list.count, b.list.count));
+        Cursor shortest = cursors.get(0);
+        // (the thread is checked for interruption whenever 'matches' grows)
+        long[] matches = new long[16];
+        int count = 0;
+        candidates:
+        while (shortest.next()) {
+            double score = shortest.frequency * shortest.weight;
+            for (int i = 1; i < cursors.size(); i++) {
+                Cursor cursor = cursors.get(i);
+                if (!cursor.advanceTo(shortest.id)) break candidates;
+                if (cursor.id != shortest.id) continue candidates;
+                score += cursor.frequency * cursor.weight;
+            }
+            if (count == matches.length) {
+                if (Thread.currentThread().isInterrupted()) return null;
+                matches = Arrays.copyOf(matches, count * 2);
+            }
+            matches[count++] = pack(score, shortest.id);
+        }
+        return Arrays.copyOf(matches, count);
+    }
+    
+    /***************************************************************************
+     * Finds the entries contained in any of the given lists.
+     * 
+     * @param cursors cursors over the lists.
+     * @return the packed matches (see 'search'), or null if interrupted.
+     */
+    private long[] union(ArrayList<Cursor> cursors)
+    {
+        // merge the lists, always taking the smallest number among them
+        PriorityQueue<Cursor> queue = new PriorityQueue<>(Math.max(1, cursors.size()),
+                (a, b) -> Integer.compare(a.id, b.id));
+        for (Cursor cursor : cursors) {
+            if (cursor.next()) queue.add(cursor);
+        }
+        long[] matches = new long[16];
+        int count = 0;
+        while (!queue.isEmpty()) {
+            int id = queue.peek().id;
+            double score = 0;
+            while (!queue.isEmpty() && queue.peek().id == id) {
+                Cursor cursor = queue.poll();
+                score += cursor.frequency * cursor.weight;
+                if (cursor.next()) queue.add(cursor);
+            }
+            if (count == matches.length) {
+                if (Thread.currentThread().isInterrupted()) return null;
+                matches = Arrays.copyOf(matches, count * 2);
+            }
+            matches[count++] = pack(score, id);
+        }
+        return Arrays.copyOf(matches, count);
+    }
+    
+    /***************************************************************************
+     * Packs a match into a long, so that sorting matches ranks them (best
+     * score first, and then by number).
+     * 
+     * @param score the score of the match (non-negative).
+     * @param id the number of the entry.
+     * @return the packed match.
+     */
+    private static long pack(double score, int id)
+    {
+        // (the bits of a non-negative float grow with its value)
+        return ((long) ~Float.floatToIntBits((float) score) << 32) | id;
+    }
+    
+    /***************************************************************************
+     * Rebuilds the index without its removed entries.
+     */
+    private void compact()
+    {
+        ArrayList<DictionaryEntry> live = new ArrayList<>(ids.size());
+        for (DictionaryEntry entry : entries) {
+            if (entry != null) live.add(entry);
+        }
+        clear();
+        for (DictionaryEntry entry : live) add(entry);
+    }
+    
+    /***************************************************************************
+     * Splits a text into case-folded words, counting the times each appears.
+     * 
+     * @param text the text.
+     * @return the number of times each word appears, by word (in order of
+     * first appearance).
+     */
+    private static Map<String, Integer> tokenize(String text)
+    {
+        Map<String, Integer> words = new LinkedHashMap<>();
+        if (text == null) return words;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            }
+            else if (!inWord && start >= 0) {
+                words.merge(DictionaryEntry.foldCase(text.substring(start, i)), 1,
+                        Integer::sum);
+                start = -1;
+            }
+        }
+        return words;
+    }
+}
@@ -1,76 +1,866 @@
 package dictionaryProject;
 
-import javafx.collections.transformation.FilteredList;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
+import javafx.collections.ObservableListBase;
 import javafx.scene.control.ListView;
 import java.util.ArrayList;
-import java.util.function.Predicate;
-import java.io.FileOutputStream;
-import java.io.FileInputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 
 /*******************************************************************************
  * This class represents a dictionary containing terms and their definitions.
  * A dictionary represents a list of DictionaryEntry objects.
- * The dictionary is suited to work with JavaFX ListViews: it is implemented
- * using an observable list, ond offers functionality to bind a filtered and
- * sorted version of it to ListView, according to a filtering predicate.
+ * The dictionary is suited to work with JavaFX ListViews: it offers
+ * functionality to bind the entries whose terms start with a searched prefix
+ * (in sorted order) to a ListView.
+ * Terms are indexed by their case-folded versions (see
+ * DictionaryEntry.foldCase), so finding, adding and removing a term take
+ * constant time regardless of the dictionary's size. The entries are also
+ * kept sorted by their folded terms, so the entries matching a prefix are
+ * always a contiguous range, found by binary search - searching never scans
+ * the whole dictionary.
+ * Definitions are indexed as well (see DefinitionIndex), so the entries whose
+ * definitions contain certain words can be found without scanning them all,
+ * and so are the terms' spellings (see FuzzyIndex), so terms resembling a
+ * mistyped term can be suggested.
+ * Many changes may be made at once (see 'update'): they are then applied to
+ * the sorted entries in a single pass, and reported to the ListView as a
+ * single change. After a dictionary is loaded, each of these
+ * indexes is built only when first searched - and large files are mapped to
+ * memory rather than read (see DictionaryFile.open) - so even a very large
+ * dictionary opens quickly.
+ * The dictionary is changed on the JavaFX thread only, but it may be searched
+ * from any thread (see 'search'); the search results are then shown on the
+ * JavaFX thread (see 'showResult'). Files are read and written on other
+ * threads as well (see 'readFile' and 'prepareSave'), so the window never
+ * freezes while a large file is loaded or saved - only installing the read
+ * entries, or recording the save, is done on the JavaFX thread.
  * 
  * @author Nadav Kahlon
  */
 public class Dictionary
 {
+    /***************************************************************************
+     * The result of searching the dictionary: either the range of the entries
+     * whose terms start with a prefix in the sorted entries, the ranked
+     * entries whose definitions match a query, or the entries suggested for a
+     * mistyped term - as they were when searched.
+     * SearchResult objects are IMMUTABLE.
+     */
+    public static class SearchResult
+    {
+        // the case-folded prefix searched for (null for a definitions search)
+        private final String prefix;
+        
+        // the range of the matching entries (from 'from', up to but not
+        // including 'to')
+        private final int from;
+        private final int to;
+        
+        // the query searched for (null for a prefix search or suggestions),
+        // and the matching entries, ranked (null for a prefix search)
+        private final DefinitionIndex.Query query;
+        private final List<DictionaryEntry> ranked;
+        
+        // the version of the dictionary the result belongs to
+        private final long version;
+        
+        /***********************************************************************
+         * Constructor: creates a new result of a prefix search.
+         * 
+         * @param prefix the case-folded prefix.
+         * @param from the start of the range.
+         * @param to the end of the range.
+         * @param version the version of the dictionary.
+         */
+        private SearchResult(String prefix, int from, int to, long version)
+        {
+            this.prefix = prefix;
+            this.from = from;
+            this.to = to;
+            this.query = null;
+            this.ranked = null;
+            this.version = version;
+        }
+        
+        /***********************************************************************
+         * Constructor: creates a new result of a definitions search, or new
+         * suggestions.
+         * 
+         * @param query the query (null for suggestions).
+         * @param ranked the matching entries, ranked (owned by the result).
+         * @param version the version of the dictionary.
+         */
+        private SearchResult(DefinitionIndex.Query query,
+                List<DictionaryEntry> ranked, long version)
+        {
+            this.prefix = null;
+            this.from = 0;
+            this.to = 0;
+            this.query = query;
+            this.ranked = Collections.unmodifiableList(ranked);
+            this.version = version;
+        }
+        
+        /***********************************************************************
+         * Checks whether nothing matched the search.
+         * 
+         * @return A boolean stating whether the result is empty.
+         */
+        public boolean isEmpty()
+        {
+            return ranked != null ? ranked.isEmpty() : from == to;
+        }
+        
+        /***********************************************************************
+         * Checks whether the result holds suggestions for a mistyped term.
+         * 
+         * @return A boolean stating whether it does.
+         */
+        public boolean isSuggestions()
+        {
+            return ranked != null && query == null;
+        }
+    }
+    
+    /***************************************************************************
+     * A dictionary file read into memory (see 'readFile'), ready to replace
+     * the entries of a dictionary (see 'install').
+     * A loaded file is used once: it is either installed or discarded.
+     */
+    public static class LoadedFile
+    {
+        // the entries, by their case-folded terms
+        private final HashMap<String, DictionaryEntry> index;
+        
+        // the case-folded terms of the entries in sorted order, and the
+        // entries themselves in the same order
+        private final ArrayList<String> keys;
+        private final ArrayList<DictionaryEntry> entries;
+        
+        // a boolean stating whether the file is of the older format
+        private final boolean legacy;
+        
+        // the journal of the file (or null if it has none, or once the file
+        // was installed or discarded)
+        private DictionaryJournal journal;
+        
+        /***********************************************************************
+         * Constructor: creates a new loaded file.
+         * 
+         * @param index the entries, by their case-folded terms.
+         * @param keys the case-folded terms in sorted order.
+         * @param entries the entries in the same order.
+         * @param legacy true if the file is of the older format.
+         * @param journal the journal of the file (or null).
+         */
+        private LoadedFile(HashMap<String, DictionaryEntry> index,
+                ArrayList<String> keys, ArrayList<DictionaryEntry> entries,
+                boolean legacy, DictionaryJournal journal)
+        {
+            this.index = index;
+            this.keys = keys;
+            this.entries = entries;
+            this.legacy = legacy;
+            this.journal = journal;
+        }
+        
+        /***********************************************************************
+         * Discards the file without installing it (closing its journal).
+         */
+        public void discard()
+        {
+            close(journal);
+            journal = null;
+        }
+    }
+    
+    /***************************************************************************
+     * A save of a dictionary to a file (see 'prepareSave'): a snapshot of the
+     * changes made since the last save (and of the entries, if they are to be
+     * written whole), written on any thread (see 'write') and then recorded
+     * by the dictionary (see 'finishSave').
+     * A pending save is used once: it is either finished or discarded.
+     */
+    public static class PendingSave
+    {
+        // the dictionary saved, and its version when the save was prepared
+        private final Dictionary dictionary;
+        private final long version;
+        
+        // the path of the file
+        private final Path path;
+        
+        // the journal of the file, if the dictionary was last loaded from or
+        // saved to it (or null)
+        private final DictionaryJournal journal;
+        
+        // the entries, sorted by their case-folded terms (or null until they
+        // are needed - see 'snapshot'), and the changes made since the last
+        // save
+        private List<DictionaryEntry> entries;
+        private final List<DictionaryJournal.Change> changes;
+        
+        // the new journal of the file, once the whole file was written (or
+        // null)
+        private DictionaryJournal written;
+        
+        // a boolean stating whether the changes are being appended to the
+        // journal (the save can't be cancelled then), and one stating whether
+        // the save was cancelled (see 'cancel'); guarded by 'this'
+        private boolean appending;
+        private boolean cancelled;
+        
+        /***********************************************************************
+         * Constructor: creates a new pending save.
+         * 
+         * @param dictionary the dictionary saved.
+         * @param path the path of the file.
+         * @param journal the journal of the file (or null).
+         * @param entries the entries, sorted by their case-folded terms (or
+         * null to take them only if needed).
+         * @param changes the changes made since the last save.
+         */
+        private PendingSave(Dictionary dictionary, Path path,
+                DictionaryJournal journal, List<DictionaryEntry> entries,
+                List<DictionaryJournal.Change> changes)
+        {
+            this.dictionary = dictionary;
+            this.version = dictionary.version;
+            this.path = path;
+            this.journal = journal;
+            this.entries = entries;
+            this.changes = changes;
+            this.written = null;
+            this.appending = false;
+            this.cancelled = false;
+        }
+        
+        /***********************************************************************
+         * Writes the save to its file: only the changes are appended to the
+         * journal of the file if the dictionary has one, and the whole file is
+         * written otherwise (or if appending failed). May be called from any
+         * thread.
+         * 
+         * @param progress the listener to the progress of writing the whole
+         * file (or null).
+         * @throws IOException if writing failed, or the save was cancelled or
+         * its thread interrupted (the file is then left as it was).
+         */
+        public void write(DictionaryFile.Progress progress) throws IOException
+        {
+            if (journal != null) {
+                // (appending takes a moment - it is never cancelled halfway,
+                // as interrupting it would close the journal)
+                synchronized (this) {
+                    if (cancelled) throw new InterruptedIOException("Cancelled");
+                    appending = true;
+                }
+                try {
+                    journal.append(changes, this::snapshot);
+                    return;
+                }
+                catch (IOException e) {
+                    // (rewrite the whole file instead)
+                }
+                finally {
+                    synchronized (this) {
+                        appending = false;
+                    }
+                }
+                if (snapshot() == null)
+                    throw new IOException("The dictionary was changed while being saved");
+            }
+            written = DictionaryJournal.write(path, entries, progress);
+        }
+        
+        /***********************************************************************
+         * Gets the entries of the save, copying them out of the dictionary if
+         * they were not taken yet - unless the dictionary was changed since
+         * the save was prepared. May be called from any thread.
+         * 
+         * @return the entries, sorted by their case-folded terms (or null if
+         * the dictionary was changed).
+         */
+        private List<DictionaryEntry> snapshot()
+        {
+            if (entries == null) {
+                dictionary.lock.readLock().lock();
+                try {
+                    if (dictionary.version == version)
+                        entries = new ArrayList<>(dictionary.sortedEntries);
+                }
+                finally {
+                    dictionary.lock.readLock().unlock();
+                }
+            }
+            return entries;
+        }
+        
+        /***********************************************************************
+         * Marks the save as cancelled, unless its changes are being appended
+         * to the journal of the file right now. The thread writing the save
+         * should be interrupted only if this succeeds (see 'write'). May be
+         * called from any thread.
+         * 
+         * @return A boolean stating whether the save was cancelled.
+         */
+        public synchronized boolean cancel()
+        {
+            if (appending) return false;
+            cancelled = true;
+            return true;
+        }
+        
+        /***********************************************************************
+         * Discards the save without finishing it (closing the new journal of
+         * the file, if it was written - the dictionary then rewrites the whole
+         * file on its next save).
+         */
+        public void discard()
+        {
+            close(written);
+            written = null;
+        }
+    }
+    
+    /***************************************************************************
+     * A batch of changes to a dictionary (see 'update'): the entries added,
+     * removed and replaced through it are found by 'findTerm' right away, but
+     * are applied to the sorted entries (and shown) only once the batch ends,
+     * all at once.
+     */
+    public class Transaction
+    {
+        // the entries of the changed terms, by their case-folded terms (null
+        // for a removed term), in the order the terms were first changed
+        private final LinkedHashMap<String, DictionaryEntry> changes;
+        
+        // the entries the changed terms had before the batch (null for a new
+        // term)
+        private final HashMap<String, DictionaryEntry> originals;
+        
+        // a boolean stating whether the batch ended
+        private boolean ended;
+        
+        /***********************************************************************
+         * Constructor: creates a new empty batch.
+         */
+        private Transaction()
+        {
+            this.changes = new LinkedHashMap<>();
+            this.originals = new HashMap<>();
+            this.ended = false;
+        }
+        
+        /***********************************************************************
+         * Adds an entry to the dictionary if an entry for the same term is not
+         * already present in it (see 'addEntry').
+         * 
+         * @param newEntry the entry to add.
+         * @return A boolean stating whether the entry was successfuly added.
+         */
+        public boolean add(DictionaryEntry newEntry)
+        {
+            checkOpen();
+            if (newEntry == null) return false;
+            String key = DictionaryEntry.foldCase(newEntry.getTerm());
+            if (termIndex.putIfAbsent(key, newEntry) != null) return false;
+            changed(key, null, newEntry);
+            unsavedChanges.add(DictionaryJournal.Change.add(newEntry));
+            return true;
+        }
+        
+        /***********************************************************************
+         * Removes an entry from the dictionary (see 'removeEntry').
+         * 
+         * @param toRemove the entry to remove (actually removes any entry of
+         * the same term).
+         * @return A boolean stating whether an entry was successfuly removed.
+         */
+        public boolean remove(DictionaryEntry toRemove)
+        {
+            checkOpen();
+            if (toRemove == null) return false;
+            String key = DictionaryEntry.foldCase(toRemove.getTerm());
+            DictionaryEntry removed = termIndex.remove(key);
+            if (removed == null) return false;
+            changed(key, removed, null);
+            unsavedChanges.add(DictionaryJournal.Change.remove(removed.getTerm()));
+            return true;
+        }
+        
+        /***********************************************************************
+         * Replaces the entry of a term in the dictionary by another one (e.g.
+         * with a new definition), keeping its place in the sorted entries.
+         * 
+         * @param entry the new entry (replaces the entry of the same term).
+         * @return A boolean stating whether the entry was successfuly replaced
+         * (i.e. it is not null and the term is present in the dictionary).
+         */
+        public boolean replace(DictionaryEntry entry)
+        {
+            checkOpen();
+            if (entry == null) return false;
+            String key = DictionaryEntry.foldCase(entry.getTerm());
+            DictionaryEntry replaced = termIndex.replace(key, entry);
+            if (replaced == null) return false;
+            changed(key, replaced, entry);
+            // (replaying an added entry replaces the entry of the same term)
+            unsavedChanges.add(DictionaryJournal.Change.add(entry));
+            return true;
+        }
+        
+        /***********************************************************************
+         * Records a change of a term.
+         * 
+         * @param key the case-folded term.
+         * @param original the entry the term had before the change (or null).
+         * @param entry the entry the term has after the change (or null).
+         */
+        private void changed(String key, DictionaryEntry original,
+                DictionaryEntry entry)
+        {
+            if (!changes.containsKey(key)) originals.put(key, original);
+            changes.put(key, entry);
+        }
+        
+        /***********************************************************************
+         * Makes sure the batch didn't end yet.
+         * 
+         * @throws IllegalStateException if it did.
+         */
+        private void checkOpen()
+        {
+            if (ended) throw new IllegalStateException("The transaction ended");
+        }
+    }
+    
+    /***************************************************************************
+     * A live view of the entries matching the search (used to bind to a
+     * ListView when displaying the dictionary).
+     * The view is either a range of the sorted entries (matching the searched
+     * prefix), or a ranked list of entries (matching the definitions query,
+     * or suggested for a mistyped term);
+     * it reports changes to its listeners when the search changes or matching
+     * entries are added or removed.
+     */
+    private class SearchResults extends ObservableListBase<DictionaryEntry>
+    {
+        // the range of the matching entries in 'sortedEntries' (from 'from',
+        // up to but not including 'to') when searching a prefix
+        private int from;
+        private int to;
+        
+        // the query when searching the definitions (or null), and the ranked
+        // matching entries when searching the definitions or suggesting terms
+        // (or null when searching a prefix)
+        private DefinitionIndex.Query query;
+        private ArrayList<DictionaryEntry> ranked;
+        
+        /***********************************************************************
+         * Gets a matching entry.
+         * 
+         * @param index the index of the entry in the view.
+         * @return the entry.
+         */
+        @Override public DictionaryEntry get(int index)
+        {
+            if (ranked != null) return ranked.get(index);
+            if (index < 0 || index >= to - from)
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            return sortedEntries.get(from + index);
+        }
+        
+        /***********************************************************************
+         * Gets the number of matching entries.
+         * 
+         * @return the number of entries.
+         */
+        @Override public int size()
+        {
+            return ranked != null ? ranked.size() : to - from;
+        }
+        
+        /***********************************************************************
+         * Searches the dictionary again for the current search (on the
+         * JavaFX thread), and tells the listeners that all the entries in the
+         * view were replaced.
+         * 
+         * @param removed the entries the view held before (see 'contents').
+         */
+        private void refresh(List<DictionaryEntry> removed)
+        {
+            if (query != null) {
+                // (right after a load the definitions aren't indexed yet, and
+                // indexing them takes long - so they are left to the next
+                // search, on another thread)
+                lock.readLock().lock();
+                try {
+                    ranked = definitionsIndexed ?
+                            new ArrayList<>(definitionIndex.search(query)) :
+                            new ArrayList<>();
+                }
+                finally {
+                    lock.readLock().unlock();
+                }
+            }
+            else if (ranked != null) {
+                ranked = new ArrayList<>(); // (the suggestions are gone)
+            }
+            else {
+                from = lowerBound(searchPrefix, 0, sortedKeys.size());
+                to = prefixEnd(searchPrefix, from, sortedKeys.size());
+            }
+            replaced(removed);
+        }
+        
+        /***********************************************************************
+         * Updates the view after a batch of changes was applied to
+         * 'sortedEntries' (see 'update'), and tells the listeners that all the
+         * entries in the view were replaced.
+         * 
+         * @param removed the entries the view held before (see 'contents').
+         * @param changes the entries of the changed terms, by their
+         * case-folded terms (null for a removed term).
+         */
+        private void updated(List<DictionaryEntry> removed,
+                Map<String, DictionaryEntry> changes)
+        {
+            if (ranked != null) {
+                // (a replaced entry is shown in place, and a new matching
+                // entry last, until the next search ranks them)
+                ArrayList<DictionaryEntry> kept = new ArrayList<>(ranked.size());
+                HashMap<String, DictionaryEntry> unshown = new HashMap<>(changes);
+                for (DictionaryEntry entry : ranked) {
+                    String key = DictionaryEntry.foldCase(entry.getTerm());
+                    if (!changes.containsKey(key)) {
+                        kept.add(entry);
+                        continue;
+                    }
+                    DictionaryEntry changed = unshown.remove(key);
+                    if (changed != null && (query == null
+                            || query.matches(changed.getDefinition())))
+                        kept.add(changed);
+                }
+                if (query != null) {
+                    for (DictionaryEntry changed : changes.values()) {
+                        if (changed != null && unshown.containsKey(
+                                DictionaryEntry.foldCase(changed.getTerm()))
+                                && query.matches(changed.getDefinition()))
+                            kept.add(changed);
+                    }
+                }
+                ranked = kept;
+            }
+            else {
+                from = lowerBound(searchPrefix, 0, sortedKeys.size());
+                to = prefixEnd(searchPrefix, from, sortedKeys.size());
+            }
+            replaced(removed);
+        }
+        
+        /***********************************************************************
+         * Shows the entries of a search result, and tells the listeners that
+         * all the entries in the view were replaced.
+         * 
+         * @param result the result.
+         */
+        private void show(SearchResult result)
+        {
+            // (the old entries are left intact - only the range or the ranked
+            // list is replaced - so they can be reported as removed without
+            // copying them)
+            List<DictionaryEntry> removed = contents();
+            from = result.from;
+            to = result.to;
+            query = result.query;
+            ranked = result.ranked != null ? new ArrayList<>(result.ranked) : null;
+            replaced(removed);
+        }
+        
+        /***********************************************************************
+         * Tells the listeners that all the entries in the view were replaced.
+         * 
+         * @param removed the entries the view held before.
+         */
+        private void replaced(List<DictionaryEntry> removed)
+        {
+            beginChange();
+            nextReplace(0, size(), removed);
+            endChange();
+        }
+        
+        /***********************************************************************
+         * Gets the entries the view holds, without copying them (the list is
+         * valid as long as the entries aren't changed).
+         * 
+         * @return an unmodifiable list of the entries.
+         */
+        private List<DictionaryEntry> contents()
+        {
+            return Collections.unmodifiableList(ranked != null ? ranked :
+                    sortedEntries.subList(from, to));
+        }
+        
+        /***********************************************************************
+         * Updates the view after an entry was inserted into 'sortedEntries'.
+         * 
+         * @param pos the position of the entry in 'sortedEntries'.
+         * @param key the case-folded term of the entry.
+         * @param entry the entry.
+         */
+        private void inserted(int pos, String key, DictionaryEntry entry)
+        {
+            if (ranked != null) {
+                // (a new matching entry is shown last, until the next search
+                // ranks it)
+                if (query != null && query.matches(entry.getDefinition())) {
+                    ranked.add(entry);
+                    beginChange();
+                    nextAdd(ranked.size() - 1, ranked.size());
+                    endChange();
+                }
+            }
+            else if (key.startsWith(searchPrefix)) {
+                // (a matching entry always lands inside the range)
+                to++;
+                beginChange();
+                nextAdd(pos - from, pos - from + 1);
+                endChange();
+            }
+            else if (key.compareTo(searchPrefix) < 0) {
+                from++;
+                to++;
+            }
+        }
+        
+        /***********************************************************************
+         * Updates the view after an entry was removed from 'sortedEntries'.
+         * 
+         * @param pos the position the entry had in 'sortedEntries'.
+         * @param key the case-folded term of the entry.
+         * @param entry the entry.
+         */
+        private void removed(int pos, String key, DictionaryEntry entry)
+        {
+            if (ranked != null) {
+                int index = ranked.indexOf(entry);
+                if (index >= 0) {
+                    ranked.remove(index);
+                    beginChange();
+                    nextRemove(index, entry);
+                    endChange();
+                }
+            }
+            else if (key.startsWith(searchPrefix)) {
+                to--;
+                beginChange();
+                nextRemove(pos - from, entry);
+                endChange();
+            }
+            else if (key.compareTo(searchPrefix) < 0) {
+                from--;
+                to--;
+            }
+        }
+    }
+    
     /***************************************************************************
      * Attribute of a dictionary
      */
     
-    // an observable list of the dictionarie's entries
-    private final ObservableList<DictionaryEntry> entriesList;
+    // the dictionarie's entries, by their case-folded terms
+    private HashMap<String, DictionaryEntry> termIndex;
+    
+    // the case-folded terms of the entries in sorted order, and the entries
+    // themselves in the same order (changed on the JavaFX thread only, under
+    // the write lock of 'lock')
+    private final ArrayList<String> sortedKeys;
+    private final ArrayList<DictionaryEntry> sortedEntries;
+    
+    // an index over the definitions of the entries, and a boolean stating
+    // whether it holds all of them (changed under the write lock of 'lock';
+    // after a load, built aside by the thread first searching it and then
+    // swapped in, and changed only on the JavaFX thread otherwise)
+    private DefinitionIndex definitionIndex;
+    private boolean definitionsIndexed;
+    
+    // an index of the terms by edit distance, and a boolean stating whether
+    // it holds all of them (changed the same way as the definitions index)
+    private FuzzyIndex fuzzyIndex;
+    private boolean spellingsIndexed;
+    
+    // a lock guarding the sorted entries and the definitions index against
+    // searches on other threads
+    private final ReentrantReadWriteLock lock;
     
-    // a filtered and sorted wrapper of 'entriesList' (used to bind to a
-    // ListView when displaying the dictionary)
-    private final FilteredList<DictionaryEntry> filteredSortedEntriesList;
+    // the version of the entries (incremented whenever they change); guarded
+    // by 'lock'
+    private long version;
+    
+    // the case-folded prefix whose matching entries are shown when not
+    // searching the definitions (the empty String matches all terms)
+    private String searchPrefix;
+    
+    // the view of the entries matching the search (bound to the ListView)
+    private final SearchResults searchResults;
+    
+    // a boolean stating whether the dictionary was loaded from a file of the
+    // older format (and not saved since)
+    private boolean legacyFormat;
+    
+    // the journal of the file the dictionary was last loaded from or saved
+    // to (or null if there's none), and the changes made since
+    private DictionaryJournal journal;
+    private final ArrayList<DictionaryJournal.Change> unsavedChanges;
     
     /***************************************************************************
-     * Constructor: creates a new empty dictionary (the filtering predicate is
-     * initialized to a tautology - i.e. no filter).
+     * Constructor: creates a new empty dictionary (the searched prefix is
+     * initialized to the empty String - i.e. no filter).
      */
     public Dictionary()
     {
-        // initialize the entries list to an empty list
-        this.entriesList = FXCollections.observableArrayList();
-        this.filteredSortedEntriesList = entriesList
-                .sorted() // sorted wrapper
-                .filtered((x) -> true); // filttered wrapper (at the beginning
-                                        // there's no filter)
+        // initialize the entries to empty collections
+        this.termIndex = new HashMap<>();
+        this.sortedKeys = new ArrayList<>();
+        this.sortedEntries = new ArrayList<>();
+        this.definitionIndex = new DefinitionIndex();
+        this.definitionsIndexed = true;
+        this.fuzzyIndex = new FuzzyIndex();
+        this.spellingsIndexed = true;
+        this.lock = new ReentrantReadWriteLock();
+        this.version = 0;
+        this.searchPrefix = "";
+        this.searchResults = new SearchResults();
+        this.legacyFormat = false;
+        this.journal = null;
+        this.unsavedChanges = new ArrayList<>();
+    }
+    
+    /***************************************************************************
+     * Searches the dictionary for the entries whose terms start with a given
+     * prefix (ignoring letter cases). May be called from any thread.
+     * If the prefix extends the prefix of a previous result which is still
+     * up to date, only that result's range is searched.
+     * 
+     * @param prefix the prefix to search for.
+     * @param previous a previous result to narrow (or null).
+     * @return the result.
+     */
+    public SearchResult search(String prefix, SearchResult previous)
+    {
+        String folded = DictionaryEntry.foldCase(prefix);
+        lock.readLock().lock();
+        try {
+            int low = 0, high = sortedKeys.size();
+            if (previous != null && previous.version == version
+                    && previous.prefix != null && folded.startsWith(previous.prefix)) {
+                low = previous.from;
+                high = previous.to;
+            }
+            int from = lowerBound(folded, low, high);
+            return new SearchResult(folded, from, prefixEnd(folded, from, high),
+                    version);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /***************************************************************************
+     * Searches the dictionary for the entries whose definitions contain the
+     * words of a query (see DefinitionIndex.Query for its syntax), ranked by
+     * relevance. May be called from any thread.
+     * 
+     * @param text the text of the query (if it has no words, all the entries
+     * match it, in sorted order).
+     * @return the result, or null if the searching thread was interrupted.
+     */
+    public SearchResult searchDefinitions(String text)
+    {
+        DefinitionIndex.Query query = DefinitionIndex.Query.parse(text);
+        if (query == null) return search("", null);
+        while (true) {
+            lock.readLock().lock();
+            try {
+                if (definitionsIndexed) {
+                    List<DictionaryEntry> ranked = definitionIndex.search(query);
+                    return ranked == null ? null :
+                            new SearchResult(query, ranked, version);
+                }
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+            indexDefinitions(); // (and search again)
+        }
+    }
+    
+    /***************************************************************************
+     * Suggests terms resembling a mistyped term (see FuzzyIndex.suggest). May
+     * be called from any thread.
+     * 
+     * @param term the mistyped term.
+     * @return the suggestions (closest first), or null if there are none.
+     */
+    public SearchResult suggest(String term)
+    {
+        while (true) {
+            lock.readLock().lock();
+            try {
+                if (spellingsIndexed) {
+                    List<DictionaryEntry> suggestions = fuzzyIndex.suggest(term);
+                    return suggestions.isEmpty() ? null :
+                            new SearchResult(null, suggestions, version);
+                }
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+            indexSpellings(); // (and search again)
+        }
     }
     
     /***************************************************************************
-     * Sets the filtering predicate of the entries in the dictionary (only the
-     * filtered entries are bound using 'bindToListView').
+     * Shows the entries of a search result (only the entries shown are bound
+     * using 'bindToListView'), replacing the ones shown before at once. Must
+     * be called on the JavaFX thread.
      * 
-     * @param filter the new filtering predicate (does nothing if its null).
+     * @param result the result (see 'search').
+     * @return A boolean stating whether the result was shown (i.e. the
+     * dictionary didn't change since it was searched).
      */
-    public void setFilterPredicate(Predicate<? super DictionaryEntry> filter)
+    public boolean showResult(SearchResult result)
     {
-        // if the predicate isn't null - simply use FilteredList.setPredciate
-        if (filter != null) filteredSortedEntriesList.setPredicate(filter);
+        // (the dictionary is changed on this thread only, so reading its
+        // version doesn't need the lock)
+        if (result.version != this.version) return false;
+        if (result.prefix != null) this.searchPrefix = result.prefix;
+        this.searchResults.show(result);
+        return true;
     }
     
     /***************************************************************************
-     * Binds the filtered-order wrapper of the dictionary to a JavaFX ListView
-     * of DictionaryEntrries (the filtering predicate is the one specified by
-     * 'setFilterPredicate', which is initially a tautology - i.e. no filter).
-     * 0
-     * @param entriesListView the listView to bind the filtered-sorted wraper to.
+     * Binds the entries matching the search to a JavaFX ListView of
+     * DictionaryEntrries (the search is the one of the result last shown by
+     * 'showResult' - initially an empty prefix, i.e. no filter).
+     * 
+     * @param entriesListView the listView to bind the matching entries to.
      */
     public void bindToListView(ListView<DictionaryEntry> entriesListView)
     {
-        // simply bind the sorted-filtered wraper for the list of dictionary
-        // entries to the ListView
-        entriesListView.setItems(this.filteredSortedEntriesList);
+        // simply bind the view of the matching entries to the ListView
+        entriesListView.setItems(this.searchResults);
     }
     
     /***************************************************************************
@@ -82,18 +872,10 @@ public class Dictionary
      */
     public DictionaryEntry findTerm(String term)
     {
-        // we first create a "null" DictionaryEntry (with no definition) so we
-        // can look for an entry identified by the same term
-        DictionaryEntry nullEntry = new DictionaryEntry(term, null);
-        
-        // look for the index of the first occurrence of such an entry
-        int idx = this.entriesList.indexOf(nullEntry);
-        
-        // return the corresponding entry (if it exists)
+        // simply look for the entry in the index
         // (note that since DictionaryEntry objects are immutable as specified
         // by the documentation of that class, we don't need to copy the entry)
-        if (idx >= 0) return this.entriesList.get(idx);
-        else return null; 
+        return this.termIndex.get(DictionaryEntry.foldCase(term));
     }
     
     /***************************************************************************
@@ -107,13 +889,28 @@ public class Dictionary
      */
     public boolean addEntry(DictionaryEntry newEntry)
     {
-        // simply add the new entry to the entries list, if it is not null and
-        // if we cannot find an entry for the same term
-        if (newEntry != null && this.findTerm(newEntry.getTerm()) == null) {
-            this.entriesList.add(newEntry);
-            return true;
+        // add the new entry to the index, if it is not null and if the index
+        // has no entry for the same term
+        if (newEntry == null) return false;
+        String key = DictionaryEntry.foldCase(newEntry.getTerm());
+        if (this.termIndex.putIfAbsent(key, newEntry) != null) return false;
+        
+        // insert it in its sorted position
+        int pos = lowerBound(key, 0, this.sortedKeys.size());
+        lock.writeLock().lock();
+        try {
+            this.sortedKeys.add(pos, key);
+            this.sortedEntries.add(pos, newEntry);
+            if (this.definitionsIndexed) this.definitionIndex.add(newEntry);
+            if (this.spellingsIndexed) this.fuzzyIndex.add(newEntry);
+            this.version++;
+        }
+        finally {
+            lock.writeLock().unlock();
         }
-        else return false;
+        this.searchResults.inserted(pos, key, newEntry);
+        this.unsavedChanges.add(DictionaryJournal.Change.add(newEntry));
+        return true;
     }
     
     /***************************************************************************
@@ -127,70 +924,208 @@ public class Dictionary
      */
     public boolean removeEntry(DictionaryEntry toRemove)
     {
-        // we simply use the remove method of the SortedList class
-        return this.entriesList.remove(toRemove);
+        // remove the entry from the index (if it is there)
+        if (toRemove == null) return false;
+        String key = DictionaryEntry.foldCase(toRemove.getTerm());
+        DictionaryEntry removed = this.termIndex.remove(key);
+        if (removed == null) return false;
+        
+        // remove it from its sorted position
+        int pos = lowerBound(key, 0, this.sortedKeys.size());
+        lock.writeLock().lock();
+        try {
+            this.sortedKeys.remove(pos);
+            this.sortedEntries.remove(pos);
+            if (this.definitionsIndexed) this.definitionIndex.remove(removed);
+            if (this.spellingsIndexed) this.fuzzyIndex.remove(removed);
+            this.version++;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        this.searchResults.removed(pos, key, removed);
+        this.unsavedChanges.add(DictionaryJournal.Change.remove(removed.getTerm()));
+        return true;
     }
     
     /***************************************************************************
-     * Writes the dictionary to a file.
-     * Use ONLY Dictionary.load to load such files.
+     * Makes a batch of changes to the dictionary (adding, removing and
+     * replacing entries - see Transaction), and applies them all at once:
+     * the sorted entries are updated in a single pass, and the ListView is
+     * told of a single change.
+     * If the batch throws an exception, the changes made before it are
+     * applied all the same. The dictionary must not be changed otherwise
+     * while the batch runs.
+     * 
+     * @param batch the batch, making its changes through the given
+     * transaction.
+     */
+    public void update(Consumer<Transaction> batch)
+    {
+        Transaction transaction = new Transaction();
+        try {
+            batch.accept(transaction);
+        }
+        finally {
+            transaction.ended = true;
+            if (!transaction.changes.isEmpty()) apply(transaction);
+        }
+    }
+    
+    /***************************************************************************
+     * Applies the changes of a batch (see 'update') to the sorted entries and
+     * to the other indexes, and updates the view.
+     * 
+     * @param transaction the ended batch.
+     */
+    private void apply(Transaction transaction)
+    {
+        List<DictionaryEntry> removed = new ArrayList<>(this.searchResults);
+        lock.writeLock().lock();
+        try {
+            // replace the entries whose terms remain in place, and update the
+            // other indexes
+            boolean moved = false;
+            for (Map.Entry<String, DictionaryEntry> change : transaction.changes.entrySet()) {
+                DictionaryEntry original = transaction.originals.get(change.getKey());
+                DictionaryEntry entry = change.getValue();
+                if (original != null && entry != null) {
+                    this.sortedEntries.set(lowerBound(change.getKey(), 0,
+                            this.sortedKeys.size()), entry);
+                }
+                else if (original != entry) {
+                    moved = true;
+                }
+                if (this.definitionsIndexed) {
+                    if (original != null) this.definitionIndex.remove(original);
+                    if (entry != null) this.definitionIndex.add(entry);
+                }
+                if (this.spellingsIndexed) {
+                    // (adding an entry replaces the one of the same term)
+                    if (entry != null) this.fuzzyIndex.add(entry);
+                    else if (original != null) this.fuzzyIndex.remove(original);
+                }
+            }
+            
+            // merge the added terms into the sorted entries, dropping the
+            // removed ones, in a single pass
+            if (moved) {
+                ArrayList<String> added = new ArrayList<>();
+                for (Map.Entry<String, DictionaryEntry> change : transaction.changes.entrySet()) {
+                    if (change.getValue() != null
+                            && transaction.originals.get(change.getKey()) == null)
+                        added.add(change.getKey());
+                }
+                added.sort(Comparator.naturalOrder());
+                int size = this.sortedKeys.size() + added.size();
+                ArrayList<String> keys = new ArrayList<>(size);
+                ArrayList<DictionaryEntry> entries = new ArrayList<>(size);
+                int next = 0;
+                for (int i = 0; i < this.sortedKeys.size(); i++) {
+                    String key = this.sortedKeys.get(i);
+                    for (; next < added.size() && added.get(next).compareTo(key) < 0; next++) {
+                        keys.add(added.get(next));
+                        entries.add(transaction.changes.get(added.get(next)));
+                    }
+                    if (transaction.changes.containsKey(key)
+                            && transaction.changes.get(key) == null)
+                        continue;
+                    keys.add(key);
+                    entries.add(this.sortedEntries.get(i));
+                }
+                for (; next < added.size(); next++) {
+                    keys.add(added.get(next));
+                    entries.add(transaction.changes.get(added.get(next)));
+                }
+                this.sortedKeys.clear();
+                this.sortedKeys.addAll(keys);
+                this.sortedEntries.clear();
+                this.sortedEntries.addAll(entries);
+            }
+            this.version++;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        this.searchResults.updated(removed, transaction.changes);
+    }
+    
+    /***************************************************************************
+     * Writes the dictionary to a file (on the calling thread - see
+     * 'prepareSave').
      * 
      * @param path the path of the output file (assumed not to be null).
      * @return A boolean stating whether the operation was completed successfuly
      * (i.e. no exception was thrown).
      */
-    public boolean save(String path) 
+    public boolean save(String path)
     {
-        /* File format:
-         * Since javafx.collections.transformation.SortedList is not serializable,
-         * we can't directly serialize the object (since it has a non-serializable
-         * attribute). Instead, we create an ArrayList identical to entriesList
-         * and serialize it to the output object
-         */
-        // copy entriesList to an ArrayList
-        ArrayList<DictionaryEntry> entries = new ArrayList<>(this.entriesList);
-        
-        // open output stream
-        try(ObjectOutputStream output =
-                new ObjectOutputStream(new FileOutputStream(path))) {
-            
-            //  serialize the entries ArrayList into it
-            output.writeObject(entries);
-            output.close();
-            return true;
+        PendingSave pending = prepareSave(path);
+        try {
+            pending.write(null);
         }
         catch (Exception e) {
             // if an exception was thrown - the operation was not completed successfuly
             return false;
         }
+        finishSave(pending);
+        return true;
     }
     
     /***************************************************************************
-     * Loads a dictionary from a file into this dictionary.
-     * Use to load ONLY dictionaries saved by Dictionary.save.
+     * Prepares a save of the dictionary to a file, to be written on any
+     * thread (see PendingSave.write) and then recorded by 'finishSave'.
+     * The file is written in the format described in DictionaryFile - unless
+     * it is the file the dictionary was last loaded from or saved to, in which
+     * case only the changes made since are appended to its journal (see
+     * DictionaryJournal) - and the entries are copied only if the file is
+     * then to be rewritten.
+     * 
+     * @param path the path of the output file (assumed not to be null).
+     * @return the pending save (holding a snapshot of the dictionary, so it
+     * may still be changed meanwhile).
+     */
+    public PendingSave prepareSave(String path)
+    {
+        Path file = Paths.get(path);
+        if (this.journal != null && this.journal.isFor(file))
+            return new PendingSave(this, file, this.journal, null,
+                    new ArrayList<>(this.unsavedChanges));
+        return new PendingSave(this, file, null, new ArrayList<>(this.sortedEntries),
+                new ArrayList<>(this.unsavedChanges));
+    }
+    
+    /***************************************************************************
+     * Records a save written to its file: the changes it holds are no longer
+     * unsaved, and if the whole file was written, the dictionary now belongs
+     * to it. The dictionary must not be loaded or cleared between preparing
+     * the save and finishing it.
+     * 
+     * @param save the save (written successfuly).
+     */
+    public void finishSave(PendingSave save)
+    {
+        if (save.written != null) {
+            closeJournal();
+            this.journal = save.written;
+            save.written = null;
+            this.legacyFormat = false;
+        }
+        this.unsavedChanges.subList(0, save.changes.size()).clear();
+    }
+    
+    /***************************************************************************
+     * Loads a dictionary from a file into this dictionary (on the calling
+     * thread - see 'readFile').
      * 
      * @param path the path to the input file (assumed it is not null).
      * @return A boolean stating whether the operation was completed successfuly
      * (i.e. no exception was thrown).
      */
-    @SuppressWarnings({"unchecked"}) // (for unchecked cast of generic type -
-                                     // which isn't present in older java versions)
     public boolean load(String path)
     {
-        /* The file format is the same as the format described in the comments to
-           Dictionary.save */
-
-        // open input stream
-        try(ObjectInputStream input =
-                new ObjectInputStream(new FileInputStream(path))) {
-            
-            // read the serialized ArrayList
-            ArrayList<DictionaryEntry> entries = 
-                    (ArrayList<DictionaryEntry>)input.readObject();
-            
-            // swap all the entries of this dictionary by those in 'entries'
-            this.entriesList.removeAll(this.entriesList);
-            this.entriesList.addAll(entries);
+        try {
+            install(readFile(path, null));
             return true;
         }
         catch (Exception e) {
@@ -199,12 +1134,293 @@ public class Dictionary
         }
     }
     
+    /***************************************************************************
+     * Reads a dictionary file, to be loaded into a dictionary by 'install'.
+     * Files of the older format are read as well (see 'isLegacyFormat'). May
+     * be called from any thread.
+     * 
+     * @param path the path to the input file (assumed it is not null).
+     * @param progress the listener to the progress (or null): reading the
+     * file takes its first half, and indexing the entries its second.
+     * @return the file read.
+     * @throws IOException if reading failed, the file is not a valid
+     * dictionary file, or the thread was interrupted.
+     */
+    public static LoadedFile readFile(String path, DictionaryFile.Progress progress)
+            throws IOException
+    {
+        // read the file (of any format - see DictionaryFile) and its journal
+        DictionaryJournal.Loaded loaded = DictionaryJournal.load(Paths.get(path),
+                progress == null ? null : (done, total) -> {
+                    progress.update(done, 2 * total); });
+        boolean read = false;
+        try {
+            DictionaryFile.Contents contents = loaded.getContents();
+            List<DictionaryEntry> entries = contents.getEntries();
+            
+            // index the entries (skipping repeated terms, if the file has
+            // any), and sort them all at once - unless the file is sorted
+            // already, as the files saved by Dictionary.save are
+            HashMap<String, DictionaryEntry> index =
+                    new HashMap<>(entries.size() * 4 / 3 + 1);
+            ArrayList<String> keys = new ArrayList<>(entries.size());
+            ArrayList<DictionaryEntry> unique = new ArrayList<>(entries.size());
+            boolean sorted = true;
+            for (int i = 0; i < entries.size(); i++) {
+                if (i % DictionaryFile.PROGRESS_STEP == 0)
+                    DictionaryFile.report(progress, entries.size() + i, 2L * entries.size());
+                DictionaryEntry entry = entries.get(i);
+                String key = DictionaryEntry.foldCase(entry.getTerm());
+                if (index.putIfAbsent(key, entry) != null) continue;
+                if (!keys.isEmpty() && key.compareTo(keys.get(keys.size() - 1)) < 0)
+                    sorted = false;
+                keys.add(key);
+                unique.add(entry);
+            }
+            
+            // replay the changes recorded in the journal (the entries are
+            // then sorted all at once)
+            for (DictionaryJournal.Change change : loaded.getChanges()) {
+                if (change.getAdded() != null) {
+                    index.put(DictionaryEntry.foldCase(change.getAdded().getTerm()),
+                            change.getAdded());
+                }
+                else {
+                    index.remove(DictionaryEntry.foldCase(change.getRemoved()));
+                }
+            }
+            if (!loaded.getChanges().isEmpty()) {
+                keys = new ArrayList<>(index.keySet());
+                sorted = false;
+            }
+            if (!sorted) {
+                keys.sort(Comparator.naturalOrder());
+                unique.clear();
+                for (String key : keys) unique.add(index.get(key));
+            }
+            DictionaryFile.report(progress, 2L * entries.size(), 2L * entries.size());
+            read = true;
+            return new LoadedFile(index, keys, unique, contents.isLegacy(),
+                    loaded.getJournal());
+        }
+        finally {
+            if (!read) close(loaded.getJournal());
+        }
+    }
+    
+    /***************************************************************************
+     * Replaces all the entries of this dictionary by those of a file read by
+     * 'readFile', at once. Must be called on the JavaFX thread.
+     * 
+     * @param file the file read.
+     */
+    public void install(LoadedFile file)
+    {
+        // swap all the entries of this dictionary by those of the file
+        List<DictionaryEntry> removed = new ArrayList<>(this.searchResults);
+        this.termIndex = file.index;
+        lock.writeLock().lock();
+        try {
+            this.sortedKeys.clear();
+            this.sortedKeys.addAll(file.keys);
+            this.sortedEntries.clear();
+            this.sortedEntries.addAll(file.entries);
+            // (the other indexes are built when first searched)
+            this.definitionIndex.clear();
+            this.definitionsIndexed = false;
+            this.fuzzyIndex.clear();
+            this.spellingsIndexed = false;
+            this.version++;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        this.searchResults.refresh(removed);
+        this.legacyFormat = file.legacy;
+        closeJournal();
+        this.journal = file.journal;
+        file.journal = null;
+        this.unsavedChanges.clear();
+    }
+    
+    /***************************************************************************
+     * Checks whether the dictionary was loaded from a file of the older format
+     * and not saved since (so saving it would convert the file).
+     * 
+     * @return A boolean stating whether the file is of the older format.
+     */
+    public boolean isLegacyFormat()
+    {
+        return this.legacyFormat;
+    }
+    
     /***************************************************************************
      * Clears all entries from the dictionary.
      */
     public void clear()
     {
-        // simply use ObservableList.clear to clear the entries list
-        entriesList.clear();
+        // clear the index and the sorted entries, and empty the view
+        List<DictionaryEntry> removed = new ArrayList<>(searchResults);
+        termIndex.clear();
+        lock.writeLock().lock();
+        try {
+            sortedKeys.clear();
+            sortedEntries.clear();
+            definitionIndex.clear();
+            definitionsIndexed = true;
+            fuzzyIndex.clear();
+            spellingsIndexed = true;
+            version++;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        searchResults.refresh(removed);
+        legacyFormat = false;
+        closeJournal();
+        unsavedChanges.clear();
+    }
+    
+    /***************************************************************************
+     * Closes the journal of the file the dictionary was last loaded from or
+     * saved to (if any) - the next save then rewrites the whole file.
+     */
+    private void closeJournal()
+    {
+        close(journal);
+        journal = null;
+    }
+    
+    /***************************************************************************
+     * Closes a journal.
+     * 
+     * @param journal the journal (or null).
+     */
+    private static void close(DictionaryJournal journal)
+    {
+        if (journal == null) return;
+        try {
+            journal.close();
+        }
+        catch (IOException e) {
+            // (nothing more is written to it either way)
+        }
+    }
+    
+    /***************************************************************************
+     * Builds the definitions index, unless it already holds all the entries.
+     * May be called from any thread (not holding 'lock').
+     * The index is built out of a snapshot of the entries without holding the
+     * lock (building it takes long, and the dictionary may be changed and
+     * shown meanwhile), and then swapped in - or built again, if the entries
+     * changed in the meantime.
+     */
+    private void indexDefinitions()
+    {
+        while (true) {
+            List<DictionaryEntry> snapshot;
+            long snapshotVersion;
+            lock.readLock().lock();
+            try {
+                if (definitionsIndexed) return;
+                snapshot = new ArrayList<>(sortedEntries);
+                snapshotVersion = version;
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+            DefinitionIndex index = new DefinitionIndex();
+            for (DictionaryEntry entry : snapshot) index.add(entry);
+            
+            lock.writeLock().lock();
+            try {
+                if (definitionsIndexed) return;
+                if (version == snapshotVersion) {
+                    definitionIndex = index;
+                    definitionsIndexed = true;
+                    return;
+                }
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+    
+    /***************************************************************************
+     * Builds the index of the terms by edit distance, unless it already holds
+     * all the entries. May be called from any thread (not holding 'lock').
+     * The index is built the same way as the definitions index (see
+     * 'indexDefinitions').
+     */
+    private void indexSpellings()
+    {
+        while (true) {
+            List<DictionaryEntry> snapshot;
+            long snapshotVersion;
+            lock.readLock().lock();
+            try {
+                if (spellingsIndexed) return;
+                snapshot = new ArrayList<>(sortedEntries);
+                snapshotVersion = version;
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+            FuzzyIndex index = new FuzzyIndex();
+            for (DictionaryEntry entry : snapshot) index.add(entry);
+            
+            lock.writeLock().lock();
+            try {
+                if (spellingsIndexed) return;
+                if (version == snapshotVersion) {
+                    fuzzyIndex = index;
+                    spellingsIndexed = true;
+                    return;
+                }
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+    
+    /***************************************************************************
+     * Finds the first position in a range of the sorted keys whose key is not
+     * less than a given key (binary search).
+     * 
+     * @param key the case-folded key.
+     * @param low the start of the range.
+     * @param high the end of the range.
+     * @return the position ('high' if all the keys in the range are less).
+     */
+    private int lowerBound(String key, int low, int high)
+    {
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedKeys.get(mid).compareTo(key) < 0) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+    
+    /***************************************************************************
+     * Finds the end of the range of keys starting with a given prefix (binary
+     * search). The keys starting with the prefix are contiguous, since any
+     * other key not less than the prefix is greater than all of them.
+     * 
+     * @param prefix the case-folded prefix.
+     * @param low the start of the range (see 'lowerBound').
+     * @param high the end of the range.
+     * @return the position after the last key starting with the prefix.
+     */
+    private int prefixEnd(String prefix, int low, int high)
+    {
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedKeys.get(mid).startsWith(prefix)) low = mid + 1;
+            else high = mid;
+        }
+        return low;
     }
 }
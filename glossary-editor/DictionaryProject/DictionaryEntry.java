@@ -14,6 +14,10 @@ import java.io.Serializable;
  */
 public class DictionaryEntry implements Comparable<DictionaryEntry>, Serializable
 {
+    // pinned to the value computed for the original class, so dictionaries
+    // saved before 'hashCode' was added can still be loaded
+    private static final long serialVersionUID = -6864869801886718033L;
+    
     /***************************************************************************
      * Attributes of a dictionary entry (final, since such an entry is immutable)
      */
@@ -84,6 +88,41 @@ public class DictionaryEntry implements Comparable<DictionaryEntry>, Serializabl
                 this.term.equalsIgnoreCase(((DictionaryEntry)other).term);
     }
     
+    /***************************************************************************
+     * Gets a hash code of the entry, based on its term (ignoring letter cases,
+     * consistently with 'equals').
+     * 
+     * @return the hash code.
+     */
+    @Override public int hashCode()
+    {
+        // simply hash the case-folded term
+        return foldCase(this.term).hashCode();
+    }
+    
+    /***************************************************************************
+     * Folds the letter cases of a term, so that two terms are equal ignoring
+     * letter cases (as in String.equalsIgnoreCase) if and only if their folded
+     * versions are equal.
+     * 
+     * @param term the term to fold.
+     * @return the folded term.
+     */
+    public static String foldCase(String term)
+    {
+        // fold each character the same way String.equalsIgnoreCase compares
+        // them: to upper case, and then to lower case
+        char[] folded = term.toCharArray();
+        boolean changed = false;
+        for (int i = 0; i < folded.length; i++) {
+            char c = Character.toLowerCase(Character.toUpperCase(folded[i]));
+            changed |= c != folded[i];
+            folded[i] = c;
+        }
+        // (a term that is already folded is kept as is, rather than copied)
+        return changed ? new String(folded) : term;
+    }
+    
     /***************************************************************************
      * Compares this entry to another given entry based on the terms they
      * represent.
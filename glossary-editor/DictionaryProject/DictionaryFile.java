@@ -0,0 +1,990 @@
+package dictionaryProject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.UncheckedIOException;
+
+/*******************************************************************************
+ * This class reads and writes the dictionary files of the Dictionary App
+ * (whose main program can be found in DictionaryApp.java).
+ * A dictionary file is laid out as follows (all numbers are big-endian):
+ * 
+ *     header      - the magic number "DICT", the version of the format, the
+ *                   number of entries, the id of the file's journal (0 if it
+ *                   has none - see DictionaryJournal), the offset of the
+ *                   definitions and the offset of the term index (longs).
+ *     definitions - for every entry, in sorted order: its definition, as its
+ *                   length in bytes (an int; -1 for a null definition)
+ *                   followed by its UTF-8 encoding.
+ *     term index  - for every entry, in sorted order: its term (the same
+ *                   way), followed by the offset of its definition in the
+ *                   file (a long).
+ * 
+ * Since the terms are kept apart from the definitions, a large file can be
+ * opened by reading its term index alone: the rest of the file is mapped to
+ * memory, and each definition is decoded only when it is asked for (see
+ * 'open'). Some systems (Windows) refuse to replace a mapped file, and a
+ * mapping is otherwise released only once it is garbage collected - so only
+ * files too large to read quickly are mapped, and if replacing a mapped file
+ * fails, its definitions are copied aside to a temporary file (which is
+ * mapped instead, and deleted once no longer mapped) and the mapping is
+ * released right away before trying again (see 'replace'). The definitions
+ * are never copied into the heap, so a file larger than the heap still opens
+ * and saves.
+ * Files are written to a temporary file first and then moved over the old
+ * one, so a failed save never destroys the previous contents.
+ * Reading and writing a file report their progress as they go (see
+ * Progress), and stop once the thread doing it is interrupted - so a large
+ * file may be read or written in the background, and cancelled.
+ * Files of the older format (a serialized ArrayList of the entries) are still
+ * read - accepting only the classes such a file should contain - and are
+ * replaced by the current format the next time they are saved.
+ * 
+ * @author Nadav Kahlon
+ */
+public class DictionaryFile
+{
+    /***************************************************************************
+     * The contents read from a dictionary file.
+     * Contents objects are IMMUTABLE.
+     */
+    public static class Contents
+    {
+        // the entries, in the order they appear in the file
+        private final List<DictionaryEntry> entries;
+        
+        // a boolean stating whether the file is of the older format
+        private final boolean legacy;
+        
+        // a boolean stating whether the definitions are mapped from the file
+        // (and not read)
+        private final boolean mapped;
+        
+        // the id of the file's journal (0 if it has none)
+        private final int journalId;
+        
+        /***********************************************************************
+         * Constructor: creates new contents.
+         * 
+         * @param entries the entries.
+         * @param legacy true if the file is of the older format.
+         * @param mapped true if the definitions are mapped from the file.
+         * @param journalId the id of the file's journal (0 if it has none).
+         */
+        private Contents(List<DictionaryEntry> entries, boolean legacy,
+                boolean mapped, int journalId)
+        {
+            this.entries = entries;
+            this.legacy = legacy;
+            this.mapped = mapped;
+            this.journalId = journalId;
+        }
+        
+        /***********************************************************************
+         * Getters for the contents' attributes
+         */
+        
+        public List<DictionaryEntry> getEntries() { return entries; }
+        public boolean isLegacy() { return legacy; }
+        public boolean isMapped() { return mapped; }
+        public int getJournalId() { return journalId; }
+    }
+    
+    /***************************************************************************
+     * A listener to the progress of reading or writing a file.
+     */
+    public interface Progress
+    {
+        /***********************************************************************
+         * Called every so often while a file is read or written (on the
+         * thread reading or writing it).
+         * 
+         * @param done the number of steps done.
+         * @param total the total number of steps.
+         */
+        void update(long done, long total);
+    }
+    
+    /***************************************************************************
+     * An entry whose definition is decoded out of a mapped file whenever it is
+     * asked for.
+     */
+    private static class MappedEntry extends DictionaryEntry
+    {
+        private static final long serialVersionUID = 1L;
+        
+        // the mapped definitions, and the offset of the entry's definition
+        private final Mapping mapping;
+        private final long definitionOffset;
+        
+        /***********************************************************************
+         * Constructor: creates a new mapped entry.
+         * 
+         * @param term the term.
+         * @param mapping the mapped definitions.
+         * @param definitionOffset the offset of the definition in the file.
+         */
+        private MappedEntry(String term, Mapping mapping, long definitionOffset)
+        {
+            super(term, null);
+            this.mapping = mapping;
+            this.definitionOffset = definitionOffset;
+        }
+        
+        /***********************************************************************
+         * Gets the definition of the term of this entry, decoding it out of
+         * the file.
+         * 
+         * @return the definition.
+         */
+        @Override public String getDefinition()
+        {
+            return mapping.getString(definitionOffset);
+        }
+    }
+    
+    /***************************************************************************
+     * Constants used by the class
+     */
+    
+    // the magic number opening a dictionary file ("DICT"), and the version of
+    // the format written
+    private static final int MAGIC = 0x44494354;
+    private static final int VERSION = 2;
+    
+    // the magic number opening a serialized object (and so a file of the
+    // older format)
+    private static final short LEGACY_MAGIC = (short)0xACED;
+    
+    // the size (in bytes) of the header, and of the smallest entry in the
+    // term index
+    private static final int HEADER_SIZE = 32;
+    private static final int MIN_TERM_SIZE = 12;
+    
+    // the size (in bytes) of the buffers used to read and write the files
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    // the number of entries read or written between two reports of the
+    // progress (and checks whether the thread was interrupted)
+    public static final int PROGRESS_STEP = 4096;
+    
+    // the size (in bytes) from which files are mapped by 'open', and the size
+    // of each mapped segment of a file
+    private static final long MAP_THRESHOLD = 64L << 20;
+    private static final int SEGMENT_SIZE = 1 << 30;
+    
+    // the names of the only classes a file of the older format may contain
+    private static final List<String> LEGACY_CLASSES = Arrays.asList(
+            ArrayList.class.getName(), DictionaryEntry.class.getName());
+    
+    // the mappings of the files mapped so far (that are still in use), by the
+    // absolute paths of the files (guarded by itself)
+    private static final HashMap<Path, List<WeakReference<Mapping>>> MAPPINGS =
+            new HashMap<>();
+    
+    /***************************************************************************
+     * Writes a dictionary file.
+     * 
+     * @param path the path of the file.
+     * @param entries the entries to write, sorted by their case-folded terms.
+     * @param journalId the id of the file's journal (0 if it has none).
+     * @throws IOException if writing failed.
+     */
+    public static void write(Path path, List<DictionaryEntry> entries,
+            int journalId) throws IOException
+    {
+        write(path, entries, journalId, null);
+    }
+    
+    /***************************************************************************
+     * Writes a dictionary file, reporting the progress.
+     * 
+     * @param path the path of the file.
+     * @param entries the entries to write, sorted by their case-folded terms.
+     * @param journalId the id of the file's journal (0 if it has none).
+     * @param progress the listener to the progress (or null).
+     * @throws IOException if writing failed, or the thread was interrupted
+     * (the old file is then left as it was).
+     */
+    public static void write(Path path, List<DictionaryEntry> entries,
+            int journalId, Progress progress) throws IOException
+    {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output output = new Output(channel);
+            
+            // leave room for the header, and write the definitions
+            output.skip(HEADER_SIZE);
+            long[] offsets = new long[entries.size()];
+            long total = 2L * offsets.length;
+            for (int i = 0; i < offsets.length; i++) {
+                if (i % PROGRESS_STEP == 0) report(progress, i, total);
+                offsets[i] = output.position();
+                output.putString(entries.get(i).getDefinition());
+            }
+            
+            // write the term index
+            long termsOffset = output.position();
+            for (int i = 0; i < offsets.length; i++) {
+                if (i % PROGRESS_STEP == 0) report(progress, offsets.length + i, total);
+                output.putString(entries.get(i).getTerm());
+                output.putLong(offsets[i]);
+            }
+            output.flush();
+            
+            // now that the offsets are known, write the header
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(offsets.length)
+                    .putInt(journalId)
+                    .putLong(HEADER_SIZE).putLong(termsOffset).flip();
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+            channel.force(false);
+            report(progress, total, total);
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        
+        // replace the old file
+        replace(temp, path);
+    }
+    
+    /***************************************************************************
+     * Moves a file over a dictionary file. If the dictionary file is mapped
+     * (see 'open') and the system refuses to replace it, the mappings are
+     * moved aside (see Mapping.release) - and the file is moved again.
+     * 
+     * @param source the file to move.
+     * @param target the dictionary file to replace.
+     * @throws IOException if moving failed, or the mappings could not be
+     * released (the source is then left as it was).
+     */
+    public static void replace(Path source, Path target) throws IOException
+    {
+        try {
+            move(source, target);
+        }
+        catch (FileSystemException e) {
+            boolean released;
+            try {
+                released = unmap(target);
+            }
+            catch (IOException releaseError) {
+                e.addSuppressed(releaseError);
+                throw e;
+            }
+            if (!released) throw e;
+            move(source, target);
+        }
+    }
+    
+    /***************************************************************************
+     * Reads a dictionary file (of any format).
+     * 
+     * @param path the path of the file.
+     * @return the contents of the file.
+     * @throws IOException if reading failed, or the file is not a valid
+     * dictionary file.
+     */
+    public static Contents read(Path path) throws IOException
+    {
+        return read(path, false, null);
+    }
+    
+    /***************************************************************************
+     * Opens a dictionary file (of any format): a file of the current format
+     * which is too large to read quickly is mapped to memory, and only its
+     * term index is read (the definitions are decoded whenever they are asked
+     * for); any other file is read.
+     * 
+     * @param path the path of the file.
+     * @return the contents of the file.
+     * @throws IOException if reading failed, or the file is not a valid
+     * dictionary file.
+     */
+    public static Contents open(Path path) throws IOException
+    {
+        return open(path, null);
+    }
+    
+    /***************************************************************************
+     * Opens a dictionary file (of any format - see above), reporting the
+     * progress.
+     * 
+     * @param path the path of the file.
+     * @param progress the listener to the progress (or null).
+     * @return the contents of the file.
+     * @throws IOException if reading failed, the file is not a valid
+     * dictionary file, or the thread was interrupted.
+     */
+    public static Contents open(Path path, Progress progress) throws IOException
+    {
+        return read(path, Files.size(path) >= MAP_THRESHOLD, progress);
+    }
+    
+    /***************************************************************************
+     * Reports the progress of reading or writing a file - unless the thread
+     * doing it was interrupted, which cancels it.
+     * 
+     * @param progress the listener to the progress (or null).
+     * @param done the number of steps done.
+     * @param total the total number of steps.
+     * @throws InterruptedIOException if the thread was interrupted.
+     */
+    public static void report(Progress progress, long done, long total)
+            throws InterruptedIOException
+    {
+        if (Thread.currentThread().isInterrupted())
+            throw new InterruptedIOException("Cancelled");
+        if (progress != null) progress.update(done, total);
+    }
+    
+    /***************************************************************************
+     * Reads a dictionary file (of any format), possibly mapping it.
+     * 
+     * @param path the path of the file.
+     * @param map true to map the definitions in a file of the current format.
+     * @param progress the listener to the progress (or null).
+     * @return the contents of the file.
+     * @throws IOException if reading failed, the file is not a valid
+     * dictionary file, or the thread was interrupted.
+     */
+    private static Contents read(Path path, boolean map, Progress progress)
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            Input input = new Input(channel, 0);
+            if (size >= 2 && input.peekShort() == LEGACY_MAGIC)
+                return new Contents(readLegacy(
+                        new BufferedInputStream(Files.newInputStream(path))),
+                        true, false, 0);
+            
+            // check the header
+            if (size < HEADER_SIZE || input.getInt() != MAGIC)
+                throw new IOException("Not a dictionary file");
+            int version = input.getInt();
+            int count = input.getInt();
+            int journalId = input.getInt();
+            long definitionsOffset = input.getLong();
+            long termsOffset = input.getLong();
+            if (version != VERSION)
+                throw new IOException("Unsupported dictionary file version " + version);
+            if (count < 0 || definitionsOffset != HEADER_SIZE
+                    || termsOffset < definitionsOffset || termsOffset > size
+                    || count > (size - termsOffset) / MIN_TERM_SIZE)
+                throw new IOException("Corrupted dictionary file");
+            
+            // read the definitions through (unless mapping them)
+            long total = map ? count : 2L * count;
+            Mapping mapping = null;
+            String[] definitions = null;
+            long[] offsets = null;
+            if (map) {
+                mapping = new Mapping(path, channel, termsOffset);
+                synchronized (MAPPINGS) {
+                    List<WeakReference<Mapping>> mappings = MAPPINGS.computeIfAbsent(
+                            path.toAbsolutePath(), (key) -> new ArrayList<>());
+                    mappings.removeIf((reference) -> reference.get() == null);
+                    mappings.add(new WeakReference<>(mapping));
+                }
+                input = new Input(channel, termsOffset);
+            }
+            else {
+                definitions = new String[count];
+                offsets = new long[count];
+                for (int i = 0; i < count; i++) {
+                    if (i % PROGRESS_STEP == 0) report(progress, i, total);
+                    offsets[i] = input.position();
+                    definitions[i] = input.getString(termsOffset);
+                }
+                if (input.position() != termsOffset)
+                    throw new IOException("Corrupted dictionary file");
+            }
+            
+            // read the term index, making sure it agrees with the definitions
+            ArrayList<DictionaryEntry> entries = new ArrayList<>(count);
+            long next = definitionsOffset; // (the first offset possible)
+            for (int i = 0; i < count; i++) {
+                if (i % PROGRESS_STEP == 0) report(progress, total - count + i, total);
+                String term = input.getString(size);
+                long offset = input.getLong();
+                if (term == null || (map ? offset < next || offset > termsOffset - 4
+                                         : offset != offsets[i]))
+                    throw new IOException("Corrupted dictionary file");
+                next = offset + 4;
+                entries.add(map ? new MappedEntry(term, mapping, offset) :
+                        new DictionaryEntry(term, definitions[i]));
+            }
+            if (input.position() != size)
+                throw new IOException("Corrupted dictionary file");
+            report(progress, total, total);
+            return new Contents(entries, false, map, journalId);
+        }
+    }
+    
+    /***************************************************************************
+     * Reads the entries out of a file of the older format.
+     * 
+     * @param stream a stream of the file.
+     * @return the entries.
+     * @throws IOException if reading failed, or the file is not a valid
+     * dictionary file.
+     */
+    private static List<DictionaryEntry> readLegacy(InputStream stream)
+            throws IOException
+    {
+        // (refuse any class other than those of the entries list, before
+        // anything is constructed out of the file)
+        try (ObjectInputStream input = new ObjectInputStream(stream) {
+            @Override protected Class<?> resolveClass(ObjectStreamClass desc)
+                    throws IOException, ClassNotFoundException
+            {
+                if (!LEGACY_CLASSES.contains(desc.getName()))
+                    throw new InvalidClassException(desc.getName(),
+                            "Not allowed in a dictionary file");
+                return super.resolveClass(desc);
+            }
+        }) {
+            Object list = input.readObject();
+            if (!(list instanceof ArrayList))
+                throw new IOException("Not a dictionary file");
+            ArrayList<DictionaryEntry> entries = new ArrayList<>();
+            for (Object entry : (ArrayList<?>)list) {
+                if (!(entry instanceof DictionaryEntry)
+                        || ((DictionaryEntry)entry).getTerm() == null)
+                    throw new IOException("Corrupted dictionary file");
+                entries.add((DictionaryEntry)entry);
+            }
+            return entries;
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException("Not a dictionary file", e);
+        }
+    }
+    
+    /***************************************************************************
+     * Releases the mappings of a file (see Mapping.release).
+     * 
+     * @param path the path of the file.
+     * @return true if the file had mappings in use.
+     * @throws IOException if releasing a mapping failed (the mappings not
+     * released yet are then left as they were).
+     */
+    private static boolean unmap(Path path) throws IOException
+    {
+        path = path.toAbsolutePath();
+        List<WeakReference<Mapping>> mappings;
+        synchronized (MAPPINGS) {
+            mappings = MAPPINGS.remove(path);
+        }
+        if (mappings == null) return false;
+        boolean released = false;
+        try {
+            for (WeakReference<Mapping> reference : mappings) {
+                Mapping mapping = reference.get();
+                if (mapping != null) {
+                    mapping.release();
+                    released = true;
+                }
+            }
+        }
+        catch (IOException e) {
+            // (keep track of the mappings, so releasing them may be retried -
+            // the ones released already are skipped then)
+            synchronized (MAPPINGS) {
+                MAPPINGS.computeIfAbsent(path, (key) -> new ArrayList<>())
+                        .addAll(mappings);
+            }
+            throw e;
+        }
+        return released;
+    }
+    
+    /***************************************************************************
+     * Moves a file over another.
+     * 
+     * @param source the file to move.
+     * @param target the file to replace.
+     * @throws IOException if moving failed.
+     */
+    private static void move(Path source, Path target) throws IOException
+    {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    /***************************************************************************
+     * A buffered writer of a file, from its start.
+     */
+    private static class Output
+    {
+        // the file, a buffer of the bytes not yet written to it, and the
+        // position in the file the buffer starts at
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private long flushed;
+        
+        /***********************************************************************
+         * Constructor: creates a new writer of a given file.
+         * 
+         * @param channel the file.
+         */
+        private Output(FileChannel channel)
+        {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.flushed = 0;
+        }
+        
+        /***********************************************************************
+         * Gets the position in the file of the next byte written.
+         * 
+         * @return the position.
+         */
+        private long position()
+        {
+            return flushed + buffer.position();
+        }
+        
+        /***********************************************************************
+         * Skips some bytes (to be written later, directly to the file).
+         * 
+         * @param count the number of bytes.
+         * @throws IOException if writing failed.
+         */
+        private void skip(int count) throws IOException
+        {
+            flush();
+            flushed += count;
+        }
+        
+        /***********************************************************************
+         * Writes a long.
+         * 
+         * @param value the long.
+         * @throws IOException if writing failed.
+         */
+        private void putLong(long value) throws IOException
+        {
+            if (buffer.remaining() < 8) flush();
+            buffer.putLong(value);
+        }
+        
+        /***********************************************************************
+         * Writes a string, as its length and its UTF-8 encoding.
+         * 
+         * @param text the string (may be null).
+         * @throws IOException if writing failed.
+         */
+        private void putString(String text) throws IOException
+        {
+            if (buffer.remaining() < 4) flush();
+            if (text == null) {
+                buffer.putInt(-1);
+                return;
+            }
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(bytes.length);
+            for (int done = 0; done < bytes.length; ) {
+                if (!buffer.hasRemaining()) flush();
+                int chunk = Math.min(buffer.remaining(), bytes.length - done);
+                buffer.put(bytes, done, chunk);
+                done += chunk;
+            }
+        }
+        
+        /***********************************************************************
+         * Writes the buffered bytes to the file.
+         * 
+         * @throws IOException if writing failed.
+         */
+        private void flush() throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                flushed += channel.write(buffer, flushed);
+            buffer.clear();
+        }
+    }
+    
+    /***************************************************************************
+     * A buffered reader of a file, from a given position on.
+     */
+    private static class Input
+    {
+        // the file, a buffer of the bytes read from it but not yet consumed,
+        // and the position in the file the buffer ends at
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private long filled;
+        
+        /***********************************************************************
+         * Constructor: creates a new reader of a given file.
+         * 
+         * @param channel the file.
+         * @param position the position in the file to read from.
+         */
+        private Input(FileChannel channel, long position)
+        {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.buffer.flip(); // (nothing read yet)
+            this.filled = position;
+        }
+        
+        /***********************************************************************
+         * Gets the position in the file of the next byte read.
+         * 
+         * @return the position.
+         */
+        private long position()
+        {
+            return filled - buffer.remaining();
+        }
+        
+        /***********************************************************************
+         * Reads the next short, without consuming it.
+         * 
+         * @return the short.
+         * @throws IOException if reading failed, or the file ended.
+         */
+        private short peekShort() throws IOException
+        {
+            require(2);
+            return buffer.getShort(buffer.position());
+        }
+        
+        /***********************************************************************
+         * Reads an int.
+         * 
+         * @return the int.
+         * @throws IOException if reading failed, or the file ended.
+         */
+        private int getInt() throws IOException
+        {
+            require(4);
+            return buffer.getInt();
+        }
+        
+        /***********************************************************************
+         * Reads a long.
+         * 
+         * @return the long.
+         * @throws IOException if reading failed, or the file ended.
+         */
+        private long getLong() throws IOException
+        {
+            require(8);
+            return buffer.getLong();
+        }
+        
+        /***********************************************************************
+         * Reads a string, written as its length and its UTF-8 encoding.
+         * 
+         * @param end the position in the file the string must end before.
+         * @return the string (may be null).
+         * @throws IOException if reading failed, or the string is corrupted.
+         */
+        private String getString(long end) throws IOException
+        {
+            int length = getInt();
+            if (length == -1) return null;
+            if (length < 0 || length > end - position())
+                throw new IOException("Corrupted dictionary file");
+            if (length <= buffer.capacity()) {
+                require(length);
+                String text = new String(buffer.array(), buffer.position(),
+                        length, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + length);
+                return text;
+            }
+            
+            // (a string longer than the buffer is gathered separately)
+            byte[] bytes = new byte[length];
+            for (int done = 0; done < length; ) {
+                if (!buffer.hasRemaining()) require(1);
+                int chunk = Math.min(buffer.remaining(), length - done);
+                buffer.get(bytes, done, chunk);
+                done += chunk;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        
+        /***********************************************************************
+         * Makes sure a number of bytes is buffered, reading more if needed.
+         * 
+         * @param count the number of bytes (up to the buffer's capacity).
+         * @throws IOException if reading failed, or the file ended too soon.
+         */
+        private void require(int count) throws IOException
+        {
+            if (buffer.remaining() >= count) return;
+            buffer.compact();
+            while (buffer.position() < count) {
+                int read = channel.read(buffer, filled);
+                if (read < 0) throw new IOException("Unexpected end of dictionary file");
+                filled += read;
+            }
+            buffer.flip();
+        }
+    }
+    
+    /***************************************************************************
+     * The definitions of a file, mapped to memory (in segments, as a single
+     * mapping is limited to 2GB) - either straight from the file, or, once
+     * the mapping of the file is released (see 'release'), from a temporary
+     * copy of them.
+     * The mapping is read-only, and may be read from any thread.
+     */
+    private static class Mapping
+    {
+        // the file, the mapped segments of the definitions, and the position
+        // in the file the definitions end at
+        private final Path path;
+        private MappedByteBuffer[] segments;
+        private final long end;
+        
+        // a boolean stating whether the mapping of the file was released
+        // (guarded by 'this')
+        private boolean released;
+        
+        // a lock keeping the segments from being released while being read
+        private final ReentrantReadWriteLock lock;
+        
+        /***********************************************************************
+         * Constructor: maps the start of a file.
+         * 
+         * @param path the file.
+         * @param channel the file, opened for reading.
+         * @param end the position in the file the definitions end at.
+         * @throws IOException if mapping failed.
+         */
+        private Mapping(Path path, FileChannel channel, long end) throws IOException
+        {
+            this.path = path;
+            this.segments = map(channel, end);
+            this.end = end;
+            this.released = false;
+            this.lock = new ReentrantReadWriteLock();
+        }
+        
+        /***********************************************************************
+         * Decodes a string, written as its length and its UTF-8 encoding.
+         * 
+         * @param position the position of the string in the file.
+         * @return the string (may be null).
+         * @throws UncheckedIOException if the string is corrupted.
+         */
+        private String getString(long position)
+        {
+            lock.readLock().lock();
+            try {
+                byte[] length = new byte[4];
+                get(position, length);
+                int count = ByteBuffer.wrap(length).getInt();
+                if (count == -1) return null;
+                if (count < 0 || count > end - position - 4)
+                    throw new UncheckedIOException(
+                            new IOException("Corrupted dictionary file"));
+                byte[] bytes = new byte[count];
+                get(position + 4, bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+        
+        /***********************************************************************
+         * Copies bytes out of the segments. Must be called holding the read
+         * lock of 'lock'.
+         * 
+         * @param position the position in the file to copy from.
+         * @param bytes the array to fill.
+         */
+        private void get(long position, byte[] bytes)
+        {
+            for (int done = 0; done < bytes.length; ) {
+                long at = position + done;
+                // (a duplicate has a position of its own, so threads don't
+                // interfere)
+                ByteBuffer segment = segments[(int)(at / SEGMENT_SIZE)].duplicate();
+                segment.position((int)(at % SEGMENT_SIZE));
+                int chunk = Math.min(segment.remaining(), bytes.length - done);
+                segment.get(bytes, done, chunk);
+                done += chunk;
+            }
+        }
+        
+        /***********************************************************************
+         * Releases the mapping of the file right away (unless it was released
+         * already): the mapped definitions are copied to a temporary file next
+         * to it (deleted once it is no longer mapped), which is mapped
+         * instead.
+         * 
+         * @throws IOException if copying the definitions failed, or this JVM
+         * can't release a mapping right away (the mapping is then left as it
+         * was).
+         */
+        private synchronized void release() throws IOException
+        {
+            if (released) return;
+            Cleaner cleaner = Cleaner.find();
+            
+            // copy the definitions aside (the mapped segments are written out
+            // directly - they never pass through the heap - and may still be
+            // read meanwhile)
+            Path copy = Files.createTempFile(path.toAbsolutePath().getParent(),
+                    path.getFileName().toString(), ".mapped");
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(copy, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            catch (IOException e) {
+                Files.deleteIfExists(copy);
+                throw e;
+            }
+            MappedByteBuffer[] copies;
+            try {
+                long position = 0;
+                for (MappedByteBuffer segment : segments) {
+                    ByteBuffer bytes = segment.duplicate();
+                    while (bytes.hasRemaining())
+                        position += channel.write(bytes, position);
+                }
+                copies = map(channel, end);
+            }
+            finally {
+                channel.close();
+            }
+            
+            // switch to the copy, and release the file
+            lock.writeLock().lock();
+            try {
+                MappedByteBuffer[] mapped = segments;
+                segments = copies;
+                released = true;
+                for (MappedByteBuffer segment : mapped) cleaner.clean(segment);
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+        
+        /***********************************************************************
+         * Maps the start of a file, in segments.
+         * 
+         * @param channel the file.
+         * @param end the position in the file the mapping ends at.
+         * @return the segments.
+         * @throws IOException if mapping failed.
+         */
+        private static MappedByteBuffer[] map(FileChannel channel, long end)
+                throws IOException
+        {
+            MappedByteBuffer[] segments = new MappedByteBuffer[
+                    (int)((end + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long)i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(SEGMENT_SIZE, end - start));
+            }
+            return segments;
+        }
+    }
+    
+    /***************************************************************************
+     * Releases mapped buffers right away. Java offers no standard way to do
+     * so - this is done through the JDK's internal cleaner of mapped buffers
+     * (sun.misc.Unsafe.invokeCleaner, in the jdk.unsupported module).
+     */
+    private static class Cleaner
+    {
+        // the internal object releasing the buffers, and its method doing so
+        private final Object unsafe;
+        private final Method invokeCleaner;
+        
+        /***********************************************************************
+         * Constructor: creates a new cleaner.
+         * 
+         * @param unsafe the internal object releasing the buffers.
+         * @param invokeCleaner its method releasing a buffer.
+         */
+        private Cleaner(Object unsafe, Method invokeCleaner)
+        {
+            this.unsafe = unsafe;
+            this.invokeCleaner = invokeCleaner;
+        }
+        
+        /***********************************************************************
+         * Finds the JDK's cleaner of mapped buffers.
+         * 
+         * @return the cleaner.
+         * @throws IOException if this JVM has none (or doesn't allow using
+         * it).
+         */
+        private static Cleaner find() throws IOException
+        {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                return new Cleaner(field.get(null),
+                        unsafeClass.getMethod("invokeCleaner", ByteBuffer.class));
+            }
+            catch (ReflectiveOperationException | RuntimeException e) {
+                throw new IOException("This JVM can't release a mapped file", e);
+            }
+        }
+        
+        /***********************************************************************
+         * Releases a mapped buffer (nothing may read it anymore).
+         * 
+         * @param buffer the buffer.
+         * @throws IOException if releasing it failed.
+         */
+        private void clean(MappedByteBuffer buffer) throws IOException
+        {
+            try {
+                invokeCleaner.invoke(unsafe, buffer);
+            }
+            catch (ReflectiveOperationException | RuntimeException e) {
+                throw new IOException("Releasing a mapped file failed", e);
+            }
+        }
+    }
+}
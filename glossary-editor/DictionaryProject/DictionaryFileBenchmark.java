@@ -0,0 +1,178 @@
+package dictionaryProject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+/*******************************************************************************
+ * This program measures how long it takes to save and open dictionary files,
+ * as part of the Dictionary App (whose main program can be found in
+ * DictionaryApp.java).
+ * For dictionaries of 10k to 1M random entries, it saves, loads and opens
+ * (mapping the larger files - see DictionaryFile.open) files of the current
+ * format (see DictionaryFile) and of the older format (a serialized ArrayList
+ * of the entries), and prints the best time of a few rounds of each, along
+ * with the sizes of the files.
+ * The files are written to a temporary directory, and deleted at the end.
+ * 
+ * @author Nadav Kahlon
+ */
+public class DictionaryFileBenchmark
+{
+    /***************************************************************************
+     * Constants used by the program
+     */
+    
+    // the sizes of the dictionaries measured
+    private static final int[] SIZES = { 10_000, 100_000, 1_000_000 };
+    
+    // the number of rounds of each measurement (the best one is printed)
+    private static final int ROUNDS = 3;
+    
+    // the number of words in a definition
+    private static final int DEFINITION_WORDS = 12;
+    
+    /***************************************************************************
+     * The main program.
+     * 
+     * @param args unused.
+     * @throws IOException if writing or reading a file failed.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        Path dir = Files.createTempDirectory("dictionary-benchmark");
+        try {
+            System.out.printf("%10s %8s %10s %10s %10s %10s%n", "entries",
+                    "format", "file (KB)", "save (ms)", "load (ms)", "open (ms)");
+            for (int size : SIZES) {
+                List<DictionaryEntry> entries = randomEntries(size, new Random(size));
+                Path current = dir.resolve("current.dict");
+                Path legacy = dir.resolve("legacy.dict");
+                
+                long saveCurrent = best(() -> { DictionaryFile.write(current, entries, 0); });
+                long loadCurrent = best(() -> { DictionaryFile.read(current); });
+                long openCurrent = best(() -> { DictionaryFile.open(current); });
+                print(size, "current", Files.size(current), saveCurrent,
+                        loadCurrent, openCurrent);
+                
+                long saveLegacy = best(() -> { writeLegacy(legacy, entries); });
+                long loadLegacy = best(() -> { DictionaryFile.read(legacy); });
+                long openLegacy = best(() -> { DictionaryFile.open(legacy); });
+                print(size, "legacy", Files.size(legacy), saveLegacy,
+                        loadLegacy, openLegacy);
+                
+                Files.delete(current);
+                Files.delete(legacy);
+            }
+        }
+        finally {
+            Files.deleteIfExists(dir);
+        }
+    }
+    
+    /***************************************************************************
+     * An operation on a file.
+     */
+    private interface FileOperation
+    {
+        void run() throws IOException;
+    }
+    
+    /***************************************************************************
+     * Runs an operation a few times.
+     * 
+     * @param operation the operation.
+     * @return the time (in milliseconds) of the fastest run.
+     * @throws IOException if the operation failed.
+     */
+    private static long best(FileOperation operation) throws IOException
+    {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            operation.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1_000_000;
+    }
+    
+    /***************************************************************************
+     * Prints a line of the results.
+     * 
+     * @param size the number of entries.
+     * @param format the name of the format.
+     * @param fileSize the size of the file (in bytes).
+     * @param save the time of saving (in milliseconds).
+     * @param load the time of loading (in milliseconds).
+     * @param open the time of opening (in milliseconds - see
+     * DictionaryFile.open).
+     */
+    private static void print(int size, String format, long fileSize,
+            long save, long load, long open)
+    {
+        System.out.printf("%10d %8s %10d %10d %10d %10d%n",
+                size, format, fileSize / 1024, save, load, open);
+    }
+    
+    /***************************************************************************
+     * Writes a file of the older format.
+     * 
+     * @param path the path of the file.
+     * @param entries the entries.
+     * @throws IOException if writing failed.
+     */
+    private static void writeLegacy(Path path, List<DictionaryEntry> entries)
+            throws IOException
+    {
+        try (ObjectOutputStream output = new ObjectOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path)))) {
+            output.writeObject(new ArrayList<>(entries));
+        }
+    }
+    
+    /***************************************************************************
+     * Creates random entries, sorted by their case-folded terms.
+     * 
+     * @param size the number of entries.
+     * @param random the random generator.
+     * @return the entries.
+     */
+    private static List<DictionaryEntry> randomEntries(int size, Random random)
+    {
+        HashSet<String> terms = new HashSet<>();
+        while (terms.size() < size) terms.add(randomWord(random, 4, 12));
+        ArrayList<DictionaryEntry> entries = new ArrayList<>(size);
+        for (String term : terms) {
+            StringBuilder definition = new StringBuilder();
+            for (int i = 0; i < DEFINITION_WORDS; i++) {
+                if (i > 0) definition.append(' ');
+                definition.append(randomWord(random, 2, 9));
+            }
+            entries.add(new DictionaryEntry(term, definition.toString()));
+        }
+        entries.sort(null);
+        return entries;
+    }
+    
+    /***************************************************************************
+     * Creates a random lower-case word.
+     * 
+     * @param random the random generator.
+     * @param min the minimal length.
+     * @param max the maximal length.
+     * @return the word.
+     */
+    private static String randomWord(Random random, int min, int max)
+    {
+        char[] word = new char[min + random.nextInt(max - min + 1)];
+        for (int i = 0; i < word.length; i++)
+            word[i] = (char)('a' + random.nextInt(26));
+        return new String(word);
+    }
+}
@@ -0,0 +1,711 @@
+package dictionaryProject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/*******************************************************************************
+ * This class represents the journal of a dictionary file, as part of the
+ * Dictionary App (whose main program can be found in DictionaryApp.java).
+ * Rather than rewriting the whole file whenever the dictionary is saved, the
+ * changes made since the last save (added and removed entries) are appended
+ * to the journal, next to the file, as small records - all the records of a
+ * save are written at once, and forced to the disk once.
+ * When the dictionary is loaded, the file is read and the journal is replayed
+ * over it. Every record holds its length and a CRC-32 of its contents, so a
+ * record left half-written (e.g. by a crash) is detected - it and whatever
+ * follows are dropped.
+ * Once the journal grows large in comparison with the file, a background
+ * thread rewrites the file with the changes applied, and drops the records
+ * the new file holds from the journal. Replaying a record over a file which
+ * already holds its change leaves the file as is, so a crash at any point of
+ * the rewrite loses nothing.
+ * A journal belongs to a single file: the file's header holds the id of its
+ * journal (see DictionaryFile), and a journal of another id is ignored.
+ * The journal file is laid out as follows (all numbers are big-endian):
+ * 
+ *     header  - the magic number "DJNL", and the id of the journal.
+ *     records - for every change: the length in bytes of its contents and
+ *               their CRC-32 (ints), followed by the contents: the kind of
+ *               change (a byte: 1 for an added entry, 2 for a removed one),
+ *               and the term (and the definition, of an added entry) - each
+ *               as its length in bytes (an int; -1 for a null definition)
+ *               followed by its UTF-8 encoding.
+ * 
+ * Only one journal of a file is in use at a time: writing a file closes the
+ * journal opened for it before (which no longer matches it), and loading a
+ * file opens a journal which takes over from the one opened before - the
+ * latter is still written to until closed, and takes over again if the
+ * loaded journal is closed first (e.g. if the loaded file is discarded).
+ * The journals may be used from any thread (e.g. to load or save a file in
+ * the background), but each one by a single thread at a time.
+ * 
+ * @author Nadav Kahlon
+ */
+public class DictionaryJournal implements Closeable
+{
+    /***************************************************************************
+     * A change made to a dictionary: an added entry, or a removed one.
+     * Change objects are IMMUTABLE.
+     */
+    public static class Change
+    {
+        // the entry added, or the term removed (the other one is null)
+        private final DictionaryEntry added;
+        private final String removed;
+        
+        /***********************************************************************
+         * Constructor: creates a new change.
+         * 
+         * @param added the entry added (or null).
+         * @param removed the term removed (or null).
+         */
+        private Change(DictionaryEntry added, String removed)
+        {
+            this.added = added;
+            this.removed = removed;
+        }
+        
+        /***********************************************************************
+         * Creates a change adding an entry.
+         * 
+         * @param entry the entry.
+         * @return the change.
+         */
+        public static Change add(DictionaryEntry entry)
+        {
+            return new Change(entry, null);
+        }
+        
+        /***********************************************************************
+         * Creates a change removing an entry.
+         * 
+         * @param term the term of the entry.
+         * @return the change.
+         */
+        public static Change remove(String term)
+        {
+            return new Change(null, term);
+        }
+        
+        /***********************************************************************
+         * Getters for the change's attributes
+         */
+        
+        public DictionaryEntry getAdded() { return added; }
+        public String getRemoved() { return removed; }
+    }
+    
+    /***************************************************************************
+     * The contents of a dictionary file and its journal, as loaded.
+     * Loaded objects are IMMUTABLE.
+     */
+    public static class Loaded
+    {
+        // the contents of the file
+        private final DictionaryFile.Contents contents;
+        
+        // the changes recorded in the journal, in the order they were made
+        private final List<Change> changes;
+        
+        // the journal (or null if the file has none)
+        private final DictionaryJournal journal;
+        
+        /***********************************************************************
+         * Constructor: creates a new loaded file.
+         * 
+         * @param contents the contents of the file.
+         * @param changes the changes recorded in the journal.
+         * @param journal the journal (or null).
+         */
+        private Loaded(DictionaryFile.Contents contents, List<Change> changes,
+                DictionaryJournal journal)
+        {
+            this.contents = contents;
+            this.changes = changes;
+            this.journal = journal;
+        }
+        
+        /***********************************************************************
+         * Getters for the loaded file's attributes
+         */
+        
+        public DictionaryFile.Contents getContents() { return contents; }
+        public List<Change> getChanges() { return changes; }
+        public DictionaryJournal getJournal() { return journal; }
+    }
+    
+    /***************************************************************************
+     * Constants used by the class
+     */
+    
+    // the suffix added to the name of a dictionary file to name its journal
+    public static final String SUFFIX = ".journal";
+    
+    // the magic number opening a journal ("DJNL")
+    private static final int MAGIC = 0x444A4E4C;
+    
+    // the size (in bytes) of the header, and of the header of a record
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    
+    // the kinds of records
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    
+    // the minimal size (in bytes) of a journal before the file is rewritten,
+    // and the minimal ratio of the journal's size to the file's size
+    private static final long MIN_COMPACTION = 1 << 20;
+    private static final int COMPACTION_RATIO = 4; // (a quarter of the file)
+    
+    // a lock serializing the replacements of dictionary files and journals by
+    // the JavaFX thread and by the background thread
+    private static final Object FILES_LOCK = new Object();
+    
+    // the background thread rewriting the files
+    private static final ExecutorService COMPACTOR =
+            Executors.newSingleThreadExecutor((r) -> {
+                Thread thread = new Thread(r, "journal-compactor");
+                thread.setDaemon(true); // (an interrupted rewrite loses nothing)
+                return thread;
+            });
+    
+    // a random generator of journal ids
+    private static final Random IDS = new Random();
+    
+    // the journals open, by the absolute paths of their dictionary files
+    // (guarded by FILES_LOCK)
+    private static final HashMap<Path, DictionaryJournal> OPEN = new HashMap<>();
+    
+    /***************************************************************************
+     * Attributes of a journal (guarded by FILES_LOCK)
+     */
+    
+    // the dictionary file, and the journal file
+    private final Path path;
+    private final Path journalPath;
+    
+    // the id of the journal
+    private final int id;
+    
+    // the journal file (open for writing), and its size (in bytes)
+    private FileChannel channel;
+    private long size;
+    
+    // the size (in bytes) of the dictionary file when last written
+    private long fileSize;
+    
+    // the journal in use for the same file when this one was loaded (or null)
+    private DictionaryJournal previous;
+    
+    // a boolean stating whether the file is being rewritten, one stating
+    // whether rewriting it failed (it is then not tried again - it would most
+    // likely fail the same way, and the journal just grows until the file is
+    // loaded again), and one stating whether the journal was closed
+    private boolean compacting;
+    private boolean compactionFailed;
+    private boolean closed;
+    
+    /***************************************************************************
+     * Constructor: creates a journal on an already opened journal file (see
+     * 'load' and 'create').
+     * 
+     * @param path the dictionary file.
+     * @param id the id of the journal.
+     * @param channel the journal file.
+     * @param size the size of the journal file (in bytes).
+     * @throws IOException if the size of the dictionary file is unknown.
+     */
+    private DictionaryJournal(Path path, int id, FileChannel channel, long size)
+            throws IOException
+    {
+        this.path = path;
+        this.journalPath = journalOf(path);
+        this.id = id;
+        this.channel = channel;
+        this.size = size;
+        this.fileSize = Files.size(path);
+        this.previous = null;
+        this.compacting = false;
+        this.compactionFailed = false;
+        this.closed = false;
+    }
+    
+    /***************************************************************************
+     * Loads a dictionary file (see DictionaryFile.open), along with the
+     * changes recorded in its journal (dropping those left half-written).
+     * 
+     * @param path the path of the file.
+     * @param progress the listener to the progress of reading the file (or
+     * null).
+     * @return the loaded file (and its journal, opened for further changes).
+     * @throws IOException if reading failed, the file is not a valid
+     * dictionary file, or the thread was interrupted.
+     */
+    public static Loaded load(Path path, DictionaryFile.Progress progress)
+            throws IOException
+    {
+        path = path.toAbsolutePath();
+        synchronized (FILES_LOCK) {
+            // (the journal in use for the file, if any, is closed only once
+            // the loaded file replaces the dictionary holding it)
+            DictionaryFile.Contents contents = DictionaryFile.open(path, progress);
+            List<Change> changes = new ArrayList<>();
+            if (contents.getJournalId() == 0)
+                return new Loaded(contents, changes, null);
+            
+            // a missing journal, or one of another file, holds no changes
+            Path journalPath = journalOf(path);
+            if (!Files.exists(journalPath) || readId(journalPath) != contents.getJournalId())
+                return new Loaded(contents, changes, create(path, contents.getJournalId()));
+            
+            // read the records through, and drop whatever follows the last
+            // intact one
+            long end = HEADER_SIZE;
+            long journalSize = Files.size(journalPath);
+            try (DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(journalPath)))) {
+                input.skipBytes(HEADER_SIZE);
+                CRC32 crc = new CRC32();
+                while (true) {
+                    if (Thread.currentThread().isInterrupted())
+                        throw new InterruptedIOException("Cancelled");
+                    int length = input.readInt();
+                    int checksum = input.readInt();
+                    if (length < 0 || length > journalSize - end) break;
+                    byte[] record = new byte[length];
+                    input.readFully(record);
+                    crc.reset();
+                    crc.update(record, 0, length);
+                    if ((int)crc.getValue() != checksum) break;
+                    changes.add(decode(record));
+                    end += RECORD_HEADER_SIZE + length;
+                }
+            }
+            catch (EOFException e) {
+                // (the journal ended - possibly in the middle of a record)
+            }
+            FileChannel channel = FileChannel.open(journalPath,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                channel.truncate(end);
+                DictionaryJournal journal =
+                        new DictionaryJournal(path, contents.getJournalId(), channel, end);
+                journal.previous = OPEN.put(path, journal);
+                return new Loaded(contents, changes, journal);
+            }
+            catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+    }
+    
+    /***************************************************************************
+     * Writes a dictionary file, along with a new empty journal.
+     * 
+     * @param path the path of the file.
+     * @param entries the entries to write, sorted by their case-folded terms.
+     * @param progress the listener to the progress of writing the file (or
+     * null).
+     * @return the journal.
+     * @throws IOException if writing failed, or the thread was interrupted
+     * (the old file and its journal are then left as they were).
+     */
+    public static DictionaryJournal write(Path path, List<DictionaryEntry> entries,
+            DictionaryFile.Progress progress) throws IOException
+    {
+        path = path.toAbsolutePath();
+        int id;
+        do {
+            id = IDS.nextInt();
+        } while (id == 0);
+        synchronized (FILES_LOCK) {
+            // (the journal of the old file no longer matches the new one)
+            DictionaryFile.write(path, entries, id, progress);
+            release(path);
+            return create(path, id);
+        }
+    }
+    
+    /***************************************************************************
+     * Checks whether this journal belongs to a certain dictionary file.
+     * 
+     * @param path the path of the file.
+     * @return A boolean stating whether the journal belongs to the file.
+     */
+    public boolean isFor(Path path)
+    {
+        return this.path.equals(path.toAbsolutePath());
+    }
+    
+    /***************************************************************************
+     * Appends changes to the journal, and forces them to the disk. If the
+     * journal has grown large, the dictionary file is then rewritten in the
+     * background.
+     * 
+     * @param changes the changes, in the order they were made.
+     * @param entries gets a snapshot of the entries of the dictionary after
+     * the changes, sorted by their case-folded terms - or null if the
+     * dictionary was changed since (asked only if the file is to be
+     * rewritten).
+     * @throws IOException if writing failed (the journal is then left as it
+     * was).
+     */
+    public void append(List<Change> changes,
+            Supplier<List<DictionaryEntry>> entries) throws IOException
+    {
+        // encode all the records at once
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        CRC32 crc = new CRC32();
+        for (Change change : changes) {
+            byte[] record = encode(change);
+            crc.reset();
+            crc.update(record, 0, record.length);
+            output.writeInt(record.length);
+            output.writeInt((int)crc.getValue());
+            output.write(record);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        
+        long covered;
+        synchronized (FILES_LOCK) {
+            if (closed) throw new IOException("The journal was closed");
+            try {
+                for (long position = size; buffer.hasRemaining(); )
+                    position += channel.write(buffer, position);
+                channel.force(false);
+            }
+            catch (IOException e) {
+                // (drop whatever was written, so the journal stays intact - if
+                // the failure closed the channel (e.g. the thread was
+                // interrupted), through a new one, and the journal is no
+                // longer used)
+                try {
+                    if (channel.isOpen()) {
+                        channel.truncate(size);
+                    }
+                    else {
+                        closed = true;
+                        if (OPEN.get(path) == this) OPEN.remove(path);
+                        try (FileChannel fresh = FileChannel.open(journalPath,
+                                StandardOpenOption.WRITE)) {
+                            fresh.truncate(size);
+                            fresh.force(false);
+                        }
+                    }
+                }
+                catch (IOException ignored) {
+                }
+                throw e;
+            }
+            size += buffer.limit();
+            
+            // rewrite the file if the journal has grown large
+            if (compacting || compactionFailed || size < MIN_COMPACTION
+                    || size < fileSize / COMPACTION_RATIO)
+                return;
+            compacting = true;
+            covered = size;
+        }
+        
+        // (the entries are taken outside FILES_LOCK, as the dictionary may be
+        // waiting for it to close the journal)
+        List<DictionaryEntry> snapshot = entries.get();
+        if (snapshot == null) {
+            // (the file is rewritten after a later save instead)
+            synchronized (FILES_LOCK) {
+                compacting = false;
+            }
+            return;
+        }
+        COMPACTOR.execute(() -> { compact(snapshot, covered); });
+    }
+    
+    /***************************************************************************
+     * Closes the journal (any rewrite of the file in progress is abandoned).
+     * 
+     * @throws IOException if closing failed.
+     */
+    @Override public void close() throws IOException
+    {
+        synchronized (FILES_LOCK) {
+            if (OPEN.get(path) == this) {
+                OPEN.remove(path);
+                if (previous != null && !previous.closed) OPEN.put(path, previous);
+            }
+            previous = null;
+            closed = true;
+            channel.close();
+        }
+    }
+    
+    /***************************************************************************
+     * Rewrites the dictionary file with the changes recorded in the journal
+     * applied, and drops them from the journal (runs on the background
+     * thread).
+     * 
+     * @param entries the entries of the dictionary with the changes applied.
+     * @param covered the size of the journal (in bytes) when they were taken.
+     */
+    private void compact(List<DictionaryEntry> entries, long covered)
+    {
+        Path compacted = path.resolveSibling(path.getFileName() + ".compacted");
+        try {
+            // write the new file aside (this takes long - and the journal may
+            // still grow meanwhile)
+            DictionaryFile.write(compacted, entries, id);
+            
+            synchronized (FILES_LOCK) {
+                // (a journal loaded since may be reading the files - the
+                // rewrite is then retried after a later save)
+                if (closed || OPEN.get(path) != this) {
+                    Files.deleteIfExists(compacted);
+                    return;
+                }
+                
+                // replace the old file (whose journal holds the same changes)
+                DictionaryFile.replace(compacted, path);
+                fileSize = Files.size(path);
+                
+                // copy the records written since into a new journal, and
+                // replace the old journal by it
+                Path temp = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+                try (FileChannel newChannel = FileChannel.open(temp,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(MAGIC).putInt(id).flip();
+                    while (header.hasRemaining()) newChannel.write(header);
+                    for (long position = covered; position < size; )
+                        position += channel.transferTo(position, size - position,
+                                newChannel);
+                    newChannel.force(false);
+                }
+                channel.close();
+                try {
+                    move(temp, journalPath);
+                    size = HEADER_SIZE + size - covered;
+                }
+                finally {
+                    // (if the move failed, this reopens the old journal)
+                    channel = FileChannel.open(journalPath,
+                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+            }
+        }
+        catch (IOException e) {
+            // (the files are left consistent)
+            try {
+                Files.deleteIfExists(compacted);
+            }
+            catch (IOException ignored) {
+            }
+            synchronized (FILES_LOCK) {
+                compactionFailed = true;
+            }
+        }
+        finally {
+            synchronized (FILES_LOCK) {
+                compacting = false;
+            }
+        }
+    }
+    
+    /***************************************************************************
+     * Closes the journal open for a dictionary file (if any). Must be called
+     * holding FILES_LOCK.
+     * 
+     * @param path the absolute path of the file.
+     */
+    private static void release(Path path)
+    {
+        DictionaryJournal journal = OPEN.remove(path);
+        if (journal == null) return;
+        journal.closed = true;
+        try {
+            journal.channel.close();
+        }
+        catch (IOException e) {
+            // (nothing more is written to it either way)
+        }
+    }
+    
+    /***************************************************************************
+     * Creates a new empty journal for a dictionary file (replacing any journal
+     * it had, and taking over from the one in use for it). Must be called
+     * holding FILES_LOCK.
+     * 
+     * @param path the absolute path of the file.
+     * @param id the id of the journal.
+     * @return the journal.
+     * @throws IOException if writing failed.
+     */
+    private static DictionaryJournal create(Path path, int id) throws IOException
+    {
+        FileChannel channel = FileChannel.open(journalOf(path),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(id).flip();
+            while (header.hasRemaining()) channel.write(header, header.position());
+            channel.force(false);
+            DictionaryJournal journal = new DictionaryJournal(path, id, channel, HEADER_SIZE);
+            journal.previous = OPEN.put(path, journal);
+            return journal;
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    /***************************************************************************
+     * Reads the id of a journal.
+     * 
+     * @param journalPath the path of the journal file.
+     * @return the id (or 0 if the file is not a journal).
+     * @throws IOException if reading failed.
+     */
+    private static int readId(Path journalPath) throws IOException
+    {
+        try (DataInputStream input = new DataInputStream(
+                Files.newInputStream(journalPath))) {
+            return input.readInt() == MAGIC ? input.readInt() : 0;
+        }
+        catch (EOFException e) {
+            return 0;
+        }
+    }
+    
+    /***************************************************************************
+     * Gets the path of the journal of a dictionary file.
+     * 
+     * @param path the path of the file.
+     * @return the path of its journal.
+     */
+    private static Path journalOf(Path path)
+    {
+        return path.resolveSibling(path.getFileName() + SUFFIX);
+    }
+    
+    /***************************************************************************
+     * Encodes the contents of a record.
+     * 
+     * @param change the change recorded.
+     * @return the contents.
+     * @throws IOException never (written to memory).
+     */
+    private static byte[] encode(Change change) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        if (change.added != null) {
+            output.writeByte(ADD);
+            writeString(output, change.added.getTerm());
+            writeString(output, change.added.getDefinition());
+        }
+        else {
+            output.writeByte(REMOVE);
+            writeString(output, change.removed);
+        }
+        return bytes.toByteArray();
+    }
+    
+    /***************************************************************************
+     * Decodes the contents of a record.
+     * 
+     * @param record the contents.
+     * @return the change recorded.
+     * @throws IOException if the record is corrupted.
+     */
+    private static Change decode(byte[] record) throws IOException
+    {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+        byte kind = input.readByte();
+        String term = readString(input);
+        if (term == null) throw new IOException("Corrupted journal");
+        if (kind == ADD) return Change.add(new DictionaryEntry(term, readString(input)));
+        if (kind == REMOVE) return Change.remove(term);
+        throw new IOException("Corrupted journal");
+    }
+    
+    /***************************************************************************
+     * Writes a string, as its length and its UTF-8 encoding.
+     * 
+     * @param output the output.
+     * @param text the string (may be null).
+     * @throws IOException never (written to memory).
+     */
+    private static void writeString(DataOutputStream output, String text)
+            throws IOException
+    {
+        if (text == null) {
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+    
+    /***************************************************************************
+     * Reads a string, written as its length and its UTF-8 encoding.
+     * 
+     * @param input the input.
+     * @return the string (may be null).
+     * @throws IOException if the string is corrupted.
+     */
+    private static String readString(DataInputStream input) throws IOException
+    {
+        int length = input.readInt();
+        if (length == -1) return null;
+        if (length < 0 || length > input.available())
+            throw new IOException("Corrupted journal");
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /***************************************************************************
+     * Moves a file over another.
+     * 
+     * @param source the file to move.
+     * @param target the file to replace.
+     * @throws IOException if moving failed.
+     */
+    private static void move(Path source, Path target) throws IOException
+    {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package dictionaryProject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*******************************************************************************
+ * This class represents an index of the terms of a dictionary by edit
+ * distance, as part of the Dictionary App (whose main program can be found in
+ * DictionaryApp.java), used to suggest terms resembling a mistyped one.
+ * The index is a BK-tree over the case-folded terms: every child of a node
+ * lies at a certain Levenshtein distance from it, so when looking for terms
+ * within distance k of a query whose distance from a node is d, only the
+ * children at distances d-k to d+k can hold matches (by the triangle
+ * inequality) - and most of the tree is never compared with the query.
+ * Removed terms are only marked as such (they still guide the search); once
+ * they outnumber the live terms, the tree is rebuilt without them.
+ * The index is not thread-safe (see Dictionary for the locking around it).
+ * 
+ * @author Nadav Kahlon
+ */
+public class FuzzyIndex
+{
+    /***************************************************************************
+     * A node of the tree.
+     */
+    private static class Node
+    {
+        // the case-folded term of the node, and its entry (null if removed)
+        private final String key;
+        private DictionaryEntry entry;
+        
+        // the children of the node, by their distance from it (null where
+        // there's none)
+        private Node[] children;
+        
+        /***********************************************************************
+         * Constructor: creates a new leaf node.
+         * 
+         * @param key the case-folded term.
+         * @param entry the entry.
+         */
+        private Node(String key, DictionaryEntry entry)
+        {
+            this.key = key;
+            this.entry = entry;
+            this.children = null;
+        }
+    }
+    
+    /***************************************************************************
+     * Constants used by the class
+     */
+    
+    // the maximal number of suggestions
+    public static final int MAX_SUGGESTIONS = 8;
+    
+    // the minimal number of removed terms before the tree is rebuilt
+    private static final int MIN_COMPACTION = 1024;
+    
+    /***************************************************************************
+     * Attributes of an index
+     */
+    
+    // the root of the tree (null if empty)
+    private Node root;
+    
+    // the number of live terms, and of removed terms still in the tree
+    private int size;
+    private int removed;
+    
+    /***************************************************************************
+     * Constructor: creates a new empty index.
+     */
+    public FuzzyIndex()
+    {
+        this.root = null;
+        this.size = 0;
+        this.removed = 0;
+    }
+    
+    /***************************************************************************
+     * Adds an entry to the index.
+     * 
+     * @param entry the entry (whose term is not in the index).
+     */
+    public void add(DictionaryEntry entry)
+    {
+        String key = DictionaryEntry.foldCase(entry.getTerm());
+        size++;
+        if (root == null) {
+            root = new Node(key, entry);
+            return;
+        }
+        
+        // walk down along the distances until there's no such child
+        Node node = root;
+        while (true) {
+            int distance = distance(key, node.key, Integer.MAX_VALUE);
+            if (distance == 0) {
+                // (a removed term coming back)
+                if (node.entry == null) removed--;
+                else size--;
+                node.entry = entry;
+                return;
+            }
+            if (node.children == null || node.children.length <= distance)
+                node.children = Arrays.copyOf(node.children == null ?
+                        new Node[0] : node.children, distance + 1);
+            if (node.children[distance] == null) {
+                node.children[distance] = new Node(key, entry);
+                return;
+            }
+            node = node.children[distance];
+        }
+    }
+    
+    /***************************************************************************
+     * Removes an entry from the index.
+     * 
+     * @param entry the entry (actually removes the entry of the same term).
+     */
+    public void remove(DictionaryEntry entry)
+    {
+        String key = DictionaryEntry.foldCase(entry.getTerm());
+        Node node = root;
+        while (node != null) {
+            int distance = distance(key, node.key, Integer.MAX_VALUE);
+            if (distance == 0) {
+                if (node.entry == null) return;
+                node.entry = null;
+                size--;
+                if (++removed >= MIN_COMPACTION && removed > size) compact();
+                return;
+            }
+            node = node.children != null && distance < node.children.length ?
+                    node.children[distance] : null;
+        }
+    }
+    
+    /***************************************************************************
+     * Removes all entries from the index.
+     */
+    public void clear()
+    {
+        root = null;
+        size = 0;
+        removed = 0;
+    }
+    
+    /***************************************************************************
+     * Finds the entries whose terms are closest to a given term (ignoring
+     * letter cases), within a distance allowing one typo in short terms and
+     * two in longer ones.
+     * 
+     * @param term the term.
+     * @return up to MAX_SUGGESTIONS entries, closest first (and then by term).
+     */
+    public List<DictionaryEntry> suggest(String term)
+    {
+        String key = DictionaryEntry.foldCase(term);
+        int limit = key.length() <= 4 ? 1 : 2;
+        
+        // collect the matches, bucketed by their distances
+        ArrayList<ArrayList<Node>> matches = new ArrayList<>();
+        for (int i = 0; i <= limit; i++) matches.add(new ArrayList<>());
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        if (root != null) stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            // (beyond this distance neither the node nor its children match)
+            int bound = limit + (node.children == null ? 0 : node.children.length - 1);
+            int distance = distance(key, node.key, bound);
+            if (distance <= limit && node.entry != null)
+                matches.get(distance).add(node);
+            if (node.children == null) continue;
+            int last = Math.min(distance + limit, node.children.length - 1);
+            for (int i = Math.max(1, distance - limit); i <= last; i++) {
+                if (node.children[i] != null) stack.push(node.children[i]);
+            }
+        }
+        
+        // take the closest ones
+        ArrayList<DictionaryEntry> suggestions = new ArrayList<>();
+        for (ArrayList<Node> bucket : matches) {
+            bucket.sort((a, b) -> a.key.compareTo(b.key));
+            for (Node node : bucket) {
+                if (suggestions.size() == MAX_SUGGESTIONS) return suggestions;
+                suggestions.add(node.entry);
+            }
+        }
+        return suggestions;
+    }
+    
+    /***************************************************************************
+     * Rebuilds the tree without its removed terms.
+     */
+    private void compact()
+    {
+        ArrayList<DictionaryEntry> live = new ArrayList<>(size);
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        if (root != null) stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (node.entry != null) live.add(node.entry);
+            if (node.children == null) continue;
+            for (Node child : node.children) {
+                if (child != null) stack.push(child);
+            }
+        }
+        clear();
+        for (DictionaryEntry entry : live) add(entry);
+    }
+    
+    /***************************************************************************
+     * Computes the Levenshtein distance between two strings (the number of
+     * single-character insertions, deletions and substitutions needed to turn
+     * one into the other), giving up once it is known to exceed a bound.
+     * 
+     * @param a a string.
+     * @param b another string.
+     * @param bound the bound.
+     * @return the distance, or some value above the bound if it exceeds it.
+     */
+    private static int distance(String a, String b, int bound)
+    {
+        if (Math.abs(a.length() - b.length()) > bound) return bound + 1;
+        
+        // keep only two rows of the table, the shorter string along them
+        if (a.length() < b.length()) {
+            String temp = a;
+            a = b;
+            b = temp;
+        }
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) previous[j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = i;
+            char c = a.charAt(i - 1);
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = c == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1], previous[j]) + 1,
+                        previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > bound) return bound + 1; // (rows never decrease)
+            int[] temp = previous;
+            previous = current;
+            current = temp;
+        }
+        return previous[b.length()];
+    }
+}
@@ -2,11 +2,18 @@ package dictionaryProject;
 
 import java.io.IOException;
 import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.scene.control.ListView;
 import javafx.scene.control.Label;
+import javafx.scene.control.Button;
+import javafx.scene.control.MenuBar;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.TextField;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
 import javafx.stage.FileChooser;
@@ -71,6 +78,16 @@ public class MainWindowController
     private static final String COULDNT_SAVE_MSG =
             "Couldn't save Dictionary at:\n%s";
     
+    // a message displayed instead of the associated path while a dictionary is
+    // loaded ("%s" is the spot in which the path to the dictionary is placed)
+    private static final String LOADING_MSG =
+            "Loading %s...";
+    
+    // a message displayed instead of the associated path while a dictionary is
+    // saved ("%s" is the spot in which the path to the dictionary is placed)
+    private static final String SAVING_MSG =
+            "Saving %s...";
+    
     // a message displayed near the associated path when the dictionary is saved
     private static final String DICT_SAVED_MSG =
             "Saved";
@@ -115,34 +132,60 @@ public class MainWindowController
     /**************************************************************************
      * Attributes of the controller.
      */
-
+    
     // a label on the main pane on which the title is displayed (i.e. a term)
     @FXML private Label titleLabel;
-
+    
     // a label on the main pane on which the descriptionn is displayed (i.e. a
     // definition)
     @FXML private Label descriptionLabel;
-
+    
     // a label on the bottom of the window telling the path of the current
     // file associated with the working dictionary
     @FXML private Label currPathLabel;
-
+    
+    // a bar on the bottom of the window showing the progress of loading or
+    // saving a file, and a button cancelling it (both shown only meanwhile)
+    @FXML private ProgressBar fileProgressBar;
+    @FXML private Button cancelFileButton;
+    
+    // the menu bar of the window (disabled while a file is loaded or saved)
+    @FXML private MenuBar menuBar;
+    
     // a TextField used to search for a specific term in the dictionary
     @FXML private TextField searchTermTextField;
     
+    // a CheckBox stating whether the definitions are searched (and not the
+    // terms)
+    @FXML private CheckBox searchDefinitionsCheckBox;
+    
+    // a label telling that the listed entries are suggestions for a mistyped
+    // term
+    @FXML private Label suggestionsLabel;
+    
     // the ListView container for the entries in the working dictionary
     @FXML private ListView<DictionaryEntry> entriesListView;
     
     // the current working dictionary
     private Dictionary dictionary;
     
+    // the search of the terms typed in 'searchTermTextField'
+    private TermSearch termSearch;
+    
     // the path for the file associated with the current dictionary (an empty
     // String if no file is associated yet)
     private StringProperty currPath;
     
     // a boolean property stating whether the current working dictionary is saved
     private BooleanProperty isDictSaved;
-
+    
+    // the loading or saving of a file running in the background (or null if
+    // there's none)
+    private Task<?> fileTask;
+    
+    // a boolean property stating whether a file is being loaded or saved
+    private BooleanProperty isFileBusy;
+    
     /***************************************************************************
      * Initializes the controller.
      * Runs right after the window is loaded.
@@ -152,6 +195,7 @@ public class MainWindowController
         // initialize a working dictionary and bind it to the entries ListView
         dictionary = new Dictionary();
         dictionary.bindToListView(entriesListView);
+        termSearch = new TermSearch(dictionary);
         entriesListView.getSelectionModel().selectedItemProperty().addListener(
                 (ObservableValue<? extends DictionaryEntry> observable,
                     DictionaryEntry oldValue, DictionaryEntry newValue) -> {
@@ -165,13 +209,17 @@ public class MainWindowController
         // a specific term
         searchTermTextField.textProperty().addListener(
                 (observable, oldValue, newValue) -> {
-                    // the listener sets the dictionarie's filtering predicate,
-                    // so that only entries that match the searched term are
-                    // displayed in the bound ListView
-                    dictionary.setFilterPredicate(
-                            entry -> entry.getTerm().toLowerCase()
-                                    .startsWith(newValue.toLowerCase()));
+                    // the listener searches for the typed term, so that only
+                    // entries that match it are displayed in the bound
+                    // ListView (once the user pauses typing)
+                    termSearch.search(newValue);
                 });
+        searchDefinitionsCheckBox.setOnAction((e) -> {
+            termSearch.setSearchDefinitions(searchDefinitionsCheckBox.isSelected()); });
+        
+        // show 'suggestionsLabel' only while suggestions are listed
+        suggestionsLabel.visibleProperty().bind(termSearch.showingSuggestionsProperty());
+        suggestionsLabel.managedProperty().bind(suggestionsLabel.visibleProperty());
         
         // initialize currPath, and set it to "" (as no file is associated yet)
         currPath = new SimpleStringProperty();
@@ -192,6 +240,16 @@ public class MainWindowController
                         displayPath();
                     });
         isDictSaved.set(false);
+        
+        // while a file is loaded or saved, disable the menus (so the dictionary
+        // isn't changed meanwhile) and show the progress
+        fileTask = null;
+        isFileBusy = new SimpleBooleanProperty(false);
+        menuBar.disableProperty().bind(isFileBusy);
+        fileProgressBar.visibleProperty().bind(isFileBusy);
+        fileProgressBar.managedProperty().bind(isFileBusy);
+        cancelFileButton.visibleProperty().bind(isFileBusy);
+        cancelFileButton.managedProperty().bind(isFileBusy);
     }
     
     /***************************************************************************
@@ -242,7 +300,52 @@ public class MainWindowController
                     isDictSaved.get()? DICT_SAVED_MSG : DICT_NOT_SAVED_MSG,
                     currPath.getValue()));
     }
-
+    
+    /***************************************************************************
+     * Starts loading or saving a file on a background thread, showing its
+     * progress (the task's handlers must call 'endFileTask' when it is over).
+     * 
+     * @param task the task loading or saving the file.
+     * @param message a message displayed instead of the associated path
+     * meanwhile.
+     */
+    private void startFileTask(Task<?> task, String message)
+    {
+        fileTask = task;
+        isFileBusy.set(true);
+        fileProgressBar.progressProperty().bind(task.progressProperty());
+        currPathLabel.setText(message);
+        
+        // (not a daemon thread - a save is finished even if the window is
+        // closed meanwhile)
+        new Thread(task, "dictionary-file").start();
+    }
+    
+    /***************************************************************************
+     * Hides the progress of the file loaded or saved, once the task is over.
+     */
+    private void endFileTask()
+    {
+        fileTask = null;
+        fileProgressBar.progressProperty().unbind();
+        isFileBusy.set(false);
+        displayPath();
+    }
+    
+    /***************************************************************************
+     * Handles events in which the "Cancel" Button near the progress bar is
+     * pressed.
+     * Cancels the loading or saving of a file (the file, and the working
+     * dictionary, are left as they were).
+     * 
+     * @param event the event that caused the handler to be called.
+     */
+    @FXML private void cancelFilePressed(ActionEvent event)
+    {
+        // (the handlers of the task end it)
+        if (fileTask != null) fileTask.cancel();
+    }
+    
     /***************************************************************************
      * Handles events in which the "Add Entry" MenuItem in the "Edit" menu is
      * choosed.
@@ -293,7 +396,7 @@ public class MainWindowController
             }
         }
     }
-
+    
     /***************************************************************************
      * Handles events in which the "Delete Entry" MenuItem in the "Edit" menu is
      * choosed.
@@ -308,7 +411,7 @@ public class MainWindowController
                 entriesListView.getSelectionModel().getSelectedItem()))
             isDictSaved.set(false); // after it is changed, it isn't saved
     }
-
+    
     /***************************************************************************
      * Handles events in which the "Edit Entry" MenuItem in the "Edit" menu is
      * choosed.
@@ -336,28 +439,29 @@ public class MainWindowController
             loader.setLocation(getClass().getResource("EditEntryWindow.fxml"));
             Parent root = loader.load();
             EditEntryWindowController editWindowCtrl = loader.getController();
-
+            
             Stage editWindow = new Stage();
             Scene scene = new Scene(root);
             editWindow.setScene(scene);
-
+            
             // set in it the selected entry to edit, and lock the term
             editWindowCtrl.setTerm(selectedEntry.getTerm());
             editWindowCtrl.setDefinition(selectedEntry.getDefinition());
             editWindowCtrl.setTermLock(true);
-
+            
             // set the window's titles, show and wait for it
             editWindow.setTitle(EDIT_ENTRY_STAGE_TITLE);
             editWindowCtrl.setTitleLabel(EDIT_ENTRY_LABEL_TITLE);
             editWindow.showAndWait();
-
+            
             // get the edited entry, and make sure "Apply" was properly pressed
             DictionaryEntry editedEntry = editWindowCtrl.getDictionaryEntry();
             if (editedEntry != null) {
                 
-                // replace the original entry with the new edited entry
-                dictionary.removeEntry(selectedEntry);
-                dictionary.addEntry(editedEntry);
+                // replace the original entry with the new edited entry (in
+                // its place)
+                dictionary.update((transaction) -> {
+                    transaction.replace(editedEntry); });
                 entriesListView.getSelectionModel().select(editedEntry);
                 
                 // the changed dictionary is not saved now
@@ -365,12 +469,13 @@ public class MainWindowController
             }
         }
     }
-
+    
     /***************************************************************************
      * Handles events in which the "Load" MenuItem in the "File" menu is
      * choosed.
      * Opens a file-chooser window in which the user can choose a dictionary
-     * file to load to the Dictionary App.
+     * file to load to the Dictionary App. The file is read in the background,
+     * and replaces the working dictionary only once it is read completely.
      * 
      * @param event the event that caused the handler to be called.
      */
@@ -384,20 +489,46 @@ public class MainWindowController
         File inputFile = fileChooser.showOpenDialog(getWindow());
         
         if (inputFile != null) {
-            // try to load the Dictionary and set a new associated path
-            if (dictionary.load(inputFile.getAbsolutePath())) {
-                currPath.set(inputFile.getAbsolutePath());
-                isDictSaved.set(true);
-            }
-            else {
-                // otherwise tell the user that we couldn't load
+            // read the Dictionary in the background (if the task is cancelled
+            // while the file is still read, the file is discarded by whichever
+            // of the reading thread and the handlers of the task comes last)
+            String path = inputFile.getAbsolutePath();
+            AtomicReference<Dictionary.LoadedFile> read = new AtomicReference<>();
+            AtomicBoolean over = new AtomicBoolean(false);
+            Task<Dictionary.LoadedFile> task = new Task<Dictionary.LoadedFile>() {
+                @Override protected Dictionary.LoadedFile call() throws Exception
+                {
+                    Dictionary.LoadedFile file =
+                            Dictionary.readFile(path, this::updateProgress);
+                    read.set(file);
+                    if (!over.compareAndSet(false, true)) file.discard();
+                    return file;
+                }
+            };
+            task.setOnSucceeded((e) -> {
+                endFileTask();
+                // load the Dictionary and set a new associated path
+                dictionary.install(task.getValue());
+                termSearch.refresh();
+                currPath.set(path);
+                // (a file of the older format is converted on the next save)
+                isDictSaved.set(! dictionary.isLegacyFormat());
+            });
+            task.setOnFailed((e) -> {
+                endFileTask();
+                if (!over.compareAndSet(false, true)) read.get().discard();
+                // tell the user that we couldn't load
                 new Alert(AlertType.ERROR,
-                        String.format(COULDNT_LOAD_MSG,
-                                inputFile.getAbsolutePath())).showAndWait();
-            }
+                        String.format(COULDNT_LOAD_MSG, path)).showAndWait();
+            });
+            task.setOnCancelled((e) -> {
+                endFileTask();
+                if (!over.compareAndSet(false, true)) read.get().discard();
+            });
+            startFileTask(task, String.format(LOADING_MSG, path));
         }
     }
-
+    
     /***************************************************************************
      * Handles events in which the "New" MenuItem in the "File" menu is
      * choosed.
@@ -444,18 +575,59 @@ public class MainWindowController
         File outputFile = fileChooser.showSaveDialog(getWindow());
         
         if (outputFile != null) {
-            // try to save the Dictionary and set a new associated path
-            if (dictionary.save(outputFile.getAbsolutePath())) {
-                currPath.set(outputFile.getAbsolutePath());
-                isDictSaved.set(true);
+            // save the Dictionary (and set a new associated path)
+            runSave(outputFile.getAbsolutePath());
+        }
+    }
+    
+    /***************************************************************************
+     * Saves the current working dictionary to a file in the background, and
+     * associates the dictionary with the file once it is saved (or tells the
+     * user if saving failed).
+     * 
+     * @param path the path of the file.
+     */
+    private void runSave(String path)
+    {
+        // write the Dictionary in the background (a snapshot of it - though
+        // it can't be changed meanwhile anyway); if the task is cancelled
+        // while the file is still written, the save is discarded by whichever
+        // of the writing thread and the handlers of the task comes last
+        Dictionary.PendingSave save = dictionary.prepareSave(path);
+        AtomicBoolean over = new AtomicBoolean(false);
+        Task<Void> task = new Task<Void>() {
+            @Override protected Void call() throws Exception
+            {
+                save.write(this::updateProgress);
+                if (!over.compareAndSet(false, true)) save.discard();
+                return null;
             }
-            else {
-                // otherwise tell the user that we couldn't load
-                new Alert(AlertType.ERROR,
-                        String.format(COULDNT_SAVE_MSG,
-                                outputFile.getAbsolutePath())).showAndWait();
+            
+            @Override public boolean cancel(boolean mayInterruptIfRunning)
+            {
+                // (a save appending to the journal finishes first)
+                return save.cancel() && super.cancel(mayInterruptIfRunning);
             }
-        }
+        };
+        task.setOnSucceeded((e) -> {
+            endFileTask();
+            // record the save and set a new associated path
+            dictionary.finishSave(save);
+            currPath.set(path);
+            isDictSaved.set(true);
+        });
+        task.setOnFailed((e) -> {
+            endFileTask();
+            if (!over.compareAndSet(false, true)) save.discard();
+            // tell the user that we couldn't save
+            new Alert(AlertType.ERROR,
+                    String.format(COULDNT_SAVE_MSG, path)).showAndWait();
+        });
+        task.setOnCancelled((e) -> {
+            endFileTask();
+            if (!over.compareAndSet(false, true)) save.discard();
+        });
+        startFileTask(task, String.format(SAVING_MSG, path));
     }
     
     /***************************************************************************
@@ -474,8 +646,7 @@ public class MainWindowController
         if (! isDictSaved.get()) {
             if (! currPath.get().equals("")) {
                 // if there is an associated path - we save to it
-                dictionary.save(currPath.get());
-                isDictSaved.set(true);
+                runSave(currPath.get());
             }
             else {
                 // otherwise - this is the same as "Save As..."
@@ -516,11 +687,19 @@ public class MainWindowController
                 + "[File]->[Save As...] and select your file.\n";
         instructions += "The path for the file associated with the loaded "
                 + "dictionary is displayed at the bottom of the window.\n";
+        instructions += "While a dictionary is loaded or saved, the progress "
+                + "is displayed there as well - press [Cancel] to stop (the "
+                + "file is then left as it was).\n";
         instructions += "\n";
         instructions += "After the dictionary is loaded with terms, you can "
                 + "select a dictionary entry to view from the list on the left.\n";
         instructions += "To search for a specific term, use the text-field above "
                 + "the list.\n";
+        instructions += "To search for entries whose definitions contain certain "
+                + "words, check [Search definitions] and type the words (type "
+                + "OR between them to find entries containing any of them).\n";
+        instructions += "If no term matches what you typed, terms resembling it "
+                + "are listed instead.\n";
         instructions += "\n";
         instructions += "Have fun, and good luck ^_^\n";
         instructions += "Nadav.";
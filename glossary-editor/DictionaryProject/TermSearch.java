@@ -0,0 +1,196 @@
+package dictionaryProject;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.util.Duration;
+
+/*******************************************************************************
+ * This class runs the searches of terms typed by the user, as part of the
+ * Dictionary App (whose main program can be found in DictionaryApp.java).
+ * Keystrokes are debounced: a search starts only once the user pauses typing
+ * for a short while. The search itself runs on a background thread, and its
+ * result is shown in the dictionary's ListView at once, on the JavaFX thread.
+ * A search which is still running when the user types further is cancelled,
+ * and a query extending the previous one only narrows its result.
+ * Queries are prefixes of terms, or - when searching the definitions - words
+ * the definitions should contain (see Dictionary.searchDefinitions). When no
+ * term starts with the query, terms resembling it are suggested instead (see
+ * Dictionary.suggest).
+ * All methods must be called on the JavaFX thread.
+ * 
+ * @author Nadav Kahlon
+ */
+public class TermSearch
+{
+    /***************************************************************************
+     * Constants used by the class
+     */
+    
+    // the pause in typing after which a search starts
+    private static final Duration DEBOUNCE_DELAY = Duration.millis(150);
+    
+    /***************************************************************************
+     * Attributes of a term search
+     */
+    
+    // the dictionary searched
+    private final Dictionary dictionary;
+    
+    // the background thread the searches run on
+    private final ExecutorService executor;
+    
+    // a timer starting a search once the user pauses typing
+    private final PauseTransition debounceTimer;
+    
+    // the latest query typed by the user
+    private String query;
+    
+    // a boolean stating whether the definitions are searched (and not the
+    // terms)
+    private boolean definitions;
+    
+    // the search currently running (or null if there's none), and its number
+    // (results of any other search are ignored)
+    private Future<?> inFlight;
+    private long generation;
+    
+    // the result last shown (or null if there's none to narrow)
+    private Dictionary.SearchResult lastResult;
+    
+    // a boolean property stating whether the result shown holds suggestions
+    private final ReadOnlyBooleanWrapper showingSuggestions;
+    
+    /***************************************************************************
+     * Constructor: creates a new term search over a given dictionary.
+     * 
+     * @param dictionary the dictionary to search.
+     */
+    public TermSearch(Dictionary dictionary)
+    {
+        this.dictionary = dictionary;
+        this.executor = Executors.newSingleThreadExecutor((r) -> {
+            Thread thread = new Thread(r, "term-search");
+            thread.setDaemon(true); // (never keeps the app running)
+            return thread;
+        });
+        this.debounceTimer = new PauseTransition(DEBOUNCE_DELAY);
+        this.debounceTimer.setOnFinished((e) -> { start(); });
+        this.query = "";
+        this.definitions = false;
+        this.inFlight = null;
+        this.generation = 0;
+        this.lastResult = null;
+        this.showingSuggestions = new ReadOnlyBooleanWrapper(false);
+    }
+    
+    /***************************************************************************
+     * Searches for a query typed by the user, once the user pauses typing.
+     * 
+     * @param query the query (a prefix of the terms to show).
+     */
+    public void search(String query)
+    {
+        this.query = query;
+        debounceTimer.playFromStart();
+    }
+    
+    /***************************************************************************
+     * Gets a property stating whether the result shown holds suggestions for
+     * a mistyped term (and not matches of the query).
+     * 
+     * @return the property.
+     */
+    public ReadOnlyBooleanProperty showingSuggestionsProperty()
+    {
+        return showingSuggestions.getReadOnlyProperty();
+    }
+    
+    /***************************************************************************
+     * Sets whether the definitions are searched (and not the terms), and
+     * searches for the latest query again right away.
+     * 
+     * @param definitions true to search the definitions.
+     */
+    public void setSearchDefinitions(boolean definitions)
+    {
+        this.definitions = definitions;
+        refresh();
+    }
+    
+    /***************************************************************************
+     * Searches for the latest query again right away (e.g. after the
+     * dictionary was loaded - its indexes are then built by the search, on the
+     * background thread).
+     */
+    public void refresh()
+    {
+        debounceTimer.stop();
+        start();
+    }
+    
+    /***************************************************************************
+     * Starts a search for the latest query on the background thread, cancelling
+     * the one running (if any).
+     */
+    private void start()
+    {
+        if (inFlight != null) inFlight.cancel(true);
+        long searchGeneration = ++generation;
+        String searchQuery = query;
+        boolean searchDefinitions = definitions;
+        Dictionary.SearchResult previous = lastResult;
+        inFlight = executor.submit(() -> {
+            Dictionary.SearchResult result =
+                    find(searchQuery, searchDefinitions, previous);
+            if (result != null && !Thread.currentThread().isInterrupted())
+                Platform.runLater(() -> { publish(searchGeneration, result); });
+        });
+    }
+    
+    /***************************************************************************
+     * Searches the dictionary (runs on the background thread).
+     * 
+     * @param searchQuery the query.
+     * @param searchDefinitions true to search the definitions.
+     * @param previous the result last shown (or null).
+     * @return the result (suggestions if no term starts with the query), or
+     * null if the search was cancelled.
+     */
+    private Dictionary.SearchResult find(String searchQuery,
+            boolean searchDefinitions, Dictionary.SearchResult previous)
+    {
+        if (searchDefinitions) return dictionary.searchDefinitions(searchQuery);
+        Dictionary.SearchResult result = dictionary.search(searchQuery, previous);
+        if (result.isEmpty()) {
+            Dictionary.SearchResult suggestions = dictionary.suggest(searchQuery);
+            if (suggestions != null) return suggestions;
+        }
+        return result;
+    }
+    
+    /***************************************************************************
+     * Shows the result of a search, unless another search started since.
+     * If the dictionary changed since the search, it is searched again.
+     * 
+     * @param searchGeneration the number of the search.
+     * @param result the result.
+     */
+    private void publish(long searchGeneration, Dictionary.SearchResult result)
+    {
+        if (searchGeneration != generation) return;
+        inFlight = null;
+        if (dictionary.showResult(result)) {
+            lastResult = result;
+            showingSuggestions.set(result.isSuggestions());
+        }
+        else {
+            lastResult = null;
+            start();
+        }
+    }
+}
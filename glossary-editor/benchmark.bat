@@ -0,0 +1,2 @@
+java dictionaryProject.DictionaryFileBenchmark
+pause
\ No newline at end of file
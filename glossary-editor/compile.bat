@@ -1,2 +1,2 @@
-javac dictionaryProject\Dictionary.java dictionaryProject\DictionaryApp.java dictionaryProject\DictionaryEntry.java dictionaryProject\EditEntryWindowController.java dictionaryProject\MainWindowController.java
+javac dictionaryProject\DefinitionIndex.java dictionaryProject\Dictionary.java dictionaryProject\DictionaryApp.java dictionaryProject\DictionaryEntry.java dictionaryProject\DictionaryFile.java dictionaryProject\DictionaryFileBenchmark.java dictionaryProject\DictionaryJournal.java dictionaryProject\EditEntryWindowController.java dictionaryProject\FuzzyIndex.java dictionaryProject\MainWindowController.java dictionaryProject\TermSearch.java
 pause
\ No newline at end of file